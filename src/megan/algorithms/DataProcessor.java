@@ -32,6 +32,7 @@ import megan.core.SyncArchiveAndDataTable;
 import megan.data.*;
 import megan.io.InputOutputReaderWriter;
 import megan.main.MeganProperties;
+import megan.rma6.HeaderSectionRMA6;
 import megan.rma6.RMA6File;
 import megan.rma6.ReadBlockRMA6;
 
@@ -157,7 +158,7 @@ public class DataProcessor {
             }
 
             final IConnector connector = doc.getConnector();
-            final InputOutputReaderWriter mateReader = doMatePairs ? new InputOutputReaderWriter(doc.getMeganFile().getFileName(), "r") : null;
+            final InputOutputReaderWriter mateReader = doMatePairs ? RMA6File.openReaderWriter(doc.getMeganFile().getFileName(), RMA6File.READ_ONLY, new HeaderSectionRMA6()) : null;
 
             final float topPercentForActiveMatchFiltering;
             if (usingLongReadAlgorithm) {
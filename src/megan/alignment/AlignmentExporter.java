@@ -18,42 +18,43 @@
  */
 package megan.alignment;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.util.*;
 import megan.alignment.gui.Alignment;
 import megan.alignment.gui.Lane;
 import megan.core.Document;
-import megan.data.IMatchBlock;
-import megan.data.IReadBlock;
-import megan.data.IReadBlockIterator;
-import megan.rma2.MatchBlockRMA2;
-import megan.rma2.ReadBlockRMA2;
+import megan.data.*;
 
 import javax.swing.*;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * exports alignments to a set of files
- * Daniel Huson, 9.2011
+ * Daniel Huson, 9.2011, 10.2019
  */
 public class AlignmentExporter {
+    private static final long MIN_MEMORY_BUDGET = 256L * 1024 * 1024;
+    private static final double INITIAL_BYTES_PER_READ = 4096;
+    private static final int TRIPLET_OVERHEAD = 64;
+
     private final Document doc;
     private final JFrame parent;
 
     private String classificationName;
-    private int classId;
     private String className;
 
-    private final Map<String, List<Pair<IReadBlock, IMatchBlock>>> reference2ReadMatchPairs = new HashMap<>();
+    // triplets of read name, read sequence and match text. Triplets of the same read share the read name array, which identifies the read
+    private final Map<String, List<byte[][]>> reference2ReadMatchTriplets = new HashMap<>();
 
     private final Set<String> usedReferences = new HashSet<>();
     private boolean useEachReferenceOnlyOnce = true;
 
-    private boolean warned = false;
-    private boolean overwrite = true;
+    private volatile boolean warned = false;
+    private volatile boolean overwrite = true;
 
     private boolean verbose = false;
 
@@ -79,9 +80,8 @@ public class AlignmentExporter {
         int totalReads = 0;
         int totalReadsUsed = 0;
 
-        reference2ReadMatchPairs.clear();
+        reference2ReadMatchTriplets.clear();
 
-        Set<String> matchesSeenForGivenRead = new HashSet<>();
         progressListener.setSubtask("Processing total dataset");
 
         try (IReadBlockIterator it = doc.getConnector().getAllReadsIterator(doc.getMinScore(), doc.getMaxExpected(), true, true)) {
@@ -89,31 +89,20 @@ public class AlignmentExporter {
             progressListener.setProgress(0);
 
             while (it.hasNext()) {
-                IReadBlock readBlock = it.next();
+                final IReadBlock readBlock = it.next();
                 totalReads++;
-                boolean readUsed = false;
-
-                for (IMatchBlock matchBlock : readBlock.getMatchBlocks()) {
-                    if (matchBlock.getBitScore() >= doc.getMinScore() && matchBlock.getExpected() <= doc.getMaxExpected() &&
-                            (matchBlock.getPercentIdentity() == 0 || matchBlock.getPercentIdentity() >= doc.getMinPercentIdentity())) {
-                        String key = Basic.getFirstLine(matchBlock.getText());
-                        if (!matchesSeenForGivenRead.contains(key)) {
-                            matchesSeenForGivenRead.add(key);
-                            List<Pair<IReadBlock, IMatchBlock>> pairs = reference2ReadMatchPairs.computeIfAbsent(key, k -> new LinkedList<>());
-                            pairs.add(new Pair<>(readBlock, matchBlock));
-                            readUsed = true;
-                        }
-                    }
+
+                final List<Pair<String, byte[]>> matches = getReferenceMatches(readBlock, false);
+                if (matches.size() > 0) {
+                    addTriplets(Blast2Alignment.getReadNameBytes(readBlock), Blast2Alignment.getReadSequenceBytes(readBlock), matches, reference2ReadMatchTriplets);
+                    totalReadsUsed++;
                 }
-                matchesSeenForGivenRead.clear();
                 progressListener.incrementProgress();
-                if (readUsed)
-                    totalReadsUsed++;
             }
         }
         System.err.println("Reads total: " + totalReads);
         System.err.println("Reads used:  " + totalReadsUsed);
-        System.err.println("References:  " + reference2ReadMatchPairs.keySet().size());
+        System.err.println("References:  " + reference2ReadMatchTriplets.keySet().size());
     }
 
     /**
@@ -125,15 +114,13 @@ public class AlignmentExporter {
      */
     public void loadData(String classificationName, Integer classId, String name, boolean refSeqOnly, ProgressListener progressListener) throws CanceledException, IOException {
         this.classificationName = classificationName;
-        this.classId = classId;
         this.className = name;
 
         int totalReads = 0;
         int totalReadsUsed = 0;
 
-        reference2ReadMatchPairs.clear();
+        reference2ReadMatchTriplets.clear();
 
-        Set<String> matchesSeenForGivenRead = new HashSet<>();
         progressListener.setSubtask("Processing '" + name + "'");
 
         try (IReadBlockIterator it = doc.getConnector().getReadsIterator(classificationName, classId, 0, 10, true, true)) {
@@ -141,61 +128,58 @@ public class AlignmentExporter {
             progressListener.setProgress(0);
 
             while (it.hasNext()) {
-                IReadBlock readBlock = copy(it.next(), new String[]{classificationName});
+                final IReadBlock readBlock = it.next();
                 totalReads++;
-                boolean readUsed = false;
-
-                for (IMatchBlock matchBlock : readBlock.getMatchBlocks()) {
-                    if (matchBlock.getBitScore() >= doc.getMinScore() && matchBlock.getExpected() <= doc.getMaxExpected() &&
-                            (matchBlock.getPercentIdentity() == 0 || matchBlock.getPercentIdentity() >= doc.getMinPercentIdentity())) {
-                        if (!refSeqOnly || (matchBlock.getRefSeqId() != null && matchBlock.getRefSeqId().length() > 0)) {
-                            String key = Basic.getFirstLine(matchBlock.getText());
-                            if (!matchesSeenForGivenRead.contains(key)) {
-                                matchesSeenForGivenRead.add(key);
-
-                                List<Pair<IReadBlock, IMatchBlock>> pairs = reference2ReadMatchPairs.computeIfAbsent(key, k -> new LinkedList<>());
-                                pairs.add(new Pair<>(readBlock, matchBlock));
-                                readUsed = true;
-                            }
-                        }
-                    }
+
+                final List<Pair<String, byte[]>> matches = getReferenceMatches(readBlock, refSeqOnly);
+                if (matches.size() > 0) {
+                    addTriplets(Blast2Alignment.getReadNameBytes(readBlock), Blast2Alignment.getReadSequenceBytes(readBlock), matches, reference2ReadMatchTriplets);
+                    totalReadsUsed++;
                 }
-                matchesSeenForGivenRead.clear();
                 progressListener.incrementProgress();
-                if (readUsed)
-                    totalReadsUsed++;
             }
         }
         System.err.println(String.format("Reads total: %,10d", totalReads));
         System.err.println(String.format("Reads used:  %,10d ", totalReadsUsed));
-        System.err.println(String.format("References:  %,10d", reference2ReadMatchPairs.keySet().size()));
+        System.err.println(String.format("References:  %,10d", reference2ReadMatchTriplets.keySet().size()));
     }
 
-    private IReadBlock copy(IReadBlock src, String[] cNames) {
-        final ReadBlockRMA2 readBlock = new ReadBlockRMA2();
-        readBlock.setReadHeader(src.getReadHeader());
-        readBlock.setReadSequence(src.getReadSequence());
-        readBlock.setReadWeight(src.getReadWeight());
-        readBlock.setNumberOfMatches(src.getNumberOfMatches());
-        IMatchBlock[] matches = new MatchBlockRMA2[src.getNumberOfMatches()];
-        for (int i = 0; i < src.getNumberOfMatches(); i++)
-            matches[i] = copy(src.getMatchBlock(i), cNames);
-        readBlock.setMatchBlocks(matches);
-        return readBlock;
+    /**
+     * get the matches of a read that pass the filters, at most one per reference
+     *
+     * @param readBlock
+     * @param refSeqOnly
+     * @return pairs of reference and match text
+     */
+    private List<Pair<String, byte[]>> getReferenceMatches(IReadBlock readBlock, boolean refSeqOnly) {
+        final List<Pair<String, byte[]>> matches = new ArrayList<>();
+        final Set<String> matchesSeenForGivenRead = new HashSet<>();
+
+        for (IMatchBlock matchBlock : readBlock.getMatchBlocks()) {
+            if (matchBlock.getBitScore() >= doc.getMinScore() && matchBlock.getExpected() <= doc.getMaxExpected() &&
+                    (matchBlock.getPercentIdentity() == 0 || matchBlock.getPercentIdentity() >= doc.getMinPercentIdentity())) {
+                if (!refSeqOnly || (matchBlock.getRefSeqId() != null && matchBlock.getRefSeqId().length() > 0)) {
+                    final String key = Basic.getFirstLine(matchBlock.getText());
+                    if (matchesSeenForGivenRead.add(key))
+                        matches.add(new Pair<>(key, Blast2Alignment.getMatchTextBytes(matchBlock)));
+                }
+            }
+        }
+        return matches;
     }
 
-    private IMatchBlock copy(IMatchBlock src, String[] cNames) {
-        final MatchBlockRMA2 matchBlock = new MatchBlockRMA2();
-        matchBlock.setBitScore(src.getBitScore());
-        matchBlock.setExpected(src.getExpected());
-        matchBlock.setLength(src.getLength());
-        matchBlock.setPercentIdentity(src.getPercentIdentity());
-        matchBlock.setText(src.getText());
-        matchBlock.setIgnore(src.isIgnore());
-        for (String name : cNames) {
-            matchBlock.setId(name, src.getId(name));
+    /**
+     * add triplets of read name, read sequence and match text for all matches of a read
+     *
+     * @param readName
+     * @param readSequence
+     * @param matches
+     * @param reference2ReadMatchTriplets
+     */
+    private static void addTriplets(byte[] readName, byte[] readSequence, List<Pair<String, byte[]>> matches, Map<String, List<byte[][]>> reference2ReadMatchTriplets) {
+        for (Pair<String, byte[]> match : matches) {
+            reference2ReadMatchTriplets.computeIfAbsent(match.getFirst(), k -> new LinkedList<>()).add(new byte[][]{readName, readSequence, match.getSecond()});
         }
-        return matchBlock;
     }
 
     /**
@@ -218,9 +202,216 @@ public class AlignmentExporter {
                                                 final boolean useAnyReadOnlyOnce, final boolean blastXAsProtein, final boolean asConsensus,
                                                 int minReads, int minLength, final double minCoverage,
                                                 final ProgressListener progressListener) throws IOException, CanceledException {
+        final OutputFiles outputFiles = new OutputFiles(fileNameTemplate, totalFilesWritten);
+
+        computeAlignments(classificationName, className, reference2ReadMatchTriplets, useAnyReadOnlyOnce, blastXAsProtein, asConsensus,
+                minReads, minLength, minCoverage, true, progressListener, outputFiles::write);
+
+        reference2ReadMatchTriplets.clear();
+        System.err.println(String.format("Output reads:%,10d", outputFiles.totalOutputSequences));
+        System.err.println(String.format("Output files:%,10d", outputFiles.totalFilesWritten));
+
+        return new Pair<>(outputFiles.totalOutputSequences, outputFiles.totalFilesWritten);
+    }
+
+    /**
+     * export the alignments for a list of classes to individual files.
+     * <p>
+     * For DAA and RMA6 files, the reads of all classes are read in one pass over the file. To stay within a memory budget,
+     * consecutive classes are processed in batches, each requiring one pass over the reads of its classes. The alignments
+     * of the classes of a batch are computed in parallel. Files are written in order of the classes: a worker buffers the
+     * alignments of its class until all previous classes have been written, and only waits once its buffer exceeds its share
+     * of the memory budget. If each reference is to be used only once, then the outcome depends on the order of classes
+     * and so the alignments are computed by a single thread.
+     * Otherwise, the data for each class is loaded and exported separately.
+     *
+     * @param classificationName
+     * @param classIds
+     * @param classNames         names of classes, in the same order as class ids
+     * @param refSeqOnly
+     * @param fileNameTemplate
+     * @param useAnyReadOnlyOnce
+     * @param blastXAsProtein
+     * @param asConsensus
+     * @param minReads
+     * @param minLength
+     * @param minCoverage
+     * @param numberOfThreads
+     * @param progressListener
+     * @return the number of reads and files
+     * @throws IOException
+     * @throws CanceledException
+     */
+    public Pair<Integer, Integer> exportToFiles(String classificationName, List<Integer> classIds, List<String> classNames, boolean refSeqOnly,
+                                                final String fileNameTemplate, final boolean useAnyReadOnlyOnce, final boolean blastXAsProtein, final boolean asConsensus,
+                                                int minReads, int minLength, final double minCoverage, int numberOfThreads,
+                                                final ProgressListener progressListener) throws IOException, CanceledException {
+        final IConnector connector = doc.getConnector();
+
+        if (!ClassReadLocations.isSupported(connector)) {
+            int totalReads = 0;
+            int totalFiles = 0;
+            for (int c = 0; c < classIds.size(); c++) {
+                loadData(classificationName, classIds.get(c), classNames.get(c), refSeqOnly, progressListener);
+                final Pair<Integer, Integer> numberOfReadsAndFiles = exportToFiles(totalFiles, fileNameTemplate, useAnyReadOnlyOnce, blastXAsProtein, asConsensus,
+                        minReads, minLength, minCoverage, progressListener);
+                totalReads += numberOfReadsAndFiles.getFirst();
+                totalFiles = numberOfReadsAndFiles.getSecond();
+            }
+            return new Pair<>(totalReads, totalFiles);
+        }
+
+        progressListener.setSubtask("Loading read locations");
+        final List<List<Integer>> classes = new ArrayList<>(classIds.size());
+        for (Integer classId : classIds) {
+            classes.add(Collections.singletonList(classId));
+        }
+        final ClassReadLocations readLocations = new ClassReadLocations(connector, classificationName, classes);
+        final int[] numberOfReads = readLocations.getNumberOfReadsPerClass();
+        final int[] readClasses = new int[Math.max(1, classes.size())];
+
+        final long memoryBudget = Math.max(MIN_MEMORY_BUDGET, Runtime.getRuntime().maxMemory() / 4);
+        double bytesPerRead = INITIAL_BYTES_PER_READ;
+
+        final OutputFiles outputFiles = new OutputFiles(fileNameTemplate, 0);
+        final WriteOrder writeOrder = new WriteOrder();
+        final int numberOfWorkers = (useEachReferenceOnlyOnce ? 1 : Math.max(1, numberOfThreads));
+        final long bufferBudget = memoryBudget / numberOfWorkers; // bytes of alignment text that a worker may hold while waiting
+        final ExecutorService service = ProgramExecutorService.createServiceForParallelAlgorithm(numberOfWorkers);
+
+        try (IReadBlockGetter readBlockGetter = connector.getReadBlockGetter(0, 10, true, true)) {
+            for (int from = 0; from < classes.size(); ) {
+                // determine the next batch of classes:
+                int to = from;
+                long batchReads = 0;
+                do {
+                    batchReads += numberOfReads[to++];
+                }
+                while (to < classes.size() && (batchReads + numberOfReads[to]) * bytesPerRead <= memoryBudget);
+
+                // collect the data for all classes of the batch in one pass:
+                final ListOfLongs locations = readLocations.getLocations(from, to);
+                progressListener.setSubtask(to - from == classes.size() ? "Collecting data" : String.format("Collecting data (classes %,d-%,d of %,d)", from + 1, to, classes.size()));
+                progressListener.setMaximum(locations.size());
+                progressListener.setProgress(0);
+
+                final List<Map<String, List<byte[][]>>> class2ReadMatchTriplets = new ArrayList<>(to - from);
+                for (int c = from; c < to; c++) {
+                    class2ReadMatchTriplets.add(new HashMap<>());
+                }
+                long batchBytes = 0;
+
+                for (int r = 0; r < locations.size(); r++) {
+                    final long location = locations.get(r);
+                    final IReadBlock readBlock = readBlockGetter.getReadBlock(location);
+                    if (readBlock == null)
+                        throw new IOException("Failed to read block at location: " + location);
+
+                    final List<Pair<String, byte[]>> matches = getReferenceMatches(readBlock, refSeqOnly);
+                    if (matches.size() > 0) {
+                        final byte[] readName = Blast2Alignment.getReadNameBytes(readBlock);
+                        final byte[] readSequence = Blast2Alignment.getReadSequenceBytes(readBlock);
+                        batchBytes += readName.length + readSequence.length;
+                        for (Pair<String, byte[]> match : matches) {
+                            batchBytes += match.getSecond().length;
+                        }
+                        final int count = readLocations.getClasses(location, readClasses);
+                        for (int i = 0; i < count; i++) {
+                            final int c = readClasses[i];
+                            if (c >= from && c < to) {
+                                addTriplets(readName, readSequence, matches, class2ReadMatchTriplets.get(c - from));
+                                batchBytes += TRIPLET_OVERHEAD * matches.size();
+                            }
+                        }
+                    }
+                    progressListener.setProgress(r + 1);
+                }
+                if (batchReads > 0 && batchBytes > 0)
+                    bytesPerRead = (double) batchBytes / batchReads;
+
+                // compute the alignments of the classes in parallel and write them in order of classes:
+                final LinkedList<Future<Boolean>> pending = new LinkedList<>();
+                for (int c = from; c < to; c++) {
+                    final Map<String, List<byte[][]>> reference2ReadMatchTriplets = class2ReadMatchTriplets.get(c - from);
+                    class2ReadMatchTriplets.set(c - from, null);
+                    final String className = classNames.get(c);
+                    final int classIndex = c;
+                    pending.add(service.submit(() -> {
+                        final LinkedList<AlignmentText> buffer = new LinkedList<>();
+                        final long[] bufferBytes = {0};
+                        try {
+                            computeAlignments(classificationName, className, reference2ReadMatchTriplets, useAnyReadOnlyOnce, blastXAsProtein, asConsensus,
+                                    minReads, minLength, minCoverage, false, null, alignmentText -> {
+                                        if (!writeOrder.isTurn(classIndex)) {
+                                            // if reads are used only once, a buffered alignment must be known to be written:
+                                            if ((!useAnyReadOnlyOnce || outputFiles.isOverwriteDecided()) && bufferBytes[0] + alignmentText.getBytes() <= bufferBudget) {
+                                                buffer.add(alignmentText);
+                                                bufferBytes[0] += alignmentText.getBytes();
+                                                return true;
+                                            }
+                                            writeOrder.waitForTurn(classIndex);
+                                        }
+                                        writeBuffer(buffer, outputFiles);
+                                        bufferBytes[0] = 0;
+                                        return outputFiles.write(alignmentText);
+                                    });
+                            writeOrder.waitForTurn(classIndex);
+                            writeBuffer(buffer, outputFiles);
+                            writeOrder.setDone(classIndex);
+                            return true;
+                        } catch (Throwable ex) {
+                            writeOrder.abort(ex);
+                            throw ex;
+                        } finally {
+                            reference2ReadMatchTriplets.clear();
+                        }
+                    }));
+                }
+                progressListener.setSubtask("Writing data");
+                progressListener.setMaximum(to - from);
+                progressListener.setProgress(0);
+
+                while (pending.size() > 0) {
+                    try {
+                        getResult(pending.removeFirst());
+                    } catch (CanceledException ex) {
+                        writeOrder.throwFailure(); // report the failure that made the worker give up
+                        throw ex;
+                    }
+                    progressListener.incrementProgress();
+                }
+                from = to;
+            }
+        } finally {
+            service.shutdownNow();
+        }
+        System.err.println(String.format("Output reads:%,10d", outputFiles.totalOutputSequences));
+        System.err.println(String.format("Output files:%,10d", outputFiles.totalFilesWritten));
+
+        return new Pair<>(outputFiles.totalOutputSequences, outputFiles.totalFilesWritten);
+    }
 
+    /**
+     * computes the alignments for the given data of a class, in decreasing order of number of reads
+     *
+     * @param classificationName
+     * @param className
+     * @param reference2ReadMatchTriplets
+     * @param useAnyReadOnlyOnce
+     * @param blastXAsProtein
+     * @param asConsensus
+     * @param minReads
+     * @param minLength
+     * @param minCoverage
+     * @param reportProgress              report progress of each alignment on the command line
+     * @param progressListener            may be null
+     * @param consumer                    receives all alignments that pass the filters
+     */
+    private void computeAlignments(String classificationName, String className, Map<String, List<byte[][]>> reference2ReadMatchTriplets,
+                                   boolean useAnyReadOnlyOnce, boolean blastXAsProtein, boolean asConsensus, int minReads, int minLength, double minCoverage,
+                                   boolean reportProgress, ProgressListener progressListener, IAlignmentConsumer consumer) throws IOException, CanceledException {
         // sort data by decreasing number of reads associated with a given reference sequence
-        final SortedSet<Pair<String, List<Pair<IReadBlock, IMatchBlock>>>> sorted =
+        final SortedSet<Pair<String, List<byte[][]>>> sorted =
                 new TreeSet<>((pair1, pair2) -> {
                     if (pair1.getSecond().size() > pair2.getSecond().size())
                         return -1;
@@ -229,33 +420,33 @@ public class AlignmentExporter {
                     else
                         return pair1.getFirst().compareTo(pair2.getFirst());
                 });
-        for (String reference : reference2ReadMatchPairs.keySet()) {
-            List<Pair<IReadBlock, IMatchBlock>> value = reference2ReadMatchPairs.get(reference);
+        for (String reference : reference2ReadMatchTriplets.keySet()) {
+            List<byte[][]> value = reference2ReadMatchTriplets.get(reference);
             if (value != null)
                 sorted.add(new Pair<>(reference, value));
         }
 
-        Blast2Alignment blast2Alignment = new Blast2Alignment(doc);
+        final Blast2Alignment blast2Alignment = new Blast2Alignment(doc);
 
-        progressListener.setSubtask("Writing data");
-        progressListener.setMaximum(sorted.size());
-        progressListener.setProgress(0);
-
-        int totalOutputSequences = 0;
-        Set<String> fileNames = new HashSet<>();
+        if (progressListener != null) {
+            progressListener.setSubtask("Writing data");
+            progressListener.setMaximum(sorted.size());
+            progressListener.setProgress(0);
+        }
 
         final Alignment alignment = new Alignment();
 
-        // go through all alignments in decreasing order of size and write to files
+        // go through all alignments in decreasing order of size
         while (sorted.size() > 0) {
-            progressListener.incrementProgress();
-            final Pair<String, List<Pair<IReadBlock, IMatchBlock>>> pair = sorted.first();
+            if (progressListener != null)
+                progressListener.incrementProgress();
+            final Pair<String, List<byte[][]>> pair = sorted.first();
             sorted.remove(pair);
 
             final String reference = pair.getFirst();
 
-            blast2Alignment.loadData(classificationName, classId, className, reference, pair.getSecond());
-            blast2Alignment.makeAlignment(reference, alignment, true, new ProgressCmdLine());
+            blast2Alignment.loadData(classificationName, className, reference, pair.getSecond());
+            blast2Alignment.makeAlignment(reference, alignment, true, reportProgress ? new ProgressCmdLine() : new ProgressSilent());
 
             if (minReads > 1 && alignment.getNumberOfSequences() < minReads) {
                 if (verbose) System.err.println(" (too few reads, skipped)");
@@ -280,110 +471,71 @@ public class AlignmentExporter {
                 if (useEachReferenceOnlyOnce)
                     usedReferences.add(reference);
 
-                totalFilesWritten++;
-                String fileName = "" + fileNameTemplate;
-                if (fileName.contains("%n"))
-                    fileName = fileNameTemplate.replaceAll("%n", String.format("%05d", totalFilesWritten));
-                if (fileName.contains("%c"))
-                    fileName = fileName.replaceAll("%c", (className != null ? Basic.toCleanName(className.trim()) : ""));
-                if (fileName.contains("%r"))
-                    fileName = fileName.replaceAll("%r", Basic.toCleanName(reference.trim()));
-
-                if (fileNames.contains(fileName))
-                    fileName = Basic.replaceFileSuffix(fileName, "-" + totalFilesWritten + Basic.getFileSuffix(fileName));
-                fileNames.add(fileName);
-
-                if ((new File(fileName)).exists()) {
-                    if (!warned) {
-                        if (ProgramProperties.isUseGUI()) {
-                            int result = JOptionPane.showConfirmDialog(parent, "Some files already exist, overwrite all existing files?", "Overwrite files?", JOptionPane.YES_NO_CANCEL_OPTION,
-                                    JOptionPane.QUESTION_MESSAGE, ProgramProperties.getProgramIcon());
-                            switch (result) {
-                                case JOptionPane.NO_OPTION:
-                                    overwrite = false;
-                                    break;
-                                case JOptionPane.CANCEL_OPTION:
-                                    throw new CanceledException();
-                                default:
-                                    break;
-                            }
-                        }
-                        warned = true;
-                    }
-                    if (!overwrite) {
-                        System.err.println("Skipping existing file: '" + fileName + "'");
-                        continue;
-                    }
-                }
+                final AlignmentText alignmentText = new AlignmentText(className, reference, toText(alignment, blastXAsProtein, asConsensus), asConsensus,
+                        alignment.getNumberOfSequences(), asConsensus ? 1 : blast2Alignment.getTotalNumberOfReads());
 
-                final File outputFile = new File(fileName);
-
-                try (BufferedWriter w = new BufferedWriter(new FileWriter(outputFile))) {
-                    if (asConsensus) {
-                        System.err.println("Writing consensus of " + alignment.getNumberOfSequences() + " reads to file: '" + fileName + "'");
-                        String consensus = alignment.computeConsensus();
-                        w.write("> Consensus\n" + consensus + "\n");
-                        totalOutputSequences++;
-                    } else {
-                        System.err.println("Writing " + alignment.getNumberOfSequences() + " reads to file: '" + fileName + "'");
-
-                        if (blastXAsProtein) { // Write DNA as translated
-                            if (alignment.getSequenceType().equals(Alignment.cDNA) && alignment.getReference() != null && alignment.getReference().getLength() > 0) {
-                                w.write(alignment.getReferenceName() + "\n");
-                                final String ref;
-                                if (alignment.getOriginalReference() != null)
-                                    ref = alignment.getOriginalReference().getSequence();
-                                else
-                                    ref = alignment.getReference().getSequence();
-                                w.write(ref);   // todo: ref sequence is currently missing leading gaps
-                                w.write("\n");
-                            }
-                            int minRow = 0;
-                            int maxRow = alignment.getNumberOfSequences() - 1;
-                            for (int row = minRow; row <= maxRow; row++) {
-                                w.write(">" + Basic.swallowLeadingGreaterSign(alignment.getName(row)) + "\n");
-                                Lane lane = alignment.getLane(row);
-                                for (int i = 0; i < lane.getFirstNonGapPosition(); i += 3)
-                                    w.write("-");
-                                String sequence = lane.getBlock();
-                                for (int i = 0; i < sequence.length() - 2; i += 3) {
-                                    w.write(SequenceUtils.getAminoAcid(sequence, i));
-                                }
-                                for (int i = lane.getLastNonGapPosition() + 1; i < lane.getLength(); i += 3)
-                                    w.write("-");
-                                w.write("\n");
-                            }
-                        } else { // write as DNA
-                            if (alignment.getSequenceType().equals(Alignment.cDNA) && alignment.getReference() != null && alignment.getReference().getLength() > 0) {
-                                w.write(alignment.getReferenceName() + "\n");
-                                final String ref;
-                                if (alignment.getOriginalReference() != null)
-                                    ref = alignment.getOriginalReference().getSequence();
-                                else
-                                    ref = alignment.getReference().getSequence();
-                                w.write(ref);    // todo: ref sequence is currently missing leading gaps
-                                w.write("\n");
-                            }
-                            w.write(alignment.toFastA());
-                        }
-                        totalOutputSequences += blast2Alignment.getTotalNumberOfReads();
+                if (consumer.apply(alignmentText) && useAnyReadOnlyOnce)
+                    removeReadsFromSets(sorted, pair); // any read used is removed from all other alignments
+            }
+        }
+        sorted.clear();
+    }
+
+    /**
+     * gets the text to be written for an alignment
+     *
+     * @param alignment
+     * @param blastXAsProtein
+     * @param asConsensus
+     * @return text
+     */
+    private static String toText(Alignment alignment, boolean blastXAsProtein, boolean asConsensus) {
+        final StringWriter w = new StringWriter();
+        if (asConsensus) {
+            String consensus = alignment.computeConsensus();
+            w.write("> Consensus\n" + consensus + "\n");
+        } else {
+            if (blastXAsProtein) { // Write DNA as translated
+                if (alignment.getSequenceType().equals(Alignment.cDNA) && alignment.getReference() != null && alignment.getReference().getLength() > 0) {
+                    w.write(alignment.getReferenceName() + "\n");
+                    final String ref;
+                    if (alignment.getOriginalReference() != null)
+                        ref = alignment.getOriginalReference().getSequence();
+                    else
+                        ref = alignment.getReference().getSequence();
+                    w.write(ref);   // todo: ref sequence is currently missing leading gaps
+                    w.write("\n");
+                }
+                int minRow = 0;
+                int maxRow = alignment.getNumberOfSequences() - 1;
+                for (int row = minRow; row <= maxRow; row++) {
+                    w.write(">" + Basic.swallowLeadingGreaterSign(alignment.getName(row)) + "\n");
+                    Lane lane = alignment.getLane(row);
+                    for (int i = 0; i < lane.getFirstNonGapPosition(); i += 3)
+                        w.write("-");
+                    String sequence = lane.getBlock();
+                    for (int i = 0; i < sequence.length() - 2; i += 3) {
+                        w.write(SequenceUtils.getAminoAcid(sequence, i));
                     }
-                    if (useAnyReadOnlyOnce)
-                        removeReadsFromSets(sorted, pair); // any read used is removed from all other alignments
+                    for (int i = lane.getLastNonGapPosition() + 1; i < lane.getLength(); i += 3)
+                        w.write("-");
+                    w.write("\n");
                 }
-
-                if (outputFile.exists() && outputFile.length() == 0) {
-                    if (outputFile.delete())
-                        totalFilesWritten--;
+            } else { // write as DNA
+                if (alignment.getSequenceType().equals(Alignment.cDNA) && alignment.getReference() != null && alignment.getReference().getLength() > 0) {
+                    w.write(alignment.getReferenceName() + "\n");
+                    final String ref;
+                    if (alignment.getOriginalReference() != null)
+                        ref = alignment.getOriginalReference().getSequence();
+                    else
+                        ref = alignment.getReference().getSequence();
+                    w.write(ref);    // todo: ref sequence is currently missing leading gaps
+                    w.write("\n");
                 }
+                w.write(alignment.toFastA());
             }
         }
-        sorted.clear();
-        reference2ReadMatchPairs.clear();
-        System.err.println(String.format("Output reads:%,10d", totalOutputSequences));
-        System.err.println(String.format("Output files:%,10d", totalFilesWritten));
-
-        return new Pair<>(totalOutputSequences, totalFilesWritten);
+        return w.toString();
     }
 
     /**
@@ -393,19 +545,19 @@ public class AlignmentExporter {
      * @param current
      */
 
-    private void removeReadsFromSets(SortedSet<Pair<String, List<Pair<IReadBlock, IMatchBlock>>>> sorted, Pair<String, List<Pair<IReadBlock, IMatchBlock>>> current) {
-        // determine set of matches that have just been used
-        Set<IReadBlock> reads = new HashSet<>();
-        for (Pair<IReadBlock, IMatchBlock> readAndMatch : current.getSecond()) {
-            reads.add(readAndMatch.getFirst());
+    private void removeReadsFromSets(SortedSet<Pair<String, List<byte[][]>>> sorted, Pair<String, List<byte[][]>> current) {
+        // determine set of reads that have just been used, identified by their read name arrays
+        Set<byte[]> reads = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (byte[][] readAndMatch : current.getSecond()) {
+            reads.add(readAndMatch[0]);
 
         }
 
         // determine which remaining alignment sets contain at least one used read
-        List<Pair<String, List<Pair<IReadBlock, IMatchBlock>>>> toModify = new LinkedList<>();
-        for (Pair<String, List<Pair<IReadBlock, IMatchBlock>>> refReadMatches : sorted) {
-            for (Pair<IReadBlock, IMatchBlock> readMatch : refReadMatches.getSecond()) {
-                if (reads.contains(readMatch.getFirst())) {
+        List<Pair<String, List<byte[][]>>> toModify = new LinkedList<>();
+        for (Pair<String, List<byte[][]>> refReadMatches : sorted) {
+            for (byte[][] readMatch : refReadMatches.getSecond()) {
+                if (reads.contains(readMatch[0])) {
                     toModify.add(refReadMatches);
                     break;
                 }
@@ -413,20 +565,34 @@ public class AlignmentExporter {
         }
 
         // remove all used reads, re-inserting modified datasets into the sorted set.
-        for (Pair<String, List<Pair<IReadBlock, IMatchBlock>>> refReadMatches : toModify) {
+        for (Pair<String, List<byte[][]>> refReadMatches : toModify) {
             sorted.remove(refReadMatches);
-            List<Pair<IReadBlock, IMatchBlock>> toDelete = new LinkedList<>();
-            for (Pair<IReadBlock, IMatchBlock> readMatch : refReadMatches.getSecond()) {
-                if (reads.contains(readMatch.getFirst())) {
-                    toDelete.add(readMatch);
-                }
-            }
-            refReadMatches.getSecond().removeAll(toDelete);
+            refReadMatches.getSecond().removeIf(readMatch -> reads.contains(readMatch[0]));
             if (refReadMatches.getSecond().size() > 0)
                 sorted.add(refReadMatches);
         }
     }
 
+    /**
+     * gets the result of a computation of alignments
+     *
+     * @param future
+     * @return result
+     */
+    private static <T> T getResult(Future<T> future) throws IOException, CanceledException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new CanceledException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            else if (e.getCause() instanceof CanceledException)
+                throw (CanceledException) e.getCause();
+            else
+                throw new IOException(e.getCause() != null ? e.getCause() : e);
+        }
+    }
 
     public void setUseEachReferenceOnlyOnce(boolean useEachReferenceOnlyOnce) {
         this.useEachReferenceOnlyOnce = useEachReferenceOnlyOnce;
@@ -443,4 +609,209 @@ public class AlignmentExporter {
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
     }
+
+    /**
+     * consumes an alignment
+     */
+    private interface IAlignmentConsumer {
+        /**
+         * @param alignmentText
+         * @return true, if alignment was used
+         */
+        boolean apply(AlignmentText alignmentText) throws IOException, CanceledException;
+    }
+
+    /**
+     * write and remove all buffered alignments
+     *
+     * @param buffer
+     * @param outputFiles
+     */
+    private static void writeBuffer(LinkedList<AlignmentText> buffer, OutputFiles outputFiles) throws IOException, CanceledException {
+        while (buffer.size() > 0) {
+            outputFiles.write(buffer.removeFirst());
+        }
+    }
+
+    /**
+     * lets the workers of consecutive classes write their alignments in order of classes
+     */
+    private static class WriteOrder {
+        private int next;
+        private Throwable failure;
+
+        /**
+         * waits until all classes before the given one have been written
+         *
+         * @param classIndex
+         * @throws CanceledException if interrupted or another worker has failed
+         */
+        synchronized void waitForTurn(int classIndex) throws CanceledException {
+            try {
+                while (next != classIndex && failure == null)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new CanceledException();
+            }
+            if (failure != null)
+                throw new CanceledException();
+        }
+
+        /**
+         * is it the turn of the given class to be written?
+         *
+         * @param classIndex
+         * @return true, if all classes before the given one have been written
+         * @throws CanceledException if another worker has failed
+         */
+        synchronized boolean isTurn(int classIndex) throws CanceledException {
+            if (failure != null)
+                throw new CanceledException();
+            return next == classIndex;
+        }
+
+        /**
+         * the given class has been written, must be called after waitForTurn
+         *
+         * @param classIndex
+         */
+        synchronized void setDone(int classIndex) {
+            next = classIndex + 1;
+            notifyAll();
+        }
+
+        /**
+         * a worker has failed, no further classes are written
+         *
+         * @param ex
+         */
+        synchronized void abort(Throwable ex) {
+            if (failure == null)
+                failure = ex;
+            notifyAll();
+        }
+
+        /**
+         * throws the first failure of a worker, if any, unless it was a cancellation
+         */
+        synchronized void throwFailure() throws IOException {
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            else if (failure != null && !(failure instanceof CanceledException))
+                throw new IOException(failure);
+        }
+    }
+
+    /**
+     * the text of an alignment to be written to a file
+     */
+    private static class AlignmentText {
+        final String className;
+        final String reference;
+        final String text;
+        final boolean consensus;
+        final int numberOfSequences;
+        final int numberOfOutputSequences;
+
+        AlignmentText(String className, String reference, String text, boolean consensus, int numberOfSequences, int numberOfOutputSequences) {
+            this.className = className;
+            this.reference = reference;
+            this.text = text;
+            this.consensus = consensus;
+            this.numberOfSequences = numberOfSequences;
+            this.numberOfOutputSequences = numberOfOutputSequences;
+        }
+
+        /**
+         * estimated number of bytes of memory used by the text
+         */
+        long getBytes() {
+            return 2L * text.length();
+        }
+    }
+
+    /**
+     * the files written by an export
+     */
+    private class OutputFiles {
+        private final String fileNameTemplate;
+        private final Set<String> fileNames = new HashSet<>();
+        int totalFilesWritten;
+        int totalOutputSequences;
+
+        OutputFiles(String fileNameTemplate, int totalFilesWritten) {
+            this.fileNameTemplate = fileNameTemplate;
+            this.totalFilesWritten = totalFilesWritten;
+        }
+
+        /**
+         * is it known that existing files will be overwritten, so that every alignment passed to write() will be written?
+         *
+         * @return true, if existing files will be overwritten without asking
+         */
+        boolean isOverwriteDecided() {
+            return !ProgramProperties.isUseGUI() || (warned && overwrite);
+        }
+
+        /**
+         * writes an alignment to a new file
+         *
+         * @param alignmentText
+         * @return true, if written, false, if skipped because file exists
+         */
+        boolean write(AlignmentText alignmentText) throws IOException, CanceledException {
+            final String className = alignmentText.className;
+            final String reference = alignmentText.reference;
+
+            totalFilesWritten++;
+            String fileName = "" + fileNameTemplate;
+            if (fileName.contains("%n"))
+                fileName = fileNameTemplate.replaceAll("%n", String.format("%05d", totalFilesWritten));
+            if (fileName.contains("%c"))
+                fileName = fileName.replaceAll("%c", (className != null ? Basic.toCleanName(className.trim()) : ""));
+            if (fileName.contains("%r"))
+                fileName = fileName.replaceAll("%r", Basic.toCleanName(reference.trim()));
+
+            if (fileNames.contains(fileName))
+                fileName = Basic.replaceFileSuffix(fileName, "-" + totalFilesWritten + Basic.getFileSuffix(fileName));
+            fileNames.add(fileName);
+
+            if ((new File(fileName)).exists()) {
+                if (!warned) {
+                    if (ProgramProperties.isUseGUI()) {
+                        int result = JOptionPane.showConfirmDialog(parent, "Some files already exist, overwrite all existing files?", "Overwrite files?", JOptionPane.YES_NO_CANCEL_OPTION,
+                                JOptionPane.QUESTION_MESSAGE, ProgramProperties.getProgramIcon());
+                        switch (result) {
+                            case JOptionPane.NO_OPTION:
+                                overwrite = false;
+                                break;
+                            case JOptionPane.CANCEL_OPTION:
+                                throw new CanceledException();
+                            default:
+                                break;
+                        }
+                    }
+                    warned = true;
+                }
+                if (!overwrite) {
+                    System.err.println("Skipping existing file: '" + fileName + "'");
+                    return false;
+                }
+            }
+
+            final File outputFile = new File(fileName);
+
+            try (BufferedWriter w = new BufferedWriter(new FileWriter(outputFile))) {
+                System.err.println("Writing " + (alignmentText.consensus ? "consensus of " : "") + alignmentText.numberOfSequences + " reads to file: '" + fileName + "'");
+                w.write(alignmentText.text);
+                totalOutputSequences += alignmentText.numberOfOutputSequences;
+            }
+
+            if (outputFile.exists() && outputFile.length() == 0) {
+                if (outputFile.delete())
+                    totalFilesWritten--;
+            }
+            return true;
+        }
+    }
 }
@@ -35,7 +35,7 @@ import java.util.*;
 
 /**
  * create an alignment from BLAST matches
- * Daniel Huson, 8.2011
+ * Daniel Huson, 8.2011, 10.2019
  */
 public class Blast2Alignment {
     private final Document doc;
@@ -236,23 +236,60 @@ public class Blast2Alignment {
      * @param readMatchPairs
      */
     public void loadData(String classificationName, Integer classId, String name, String key, List<Pair<IReadBlock, IMatchBlock>> readMatchPairs) {
+        final List<byte[][]> newList = new ArrayList<>(readMatchPairs.size());
+        for (Pair<IReadBlock, IMatchBlock> pair : readMatchPairs) {
+            final IReadBlock readBlock = pair.getFirst();
+            newList.add(new byte[][]{getReadNameBytes(readBlock), getReadSequenceBytes(readBlock), getMatchTextBytes(pair.getSecond())});
+        }
+        loadData(classificationName, name, key, newList);
+    }
+
+    /**
+     * load some existing data, given as triplets of read name, read sequence and match text. Used by alignment exporter
+     *
+     * @param classificationName
+     * @param name
+     * @param key
+     * @param readMatchTriplets
+     */
+    public void loadData(String classificationName, String name, String key, List<byte[][]> readMatchTriplets) {
         this.classificationName = classificationName;
         this.className = name;
 
         reference2ReadMatchPairs.clear();
-        final List<byte[][]> newList = new ArrayList<>(readMatchPairs.size());
-        for (Pair<IReadBlock, IMatchBlock> pair : readMatchPairs) {
-            final IReadBlock readBlock = pair.getFirst();
-            final IMatchBlock matchBlock = pair.getSecond();
-            final String readSequence = readBlock.getReadSequence().replaceAll("[\t\r\n ]", "");
-            final String readName = readBlock.getReadHeader();
-            final String matchText = BlastParsingUtils.removeReferenceHeaderFromBlastMatch(BlastParsingUtils.truncateBeforeSecondOccurrence(matchBlock.getText(), "Score ="));
-            newList.add(new byte[][]{readName.getBytes(), readSequence.getBytes(), matchText.getBytes()});
+        reference2ReadMatchPairs.put(key, readMatchTriplets);
 
-        }
-        reference2ReadMatchPairs.put(key, newList);
+        totalNumberOfReads = readMatchTriplets.size();
+    }
+
+    /**
+     * get the read name, as used in triplets of read name, read sequence and match text
+     *
+     * @param readBlock
+     * @return read name
+     */
+    public static byte[] getReadNameBytes(IReadBlock readBlock) {
+        return readBlock.getReadHeader().getBytes();
+    }
+
+    /**
+     * get the read sequence, as used in triplets of read name, read sequence and match text
+     *
+     * @param readBlock
+     * @return read sequence
+     */
+    public static byte[] getReadSequenceBytes(IReadBlock readBlock) {
+        return readBlock.getReadSequence().replaceAll("[\t\r\n ]", "").getBytes();
+    }
 
-        totalNumberOfReads = readMatchPairs.size();
+    /**
+     * get the match text, as used in triplets of read name, read sequence and match text
+     *
+     * @param matchBlock
+     * @return match text
+     */
+    public static byte[] getMatchTextBytes(IMatchBlock matchBlock) {
+        return BlastParsingUtils.removeReferenceHeaderFromBlastMatch(BlastParsingUtils.truncateBeforeSecondOccurrence(matchBlock.getText(), "Score =")).getBytes();
     }
 
     private String getBlastType() {
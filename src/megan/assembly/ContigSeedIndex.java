@@ -0,0 +1,154 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.assembly;
+
+import java.util.Arrays;
+
+/**
+ * index of all k-mers of a set of contigs, used to find the contigs that share a seed with a given contig
+ * <p>
+ * Each entry is a hash of a k-mer together with the id of a contig containing it. Hash collisions
+ * can only produce additional candidates, never miss any.
+ * Daniel Huson, 10.2019
+ */
+class ContigSeedIndex {
+    private static final long BASE = 0x100000001b3L;
+
+    private final int k;
+    private final int idBits;
+    private final long idMask;
+    private final long[] entries;
+
+    /**
+     * constructor
+     *
+     * @param contigs sequences of contigs, contig id is the index in the array
+     * @param k       seed length
+     */
+    ContigSeedIndex(byte[][] contigs, int k) {
+        this.k = k;
+        this.idBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(contigs.length));
+        this.idMask = (1L << idBits) - 1;
+
+        long total = 0;
+        for (byte[] contig : contigs) {
+            total += Math.max(0, contig.length - k + 1);
+        }
+        if (total > Integer.MAX_VALUE - 8)
+            throw new RuntimeException("Too many k-mers for seed index: " + total);
+
+        final long[] entries = new long[(int) total];
+        int count = 0;
+        final long basePowerK = power(BASE, k);
+        for (int id = 0; id < contigs.length; id++) {
+            final byte[] contig = contigs[id];
+            if (contig.length >= k) {
+                final int start = count;
+                long hash = hash(contig, 0, k);
+                entries[count++] = key(hash, id);
+                for (int pos = k; pos < contig.length; pos++) {
+                    hash = hash * BASE + contig[pos] - contig[pos - k] * basePowerK;
+                    entries[count++] = key(hash, id);
+                }
+                // remove repeated k-mers within contig:
+                Arrays.sort(entries, start, count);
+                int top = start;
+                for (int i = start; i < count; i++) {
+                    if (i == start || entries[i] != entries[top - 1])
+                        entries[top++] = entries[i];
+                }
+                count = top;
+            }
+        }
+        Arrays.sort(entries, 0, count);
+        this.entries = (count == entries.length ? entries : Arrays.copyOf(entries, count));
+    }
+
+    /**
+     * gets all contigs with id smaller than maxId that contain at least one of the seeds of the query that start at
+     * positions 0, k, 2k,...
+     *
+     * @param query
+     * @param maxId  only contigs with smaller ids are reported
+     * @param marks  candidates are marked by setting their entry to the stamp
+     * @param stamp  value used to mark candidates
+     * @param result the ids of candidates are written to this array
+     * @return number of candidates, written to the start of result in increasing order
+     */
+    int getCandidates(byte[] query, int maxId, int[] marks, int stamp, int[] result) {
+        int count = 0;
+        for (int queryPos = 0; queryPos < query.length - k + 1; queryPos += k) {
+            final long prefix = mix(hash(query, queryPos, k)) & ~idMask;
+            int i = lowerBound(prefix);
+            while (i < entries.length && (entries[i] & ~idMask) == prefix) {
+                final int id = (int) (entries[i] & idMask);
+                if (id >= maxId)
+                    break; // entries with the same hash are sorted by id
+                if (marks[id] != stamp) {
+                    marks[id] = stamp;
+                    result[count++] = id;
+                }
+                i++;
+            }
+        }
+        Arrays.sort(result, 0, count);
+        return count;
+    }
+
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (entries[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private long key(long hash, int id) {
+        return (mix(hash) & ~idMask) | id;
+    }
+
+    private static long hash(byte[] sequence, int offset, int length) {
+        long hash = 0;
+        for (int i = offset; i < offset + length; i++)
+            hash = hash * BASE + sequence[i];
+        return hash;
+    }
+
+    /**
+     * spread the bits of a hash, so that the bits kept in a key are well distributed
+     */
+    private static long mix(long hash) {
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    private static long power(long base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++)
+            result *= base;
+        return result;
+    }
+}
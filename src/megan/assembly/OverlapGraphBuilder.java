@@ -18,28 +18,38 @@
  */
 package megan.assembly;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.graph.Edge;
 import jloda.graph.Graph;
 import jloda.graph.Node;
 import jloda.graph.NodeArray;
+import jloda.util.Basic;
 import jloda.util.CanceledException;
 import jloda.util.ProgressListener;
 import jloda.util.ProgressPercentage;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * assembles a set of reads that align to a specific class in some classification
  * <p>
- * Daniel Huson, 5.2015
+ * Daniel Huson, 5.2015, 10.2019
  */
 public class OverlapGraphBuilder {
+    private static final int CONTAINED = -1;
+
     private final Graph overlapGraph = new Graph();
     private final NodeArray<String> node2readName = new NodeArray<>(overlapGraph);
     private List<Integer>[] readId2ContainedReads;
     private ReadData[] readDatas;
     private int minOverlap;
     private final boolean verbose;
+    private int numberOfThreads = ProgramExecutorService.getNumberOfCoresToUse();
 
     /**
      * constructor
@@ -67,75 +77,115 @@ public class OverlapGraphBuilder {
         readId2ContainedReads = new List[readDatas.length];
 
         long countPairs = 0;
-        Map<String, SortedSet<MatchData>> ref2matches = new HashMap<>();
+        for (ReadData read : readDatas) {
+            if (read.getMatches() != null)
+                countPairs += read.getMatches().length;
+        }
+        if (countPairs > Integer.MAX_VALUE - 8)
+            throw new RuntimeException("Too many matches: " + countPairs);
+
+        // reference names are interned to ids in the order in which they are first seen, the hash map determines the order in which references are processed
+        final Map<String, Integer> ref2id = new HashMap<>();
+        final Matches matches = new Matches((int) countPairs);
 
         for (int r = 0; r < readDatas.length; r++) {
             final ReadData read = readDatas[r];
             if (read.getMatches() != null) {
                 for (int m = 0; m < read.getMatches().length; m++) {
                     final MatchData match = read.getMatches()[m];
-                    SortedSet<MatchData> set = ref2matches.get(match.getRefName());
-                    if (set == null) {
-                        set = new TreeSet<>(new MatchData());
-                        ref2matches.put(match.getRefName(), set);
+                    Integer refId = ref2id.get(match.getRefName());
+                    if (refId == null) {
+                        refId = ref2id.size();
+                        ref2id.put(match.getRefName(), refId);
                     }
-                    set.add(match);
-                    countPairs++;
+                    matches.add(refId, match);
                 }
             }
             progress.setProgress(r);
         }
+        matches.sort(ref2id.size());
+
         if (progress instanceof ProgressPercentage)
             ((ProgressPercentage) progress).reportTaskCompleted();
         if (verbose)
             System.err.println(String.format("Overlaps:   %,10d", countPairs));
 
-        buildOverlapGraph(readDatas, ref2matches, minOverlap);
+        final int[] refOrder = new int[ref2id.size()];
+        {
+            int count = 0;
+            for (Integer refId : ref2id.values()) {
+                refOrder[count++] = refId;
+            }
+        }
+        buildOverlapGraph(readDatas, matches, refOrder, minOverlap, progress);
     }
 
-
     /**
      * build the overlap graph
      *
      * @param reads
-     * @param ref2matches
+     * @param matches  matches, sorted by reference
+     * @param refOrder order in which references are processed
      */
-    private void buildOverlapGraph(ReadData[] reads, Map<String, SortedSet<MatchData>> ref2matches, int minOverlap) {
+    private void buildOverlapGraph(ReadData[] reads, Matches matches, int[] refOrder, int minOverlap, ProgressListener progress) throws CanceledException {
         final Node[] nodes = new Node[reads.length];
 
         final BitSet containedReadIds = new BitSet();
 
-        for (String refName : ref2matches.keySet()) {
-            final MatchData[] matches = ref2matches.get(refName).toArray(new MatchData[0]);
+        // overlaps of all references are computed in parallel. Whether a match is used depends on the containments
+        // found in previously processed references, so the results are then applied in the same order as before and
+        // any overlaps skipped in the parallel step are computed then
+        final RefOverlaps[] refOverlaps = (numberOfThreads > 1 && refOrder.length > 1 ? computeOverlapsInParallel(reads.length, matches, refOrder.length, minOverlap, progress) : null);
+
+        final Events events = new Events();
 
-            for (int i = 0; i < matches.length; i++) {
-                final MatchData iMatch = matches[i];
+        for (int refId : refOrder) {
+            final int from = matches.getRefStart(refId);
+            final int to = matches.getRefStart(refId + 1);
+            final RefOverlaps overlaps = (refOverlaps != null ? refOverlaps[refId] : null);
 
-                if (!containedReadIds.get(iMatch.getRead().getId())) {
-                    Node v = nodes[iMatch.getRead().getId()];
+            for (int i = 0; i < to - from; i++) {
+                final int iReadId = matches.getReadId(from + i);
+
+                if (!containedReadIds.get(iReadId)) {
+                    Node v = nodes[iReadId];
                     if (v == null) {
-                        v = nodes[iMatch.getRead().getId()] = overlapGraph.newNode(iMatch.getRead().getId());
-                        node2readName.setValue(v, iMatch.getRead().getName());
+                        v = nodes[iReadId] = overlapGraph.newNode(iReadId);
+                        node2readName.setValue(v, matches.getRead(from + i).getName());
                     }
 
-                    for (int j = i + 1; j < matches.length; j++) {
-                        final MatchData jMatch = matches[j];
-                        if (3 * (iMatch.getLastPosInRef() - jMatch.getFirstPosInRef()) <= minOverlap)
-                            break; // no chance of an overlap
+                    final Events iEvents;
+                    final int eventsStart;
+                    final int eventsEnd;
+                    if (overlaps != null && overlaps.isComputed(i)) {
+                        iEvents = overlaps.getEvents();
+                        eventsStart = overlaps.getStart(i);
+                        eventsEnd = overlaps.getEnd(i);
+                    } else {
+                        events.clear();
+                        computeOverlaps(matches, from, to, i, minOverlap, events);
+                        iEvents = events;
+                        eventsStart = 0;
+                        eventsEnd = events.size();
+                    }
 
-                        int overlapLength = computePerfectOverlapLength(iMatch, jMatch);
-                        if (overlapLength > 0 && jMatch.getLastPosInRef() <= iMatch.getLastPosInRef()) { // contained
-                            containedReadIds.set(jMatch.getRead().getId());
+                    for (int k = eventsStart; k < eventsEnd; k++) {
+                        final int j = iEvents.getJ(k);
+                        final int jReadId = matches.getReadId(from + j);
+                        final int overlapLength = iEvents.getOverlapLength(k);
+
+                        if (overlapLength == CONTAINED) {
+                            containedReadIds.set(jReadId);
                             List<Integer> contained = readId2ContainedReads[i];
                             if (contained == null) {
                                 contained = readId2ContainedReads[i] = new ArrayList<>();
                             }
                             contained.add(j);
-                        } else if (overlapLength >= minOverlap) {
-                            Node w = nodes[jMatch.getRead().getId()];
+                        } else {
+                            Node w = nodes[jReadId];
                             if (w == null) {
-                                w = nodes[jMatch.getRead().getId()] = overlapGraph.newNode(jMatch.getRead().getId());
-                                node2readName.setValue(w, jMatch.getRead().getName());
+                                w = nodes[jReadId] = overlapGraph.newNode(jReadId);
+                                node2readName.setValue(w, matches.getRead(from + j).getName());
                             }
 
                             final Edge e = overlapGraph.getCommonEdge(v, w);
@@ -156,29 +206,127 @@ public class OverlapGraphBuilder {
         }
     }
 
+    /**
+     * computes the overlaps of all references in parallel. For each reference, matches whose reads are contained in
+     * other reads of the same reference are skipped
+     *
+     * @return overlaps for each reference
+     */
+    private RefOverlaps[] computeOverlapsInParallel(int numberOfReads, Matches matches, int numberOfRefs, int minOverlap, ProgressListener progress) throws CanceledException {
+        progress.setSubtask("Computing overlaps");
+        progress.setMaximum(numberOfRefs);
+        progress.setProgress(0);
+
+        final RefOverlaps[] refOverlaps = new RefOverlaps[numberOfRefs];
+
+        final int numberOfWorkers = Math.min(numberOfThreads, numberOfRefs);
+        final ExecutorService service = ProgramExecutorService.createServiceForParallelAlgorithm(numberOfWorkers);
+        final AtomicInteger nextRef = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicBoolean canceled = new AtomicBoolean(false);
+        final CountDownLatch countDownLatch = new CountDownLatch(numberOfWorkers);
+
+        try {
+            for (int w = 0; w < numberOfWorkers; w++) {
+                service.submit(() -> {
+                    try {
+                        final int[] containedStamp = new int[numberOfReads];
+                        int refId;
+                        while (!canceled.get() && (refId = nextRef.getAndIncrement()) < numberOfRefs) {
+                            final int from = matches.getRefStart(refId);
+                            final int to = matches.getRefStart(refId + 1);
+                            final RefOverlaps overlaps = new RefOverlaps(to - from);
+                            final Events events = overlaps.getEvents();
+                            for (int i = 0; i < to - from; i++) {
+                                if (containedStamp[matches.getReadId(from + i)] != refId + 1) {
+                                    final int start = events.size();
+                                    computeOverlaps(matches, from, to, i, minOverlap, events);
+                                    overlaps.setRange(i, start, events.size());
+                                    for (int e = start; e < events.size(); e++) {
+                                        if (events.getOverlapLength(e) == CONTAINED)
+                                            containedStamp[matches.getReadId(from + events.getJ(e))] = refId + 1;
+                                    }
+                                }
+                            }
+                            refOverlaps[refId] = overlaps;
+                            completed.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        Basic.caught(ex);
+                        canceled.set(true);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
+
+            try {
+                while (!countDownLatch.await(100, TimeUnit.MILLISECONDS)) {
+                    progress.setProgress(completed.get());
+                }
+            } catch (InterruptedException | CanceledException ex) {
+                canceled.set(true);
+                throw new CanceledException();
+            }
+        } finally {
+            service.shutdownNow();
+        }
+        if (completed.get() < numberOfRefs)
+            throw new RuntimeException("Overlap computation failed");
+        progress.setProgress(numberOfRefs);
+        return refOverlaps;
+    }
+
+    /**
+     * computes all overlaps between the i-th match of a reference and the following matches
+     *
+     * @param matches
+     * @param from    start of matches of reference
+     * @param to      end of matches of reference
+     * @param i       index of match, relative to from
+     * @param events  overlaps are added here, with indices relative to from
+     */
+    private static void computeOverlaps(Matches matches, int from, int to, int i, int minOverlap, Events events) {
+        final int iFirst = matches.getFirstPosInRef(from + i);
+        final int iLast = matches.getLastPosInRef(from + i);
+        final String iSegment = matches.getRead(from + i).getSegment();
+
+        for (int j = i + 1; j < to - from; j++) {
+            final int jFirst = matches.getFirstPosInRef(from + j);
+            final int jLast = matches.getLastPosInRef(from + j);
+            if (3 * (iLast - jFirst) <= minOverlap)
+                break; // no chance of an overlap
+
+            int overlapLength = computePerfectOverlapLength(iSegment, iFirst, iLast, matches.getRead(from + j).getSegment(), jFirst, jLast);
+            if (overlapLength > 0 && jLast <= iLast) { // contained
+                events.add(j, CONTAINED);
+            } else if (overlapLength >= minOverlap) {
+                events.add(j, overlapLength);
+            }
+        }
+    }
+
     /**
      * computess the number of matching letters, else returns 0
      *
-     * @param iMatch
-     * @param jMatch
      * @return number of matching letters or 0
      */
-    private int computePerfectOverlapLength(MatchData iMatch, MatchData jMatch) {
+    private static int computePerfectOverlapLength(String iSegment, int iFirstPosInRef, int iLastPosInRef, String jSegment, int jFirstPosInRef, int jLastPosInRef) {
         try {
-            int first = Math.max(iMatch.getFirstPosInRef(), jMatch.getFirstPosInRef());
-            int last = Math.min(iMatch.getLastPosInRef(), jMatch.getLastPosInRef());
+            int first = Math.max(iFirstPosInRef, jFirstPosInRef);
+            int last = Math.min(iLastPosInRef, jLastPosInRef);
 
             int count = 0;
             for (int refPos = first; refPos <= last; refPos++) {
                 for (int k = 0; k < 3; k++) {
-                    int iPos = 3 * (refPos - iMatch.getFirstPosInRef()) + k;
-                    int jPos = 3 * (refPos - jMatch.getFirstPosInRef()) + k;
-                    char iChar = Character.toLowerCase(iMatch.getRead().getSegment().charAt(iPos));
-                    char jChar = Character.toLowerCase(jMatch.getRead().getSegment().charAt(jPos));
+                    int iPos = 3 * (refPos - iFirstPosInRef) + k;
+                    int jPos = 3 * (refPos - jFirstPosInRef) + k;
+                    char iChar = Character.toLowerCase(iSegment.charAt(iPos));
+                    char jChar = Character.toLowerCase(jSegment.charAt(jPos));
 
                     if (iChar != jChar && iChar != 'n' && jChar != 'n')
                         return 0;
-                    else if (Character.isLetter(iMatch.getRead().getSegment().charAt(iPos)))
+                    else if (Character.isLetter(iSegment.charAt(iPos)))
                         count++;
                 }
             }
@@ -228,4 +376,208 @@ public class OverlapGraphBuilder {
     public List<Integer>[] getReadId2ContainedReads() {
         return readId2ContainedReads;
     }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    /**
+     * all matches, held in parallel arrays and sorted by reference, ascending start, descending end and ascending read id
+     */
+    private static class Matches {
+        private int size;
+        private final int[] refIds;
+        private final int[] firstPosInRef;
+        private final int[] lastPosInRef;
+        private final int[] readIds;
+        private final ReadData[] reads;
+        private int[] refStart;
+
+        Matches(int capacity) {
+            refIds = new int[capacity];
+            firstPosInRef = new int[capacity];
+            lastPosInRef = new int[capacity];
+            readIds = new int[capacity];
+            reads = new ReadData[capacity];
+        }
+
+        void add(int refId, MatchData match) {
+            refIds[size] = refId;
+            firstPosInRef[size] = match.getFirstPosInRef();
+            lastPosInRef[size] = match.getLastPosInRef();
+            readIds[size] = match.getRead().getId();
+            reads[size] = match.getRead();
+            size++;
+        }
+
+        /**
+         * sort by reference, start, end and read, removing duplicate matches of the same read
+         */
+        void sort(int numberOfRefs) {
+            refStart = new int[numberOfRefs + 1];
+            for (int m = 0; m < size; m++)
+                refStart[refIds[m] + 1]++;
+            for (int r = 0; r < numberOfRefs; r++)
+                refStart[r + 1] += refStart[r];
+
+            final int[] order = new int[size];
+            {
+                final int[] next = Arrays.copyOf(refStart, numberOfRefs);
+                for (int m = 0; m < size; m++)
+                    order[next[refIds[m]]++] = m;
+            }
+            final int[] tmp = new int[size];
+            for (int r = 0; r < numberOfRefs; r++)
+                mergeSort(order, tmp, refStart[r], refStart[r + 1]);
+
+            final int[] refIds = this.refIds.clone();
+            final int[] firstPosInRef = this.firstPosInRef.clone();
+            final int[] lastPosInRef = this.lastPosInRef.clone();
+            final int[] readIds = this.readIds.clone();
+            final ReadData[] reads = this.reads.clone();
+
+            int count = 0;
+            for (int r = 0; r < numberOfRefs; r++) {
+                final int start = count;
+                for (int k = refStart[r]; k < refStart[r + 1]; k++) {
+                    final int m = order[k];
+                    if (count == start || compare(firstPosInRef[m], lastPosInRef[m], readIds[m], this.firstPosInRef[count - 1], this.lastPosInRef[count - 1], this.readIds[count - 1]) != 0) {
+                        this.refIds[count] = refIds[m];
+                        this.firstPosInRef[count] = firstPosInRef[m];
+                        this.lastPosInRef[count] = lastPosInRef[m];
+                        this.readIds[count] = readIds[m];
+                        this.reads[count] = reads[m];
+                        count++;
+                    }
+                }
+                refStart[r] = start;
+            }
+            refStart[numberOfRefs] = count;
+            size = count;
+        }
+
+        private void mergeSort(int[] order, int[] tmp, int from, int to) {
+            if (to - from < 2)
+                return;
+            final int mid = (from + to) >>> 1;
+            mergeSort(order, tmp, from, mid);
+            mergeSort(order, tmp, mid, to);
+            System.arraycopy(order, from, tmp, from, to - from);
+            int a = from;
+            int b = mid;
+            for (int k = from; k < to; k++) {
+                if (b == to || (a < mid && compare(tmp[a], tmp[b]) <= 0))
+                    order[k] = tmp[a++];
+                else
+                    order[k] = tmp[b++];
+            }
+        }
+
+        private int compare(int m1, int m2) {
+            return compare(firstPosInRef[m1], lastPosInRef[m1], readIds[m1], firstPosInRef[m2], lastPosInRef[m2], readIds[m2]);
+        }
+
+        /**
+         * same order as MatchData.compare()
+         */
+        private static int compare(int first1, int last1, int readId1, int first2, int last2, int readId2) {
+            if (first1 != first2)
+                return Integer.compare(first1, first2);
+            if (last1 != last2)
+                return -Integer.compare(last1, last2);
+            return Integer.compare(readId1, readId2);
+        }
+
+        int getRefStart(int refId) {
+            return refStart[refId];
+        }
+
+        int getFirstPosInRef(int m) {
+            return firstPosInRef[m];
+        }
+
+        int getLastPosInRef(int m) {
+            return lastPosInRef[m];
+        }
+
+        int getReadId(int m) {
+            return readIds[m];
+        }
+
+        ReadData getRead(int m) {
+            return reads[m];
+        }
+    }
+
+    /**
+     * list of overlaps of matches, each consisting of the index of the other match and the overlap length, or CONTAINED
+     */
+    private static class Events {
+        private int[] data = new int[32];
+        private int size;
+
+        void add(int j, int overlapLength) {
+            if (2 * size + 2 > data.length)
+                data = Arrays.copyOf(data, 2 * data.length);
+            data[2 * size] = j;
+            data[2 * size + 1] = overlapLength;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int getJ(int e) {
+            return data[2 * e];
+        }
+
+        int getOverlapLength(int e) {
+            return data[2 * e + 1];
+        }
+    }
+
+    /**
+     * overlaps computed for the matches of one reference
+     */
+    private static class RefOverlaps {
+        private final Events events = new Events();
+        private final int[] start;
+        private final int[] end;
+
+        RefOverlaps(int numberOfMatches) {
+            start = new int[numberOfMatches];
+            end = new int[numberOfMatches];
+            Arrays.fill(start, -1);
+        }
+
+        void setRange(int i, int start, int end) {
+            this.start[i] = start;
+            this.end[i] = end;
+        }
+
+        boolean isComputed(int i) {
+            return start[i] != -1;
+        }
+
+        int getStart(int i) {
+            return start[i];
+        }
+
+        int getEnd(int i) {
+            return end[i];
+        }
+
+        Events getEvents() {
+            return events;
+        }
+    }
 }
@@ -19,6 +19,7 @@
 
 package megan.assembly;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.graph.*;
 import jloda.util.*;
 import megan.assembly.align.SimpleAligner4DNA;
@@ -34,7 +35,7 @@ import java.util.concurrent.Executors;
 /**
  * assembler for all reads assigned to a particular class
  * <p>
- * Daniel Huson, 5.2015
+ * Daniel Huson, 5.2015, 10.2019
  */
 public class ReadAssembler {
     private Graph overlapGraph;
@@ -45,6 +46,7 @@ public class ReadAssembler {
     private ArrayList<Pair<String, String>> contigs;
     private List<Integer>[] readId2ContainedReads;
     private final boolean verbose;
+    private int numberOfThreads = ProgramExecutorService.getNumberOfCoresToUse();
 
     /**
      * constructor
@@ -65,6 +67,7 @@ public class ReadAssembler {
     public void computeOverlapGraph(String label, int minOverlap, List<ReadData> readData, ProgressListener progress) throws IOException, CanceledException {
         this.label = label;
         final OverlapGraphBuilder overlapGraphBuilder = new OverlapGraphBuilder(minOverlap, verbose);
+        overlapGraphBuilder.setNumberOfThreads(numberOfThreads);
         overlapGraphBuilder.apply(readData, progress);
         overlapGraph = overlapGraphBuilder.getOverlapGraph();
 
@@ -199,6 +202,19 @@ public class ReadAssembler {
         return contigs;
     }
 
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * set the number of threads used when computing the overlap graph
+     *
+     * @param numberOfThreads
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
     /**
      * computes all pairwise overlaps between contigs and then merges contigs
      *
@@ -224,7 +240,7 @@ public class ReadAssembler {
 
         // main parallel computation:
         if (sortedContigs.size() > 0) {
-            final int numberOfThreads = (Math.min(sortedContigs.size(), Math.min(Runtime.getRuntime().availableProcessors() - 1, maxNumberOfThreads)));
+            final int numberOfThreads = Math.max(1, Math.min(sortedContigs.size(), Math.min(Runtime.getRuntime().availableProcessors() - 1, maxNumberOfThreads)));
             final ExecutorService service = Executors.newFixedThreadPool(numberOfThreads);
             final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
             final Single<Boolean> notCanceled = new Single<>(true);
@@ -232,64 +248,53 @@ public class ReadAssembler {
             progress.setMaximum(sortedContigs.size() / numberOfThreads);
             progress.setProgress(0);
 
-            final Map<Integer, Node> contig2Node = new HashMap<>();
-
+            final byte[][] contigBytes = new byte[sortedContigs.size()][];
             for (int i = 0; i < sortedContigs.size(); i++) {
-                final Node v = overlapGraph.newNode(i);
-                contig2Node.put(i, v);
+                contigBytes[i] = sortedContigs.get(i).getSecond().getBytes();
             }
 
+            // only pairs of contigs that share a seed used by the aligner can overlap, so we only align those:
+            final SimpleAligner4DNA seedAligner = new SimpleAligner4DNA();
+            seedAligner.setMinPercentIdentity(minPercentIdentityToMergeContigs);
+            final ContigSeedIndex seedIndex = new ContigSeedIndex(contigBytes, seedAligner.getSeedLength());
+
+            // each thread collects its overlaps as triplets i, j, overlap type and overlap length:
+            final List<int[]>[] threadOverlaps = new List[numberOfThreads];
+
             for (int t = 0; t < numberOfThreads; t++) {
                 final int threadNumber = t;
+                final List<int[]> overlaps = new ArrayList<>();
+                threadOverlaps[t] = overlaps;
                 service.submit(() -> {
                             try {
                                 final SimpleAligner4DNA simpleAlignerDNA = new SimpleAligner4DNA();
                                 simpleAlignerDNA.setMinPercentIdentity(minPercentIdentityToMergeContigs);
                                 final Single<Integer> overlap = new Single<>(0);
+                                final int[] marks = new int[contigBytes.length];
+                                final int[] candidates = new int[contigBytes.length];
 
-                                for (int i = threadNumber; i < sortedContigs.size(); i += numberOfThreads) {
-                                    final String iContig = sortedContigs.get(i).getSecond();
-                                    final byte[] iBytes = iContig.getBytes();
-                                    for (int j = 0; j < i; j++) {
-                                        final byte[] jBytes = sortedContigs.get(j).getSecond().getBytes();
+                                for (int i = threadNumber; i < contigBytes.length && notCanceled.get(); i += numberOfThreads) {
+                                    final byte[] iBytes = contigBytes[i];
+                                    final int numberOfCandidates = seedIndex.getCandidates(iBytes, i, marks, i + 1, candidates);
+                                    for (int c = 0; c < numberOfCandidates; c++) {
+                                        final int j = candidates[c];
+                                        final byte[] jBytes = contigBytes[j];
 
                                         if (iBytes.length > jBytes.length)
                                             throw new RuntimeException("Internal error: contig i is longer than contig j");
 
                                         final SimpleAligner4DNA.OverlapType overlapType = simpleAlignerDNA.getOverlap(iBytes, jBytes, overlap);
 
-                                        // if contained or nearly contained, remove
-                                        if (overlapType == SimpleAligner4DNA.OverlapType.QueryContainedInRef) {
-                                            synchronized (contigId2ContainedContigs) {
-                                                List<Integer> contained = contigId2ContainedContigs[j];
-                                                if (contained == null) {
-                                                    contained = new ArrayList<>();
-                                                    contigId2ContainedContigs[j] = contained;
-                                                }
-                                                contained.add(i);
-                                                containedContigs.set(i);
-                                            }
-                                        } else if (overlapType == SimpleAligner4DNA.OverlapType.QuerySuffix2RefPrefix && overlap.get() >= minOverlap) {
-                                            final Node v = contig2Node.get(i);
-                                            final Node w = contig2Node.get(j);
-                                            synchronized (overlapGraph) {
-                                                overlapGraph.newEdge(v, w, overlap.get());
-                                            }
-                                        } else if (overlapType == SimpleAligner4DNA.OverlapType.QueryPrefix2RefSuffix && overlap.get() >= minOverlap) {
-                                            final Node v = contig2Node.get(i);
-                                            final Node w = contig2Node.get(j);
-                                            synchronized (overlapGraph) {
-                                                overlapGraph.newEdge(w, v, overlap.get());
-                                            }
+                                        if (overlapType == SimpleAligner4DNA.OverlapType.QueryContainedInRef
+                                                || ((overlapType == SimpleAligner4DNA.OverlapType.QuerySuffix2RefPrefix || overlapType == SimpleAligner4DNA.OverlapType.QueryPrefix2RefSuffix) && overlap.get() >= minOverlap)) {
+                                            overlaps.add(new int[]{i, j, overlapType.ordinal(), overlap.get()});
                                         }
                                     }
+                                    if (threadNumber == 0)
+                                        progress.incrementProgress();
                                 }
-                                if (threadNumber == 0)
-                                    progress.incrementProgress();
                             } catch (CanceledException e) {
                                 notCanceled.set(false);
-                                while (countDownLatch.getCount() > 0)
-                                    countDownLatch.countDown();
                             } catch (Exception e) {
                                 Basic.caught(e);
                             } finally {
@@ -305,6 +310,44 @@ public class ReadAssembler {
             } finally {
                 service.shutdownNow();
             }
+            if (!notCanceled.get())
+                throw new CanceledException();
+
+            // merge the overlaps found by all threads, in the order in which a single thread would find them:
+            final List<int[]> overlaps = new ArrayList<>();
+            for (List<int[]> list : threadOverlaps) {
+                overlaps.addAll(list);
+            }
+            overlaps.sort((a, b) -> (a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1])));
+
+            final Node[] contig2Node = new Node[sortedContigs.size()];
+            for (int i = 0; i < sortedContigs.size(); i++) {
+                contig2Node[i] = overlapGraph.newNode(i);
+            }
+
+            final SimpleAligner4DNA.OverlapType[] overlapTypes = SimpleAligner4DNA.OverlapType.values();
+            for (int[] entry : overlaps) {
+                final int i = entry[0];
+                final int j = entry[1];
+                switch (overlapTypes[entry[2]]) {
+                    case QueryContainedInRef: { // if contained or nearly contained, remove
+                        List<Integer> contained = contigId2ContainedContigs[j];
+                        if (contained == null) {
+                            contained = new ArrayList<>();
+                            contigId2ContainedContigs[j] = contained;
+                        }
+                        contained.add(i);
+                        containedContigs.set(i);
+                        break;
+                    }
+                    case QuerySuffix2RefPrefix:
+                        overlapGraph.newEdge(contig2Node[i], contig2Node[j], entry[3]);
+                        break;
+                    case QueryPrefix2RefSuffix:
+                        overlapGraph.newEdge(contig2Node[j], contig2Node[i], entry[3]);
+                        break;
+                }
+            }
         }
 
         if (verbose)
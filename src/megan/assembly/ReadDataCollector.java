@@ -23,17 +23,16 @@ import jloda.util.Basic;
 import jloda.util.CanceledException;
 import jloda.util.ProgressListener;
 import jloda.util.ProgressPercentage;
-import megan.data.IMatchBlock;
-import megan.data.IReadBlock;
-import megan.data.IReadBlockIterator;
+import jloda.util.ListOfLongs;
+import jloda.util.ProgressSilent;
+import megan.data.*;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 /**
  * collects all reads for gc assembly
- * Created by huson on 8/22/16.
+ * Created by huson on 8/22/16, 10.2019
  */
 public class ReadDataCollector {
     /**
@@ -64,6 +63,75 @@ public class ReadDataCollector {
         return list;
     }
 
+    /**
+     * collect all read data for a number of classes in one pass, visiting the reads of all classes in order of their location in the file
+     *
+     * @param connector
+     * @param classificationName
+     * @param classIds
+     * @param progress
+     * @return for each class, the list of read data in the same order as obtained by apply() for the reads iterator of the class
+     */
+    public static List<ReadData>[] apply(final IConnector connector, final String classificationName, final int[] classIds, final ProgressListener progress) throws IOException, CanceledException {
+        progress.setSubtask("Collecting reads:");
+
+        final List<ReadData>[] result = new List[classIds.length];
+        final ListOfLongs[] class2locations = new ListOfLongs[classIds.length];
+
+        int total = 0;
+        for (int c = 0; c < classIds.length; c++) {
+            try (IReadBlockIterator it = connector.getReadsIterator(classificationName, classIds[c], 0, 10, true, true)) {
+                if (it instanceof ReadBlockIterator) {
+                    class2locations[c] = ((ReadBlockIterator) it).getLocations();
+                    total += class2locations[c].size();
+                } else // reads not accessed by location, collect directly
+                    result[c] = apply(it, new ProgressSilent());
+            }
+        }
+
+        final long[] locations = new long[total];
+        final int[] classIndices = new int[total];
+        final int[] readIds = new int[total];
+        final ReadData[][] class2readData = new ReadData[classIds.length][];
+        {
+            int count = 0;
+            for (int c = 0; c < classIds.length; c++) {
+                if (class2locations[c] != null) {
+                    class2readData[c] = new ReadData[class2locations[c].size()];
+                    for (int i = 0; i < class2locations[c].size(); i++) {
+                        locations[count] = class2locations[c].get(i);
+                        classIndices[count] = c;
+                        readIds[count++] = i;
+                    }
+                }
+            }
+        }
+        final Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> locations[i]));
+
+        progress.setMaximum(total);
+        progress.setProgress(0);
+        try (IReadBlockGetter readBlockGetter = connector.getReadBlockGetter(0, 10, true, true)) {
+            for (int i : order) {
+                final IReadBlock readBlock = readBlockGetter.getReadBlock(locations[i]);
+                if (readBlock == null)
+                    throw new IOException("Failed to read block at location: " + locations[i]);
+                class2readData[classIndices[i]][readIds[i]] = createReadData(readIds[i], readBlock);
+                progress.incrementProgress();
+            }
+        }
+
+        for (int c = 0; c < classIds.length; c++) {
+            if (class2readData[c] != null)
+                result[c] = new ArrayList<>(Arrays.asList(class2readData[c]));
+        }
+        if (progress instanceof ProgressPercentage)
+            ((ProgressPercentage) progress).reportTaskCompleted();
+        return result;
+    }
+
     /**
      * creates the data object associated with a given read and its matches
      *
@@ -42,7 +42,7 @@ import jloda.util.ReusableByteBuffer;
 
 /**
  * banded DNA aligner. Does both local and semiGlobal alignment
- * Daniel Huson, 8.2014
+ * Daniel Huson, 8.2014, 10.2019
  */
 class BandedAligner {
     private double lambda = 0.625;
@@ -123,6 +123,14 @@ class BandedAligner {
     private final int lastRowToFill;
     private final int middleRow;
 
+    // columns used by computeScore():
+    private final int[] columnM1;
+    private final int[] columnIRef1;
+    private final int[] columnIQuery1;
+    private final int[] columnM2;
+    private final int[] columnIRef2;
+    private final int[] columnIQuery2;
+
     /**
      * constructor
      *
@@ -155,6 +163,13 @@ class BandedAligner {
         traceBackIQuery = new byte[0][0];
         // todo: only use one traceback matrix
 
+        columnM1 = new int[rows];
+        columnIRef1 = new int[rows];
+        columnIQuery1 = new int[rows];
+        columnM2 = new int[rows];
+        columnIRef2 = new int[rows];
+        columnIQuery2 = new int[rows];
+
         boolean samSoftClipping = alignerOptions.isSamSoftClipping();
     }
 
@@ -186,6 +201,135 @@ class BandedAligner {
             computeLocalAlignment();
     }
 
+    /**
+     * Computes the raw score of a banded local or semiGlobal alignment, without trace-back.
+     * The score is the same as the one computed by computeAlignment(), but only two columns of the dynamic programming
+     * matrices are kept and the last computed alignment is not changed
+     *
+     * @param query
+     * @param queryLength
+     * @param reference
+     * @param referenceLength
+     * @param queryPos
+     * @param refPos
+     * @return raw score
+     */
+    public int computeScore(byte[] query, int queryLength, byte[] reference, int referenceLength, int queryPos, int refPos, int seedLength) {
+        final int refOffset = refPos - queryPos - band - 2; // need this to compute index in reference sequence
+
+        final int firstSeedCol = queryPos + 1; // +1 because col=pos+1
+        final int lastSeedCol = queryPos + seedLength; // +1 because col=pos+1, but then -1 because want to be last in seed (not first after seed)
+
+        // ------- compute score that comes from seed (without first and last member)
+        int score = 0;
+        for (int col = firstSeedCol + 1; col < lastSeedCol; col++) {
+            score += scoringMatrix[query[col - 1]][reference[middleRow + col + refOffset]];
+        }
+        if (score <= 0)
+            return 0;
+
+        final int outside = (doSemiGlobal ? MINUS_INFINITY : 0); // value of first and last row
+        final int floor = (doSemiGlobal ? Integer.MIN_VALUE : 0); // local alignment scores are never negative
+        final int initial = (doSemiGlobal ? -gapOpenPenalty : 0); // value of gap states at start of alignment
+
+        int[] prevM = columnM1;
+        int[] prevIRef = columnIRef1;
+        int[] prevIQuery = columnIQuery1;
+        int[] curM = columnM2;
+        int[] curIRef = columnIRef2;
+        int[] curIQuery = columnIQuery2;
+
+        // ------- fill from 0 to first column of seed:
+        {
+            final int firstCol = Math.max(1, -refOffset - 2 * band - 1);
+
+            // column before first column:
+            if (firstCol == 1) {
+                for (int row = 1; row < rows - 1; row++) {
+                    prevM[row] = prevIRef[row] = 0;
+                    prevIQuery[row] = initial;
+                }
+            } else {
+                prevM[rows - 2] = prevIRef[rows - 2] = prevIQuery[rows - 2] = 0;
+            }
+            prevM[0] = prevIRef[0] = prevIQuery[0] = prevM[rows - 1] = prevIRef[rows - 1] = prevIQuery[rows - 1] = outside;
+            curM[0] = curIRef[0] = curIQuery[0] = curM[rows - 1] = curIRef[rows - 1] = curIQuery[rows - 1] = outside;
+
+            for (int col = firstCol; col <= firstSeedCol; col++) {
+                final int[] scores = scoringMatrix[query[col - 1]];
+                final int rowBeforeReference = -1 - col - refOffset;
+                if (rowBeforeReference >= 1 && rowBeforeReference <= lastRowToFill) {
+                    curM[rowBeforeReference] = 0;
+                    curIRef[rowBeforeReference] = curIQuery[rowBeforeReference] = initial;
+                }
+                final int firstRow = Math.max(1, rowBeforeReference + 1);
+                final int lastRow = (doSemiGlobal ? Math.min(lastRowToFill, reference.length - col - refOffset - 1) : lastRowToFill);
+
+                for (int row = firstRow; row <= lastRow; row++) {
+                    curM[row] = Math.max(floor, Math.max(prevM[row], Math.max(prevIRef[row], prevIQuery[row])) + scores[reference[row + col + refOffset]]);
+                    curIQuery[row] = Math.max(floor, Math.max(prevM[row + 1] - gapOpenPenalty, prevIQuery[row + 1] - gapExtensionPenalty));
+                }
+                for (int row = firstRow; row <= lastRow; row++) {
+                    curIRef[row] = Math.max(floor, Math.max(curM[row - 1] - gapOpenPenalty, curIRef[row - 1] - gapExtensionPenalty));
+                }
+
+                int[] tmp = prevM;
+                prevM = curM;
+                curM = tmp;
+                tmp = prevIRef;
+                prevIRef = curIRef;
+                curIRef = tmp;
+                tmp = prevIQuery;
+                prevIQuery = curIQuery;
+                curIQuery = tmp;
+            }
+            score += Math.max(Math.max(prevIQuery[middleRow], prevIRef[middleRow]), prevM[middleRow]);
+        }
+
+        // ------- fill from end of query to last column of seed:
+        {
+            final int lastCol = Math.min(queryLength + 1, queryPos + referenceLength - refPos + 1);
+
+            // last column:
+            for (int row = 1; row < rows - 1; row++) {
+                prevM[row] = 0;
+                prevIRef[row] = prevIQuery[row] = initial;
+            }
+            prevM[0] = prevIRef[0] = prevIQuery[0] = prevM[rows - 1] = prevIRef[rows - 1] = prevIQuery[rows - 1] = outside;
+            curM[0] = curIRef[0] = curIQuery[0] = curM[rows - 1] = curIRef[rows - 1] = curIQuery[rows - 1] = outside;
+
+            for (int col = lastCol - 1; col >= lastSeedCol; col--) {
+                final int[] scores = scoringMatrix[query[col - 1]];
+                final int firstRowAfterReference = Math.max(1, referenceLength - col - refOffset);
+                for (int row = firstRowAfterReference; row <= lastRowToFill; row++) {
+                    curM[row] = curIRef[row] = curIQuery[row] = initial;
+                }
+                final int firstRow = Math.max(1, -col - refOffset);
+                final int lastRow = Math.min(lastRowToFill, firstRowAfterReference - 1);
+
+                for (int row = lastRow; row >= firstRow; row--) {
+                    curM[row] = Math.max(floor, Math.max(prevM[row], Math.max(prevIRef[row], prevIQuery[row])) + scores[reference[row + col + refOffset]]);
+                    curIQuery[row] = Math.max(floor, Math.max(prevM[row - 1] - gapOpenPenalty, prevIQuery[row - 1] - gapExtensionPenalty));
+                }
+                for (int row = lastRow; row >= firstRow; row--) {
+                    curIRef[row] = Math.max(floor, Math.max(curM[row + 1] - gapOpenPenalty, curIRef[row + 1] - gapExtensionPenalty));
+                }
+
+                int[] tmp = prevM;
+                prevM = curM;
+                curM = tmp;
+                tmp = prevIRef;
+                prevIRef = curIRef;
+                curIRef = tmp;
+                tmp = prevIQuery;
+                prevIQuery = curIQuery;
+                curIQuery = tmp;
+            }
+            score += Math.max(Math.max(prevIQuery[middleRow], prevIRef[middleRow]), prevM[middleRow]);
+        }
+        return score;
+    }
+
     /**
      * Performs a banded local alignment and return the raw score.
      */
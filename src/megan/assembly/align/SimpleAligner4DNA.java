@@ -128,6 +128,16 @@ public class SimpleAligner4DNA {
         this.minPercentIdentity = minPercentIdentity;
     }
 
+    /**
+     * gets the length of the exact seed matches used to find alignments. The query is tiled by seeds of this length,
+     * starting at position 0, and no overlap is reported unless at least one of these tiles occurs in the reference
+     *
+     * @return seed length
+     */
+    public int getSeedLength() {
+        return Math.max(10, (int) (100.0 / (100.0 - minPercentIdentity + 1)));
+    }
+
     /**
      * gets a position of the query in the reference, or reference.length if not contained
      *
@@ -145,19 +155,24 @@ public class SimpleAligner4DNA {
         int bestRefPos = 0;
         int bestScore = 0;
 
-        final int k = Math.max(10, (int) (100.0 / (100.0 - minPercentIdentity + 1))); // determine smallest exact match that must be present
+        final int k = getSeedLength(); // determine smallest exact match that must be present
         for (int queryPos = 0; queryPos < query.length - k + 1; queryPos += k) {
             BoyerMoore boyerMoore = new BoyerMoore(query, queryPos, k, 127);
             for (Iterator<Integer> it = boyerMoore.iterator(reference); it.hasNext(); ) {
                 int refPos = it.next();
-                if ((!queryMustBeContained && computeAlignment(query, reference, queryPos, refPos, k))
-                        || (queryMustBeContained && refPos <= reference.length - query.length && computeAlignment(query, reference, queryPos, refPos, k) && bandedAligner.getAlignmentLength() >= query.length)) {
-                    {
-                        if (bandedAligner.getRawScore() > bestScore) {
-                            bestScore = bandedAligner.getRawScore();
-                            bestQueryPos = queryPos;
-                            bestRefPos = refPos;
-                        }
+                if (!queryMustBeContained) {
+                    // only compute the full alignment, needed for the percent identity, if the score is an improvement
+                    final int score = bandedAligner.computeScore(query, query.length, reference, reference.length, queryPos, refPos, k);
+                    if (score >= minRawScore && score > bestScore && (minPercentIdentity == 0 || computeAlignment(query, reference, queryPos, refPos, k))) {
+                        bestScore = score;
+                        bestQueryPos = queryPos;
+                        bestRefPos = refPos;
+                    }
+                } else if (refPos <= reference.length - query.length && computeAlignment(query, reference, queryPos, refPos, k) && bandedAligner.getAlignmentLength() >= query.length) {
+                    if (bandedAligner.getRawScore() > bestScore) {
+                        bestScore = bandedAligner.getRawScore();
+                        bestQueryPos = queryPos;
+                        bestRefPos = refPos;
                     }
                 }
             }
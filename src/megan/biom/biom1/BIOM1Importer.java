@@ -21,7 +21,9 @@ package megan.biom.biom1;
 import jloda.swing.window.NotificationsInSwing;
 import jloda.util.BlastMode;
 import jloda.util.ProgramProperties;
+import jloda.util.Single;
 import megan.classification.Classification;
+import megan.classification.ClassificationManager;
 import megan.classification.IdMapper;
 import megan.core.ClassificationType;
 import megan.core.DataTable;
@@ -30,7 +32,6 @@ import megan.core.MeganFile;
 import megan.util.BiomFileFilter;
 import megan.viewer.MainViewer;
 
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Date;
 import java.util.HashMap;
@@ -38,7 +39,7 @@ import java.util.Map;
 
 /**
  * import a file in biom1 format
- * Daniel Huson, 9.2012
+ * Daniel Huson, 9.2012, 10.2019
  */
 public class BIOM1Importer {
     /**
@@ -57,24 +58,30 @@ public class BIOM1Importer {
 
         System.err.println("Importing data from BIOM1 file");
 
-        Biom1Data biom1Data = Biom1Data.fromReader(new FileReader(fileName));
-
-        String[] names = biom1Data.getColumnIds();
-
-        Map<String, Map<Integer, Integer>> series2Classes2count;
+        // rows are mapped to classes and counts are added to the table one at a time, as the file is read:
+        final Single<String> classification = new Single<>();
+        final Map<Integer, float[]> targetClass2counts = new HashMap<>();
 
-        String classificationName;
-        if (type.equalsIgnoreCase("taxonomy") || biom1Data.isTaxonomyData() || biom1Data.isOTUData()) {
-            series2Classes2count = Biom1ImportTaxonomy.getSample2Class2Value(biom1Data, taxonomyIgnorePath);
-            classificationName = Classification.Taxonomy;
-        } else if (type.equalsIgnoreCase("seed") || biom1Data.isSEEDData()) {
-            series2Classes2count = Biom1ImportSEED.getSeries2Classes2Value(biom1Data);
-            classificationName = "SEED";
-        } else if (type.equalsIgnoreCase("kegg") || biom1Data.isKEGGData()) {
-            series2Classes2count = Biom1ImportKEGG.getSeries2Classes2Value(biom1Data);
-            classificationName = "KEGG";
-        } else
-            throw new IOException("Unable to import this datatype: " + biom1Data.getType());
+        final Biom1Data biom1Data = Biom1Reader.read(fileName, (header, complete) -> {
+            if (type.equalsIgnoreCase("taxonomy") || header.isTaxonomyData() || header.isOTUData()) {
+                classification.set(Classification.Taxonomy);
+                return row -> Biom1ImportTaxonomy.getClassId(row, taxonomyIgnorePath);
+            } else if (type.equalsIgnoreCase("seed") || header.isSEEDData()) {
+                classification.set("SEED");
+                final Classification seed = ClassificationManager.get("SEED", true);
+                return row -> Biom1ImportSEED.getClassId(row, seed);
+            } else if (type.equalsIgnoreCase("kegg") || header.isKEGGData()) {
+                classification.set("KEGG");
+                final Classification kegg = ClassificationManager.get("KEGG", true);
+                return row -> Biom1ImportKEGG.getClassId(row, kegg);
+            } else if (!complete)
+                return null;
+            else
+                throw new IOException("Unable to import this datatype: " + header.getType());
+        }, targetClass2counts);
+
+        final String classificationName = classification.get();
+        final String[] names = biom1Data.getColumnIds();
 
         System.err.println("Classification type is: " + classificationName);
 
@@ -85,38 +92,22 @@ public class BIOM1Importer {
 
         doc.getActiveViewers().add(classificationName);
 
-        final Map<Integer, float[]> targetClass2counts = new HashMap<>();
-
         int totalReads = 0;
-        int numberOfSeries = series2Classes2count.keySet().size();
-        final float[] sizes = new float[numberOfSeries];
-
-        final Map<String, Integer> series2pid = new HashMap<>();
-        final String[] columnIds = biom1Data.getColumnIds();
-        for (int c = 0; c < columnIds.length; c++)
-            series2pid.put(columnIds[c], c);
-
-        for (String series : series2Classes2count.keySet()) {
-            int seriesId = series2pid.get(series);
-            final Map<Integer, Integer> class2count = series2Classes2count.get(series);
-            for (Integer classId : class2count.keySet()) {
-                Integer count = class2count.get(classId);
-                if (count == null)
-                    count = 0;
-
-                float[] counts = targetClass2counts.computeIfAbsent(classId, k -> new float[numberOfSeries]);
-                counts[seriesId] = count;
-                totalReads += count;
-                sizes[seriesId] += count;
+        final float[] sizes = new float[names.length];
+
+        for (float[] counts : targetClass2counts.values()) {
+            for (int seriesId = 0; seriesId < counts.length; seriesId++) {
+                totalReads += counts[seriesId];
+                sizes[seriesId] += counts[seriesId];
             }
         }
 
-        table.getClassification2Class2Counts().put(classificationName, targetClass2counts);
+        table.setClass2Counts(classificationName, targetClass2counts);
 
         if (!classificationName.equals(ClassificationType.Taxonomy.toString())) {
             final Map<Integer, float[]> class2counts = new HashMap<>();
             class2counts.put(IdMapper.UNASSIGNED_ID, sizes);
-            table.getClassification2Class2Counts().put(ClassificationType.Taxonomy.toString(), class2counts);
+            table.setClass2Counts(ClassificationType.Taxonomy.toString(), class2counts);
         }
 
         table.setSamples(names, null, sizes, new BlastMode[]{BlastMode.Classifier});
@@ -130,42 +121,4 @@ public class BIOM1Importer {
                 + "\nDate: " + biom1Data.getDate()
                 + (biom1Data.getComment() != null ? "\nComment: " + biom1Data.getComment() : ""));
     }
-
-    /**
-     * get the entry, if it exists, otherwise create it and initialize to zeros
-     *
-     * @param map
-     * @param id
-     * @param size
-     * @return entry
-     */
-    private static Integer[] getOrCreate(Map<Integer, Integer[]> map, Integer id, int size) {
-        Integer[] result = map.computeIfAbsent(id, k -> newZeroedIntegerArray(size));
-        return result;
-    }
-
-    /**
-     * add all values to sum
-     *
-     * @param sum
-     * @param add
-     */
-    private static void addToArray(Integer[] sum, int[] add) {
-        for (int i = 0; i < add.length; i++) {
-            sum[i] += add[i];
-        }
-    }
-
-    /**
-     * create new array with zero entries
-     *
-     * @param size
-     * @return new array
-     */
-    private static Integer[] newZeroedIntegerArray(int size) {
-        Integer[] result = new Integer[size];
-        for (int i = 0; i < size; i++)
-            result[i] = 0;
-        return result;
-    }
 }
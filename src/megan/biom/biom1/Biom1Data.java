@@ -18,13 +18,10 @@
  */
 package megan.biom.biom1;
 
-import com.google.gson.Gson;
 import jloda.util.Basic;
 import jloda.util.ProgramProperties;
 
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -32,8 +29,8 @@ import java.util.Map;
 import java.util.TimeZone;
 
 /**
- * biom data
- * Daniel Huson, 7.2012
+ * biom header data. The rows and data of a file are not kept, they are processed by Biom1Reader and written by Biom1Writer
+ * Daniel Huson, 7.2012, 10.2019
  */
 public class Biom1Data {
     public enum AcceptableTypes {
@@ -120,12 +117,10 @@ data                : <list of lists>, counts of observations by sample
     public String generated_by;
     private String date;
     // public Date date;    // todo: should be date
-    private Map[] rows;
     private Map[] columns;
     private String matrix_type;
     private String matrix_element_type;
     private int[] shape;
-    private float[][] data;
 
     /**
      * default constructor
@@ -154,7 +149,7 @@ data                : <list of lists>, counts of observations by sample
      *
      * @throws IOException
      */
-    private void check() throws IOException {
+    void check() throws IOException {
         boolean ok = false;
         if (type != null) {
             for (AcceptableTypes acceptable : AcceptableTypes.values()) {
@@ -192,30 +187,6 @@ data                : <list of lists>, counts of observations by sample
             throw new IOException("matrix_element_type=" + matrix_element_type + ", must be one of: " + Basic.toString(AcceptableMatrixElementTypes.values(), ", "));
     }
 
-    /**
-     * read
-     *
-     * @param reader
-     * @throws IOException
-     */
-    public static Biom1Data fromReader(Reader reader) throws IOException {
-        Gson gson = new Gson();
-        Biom1Data biom1Data = gson.fromJson(reader, Biom1Data.class);
-        biom1Data.check();
-        return biom1Data;
-    }
-
-    /**
-     * write
-     *
-     * @param writer
-     * @throws IOException
-     */
-    public void write(Writer writer) throws IOException {
-        final Gson gson = new Gson();
-        gson.toJson(this, writer);
-    }
-
     public String getId() {
         return id;
     }
@@ -264,14 +235,6 @@ data                : <list of lists>, counts of observations by sample
         this.date = date;
     }
 
-    public Map[] getRows() {
-        return rows;
-    }
-
-    public void setRows(Map[] rows) {
-        this.rows = rows;
-    }
-
     public Map[] getColumns() {
         return columns;
     }
@@ -308,18 +271,10 @@ data                : <list of lists>, counts of observations by sample
         return shape;
     }
 
-    public float[][] getData() {
-        return data;
-    }
-
     public void setShape(int[] shape) {
         this.shape = shape;
     }
 
-    public void setData(float[][] data) {
-        this.data = data;
-    }
-
     public boolean isTaxonomyData() {
         return AcceptableTypes.Taxon_table.toString().equalsIgnoreCase(type);
     }
@@ -337,7 +292,7 @@ data                : <list of lists>, counts of observations by sample
     public boolean isSEEDData() {
         if (!AcceptableTypes.Function_table.toString().equalsIgnoreCase(type))
             return false;
-        if (rows.length == 0)
+        if (shape != null && shape.length == 2 && shape[0] == 0) // no rows
             return false;
         return comment != null && comment.contains("SEED");
     }
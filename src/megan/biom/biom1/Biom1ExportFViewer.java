@@ -36,7 +36,7 @@ import java.util.*;
 
 /**
  * export a fviewer analysis in biom format
- * Daniel Huson, 7.2012
+ * Daniel Huson, 7.2012, 10.2019
  */
 public class Biom1ExportFViewer {
     /**
@@ -51,7 +51,7 @@ public class Biom1ExportFViewer {
         Biom1Data biom1Data = new Biom1Data(file.getPath());
 
         biom1Data.setType(Biom1Data.AcceptableTypes.Function_table.toString());
-        biom1Data.setMatrix_type(Biom1Data.AcceptableMatrixTypes.dense.toString());
+        biom1Data.setMatrix_type(Biom1Data.AcceptableMatrixTypes.sparse.toString());
         biom1Data.setMatrix_element_type(Biom1Data.AcceptableMatrixElementTypes.Int.toString());
         biom1Data.setComment(cName + " classification computed by MEGAN");
 
@@ -60,7 +60,6 @@ public class Biom1ExportFViewer {
             throw new IOException(cName + " Viewer not open");
 
         java.util.List<String> names = dir.getDocument().getSampleNames();
-        int numberOfCols = names.size();
         LinkedList<Map> colList = new LinkedList<>();
         for (String name : names) {
             Map colItem = new StringMap();
@@ -75,31 +74,23 @@ public class Biom1ExportFViewer {
             throw new IOException("No nodes selected");
         }
 
-        progressListener.setSubtask("Processing " + cName + " nodes");
-        progressListener.setMaximum(selectedNodes.size());
-        progressListener.setProgress(0);
-
-        final LinkedList<Map> rowList = new LinkedList<>();
-        final LinkedList<float[]> dataList = new LinkedList<>();
-
-        visitSelectedLeavesRec(viewer, viewer.getTree().getRoot(), selectedNodes, new Vector<>(), rowList, dataList, new HashSet<>(), progressListener);
-        int numberOfRows = rowList.size();
-        biom1Data.setRows(rowList.toArray(new Map[numberOfRows]));
-
-        biom1Data.setShape(new int[]{numberOfRows, numberOfCols});
-
-        float[][] data = new float[numberOfRows][];
-        int j = 0;
-        for (float[] dataRow : dataList) {
-            data[j++] = dataRow;
-        }
-        biom1Data.setData(data);
-
         System.err.println("Writing file: " + file);
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
-            biom1Data.write(w);
+        // the tree is visited twice, first to write the rows and then to write the data for the rows:
+        try (Biom1Writer w = new Biom1Writer(new BufferedWriter(new FileWriter(file)), biom1Data)) {
+            progressListener.setSubtask("Processing " + cName + " nodes");
+            progressListener.setMaximum(selectedNodes.size());
+            progressListener.setProgress(0);
+            w.beginRows();
+            visitSelectedLeavesRec(viewer, viewer.getTree().getRoot(), selectedNodes, new Vector<>(), w, true, new HashSet<>(), progressListener);
+            w.endRows();
+
+            progressListener.setSubtask("Writing data");
+            progressListener.setProgress(0);
+            w.beginData();
+            visitSelectedLeavesRec(viewer, viewer.getTree().getRoot(), selectedNodes, new Vector<>(), w, false, new HashSet<>(), progressListener);
+            w.endData();
+            return w.getNumberOfRows();
         }
-        return numberOfRows;
     }
 
     /**
@@ -109,11 +100,11 @@ public class Biom1ExportFViewer {
      * @param v
      * @param selected
      * @param path
-     * @param rowList
-     * @param dataList
+     * @param writer
+     * @param writeRows write rows, if true, otherwise write data
      */
     private static void visitSelectedLeavesRec(ClassificationViewer viewer, Node v, NodeSet selected, Vector<String> path,
-                                               LinkedList<Map> rowList, LinkedList<float[]> dataList, Set<Integer> seen, ProgressListener progressListener) throws CanceledException {
+                                               Biom1Writer writer, boolean writeRows, Set<Integer> seen, ProgressListener progressListener) throws IOException, CanceledException {
         if (v.getOutDegree() > 0 || selected.contains(v)) {
             Integer classId = (Integer) v.getInfo();
 
@@ -126,28 +117,18 @@ public class Biom1ExportFViewer {
                 if (selected.contains(v)) {
                     NodeData data = viewer.getNodeData(v);
                     if (data != null) {
-                        final float[] values;
-                        if (v.getOutDegree() == 0)
-                            values = data.getSummarized();
+                        if (writeRows)
+                            writer.writeRow("" + classId, path);
+                        else if (v.getOutDegree() == 0)
+                            writer.writeData(data.getSummarized());
                         else
-                            values = data.getAssigned();
-                        final StringMap<Object> rowItem = new StringMap<>();
-
-                        rowItem.put("id", "" + classId);
-
-                        final StringMap<Object> metadata = new StringMap<>();
-                        ArrayList<String> classification = new ArrayList<>(path.size());
-                        classification.addAll(path);
-                        metadata.put("taxonomy", classification);
-                        rowItem.put("metadata", metadata);
-                        rowList.add(rowItem);
-                        dataList.add(values);
+                            writer.writeData(data.getAssigned());
                     }
                     progressListener.incrementProgress();
                 }
 
                 for (Edge e = v.getFirstOutEdge(); e != null; e = v.getNextOutEdge(e)) {
-                    visitSelectedLeavesRec(viewer, e.getTarget(), selected, path, rowList, dataList, seen, progressListener);
+                    visitSelectedLeavesRec(viewer, e.getTarget(), selected, path, writer, writeRows, seen, progressListener);
                 }
                 path.setSize(path.size() - 1);
             }
@@ -34,14 +34,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Vector;
 
 /**
  * export a taxonomic analysis in biom format
- * Daniel Huson, 7.2012
+ * Daniel Huson, 7.2012, 10.2019
  */
 public class Biom1ExportTaxonomy {
     /**
@@ -56,14 +55,13 @@ public class Biom1ExportTaxonomy {
         final Biom1Data biom1Data = new Biom1Data(file.getPath());
 
         biom1Data.setType(Biom1Data.AcceptableTypes.Taxon_table.toString());
-        biom1Data.setMatrix_type(Biom1Data.AcceptableMatrixTypes.dense.toString());
+        biom1Data.setMatrix_type(Biom1Data.AcceptableMatrixTypes.sparse.toString());
         biom1Data.setMatrix_element_type(Biom1Data.AcceptableMatrixElementTypes.Int.toString());
         biom1Data.setComment("Taxonomy classification computed by MEGAN");
 
         final MainViewer viewer = dir.getMainViewer();
 
         final java.util.List<String> names = dir.getDocument().getSampleNames();
-        int numberOfCols = names.size();
         final LinkedList<Map> colList = new LinkedList<>();
         for (String name : names) {
             final Map<String, Object> colItem = new StringMap<>();
@@ -79,31 +77,23 @@ public class Biom1ExportTaxonomy {
             throw new IOException("No nodes selected");
         }
 
-        progressListener.setSubtask("Processing taxa");
-        progressListener.setMaximum(selectedNodes.size());
-        progressListener.setProgress(0);
-        final LinkedList<Map> rowList = new LinkedList<>();
-        final LinkedList<float[]> dataList = new LinkedList<>();
-
-        visitSelectedLeavesRec(viewer, viewer.getTree().getRoot(), selectedNodes, new Vector<>(), rowList, dataList, officialRanksOnly, progressListener);
-
-        int numberOfRows = rowList.size();
-        biom1Data.setRows(rowList.toArray(new Map[numberOfRows]));
-
-        biom1Data.setShape(new int[]{numberOfRows, numberOfCols});
-
-        final float[][] data = new float[numberOfRows][];
-        int j = 0;
-        for (float[] dataRow : dataList) {
-            data[j++] = dataRow;
-        }
-        biom1Data.setData(data);
-
         System.err.println("Writing file: " + file);
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
-            biom1Data.write(w);
+        // the tree is visited twice, first to write the rows and then to write the data for the rows:
+        try (Biom1Writer w = new Biom1Writer(new BufferedWriter(new FileWriter(file)), biom1Data)) {
+            progressListener.setSubtask("Processing taxa");
+            progressListener.setMaximum(selectedNodes.size());
+            progressListener.setProgress(0);
+            w.beginRows();
+            visitSelectedLeavesRec(viewer, viewer.getTree().getRoot(), selectedNodes, new Vector<>(), w, true, officialRanksOnly, progressListener);
+            w.endRows();
+
+            progressListener.setSubtask("Writing data");
+            progressListener.setProgress(0);
+            w.beginData();
+            visitSelectedLeavesRec(viewer, viewer.getTree().getRoot(), selectedNodes, new Vector<>(), w, false, officialRanksOnly, progressListener);
+            w.endData();
+            return w.getNumberOfRows();
         }
-        return numberOfRows;
     }
 
     /**
@@ -113,11 +103,11 @@ public class Biom1ExportTaxonomy {
      * @param v
      * @param selected
      * @param path
-     * @param rowList
-     * @param dataList
+     * @param writer
+     * @param writeRows  write rows, if true, otherwise write data
      */
     private static void visitSelectedLeavesRec(MainViewer viewer, Node v, NodeSet selected, Vector<String> path,
-                                               LinkedList<Map> rowList, LinkedList<float[]> dataList, boolean officialRanksOnly, ProgressListener progressListener) throws CanceledException {
+                                               Biom1Writer writer, boolean writeRows, boolean officialRanksOnly, ProgressListener progressListener) throws IOException, CanceledException {
 
         if (v.getOutDegree() > 0 || selected.contains(v)) {
             final Integer taxId = (Integer) v.getInfo();
@@ -142,27 +132,19 @@ public class Biom1ExportTaxonomy {
                 if (selected.contains(v)) {
                     NodeData nodeData = viewer.getNodeData(v);
                     if (nodeData != null) {
-                        float[] values;
-                        if (v.getOutDegree() == 0)
-                            values = nodeData.getSummarized();
+                        if (writeRows)
+                            writer.writeRow("" + taxId, path);
+                        else if (v.getOutDegree() == 0)
+                            writer.writeData(nodeData.getSummarized());
                         else
-                            values = nodeData.getAssigned();
-                        final Map<String, Object> rowItem = new StringMap<>();
-                        rowItem.put("id", "" + taxId);
-                        final Map<String, Object> metadata = new StringMap<>();
-                        final ArrayList<String> classification = new ArrayList<>(path.size());
-                        classification.addAll(path);
-                        metadata.put("taxonomy", classification);
-                        rowItem.put("metadata", metadata);
-                        rowList.add(rowItem);
-                        dataList.add(values);
+                            writer.writeData(nodeData.getAssigned());
                     }
                 }
             }
             progressListener.incrementProgress();
 
             for (Edge e = v.getFirstOutEdge(); e != null; e = v.getNextOutEdge(e)) {
-                visitSelectedLeavesRec(viewer, e.getTarget(), selected, path, rowList, dataList, officialRanksOnly, progressListener);
+                visitSelectedLeavesRec(viewer, e.getTarget(), selected, path, writer, writeRows, officialRanksOnly, progressListener);
             }
             if (addedPathElement)
                 path.setSize(path.size() - 1);
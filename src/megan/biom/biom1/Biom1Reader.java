@@ -0,0 +1,288 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.biom.biom1;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * reads a BIOM 1.0 file as a stream, adding the counts of all rows directly to a class-to-counts map.
+ * <p>
+ * Rows are mapped to classes one at a time and data is added one row or entry at a time, so memory
+ * does not depend on the size of the matrix. Rows can only be mapped once the header fields that
+ * determine the type of data have been seen and data can only be added once the rows have been mapped.
+ * Fields that occur too early in the file are skipped and read in an additional pass.
+ * Daniel Huson, 10.2019
+ */
+class Biom1Reader {
+    /**
+     * maps a row to a class id
+     */
+    interface IRowClassifier {
+        int apply(Map row) throws IOException;
+    }
+
+    /**
+     * provides the row classifier for the given header
+     */
+    interface IRowClassifierFactory {
+        /**
+         * @param header   header fields and columns seen so far
+         * @param complete true, if all header fields have been seen
+         * @return classifier, or null, if header is not complete and does not yet determine the classifier
+         */
+        IRowClassifier apply(Biom1Data header, boolean complete) throws IOException;
+    }
+
+    private final String fileName;
+    private final Biom1Data header = new Biom1Data();
+    private final Gson gson = new Gson();
+
+    private IRowClassifier classifier;
+    private int[] row2class = new int[1024];
+    private int numberOfRows;
+    private boolean rowsDone;
+    private boolean dataDone;
+    private int numberOfColumns = -1;
+
+    /**
+     * read a BIOM 1.0 file
+     *
+     * @param fileName
+     * @param factory      provides the classifier for rows
+     * @param class2counts counts are added to this map, each array of counts has one entry per column
+     * @return the header and columns, without rows or data
+     * @throws IOException
+     */
+    static Biom1Data read(String fileName, IRowClassifierFactory factory, Map<Integer, float[]> class2counts) throws IOException {
+        final Biom1Reader reader = new Biom1Reader(fileName);
+        reader.readPass(factory, class2counts, true);
+        reader.header.check();
+        for (int pass = 2; !reader.dataDone; pass++) {
+            if (pass > 3)
+                throw new IOException("Failed to read " + (reader.rowsDone ? "data" : "rows"));
+            reader.readPass(factory, class2counts, false);
+        }
+        if (reader.header.getColumns() == null)
+            throw new IOException("No columns");
+        if (reader.header.getColumns().length != reader.numberOfColumns)
+            throw new IOException("Number of columns (" + reader.header.getColumns().length + ") != shape (" + reader.numberOfColumns + ")");
+        return reader.header;
+    }
+
+    private Biom1Reader(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * read one pass through the file
+     *
+     * @param factory
+     * @param class2counts
+     * @param firstPass    header fields are only read in the first pass
+     */
+    private void readPass(IRowClassifierFactory factory, Map<Integer, float[]> class2counts, boolean firstPass) throws IOException {
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(fileName)))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                switch (name) {
+                    case "rows": {
+                        if (!rowsDone && classifier == null)
+                            classifier = factory.apply(header, !firstPass);
+                        if (!rowsDone && classifier != null) {
+                            readRows(reader);
+                            rowsDone = true;
+                        } else
+                            reader.skipValue();
+                        break;
+                    }
+                    case "data": {
+                        if (!dataDone && rowsDone && header.getMatrix_type() != null && getNumberOfColumns() >= 0) {
+                            numberOfColumns = getNumberOfColumns();
+                            readData(reader, class2counts);
+                            dataDone = true;
+                        } else
+                            reader.skipValue();
+                        break;
+                    }
+                    default: {
+                        if (firstPass)
+                            readHeaderField(reader, name);
+                        else
+                            reader.skipValue();
+                    }
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | JsonParseException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * read a field of the header
+     *
+     * @param reader
+     * @param name
+     */
+    private void readHeaderField(JsonReader reader, String name) throws IOException {
+        switch (name) {
+            case "comment":
+                header.setComment(nextStringOrNull(reader));
+                break;
+            case "classification":
+                header.setClassification(nextStringOrNull(reader));
+                break;
+            case "id":
+                header.setId(nextStringOrNull(reader));
+                break;
+            case "format":
+                header.setFormat(nextStringOrNull(reader));
+                break;
+            case "format_url":
+                header.setFormatUrl(nextStringOrNull(reader));
+                break;
+            case "type":
+                header.setType(nextStringOrNull(reader));
+                break;
+            case "generated_by":
+                header.setGenerated_by(nextStringOrNull(reader));
+                break;
+            case "date":
+                header.setDate(nextStringOrNull(reader));
+                break;
+            case "matrix_type":
+                header.setMatrix_type(nextStringOrNull(reader));
+                break;
+            case "matrix_element_type":
+                header.setMatrix_element_type(nextStringOrNull(reader));
+                break;
+            case "shape":
+                header.setShape(gson.fromJson(reader, int[].class));
+                break;
+            case "columns":
+                header.setColumns(gson.fromJson(reader, Map[].class));
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    /**
+     * read all rows and map them to classes
+     *
+     * @param reader
+     */
+    private void readRows(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            final Map row = gson.fromJson(reader, Map.class);
+            if (numberOfRows == row2class.length)
+                row2class = Arrays.copyOf(row2class, 2 * row2class.length);
+            row2class[numberOfRows++] = classifier.apply(row);
+        }
+        reader.endArray();
+    }
+
+    /**
+     * read all data, in dense or sparse format, adding values, rounded to integers, to the counts of the classes of their rows
+     *
+     * @param reader
+     * @param class2counts
+     */
+    private void readData(JsonReader reader, Map<Integer, float[]> class2counts) throws IOException {
+        final boolean dense;
+        if (header.getMatrix_type().equalsIgnoreCase(Biom1Data.AcceptableMatrixTypes.dense.toString()))
+            dense = true;
+        else if (header.getMatrix_type().equalsIgnoreCase(Biom1Data.AcceptableMatrixTypes.sparse.toString()))
+            dense = false;
+        else
+            throw new IOException("matrix_type=" + header.getMatrix_type() + ", must be one of: dense, sparse");
+
+        reader.beginArray();
+        int row = 0;
+        while (reader.hasNext()) {
+            reader.beginArray();
+            if (dense) {
+                final float[] counts = getCounts(row, class2counts);
+                for (int col = 0; reader.hasNext(); col++) {
+                    final long value = Math.round(reader.nextDouble());
+                    if (col < numberOfColumns)
+                        counts[col] += value;
+                }
+                row++;
+            } else {
+                final int entryRow = reader.nextInt();
+                final int col = reader.nextInt();
+                final long value = Math.round(reader.nextDouble());
+                while (reader.hasNext())
+                    reader.skipValue();
+                if (col < 0 || col >= numberOfColumns)
+                    throw new IOException("Column out of range: " + col);
+                getCounts(entryRow, class2counts)[col] += value;
+            }
+            reader.endArray();
+        }
+        reader.endArray();
+    }
+
+    /**
+     * get the counts for the class of the given row
+     *
+     * @param row
+     * @param class2counts
+     * @return counts
+     */
+    private float[] getCounts(int row, Map<Integer, float[]> class2counts) throws IOException {
+        if (row < 0 || row >= numberOfRows)
+            throw new IOException("Row out of range: " + row);
+        return class2counts.computeIfAbsent(row2class[row], k -> new float[numberOfColumns]);
+    }
+
+    /**
+     * get the number of columns, as determined by the columns or shape seen so far
+     *
+     * @return number of columns or -1
+     */
+    private int getNumberOfColumns() {
+        if (header.getColumns() != null)
+            return header.getColumns().length;
+        else if (header.getShape() != null && header.getShape().length == 2)
+            return header.getShape()[1];
+        else
+            return -1;
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        } else
+            return reader.nextString();
+    }
+}
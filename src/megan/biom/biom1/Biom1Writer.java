@@ -0,0 +1,172 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.biom.biom1;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * writes a BIOM 1.0 file with a sparse matrix, one row at a time. First all rows are written, then the data for all rows
+ * in the same order. The shape is written last.
+ * Daniel Huson, 10.2019
+ */
+class Biom1Writer implements Closeable {
+    private final JsonWriter jsonWriter;
+    private final int numberOfColumns;
+    private int numberOfRows;
+    private int dataRow;
+    private boolean complete;
+
+    /**
+     * constructor. Writes the header and columns of the given data, which has no rows or data
+     *
+     * @param writer
+     * @param header
+     * @throws IOException
+     */
+    Biom1Writer(Writer writer, Biom1Data header) throws IOException {
+        jsonWriter = new JsonWriter(writer);
+        jsonWriter.beginObject();
+        if (header.getComment() != null)
+            jsonWriter.name("comment").value(header.getComment());
+        if (header.getClassification() != null)
+            jsonWriter.name("classification").value(header.getClassification());
+        jsonWriter.name("id").value(header.getId());
+        jsonWriter.name("format").value(header.getFormat());
+        jsonWriter.name("format_url").value(header.getFormatUrl());
+        jsonWriter.name("type").value(header.getType());
+        jsonWriter.name("generated_by").value(header.getGenerated_by());
+        jsonWriter.name("date").value(header.getDate());
+        jsonWriter.name("matrix_type").value(Biom1Data.AcceptableMatrixTypes.sparse.toString());
+        jsonWriter.name("matrix_element_type").value(header.getMatrix_element_type());
+
+        final Gson gson = new Gson();
+        numberOfColumns = header.getColumns().length;
+        jsonWriter.name("columns").beginArray();
+        for (Map column : header.getColumns()) {
+            gson.toJson(column, Map.class, jsonWriter);
+        }
+        jsonWriter.endArray();
+    }
+
+    /**
+     * begin the rows
+     */
+    void beginRows() throws IOException {
+        jsonWriter.name("rows").beginArray();
+    }
+
+    /**
+     * write a row
+     *
+     * @param id
+     * @param taxonomy path of names from root to class of row
+     */
+    void writeRow(String id, List<String> taxonomy) throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name("id").value(id);
+        jsonWriter.name("metadata").beginObject();
+        jsonWriter.name("taxonomy").beginArray();
+        for (String name : taxonomy) {
+            jsonWriter.value(name);
+        }
+        jsonWriter.endArray();
+        jsonWriter.endObject();
+        jsonWriter.endObject();
+        numberOfRows++;
+    }
+
+    /**
+     * end the rows
+     */
+    void endRows() throws IOException {
+        jsonWriter.endArray();
+    }
+
+    /**
+     * begin the data
+     */
+    void beginData() throws IOException {
+        jsonWriter.name("data").beginArray();
+    }
+
+    /**
+     * write the data for the next row, as entries of row, column and value for all non-zero values
+     *
+     * @param values
+     */
+    void writeData(float[] values) throws IOException {
+        if (dataRow >= numberOfRows)
+            throw new IOException("More data than rows: " + (dataRow + 1));
+        for (int col = 0; col < Math.min(numberOfColumns, values.length); col++) {
+            final float value = values[col];
+            if (value != 0) {
+                jsonWriter.beginArray();
+                jsonWriter.value(dataRow);
+                jsonWriter.value(col);
+                if (value == Math.round(value))
+                    jsonWriter.value(Math.round(value));
+                else
+                    jsonWriter.value(Float.valueOf(value));
+                jsonWriter.endArray();
+            }
+        }
+        dataRow++;
+    }
+
+    /**
+     * end the data
+     */
+    void endData() throws IOException {
+        jsonWriter.endArray();
+        if (dataRow != numberOfRows)
+            throw new IOException("Data rows (" + dataRow + ") != rows (" + numberOfRows + ")");
+        complete = true;
+    }
+
+    /**
+     * get the number of rows written
+     *
+     * @return rows
+     */
+    int getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    /**
+     * writes the shape and closes. The document is incomplete, if the data has not been ended
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (complete) {
+                jsonWriter.name("shape").beginArray().value(numberOfRows).value(numberOfColumns).endArray();
+                jsonWriter.endObject();
+            }
+        } finally {
+            jsonWriter.close();
+        }
+    }
+}
@@ -95,12 +95,13 @@ public class Biom2Importer {
 
             doc.getMeganFile().setFileType(MeganFile.Type.MEGAN_SUMMARY_FILE);
 
-            datatTable.getClassification2Class2Counts().putAll(classification2class2sample2count);
+            for (String classificationName : classification2class2sample2count.keySet())
+                datatTable.setClass2Counts(classificationName, classification2class2sample2count.get(classificationName));
 
             if (!classification2class2sample2count.containsKey(Classification.Taxonomy)) {
                 final Map<Integer, float[]> class2counts = new HashMap<>();
                 class2counts.put(IdMapper.UNASSIGNED_ID, sizes);
-                datatTable.getClassification2Class2Counts().put(Classification.Taxonomy, class2counts);
+                datatTable.setClass2Counts(Classification.Taxonomy, class2counts);
             }
 
             datatTable.setSamples(sampleIds, null, sizes, new BlastMode[]{BlastMode.Classifier});
@@ -1173,15 +1173,25 @@ public class PCoATab extends JPanel implements ITab {
     }
 
     private String getTitle2D() {
-        return String.format("PCoA of %s using %s: PC %d (%.1f%%) vs PC %d (%.1f%%)",
-                clusterViewer.getDataType(), clusterViewer.getEcologicalIndex(), (firstPC + 1), pcoa.getPercentExplained(firstPC), (secondPC + 1),
-                pcoa.getPercentExplained(secondPC));
+        return String.format("PCoA of %s using %s: PC %d (%s) vs PC %d (%s)",
+                clusterViewer.getDataType(), clusterViewer.getEcologicalIndex(), (firstPC + 1), getPercentExplained(firstPC), (secondPC + 1),
+                getPercentExplained(secondPC));
     }
 
     public String getTitle3D() {
-        return String.format("PCoA of %s using %s: PC %d (%.1f%%) vs PC %d (%.1f%%) vs PC %d (%.1f%%)",
-                clusterViewer.getDataType(), clusterViewer.getEcologicalIndex(), (firstPC + 1), pcoa.getPercentExplained(firstPC), (secondPC + 1),
-                pcoa.getPercentExplained(secondPC), (thirdPC + 1), pcoa.getPercentExplained(thirdPC));
+        return String.format("PCoA of %s using %s: PC %d (%s) vs PC %d (%s) vs PC %d (%s)",
+                clusterViewer.getDataType(), clusterViewer.getEcologicalIndex(), (firstPC + 1), getPercentExplained(firstPC), (secondPC + 1),
+                getPercentExplained(secondPC), (thirdPC + 1), getPercentExplained(thirdPC));
+    }
+
+    /**
+     * get the percent explained by a principal component as a label, prefixed by ~ if it is only an estimate
+     *
+     * @param pc
+     * @return label
+     */
+    private String getPercentExplained(int pc) {
+        return String.format("%s%.1f%%", pcoa.isPercentExplainedEstimated() ? "~" : "", pcoa.getPercentExplained(pc));
     }
 
     /**
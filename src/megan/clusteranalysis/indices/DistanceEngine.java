@@ -0,0 +1,594 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.clusteranalysis.indices;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.util.CanceledException;
+import jloda.util.ProgressListener;
+import jloda.util.ProgressSilent;
+import megan.clusteranalysis.tree.Distances;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * computes distance matrices between samples from their class profiles, without a viewer
+ * <p>
+ * Pairs of samples are processed in square tiles of the matrix, so that the profiles of a tile stay in cache, and the tiles are
+ * distributed over all worker threads. Profiles are sparse, so only classes present in at least one of the two samples are visited.
+ * UniFrac distances are computed from per-node presence bit sets or normalized summarized counts prepared by UniFrac.
+ * Daniel Huson, 10.2019
+ */
+public class DistanceEngine implements Closeable {
+    private static final int TILE_SIZE = 64;
+    private static final double JSD_MIN = 0.0000000001;
+
+    private static final int BRAY_CURTIS = 0;
+    private static final int KULCZYNSKI = 1;
+    private static final int HELLINGER = 2;
+    private static final int EUCLIDEAN = 3;
+    private static final int CHI_SQUARE = 4;
+    private static final int JENSEN_SHANNON = 5;
+    private static final int PEARSON = 6;
+    private static final int GOODALL = 7;
+
+    private static final String[] NAMES = {BrayCurtisDissimilarity.NAME, KulczynskiDistance.NAME, HellingerDistance.NAME, EuclideanDistance.NAME,
+            ChiSquareDistance.NAME, JensenShannonDivergence.NAME, PearsonDistance.NAME, GoodallsDistance.NAME};
+
+    private final int numberOfThreads;
+    private final ExecutorService service;
+
+    /**
+     * constructor
+     *
+     * @param numberOfThreads
+     */
+    public DistanceEngine(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.service = ProgramExecutorService.createServiceForParallelAlgorithm(this.numberOfThreads);
+    }
+
+    /**
+     * convenience method: compute the named distances using all available cores
+     *
+     * @param method
+     * @param profiles
+     * @param distances
+     * @throws CanceledException
+     */
+    public static void apply(String method, SampleProfiles profiles, Distances distances) throws CanceledException {
+        try (DistanceEngine engine = new DistanceEngine(ProgramExecutorService.getNumberOfCoresToUse())) {
+            engine.apply(method, profiles, distances.getMatrix(), new ProgressSilent());
+        }
+    }
+
+    /**
+     * is the named method supported by the engine?
+     *
+     * @param method
+     * @return true, if supported
+     */
+    public static boolean isSupported(String method) {
+        return getIndex(method) != -1;
+    }
+
+    /**
+     * get the names of all supported methods
+     *
+     * @return names
+     */
+    public static String[] getNames() {
+        return NAMES.clone();
+    }
+
+    /**
+     * compute the named distances between all pairs of samples
+     *
+     * @param method
+     * @param profiles
+     * @param matrix   square matrix of size number of samples, the distances are written to both triangles
+     * @param progress
+     * @throws CanceledException
+     */
+    public void apply(String method, SampleProfiles profiles, double[][] matrix, ProgressListener progress) throws CanceledException {
+        final int index = getIndex(method);
+        if (index == -1)
+            throw new IllegalArgumentException("Unsupported distance: " + method);
+
+        final int n = profiles.getNumberOfSamples();
+        for (int s = 0; s < n; s++)
+            matrix[s][s] = 0;
+        if (n < 2)
+            return;
+
+        if (index == GOODALL) {
+            computeGoodall(profiles, matrix, progress);
+            return;
+        }
+
+        final double[] sums = new double[n];
+        final double[] means = new double[n];
+        final double[] stddevs = new double[n];
+        for (int s = 0; s < n; s++) {
+            for (double p : profiles.getValues(s))
+                sums[s] += p;
+        }
+        if (index == PEARSON)
+            computeMeansAndStdDevs(profiles, means, stddevs);
+
+        progress.setSubtask("Computing " + method + " distances");
+        forAllPairs(n, progress, (s, t) -> {
+            final double distance;
+            switch (index) {
+                case BRAY_CURTIS: {
+                    final double lesser = sumTerms(BRAY_CURTIS, profiles, s, t);
+                    distance = (sums[s] + sums[t] > 0 ? 1 - 2 * lesser / (sums[s] + sums[t]) : 0);
+                    break;
+                }
+                case KULCZYNSKI: {
+                    if (profiles.getTotal(s) > 0 && profiles.getTotal(t) > 0) {
+                        final double lesser = sumTerms(KULCZYNSKI, profiles, s, t);
+                        distance = 1 - 0.5 * (lesser / sums[s] + lesser / sums[t]);
+                    } else
+                        distance = 0;
+                    break;
+                }
+                case HELLINGER:
+                case EUCLIDEAN:
+                    distance = Math.sqrt(sumTerms(index, profiles, s, t));
+                    break;
+                case CHI_SQUARE:
+                    distance = 2 * sumTerms(CHI_SQUARE, profiles, s, t);
+                    break;
+                case JENSEN_SHANNON:
+                    distance = Math.sqrt(0.5 * sumTerms(JENSEN_SHANNON, profiles, s, t));
+                    break;
+                case PEARSON: {
+                    final double cor = computeCorrelation(profiles, s, t, means, stddevs);
+                    distance = 1.0 - cor * cor;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException();
+            }
+            matrix[s][t] = matrix[t][s] = distance;
+        });
+    }
+
+    /**
+     * computes unweighted UniFrac distances: the proportion of nodes in which exactly one of the two samples is present
+     *
+     * @param presence        for each sample, a bit set of the nodes in which it is present
+     * @param numberOfNodes   number of nodes used
+     * @param matrix          square matrix of size number of samples, the distances are written to both triangles
+     * @param progress
+     * @throws CanceledException
+     */
+    public void applyUnweightedUniFrac(long[][] presence, int numberOfNodes, double[][] matrix, ProgressListener progress) throws CanceledException {
+        forAllPairs(presence.length, progress, (s, t) -> {
+            final long[] a = presence[s];
+            final long[] b = presence[t];
+            int diff = 0;
+            for (int i = 0; i < a.length; i++)
+                diff += Long.bitCount(a[i] ^ b[i]);
+            matrix[s][t] = matrix[t][s] = (numberOfNodes > 0 ? (double) diff / (double) numberOfNodes : 0);
+        });
+    }
+
+    /**
+     * computes weighted UniFrac distances: the sum of absolute differences of the normalized summarized counts of all nodes,
+     * divided by the sum of the normalized summarized counts
+     *
+     * @param profiles normalized summarized counts, one class per node
+     * @param matrix   square matrix of size number of samples, the distances are written to both triangles
+     * @param progress
+     * @throws CanceledException
+     */
+    public void applyWeightedUniFrac(SampleProfiles profiles, double[][] matrix, ProgressListener progress) throws CanceledException {
+        forAllPairs(profiles.getNumberOfSamples(), progress, (s, t) -> {
+            double diff = 0;
+            double sum = 0;
+            if (profiles.isDense()) {
+                final double[] a = profiles.getDense(s);
+                final double[] b = profiles.getDense(t);
+                for (int c = 0; c < a.length; c++) {
+                    diff += Math.abs(a[c] - b[c]);
+                    sum += (a[c] + b[c]);
+                }
+            } else { // nodes in which both samples are absent add zero to both sums
+                final int[] ia = profiles.getIndices(s);
+                final double[] va = profiles.getValues(s);
+                final int[] ib = profiles.getIndices(t);
+                final double[] vb = profiles.getValues(t);
+                int i = 0, j = 0;
+                while (i < ia.length || j < ib.length) {
+                    final double p, q;
+                    if (j == ib.length || (i < ia.length && ia[i] < ib[j])) {
+                        p = va[i++];
+                        q = 0;
+                    } else if (i == ia.length || ib[j] < ia[i]) {
+                        p = 0;
+                        q = vb[j++];
+                    } else {
+                        p = va[i++];
+                        q = vb[j++];
+                    }
+                    diff += Math.abs(p - q);
+                    sum += (p + q);
+                }
+            }
+            matrix[s][t] = matrix[t][s] = (sum > 0 ? diff / sum : 0);
+        });
+    }
+
+    /**
+     * applies the task to all pairs of samples s<t. Pairs are processed in square tiles, which are distributed over the worker threads
+     */
+    private void forAllPairs(int n, ProgressListener progress, PairTask task) throws CanceledException {
+        final int numberOfBlocks = (n + TILE_SIZE - 1) / TILE_SIZE;
+        final int numberOfTiles = numberOfBlocks * (numberOfBlocks + 1) / 2;
+        final int[] tileRow = new int[numberOfTiles];
+        final int[] tileCol = new int[numberOfTiles];
+        {
+            int t = 0;
+            for (int i = 0; i < numberOfBlocks; i++) {
+                for (int j = i; j < numberOfBlocks; j++) {
+                    tileRow[t] = i;
+                    tileCol[t++] = j;
+                }
+            }
+        }
+
+        runInParallel(numberOfTiles, progress, tile -> {
+            final int startS = tileRow[tile] * TILE_SIZE;
+            final int endS = Math.min(n, startS + TILE_SIZE);
+            final int startT = tileCol[tile] * TILE_SIZE;
+            final int endT = Math.min(n, startT + TILE_SIZE);
+            for (int s = startS; s < endS; s++) {
+                for (int t = Math.max(startT, s + 1); t < endT; t++) {
+                    task.apply(s, t);
+                }
+            }
+        });
+    }
+
+    /**
+     * sum the per-class terms of an index over all classes present in at least one of the two samples
+     */
+    private static double sumTerms(int index, SampleProfiles profiles, int s, int t) {
+        double sum = 0;
+        if (profiles.isDense()) {
+            final double[] a = profiles.getDense(s);
+            final double[] b = profiles.getDense(t);
+            for (int c = 0; c < a.length; c++) {
+                sum += term(index, a[c], b[c]);
+            }
+        } else {
+            final int[] ia = profiles.getIndices(s);
+            final double[] va = profiles.getValues(s);
+            final int[] ib = profiles.getIndices(t);
+            final double[] vb = profiles.getValues(t);
+            if (index == BRAY_CURTIS || index == KULCZYNSKI) { // only shared classes contribute
+                for (int i = 0, j = 0; i < ia.length && j < ib.length; ) {
+                    if (ia[i] == ib[j])
+                        sum += Math.min(va[i++], vb[j++]);
+                    else if (ia[i] < ib[j])
+                        i++;
+                    else
+                        j++;
+                }
+            } else {
+                int i = 0, j = 0;
+                while (i < ia.length && j < ib.length) {
+                    if (ia[i] == ib[j])
+                        sum += term(index, va[i++], vb[j++]);
+                    else if (ia[i] < ib[j])
+                        sum += term(index, va[i++], 0);
+                    else
+                        sum += term(index, 0, vb[j++]);
+                }
+                while (i < ia.length)
+                    sum += term(index, va[i++], 0);
+                while (j < ib.length)
+                    sum += term(index, 0, vb[j++]);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * the contribution of one class to an index. Is 0, if p and q are both 0
+     */
+    private static double term(int index, double p, double q) {
+        switch (index) {
+            case BRAY_CURTIS:
+            case KULCZYNSKI:
+                return Math.min(p, q);
+            case HELLINGER: {
+                final double d = Math.sqrt(p) - Math.sqrt(q);
+                return d * d;
+            }
+            case EUCLIDEAN:
+                return (p - q) * (p - q);
+            case CHI_SQUARE:
+                return (p + q > 0 ? (p - q) * (p - q) / (p + q) : 0);
+            case JENSEN_SHANNON: {
+                final double x = Math.max(p, JSD_MIN);
+                final double y = Math.max(q, JSD_MIN);
+                final double m = Math.max(0.5 * (p + q), JSD_MIN);
+                return x * Math.log(x / m) + y * Math.log(y / m);
+            }
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * computes the mean and standard deviation of each profile over all classes
+     */
+    private static void computeMeansAndStdDevs(SampleProfiles profiles, double[] means, double[] stddevs) {
+        final int numberOfClasses = profiles.getNumberOfClasses();
+        for (int s = 0; s < profiles.getNumberOfSamples(); s++) {
+            final double[] values = profiles.getValues(s);
+            double sum = 0;
+            for (double p : values)
+                sum += p;
+            final double mean = sum / numberOfClasses;
+            double squares = (numberOfClasses - values.length) * mean * mean; // classes not present in sample
+            for (double p : values)
+                squares += (p - mean) * (p - mean);
+            means[s] = mean;
+            stddevs[s] = Math.sqrt(squares / numberOfClasses);
+        }
+    }
+
+    /**
+     * computes Pearson's correlation between two profiles
+     */
+    private static double computeCorrelation(SampleProfiles profiles, int s, int t, double[] means, double[] stddevs) {
+        final double ms = means[s];
+        final double mt = means[t];
+        double sum = 0;
+        if (profiles.isDense()) {
+            final double[] a = profiles.getDense(s);
+            final double[] b = profiles.getDense(t);
+            for (int c = 0; c < a.length; c++)
+                sum += (a[c] - ms) * (b[c] - mt);
+        } else {
+            final int[] ia = profiles.getIndices(s);
+            final double[] va = profiles.getValues(s);
+            final int[] ib = profiles.getIndices(t);
+            final double[] vb = profiles.getValues(t);
+            int i = 0, j = 0, union = 0;
+            while (i < ia.length || j < ib.length) {
+                if (j == ib.length || (i < ia.length && ia[i] < ib[j]))
+                    sum += (va[i++] - ms) * (-mt);
+                else if (i == ia.length || ib[j] < ia[i])
+                    sum += (-ms) * (vb[j++] - mt);
+                else
+                    sum += (va[i++] - ms) * (vb[j++] - mt);
+                union++;
+            }
+            sum += (profiles.getNumberOfClasses() - union) * ms * mt; // classes present in neither sample
+        }
+        return sum / (stddevs[s] * stddevs[t]) / profiles.getNumberOfClasses();
+    }
+
+    /**
+     * computes Goodall's distance, giving the same values as GoodallsDistance
+     * <p>
+     * Instead of comparing each Gower coefficient with all other coefficients of the same class, which takes quadratic time in the
+     * number of pairs of samples, the coefficients of a class are sorted and ranked by binary search.
+     */
+    private void computeGoodall(SampleProfiles profiles, double[][] matrix, ProgressListener progress) throws CanceledException {
+        final int n = profiles.getNumberOfSamples();
+        final int numberOfClasses = profiles.getNumberOfClasses();
+        final long numberOfPairsLong = (long) n * (n - 1) / 2;
+        if (numberOfPairsLong > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Too many samples for " + GoodallsDistance.NAME + ": " + n);
+        final int numberOfPairs = (int) numberOfPairsLong;
+
+        // index of the first pair (s,t) with t>s:
+        final int[] pairStart = new int[n];
+        for (int s = 1; s < n; s++)
+            pairStart[s] = pairStart[s - 1] + (n - s);
+
+        // sum of normalized values of each sample, summed in class order:
+        final double[] sums = new double[n];
+        for (int s = 0; s < n; s++) {
+            for (double p : profiles.getValues(s))
+                sums[s] += p;
+        }
+
+        final double[] logSums = new double[numberOfPairs];
+        final double[] gower = new double[numberOfPairs];
+        final double[] sorted = new double[numberOfPairs];
+        final double[] column = new double[n];
+        final int[] next = new int[n];
+
+        progress.setSubtask("Computing " + GoodallsDistance.NAME + " distances");
+        progress.setMaximum(numberOfClasses);
+        progress.setProgress(0);
+
+        for (int c = 0; c < numberOfClasses; c++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            boolean present = false;
+            for (int s = 0; s < n; s++) {
+                final int[] indices = profiles.getIndices(s);
+                final double p;
+                if (next[s] < indices.length && indices[next[s]] == c) {
+                    p = profiles.getValues(s)[next[s]++];
+                    present = true;
+                } else
+                    p = 0;
+                if (p < min)
+                    min = p;
+                if (p > max)
+                    max = p;
+                column[s] = p * 4000 / sums[s];
+            }
+            if (present) { // otherwise, all coefficients are 0 and the class contributes log10(1)=0
+                final double range = max - min;
+                final AtomicBoolean hasNaN = new AtomicBoolean(false);
+                runInParallel(n - 1, null, s -> {
+                    final double d1 = column[s];
+                    int pair = pairStart[s];
+                    for (int t = s + 1; t < n; t++) {
+                        final double d2 = column[t];
+                        final double value = (d1 == 0.0 && d2 == 0.0 ? 0.0 : 1.0 - Math.abs(d1 - d2) / range);
+                        if (Double.isNaN(value))
+                            hasNaN.set(true);
+                        gower[pair++] = value;
+                    }
+                });
+                if (!hasNaN.get()) { // a class with an undefined coefficient contributes nothing
+                    System.arraycopy(gower, 0, sorted, 0, numberOfPairs);
+                    Arrays.parallelSort(sorted);
+                    runInParallel(n - 1, null, s -> {
+                        for (int pair = pairStart[s]; pair < pairStart[s] + (n - s - 1); pair++) {
+                            final int count = numberOfPairs - lowerBound(sorted, gower[pair]);
+                            logSums[pair] += Math.log10((count + 0.0) / numberOfPairs);
+                        }
+                    });
+                }
+            }
+            progress.setProgress(c + 1);
+        }
+
+        System.arraycopy(logSums, 0, sorted, 0, numberOfPairs);
+        Arrays.parallelSort(sorted);
+        runInParallel(n - 1, null, s -> {
+            for (int t = s + 1; t < n; t++) {
+                final double value = logSums[pairStart[s] + (t - s - 1)];
+                final int count = numberOfPairs - lowerBound(sorted, value);
+                matrix[s][t] = matrix[t][s] = 1.0 - (count + 0.0) / numberOfPairs;
+            }
+        });
+    }
+
+    /**
+     * index of the first entry that is >= value
+     */
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * runs the given task for all indices 0..numberOfTasks-1, using all worker threads
+     *
+     * @param progress if non-null, reports the number of completed tasks and checks for cancel
+     */
+    private void runInParallel(int numberOfTasks, ProgressListener progress, IndexedTask task) throws CanceledException {
+        if (progress != null) {
+            progress.setMaximum(numberOfTasks);
+            progress.setProgress(0);
+        }
+        final int numberOfWorkers = Math.min(numberOfThreads, numberOfTasks);
+        if (numberOfWorkers <= 0)
+            return;
+
+        final AtomicInteger nextTask = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicBoolean canceled = new AtomicBoolean(false);
+        final AtomicReference<Throwable> exception = new AtomicReference<>();
+        final CountDownLatch countDownLatch = new CountDownLatch(numberOfWorkers);
+
+        for (int w = 0; w < numberOfWorkers; w++) {
+            service.submit(() -> {
+                try {
+                    int i;
+                    while (!canceled.get() && (i = nextTask.getAndIncrement()) < numberOfTasks) {
+                        task.apply(i);
+                        completed.incrementAndGet();
+                    }
+                } catch (Throwable ex) {
+                    exception.compareAndSet(null, ex);
+                    canceled.set(true);
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+        }
+
+        try {
+            while (!countDownLatch.await(100, TimeUnit.MILLISECONDS)) {
+                if (progress != null)
+                    progress.setProgress(completed.get());
+            }
+        } catch (InterruptedException | CanceledException ex) {
+            canceled.set(true);
+            throw new CanceledException();
+        }
+        if (exception.get() != null) {
+            if (exception.get() instanceof RuntimeException)
+                throw (RuntimeException) exception.get();
+            else if (exception.get() instanceof Error)
+                throw (Error) exception.get();
+            else
+                throw new RuntimeException("Distance computation failed", exception.get());
+        }
+        if (completed.get() < numberOfTasks)
+            throw new RuntimeException("Distance computation failed");
+        if (progress != null)
+            progress.setProgress(numberOfTasks);
+    }
+
+    @Override
+    public void close() {
+        service.shutdownNow();
+    }
+
+    private static int getIndex(String method) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(method))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * a task that is applied to an index
+     */
+    private interface IndexedTask {
+        void apply(int index);
+    }
+
+    /**
+     * a task that is applied to a pair of samples
+     */
+    private interface PairTask {
+        void apply(int s, int t);
+    }
+}
@@ -19,12 +19,18 @@
 
 package megan.clusteranalysis.indices;
 
+import jloda.graph.Node;
+import jloda.util.Basic;
 import jloda.util.CanceledException;
 import megan.clusteranalysis.tree.Distances;
 import megan.viewer.ClassificationViewer;
 import megan.viewer.MainViewer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class DistancesManager {
     private static String[] names;
@@ -42,22 +48,36 @@ public class DistancesManager {
             return UniFrac.applyUnweightedUniformUniFrac((MainViewer) viewer, 1, distances);
         else if (method.equalsIgnoreCase(UniFrac.WeightedUniformUniFrac))
             return UniFrac.applyWeightedUniformUniFrac(viewer, distances);
-        else if (method.equalsIgnoreCase(JensenShannonDivergence.NAME))
-            return JensenShannonDivergence.apply(viewer, distances);
-        else if (method.equalsIgnoreCase(PearsonDistance.NAME))
-            return PearsonDistance.apply(viewer, distances);
-        else if (method.equalsIgnoreCase(EuclideanDistance.NAME))
-            return EuclideanDistance.apply(viewer, distances);
-        else if (method.equalsIgnoreCase(KulczynskiDistance.NAME))
-            return KulczynskiDistance.apply(viewer, distances);
-        else if (method.equalsIgnoreCase(ChiSquareDistance.NAME))
-            return ChiSquareDistance.apply(viewer, distances);
-        else if (method.equalsIgnoreCase(HellingerDistance.NAME))
-            return HellingerDistance.apply(viewer, distances);
-        else if (method.equalsIgnoreCase(GoodallsDistance.NAME))
-            return GoodallsDistance.apply(viewer, method, distances);
-        else // Bray-Curtis
-            return BrayCurtisDissimilarity.apply(viewer, distances);
+        else {
+            final String name = (DistanceEngine.isSupported(method) ? method : BrayCurtisDissimilarity.NAME);
+            System.err.println("Computing " + Basic.fromCamelCase(name) + " distances");
+            final List<float[]> rows = computeRows(viewer, name.equalsIgnoreCase(PearsonDistance.NAME) || name.equalsIgnoreCase(GoodallsDistance.NAME));
+            DistanceEngine.apply(name, SampleProfiles.fromRows(rows, distances.getNtax()), distances);
+            return rows.size();
+        }
+    }
+
+    /**
+     * get the counts of all selected nodes, using summarized counts for leaves and assigned counts for internal nodes
+     *
+     * @param viewer
+     * @param uniqueClasses use each class only once, even if it appears on more than one node
+     * @return one row of counts per node
+     */
+    private static List<float[]> computeRows(ClassificationViewer viewer, boolean uniqueClasses) {
+        final List<float[]> rows = new ArrayList<>();
+        if (uniqueClasses) {
+            final Set<Integer> seen = new HashSet<>();
+            for (Node v = viewer.getGraph().getFirstNode(); v != null; v = v.getNext()) {
+                if (viewer.getSelected(v) && seen.add((Integer) v.getInfo()))
+                    rows.add(v.getOutDegree() == 0 ? viewer.getNodeData(v).getSummarized() : viewer.getNodeData(v).getAssigned());
+            }
+        } else {
+            for (Node v : viewer.getSelectedNodes()) {
+                rows.add(v.getOutDegree() == 0 ? viewer.getNodeData(v).getSummarized() : viewer.getNodeData(v).getAssigned());
+            }
+        }
+        return rows;
     }
 
     /**
@@ -0,0 +1,211 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.clusteranalysis.indices;
+
+import megan.core.DataTable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * sample x class matrix of relative abundances, as used by the distance computations
+ * <p>
+ * Each sample is normalized by its total count. Samples are stored as sparse rows (class indices and values, sorted by class),
+ * and, if the matrix is dense enough, also as dense rows.
+ * Daniel Huson, 10.2019
+ */
+public class SampleProfiles {
+    private static final double DENSE_THRESHOLD = 0.5;
+    private static final long MAX_DENSE_ENTRIES = 200000000L;
+
+    private final int numberOfSamples;
+    private final int numberOfClasses;
+    private final double[] totals;
+    private final int[][] indices;
+    private final double[][] values;
+    private double[][] dense;
+
+    /**
+     * constructor
+     *
+     * @param rows            one row of counts per class, each row indexed by sample
+     * @param numberOfSamples
+     * @param totals          the counts to normalize by, or null, if counts are to be normalized by their sum
+     */
+    private SampleProfiles(List<float[]> rows, int numberOfSamples, double[] totals) {
+        this.numberOfSamples = numberOfSamples;
+        this.numberOfClasses = rows.size();
+
+        this.totals = (totals != null ? totals.clone() : new double[numberOfSamples]);
+        final int[] nonZero = new int[numberOfSamples];
+        for (float[] counts : rows) {
+            for (int s = 0; s < Math.min(numberOfSamples, counts.length); s++) {
+                if (totals == null)
+                    this.totals[s] += counts[s];
+                if (counts[s] != 0)
+                    nonZero[s]++;
+            }
+        }
+
+        indices = new int[numberOfSamples][];
+        values = new double[numberOfSamples][];
+        long totalNonZero = 0;
+        for (int s = 0; s < numberOfSamples; s++) {
+            indices[s] = new int[nonZero[s]];
+            values[s] = new double[nonZero[s]];
+            totalNonZero += nonZero[s];
+        }
+
+        final int[] next = new int[numberOfSamples];
+        for (int c = 0; c < rows.size(); c++) {
+            final float[] counts = rows.get(c);
+            for (int s = 0; s < Math.min(numberOfSamples, counts.length); s++) {
+                if (counts[s] != 0) {
+                    indices[s][next[s]] = c;
+                    values[s][next[s]++] = (this.totals[s] > 0 ? counts[s] / this.totals[s] : 0);
+                }
+            }
+        }
+
+        final long entries = (long) numberOfSamples * numberOfClasses;
+        if (entries > 0 && entries <= MAX_DENSE_ENTRIES && totalNonZero >= DENSE_THRESHOLD * entries) {
+            dense = new double[numberOfSamples][numberOfClasses];
+            for (int s = 0; s < numberOfSamples; s++) {
+                for (int i = 0; i < indices[s].length; i++)
+                    dense[s][indices[s][i]] = values[s][i];
+            }
+        }
+    }
+
+    /**
+     * create profiles from rows of counts
+     *
+     * @param rows            one row of counts per class, each row indexed by sample
+     * @param numberOfSamples
+     * @return profiles
+     */
+    public static SampleProfiles fromRows(List<float[]> rows, int numberOfSamples) {
+        return new SampleProfiles(rows, numberOfSamples, null);
+    }
+
+    /**
+     * create profiles from rows of counts, normalized by the given totals
+     *
+     * @param rows            one row of counts per class, each row indexed by sample
+     * @param numberOfSamples
+     * @param totals          total count of each sample
+     * @return profiles
+     */
+    public static SampleProfiles fromRows(List<float[]> rows, int numberOfSamples, double[] totals) {
+        return new SampleProfiles(rows, numberOfSamples, totals);
+    }
+
+    /**
+     * create profiles from the assigned counts of a classification in a data table
+     *
+     * @param table
+     * @param classification
+     * @param ignoreUnassigned ignore the classes that represent unassigned, no hits etc
+     * @return profiles
+     */
+    public static SampleProfiles fromDataTable(DataTable table, String classification, boolean ignoreUnassigned) {
+        final List<float[]> rows = new ArrayList<>();
+        final Map<Integer, float[]> class2counts = table.getClass2Counts(classification);
+        if (class2counts != null) {
+            for (Integer classId : new TreeSet<>(class2counts.keySet())) {
+                if (!ignoreUnassigned || classId > 0)
+                    rows.add(class2counts.get(classId));
+            }
+        }
+        return new SampleProfiles(rows, table.getNumberOfSamples(), null);
+    }
+
+    public int getNumberOfSamples() {
+        return numberOfSamples;
+    }
+
+    public int getNumberOfClasses() {
+        return numberOfClasses;
+    }
+
+    /**
+     * get the total count of a sample
+     *
+     * @param s
+     * @return total
+     */
+    public double getTotal(int s) {
+        return totals[s];
+    }
+
+    /**
+     * get the class indices of the non-zero entries of a sample, in increasing order
+     *
+     * @param s
+     * @return indices
+     */
+    public int[] getIndices(int s) {
+        return indices[s];
+    }
+
+    /**
+     * get the relative abundances of the non-zero entries of a sample
+     *
+     * @param s
+     * @return values
+     */
+    public double[] getValues(int s) {
+        return values[s];
+    }
+
+    /**
+     * is the dense representation available?
+     *
+     * @return true, if dense
+     */
+    public boolean isDense() {
+        return dense != null;
+    }
+
+    /**
+     * get the dense row of a sample
+     *
+     * @param s
+     * @return relative abundances of all classes, or null, if not dense
+     */
+    public double[] getDense(int s) {
+        return dense != null ? dense[s] : null;
+    }
+
+    /**
+     * get the relative abundance of a class in a sample
+     *
+     * @param s
+     * @param c
+     * @return value
+     */
+    public double get(int s, int c) {
+        if (dense != null)
+            return dense[s][c];
+        final int i = java.util.Arrays.binarySearch(indices[s], c);
+        return i >= 0 ? values[s][i] : 0;
+    }
+}
@@ -18,6 +18,7 @@
  */
 package megan.clusteranalysis.indices;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.graph.*;
 import jloda.phylo.PhyloTree;
 import jloda.util.Basic;
@@ -30,10 +31,16 @@ import megan.viewer.TaxonomicLevels;
 import megan.viewer.TaxonomyData;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * unweighted and weighted distance
- * Daniel Huson, 9.2012, 11.2017, 6.2018
+ * <p>
+ * The summarized counts of the used nodes are collected in a single pass over the induced tree. Unweighted distances are then
+ * obtained by counting the differing bits of per-sample presence bit sets, weighted distances by merging sparse per-sample profiles,
+ * both in parallel over tiles of sample pairs
+ * Daniel Huson, 9.2012, 11.2017, 6.2018, 10.2019
  */
 public class UniFrac {
     public final static String UnweightedUniformUniFrac = "UnweightedUniformUniFrac";
@@ -53,8 +60,6 @@ public class UniFrac {
 
         final int nTax = distances.getNtax();
 
-        int countNodesUsed = 0;
-
         final PhyloTree tree = viewer.getTree();
 
         final NodeSet inducedNodes = new NodeSet(tree);
@@ -66,33 +71,23 @@ public class UniFrac {
 
         removeRootNodeAndNodesOnPathLeadingToIt(tree.getRoot(), inducedNodes);
 
-        int[][] diff = new int[nTax][nTax];
-
         final ProgressListener progress = viewer.getDocument().getProgressListener();
         progress.setTasks("Computing", "Unweighted uniform UniFrac");
-        progress.setProgress(0);
-        progress.setMaximum(inducedNodes.size());
 
-        for (Node v : inducedNodes) {
-            final int taxonId = (Integer) v.getInfo();
-            if (taxonId > 0 && TaxonomicLevels.isMajorRank(TaxonomyData.getTaxonomicRank(taxonId)))  // only use proper nodes
-            {
-                countNodesUsed++;
-                final float[] counts = summarized.get(v);
-
-                for (int s = 0; s < nTax; s++) {
-                    for (int t = s + 1; t < nTax; t++) {
-                        if ((counts[s] >= threshold) != (counts[t] >= threshold))
-                            diff[s][t]++;
-                    }
-                }
+        final List<float[]> rows = getCountsOfProperNodes(inducedNodes, summarized);
+        final int countNodesUsed = rows.size();
+
+        final long[][] presence = new long[nTax][(countNodesUsed + 63) >>> 6];
+        for (int i = 0; i < countNodesUsed; i++) {
+            final float[] counts = rows.get(i);
+            for (int s = 0; s < nTax; s++) {
+                if (counts[s] >= threshold)
+                    presence[s][i >>> 6] |= (1L << (i & 63));
             }
-            progress.incrementProgress();
         }
-        for (int s = 0; s < nTax; s++) {
-            for (int t = s + 1; t < nTax; t++) {
-                distances.set(s + 1, t + 1, (countNodesUsed > 0 ? (double) diff[s][t] / (double) countNodesUsed : 0));
-            }
+
+        try (DistanceEngine engine = new DistanceEngine(ProgramExecutorService.getNumberOfCoresToUse())) {
+            engine.applyUnweightedUniFrac(presence, countNodesUsed, distances.getMatrix(), progress);
         }
 
         System.err.println("Nodes used: " + countNodesUsed);
@@ -114,8 +109,6 @@ public class UniFrac {
 
         final int nTax = distances.getNtax();
 
-        int countNodesUsed = 0;
-
         final PhyloTree tree = viewer.getTree();
 
         final NodeSet inducedNodes = new NodeSet(tree);
@@ -127,8 +120,6 @@ public class UniFrac {
 
         final ProgressListener progress = viewer.getDocument().getProgressListener();
         progress.setTasks("Computing", "Weighted uniform UniFrac");
-        progress.setProgress(0);
-        progress.setMaximum(2 * inducedNodes.size());
 
         final Node root = removeRootNodeAndNodesOnPathLeadingToIt(tree.getRoot(), inducedNodes);
 
@@ -144,34 +135,30 @@ public class UniFrac {
             }
         }
 
-        final double[][] diff = new double[nTax][nTax]; // difference between two samples
-        final double[][] sum = new double[nTax][nTax]; // largest possible difference between two samples
+        final List<float[]> rows = getCountsOfProperNodes(inducedNodes, summarized); // total number of reads that "descend" from each node
+        final int countNodesUsed = rows.size();
+
+        try (DistanceEngine engine = new DistanceEngine(ProgramExecutorService.getNumberOfCoresToUse())) {
+            engine.applyWeightedUniFrac(SampleProfiles.fromRows(rows, nTax, total), distances.getMatrix(), progress);
+        }
+        return countNodesUsed;
+    }
 
+    /**
+     * get the summarized counts of all proper nodes, that is, nodes that represent a taxon of major rank
+     *
+     * @param inducedNodes
+     * @param summarized
+     * @return summarized counts, in order of the induced nodes
+     */
+    private static List<float[]> getCountsOfProperNodes(NodeSet inducedNodes, NodeArray<float[]> summarized) {
+        final List<float[]> rows = new ArrayList<>();
         for (Node v : inducedNodes) {
             final int taxonId = (Integer) v.getInfo();
             if (taxonId > 0 && TaxonomicLevels.isMajorRank(TaxonomyData.getTaxonomicRank(taxonId)))  // only use proper nodes
-            {
-                countNodesUsed++;
-                final float[] count = summarized.get(v); // total number of reads that "descend" from node v
-                for (int s = 0; s < nTax; s++) {
-                    final double p = (total[s] > 0 ? count[s] / total[s] : 0);
-                    for (int t = s + 1; t < nTax; t++) {
-                        final double q = (total[t] > 0 ? count[t] / total[t] : 0);
-
-                        diff[s][t] += Math.abs(p - q); // normalized differences between datasets
-                        sum[s][t] += (p + q);
-                    }
-                }
-            }
-            progress.incrementProgress();
-        }
-
-        for (int s = 0; s < nTax; s++) {
-            for (int t = s + 1; t < nTax; t++) {
-                distances.set(s + 1, t + 1, (sum[s][t] > 0 ? diff[s][t] / sum[s][t] : 0));
-            }
+                rows.add(summarized.get(v));
         }
-        return countNodesUsed;
+        return rows;
     }
 
     /**
@@ -19,11 +19,15 @@
 package megan.clusteranalysis.nnet;
 
 
+import jloda.fx.util.ProgramExecutorService;
 import megan.clusteranalysis.tree.Distances;
 
+import java.io.Closeable;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Given a circular ordering and a distance matrix,
@@ -38,11 +42,54 @@ import java.util.BitSet;
  * <p/>
  * <p/>
  * x[i][j] is the split {i+1,i+2,...,j} | -------
+ * <p/>
+ * In this ordering, the pairs (i,i+1),...,(i,n-1) of row i are contiguous and followed by row i+1. The kernels that compute
+ * Ab and A^tx traverse the vectors row by row and compute all row sums in one pass, with blocks of rows summed in parallel.
+ * The sums are accumulated in the same order as before, so the results do not depend on the number of threads.
+ * Daniel Huson, 10.2019
  */
-class CircularSplitWeights {
+class CircularSplitWeights implements Closeable {
     /* Epsilon constant for the conjugate gradient algorithm */
     private static final double CG_EPSILON = 0.0001;
 
+    /* Minimum number of pairs for which row sums are computed in parallel */
+    private static final int MIN_PAIRS_FOR_PARALLEL = 50000;
+    /* Minimum number of rows per block of row sums */
+    private static final int MIN_ROWS_PER_BLOCK = 32;
+
+    private final int n;
+    private final int[] rowStart; // index of (i,i+1)
+    private final double[] sums;
+    private final int[] blockStart;
+    private final ExecutorService service;
+
+    /**
+     * constructor
+     *
+     * @param n               number of taxa
+     * @param numberOfThreads
+     */
+    private CircularSplitWeights(int n, int numberOfThreads) {
+        this.n = n;
+        rowStart = new int[n];
+        for (int i = 1; i < n; i++)
+            rowStart[i] = rowStart[i - 1] + (n - i);
+        sums = new double[n];
+
+        final long npairs = (long) n * (n - 1) / 2;
+        final int numberOfBlocks = (npairs < MIN_PAIRS_FOR_PARALLEL ? 1 : Math.max(1, Math.min(4 * numberOfThreads, n / MIN_ROWS_PER_BLOCK)));
+        blockStart = new int[numberOfBlocks + 1];
+        for (int b = 0; b <= numberOfBlocks; b++)
+            blockStart[b] = (int) ((long) b * n / numberOfBlocks);
+        service = (numberOfBlocks > 1 && numberOfThreads > 1 ? ProgramExecutorService.createServiceForParallelAlgorithm(numberOfThreads) : null);
+    }
+
+    @Override
+    public void close() {
+        if (service != null)
+            service.shutdownNow();
+    }
+
 
     /**
      * Create the set of all circular splits for a given ordering
@@ -74,6 +121,22 @@ class CircularSplitWeights {
 
     static public SplitSystem getWeightedSplits(int[] ordering,
                                                 Distances dist, String var, boolean constrained, double cutoff) {
+        return getWeightedSplits(ordering, dist, var, constrained, cutoff, ProgramExecutorService.getNumberOfCoresToUse());
+    }
+
+    /**
+     * compute the least squares weighted circular splits for the given ordering
+     *
+     * @param ordering        circular ordering
+     * @param dist            distances
+     * @param var             variance, ols, fm1 or fm2
+     * @param constrained     require non-negative weights?
+     * @param cutoff          only report splits with weight above this
+     * @param numberOfThreads
+     * @return splits
+     */
+    static public SplitSystem getWeightedSplits(int[] ordering,
+                                                Distances dist, String var, boolean constrained, double cutoff, int numberOfThreads) {
         int ntax = dist.getNtax();
         int npairs = (ntax * (ntax - 1)) / 2;
 
@@ -111,7 +174,9 @@ class CircularSplitWeights {
                     W[k] = 1.0 / v[k];
             }
             /* Find the constrained optimal values for x */
-            runActiveConjugate(ntax, d, W, x);
+            try (CircularSplitWeights weights = new CircularSplitWeights(ntax, numberOfThreads)) {
+                weights.runActiveConjugate(ntax, d, W, x);
+            }
         }
 
         /* Construct the splits with the appropriate weights */
@@ -291,7 +356,7 @@ class CircularSplitWeights {
      * @param W    the weight matrix
      * @param x    the split weights
      */
-    static private void runActiveConjugate(int ntax, double[] d, double[] W, double[] x) {
+    private void runActiveConjugate(int ntax, double[] d, double[] W, double[] x) {
         final boolean collapse_many_negs = true;
 
         int npairs = d.length;
@@ -326,14 +391,19 @@ class CircularSplitWeights {
         double[] AtWd = new double[npairs];
         for (int k = 0; k < npairs; k++)
             y[k] = W[k] * d[k];
-        CircularSplitWeights.calculateAtx(ntax, y, AtWd);
+        calculateAtx(ntax, y, AtWd);
+
+        /* AtWAx computed for the gradient, reused by the next call of the conjugate gradient algorithm, as x doesn't change */
+        double[] AtWAx = new double[npairs];
+        boolean reuseAtWAx = false;
 
         boolean first_pass = true; //This is the first time through the loops.
         while (true) {
             while (true) /* Inner loop: find the next feasible optimum */ {
                 if (!first_pass)  /* The first time through we use the unconstrained branch lengths */
-                    CircularSplitWeights.circularConjugateGrads(ntax, npairs, r, w, p, y, W, AtWd, active, x);
+                    circularConjugateGrads(ntax, npairs, r, w, p, y, W, AtWd, active, x, reuseAtWAx ? AtWAx : null);
                 first_pass = false;
+                reuseAtWAx = false;
 
                 /* Typically, a large number of edges are negative, so on the first
                                                 pass of the algorithm we add the worst 60% to the active set */
@@ -344,7 +414,7 @@ class CircularSplitWeights {
                         x[index] = 0.0;
                         active[index] = true;
                     }
-                    CircularSplitWeights.circularConjugateGrads(ntax, npairs, r, w, p, y, W, AtWd, active, x); /* Re-optimise, so that the current x is always optimal */
+                    circularConjugateGrads(ntax, npairs, r, w, p, y, W, AtWd, active, x, null); /* Re-optimise, so that the current x is always optimal */
                 }
                 int min_i = -1;
                 double min_xi = -1.0;
@@ -375,7 +445,7 @@ class CircularSplitWeights {
             calculateAb(ntax, x, y);
             for (int i = 0; i < npairs; i++)
                 y[i] *= W[i];
-            calculateAtx(ntax, y, r); /* r = AtWAx */
+            calculateAtx(ntax, y, AtWAx);
 
             /* We check to see that we are at a constrained minimum.... that is that the gradient is positive for
              * all i,j in the active set.
@@ -383,7 +453,7 @@ class CircularSplitWeights {
             int min_i = -1;
             double min_grad = 1.0;
             for (int i = 0; i < npairs; i++) {
-                r[i] -= AtWd[i];
+                r[i] = AtWAx[i] - AtWd[i];
                 r[i] *= 2.0;
                 if (active[i]) {
                     double grad_ij = r[i];
@@ -397,37 +467,44 @@ class CircularSplitWeights {
 
             if ((min_i == -1) || (min_grad > -0.0001))
                 return; /* We have arrived at the constrained optimum */
-            else
+            else {
                 active[min_i] = false;
+                reuseAtWAx = true;
+            }
 
         }
     }
 
-    /* Compute the row sum in d. */
-
-    static private double rowsum(int n, double[] d, int k) {
-        double r = 0;
-        int index = 0;
-
-        if (k > 0) {
-            index = k - 1;     //The index for (0,k)
-
-            //First sum the pairs (i,k) for i<k
-            for (int i = 0; i < k; i++) {
-                r += d[index];
-                index += (n - i - 2);
+    /**
+     * Computes the row sums of d, that is, for each k, the sum over all pairs (i,k) and (k,j). The values of each sum are
+     * accumulated in the order (0,k),(1,k),...,(k-1,k),(k,k+1),...,(k,n-1). Blocks of rows are processed in parallel
+     *
+     * @param d    vector indexed by pairs
+     * @param sums the result
+     */
+    private void calculateRowSums(double[] d, double[] sums) {
+        runOnBlocks(b -> {
+            final int k0 = blockStart[b];
+            final int k1 = blockStart[b + 1];
+            for (int k = k0; k < k1; k++)
+                sums[k] = 0.0;
+            // the pairs (i,k) for i<k, one row at a time:
+            for (int i = 0; i < k1 - 1; i++) {
+                final int offset = rowStart[i] - (i + 1); // index of (i,j) is offset+j
+                for (int k = Math.max(k0, i + 1); k < k1; k++)
+                    sums[k] += d[offset + k];
             }
-            index++;
-        }
-        //we now have index = (k,k+1)
-        //Now sum the pairs (k,j) for k<j
-        for (int j = k + 1; j < n; j++)
-            r += d[index++];
-
-        return r;
+            // the pairs (k,j) for k<j:
+            for (int k = k0; k < k1; k++) {
+                final int offset = rowStart[k] - (k + 1);
+                double sum = sums[k];
+                for (int j = k + 1; j < n; j++)
+                    sum += d[offset + j];
+                sums[k] = sum;
+            }
+        });
     }
 
-
     /**
      * Computes p = A^Td, where A is the topological matrix for the
      * splits with circular ordering 0,1,2,....,ntax-1
@@ -437,36 +514,16 @@ class CircularSplitWeights {
      * @param d distance matrix
      * @param p the result
      */
-    static private void calculateAtx(int n, double[] d, double[] p) {
-
-//First the trivial splits
-        int index = 0;
-        for (int i = 0; i < n - 1; i++) {
-            p[index] = rowsum(n, d, i + 1);
-            index += (n - i - 1);
-        }
-
-        //Now the splits separating out two.
-        index = 1;
-        for (int i = 0; i < n - 2; i++) {
-            //index = (i,i+2)
-
-            //p[i][i+2] = p[i][i+1] + p[i + 1][i + 2] - 2 * d[i + 1][i + 2];
-            p[index] = p[index - 1] + p[index + (n - i - 2)] - 2 * d[index + (n - i - 2)];
-            index += (n - i - 2) + 1;
-        }
-
-        //Now the remaining splits
-        for (int k = 3; k <= n - 1; k++) {
-            index = k - 1;
-            for (int i = 0; i <= n - k - 1; i++) {
-                //index = (i,i+k)
-
-                // p[i][j] = p[i][j - 1] + p[i+1][j] - p[i+1][j - 1] - 2.0 * d[i+1][j];
-                p[index] = p[index - 1] + p[index + n - i - 2] - p[index + n - i - 3] - 2.0 * d[index + n - i - 2];
-                index += (n - i - 2) + 1;
-            }
-        }
+    private void calculateAtx(int n, double[] d, double[] p) {
+        //First the trivial splits
+        calculateRowSums(d, sums);
+        for (int i = 0; i < n - 1; i++)
+            p[rowStart[i]] = sums[i + 1];
+
+        // Now the remaining splits
+        // p[i][i+2] = p[i][i+1] + p[i + 1][i + 2] - 2 * d[i + 1][i + 2];
+        // p[i][j] = p[i][j - 1] + p[i+1][j] - p[i+1][j - 1] - 2.0 * d[i+1][j];
+        calculateRemaining(d, p, true);
     }
 
     /**
@@ -477,51 +534,86 @@ class CircularSplitWeights {
      * @param b split weights
      * @param d pairwise distances from split weights
      */
-    static private void calculateAb(int n, double[] b, double[] d) {
-        double d_ij;
-
-        //First the pairs distance one apart.
-        int index;
-        int dindex = 0;
-
-        for (int i = 0; i <= n - 2; i++) {
-            d_ij = 0.0;
-            //Sum over splits (k,i) 0<=k<i.
-            index = i - 1;  //(0,i)
-            for (int k = 0; k <= i - 1; k++) {
-                d_ij += b[index];  //(k,i)
-                index += (n - k - 2);
-            }
-            index++;
-            //index = (i,i+1)
-            for (int k = i + 1; k <= n - 1; k++)  //sum over splits (i,k)  i+1<=k<=n-1
-                d_ij += b[index++];
-
-            d[dindex] = d_ij;
-            dindex += (n - i - 2) + 1;
-        }
-
-        //Distances two apart.
-        index = 1; //(0,2)
-        for (int i = 0; i <= n - 3; i++) {
-//            d[i ][i+2] = d[i ][i+1] + d[i + 1][i + 2] - 2 * b[i][i+1];
+    private void calculateAb(int n, double[] b, double[] d) {
+        //First the pairs distance one apart, sum over splits (k,i) 0<=k<i and (i,k) i+1<=k<=n-1
+        calculateRowSums(b, sums);
+        for (int i = 0; i <= n - 2; i++)
+            d[rowStart[i]] = sums[i];
+
+        // Now the remaining pairs
+        // d[i ][i+2] = d[i ][i+1] + d[i + 1][i + 2] - 2 * b[i][i+1];
+        // d[i][j] = d[i][j - 1] + d[i+1][j] - d[i+1][j - 1] - 2.0 * b[i][j - 1];
+        calculateRemaining(b, d, false);
+    }
 
-            d[index] = d[index - 1] + d[index + (n - i - 2)] - 2 * b[index - 1];
-            index += 1 + (n - i - 2);
+    /**
+     * Computes the entries (i,j), j>i+1, of the recurrence used by A^tx and Ab, given the entries (i,i+1).
+     * Row i depends on row i+1 and on the previous entry of row i, so rows are processed from the last to the first, two at a
+     * time, to allow two chains of additions to be evaluated at the same time
+     *
+     * @param in    input vector
+     * @param out   output vector
+     * @param below use input (i+1,j) for (i,j), as for A^tx. Otherwise use input (i,j-1), as for Ab
+     */
+    private void calculateRemaining(double[] in, double[] out, boolean below) {
+        for (int i = n - 3; i >= 0; i -= 2) {
+            final int a = rowStart[i] - (i + 1); // (i,j) is at a+j
+            final int b = rowStart[i + 1] - (i + 2); // (i+1,j) is at b+j
+
+            out[a + i + 2] = out[a + i + 1] + out[b + i + 2] - 2 * in[below ? b + i + 2 : a + i + 1];
+            if (i == 0) {
+                for (int j = i + 3; j < n; j++)
+                    out[a + j] = out[a + j - 1] + out[b + j] - out[b + j - 1] - 2.0 * in[below ? b + j : a + j - 1];
+            } else {
+                final int c = rowStart[i - 1] - i; // (i-1,j) is at c+j
+                out[c + i + 1] = out[c + i] + out[a + i + 1] - 2 * in[below ? a + i + 1 : c + i];
+                out[c + i + 2] = out[c + i + 1] + out[a + i + 2] - out[a + i + 1] - 2.0 * in[below ? a + i + 2 : c + i + 1];
+                if (below) {
+                    for (int j = i + 3; j < n; j++) {
+                        out[a + j] = out[a + j - 1] + out[b + j] - out[b + j - 1] - 2.0 * in[b + j];
+                        out[c + j] = out[c + j - 1] + out[a + j] - out[a + j - 1] - 2.0 * in[a + j];
+                    }
+                } else {
+                    for (int j = i + 3; j < n; j++) {
+                        out[a + j] = out[a + j - 1] + out[b + j] - out[b + j - 1] - 2.0 * in[a + j - 1];
+                        out[c + j] = out[c + j - 1] + out[a + j] - out[a + j - 1] - 2.0 * in[c + j - 1];
+                    }
+                }
+            }
         }
+    }
 
-
-        for (int k = 3; k <= n - 1; k++) {
-            index = k - 1;
-            for (int i = 0; i <= n - k - 1; i++) {
-                //int j = i + k;
-                //d[i][j] = d[i][j - 1] + d[i+1][j] - d[i+1][j - 1] - 2.0 * b[i][j - 1];
-                d[index] = d[index - 1] + d[index + (n - i - 2)] - d[index + (n - i - 2) - 1] - 2.0 * b[index - 1];
-                index += 1 + (n - i - 2);
+    /**
+     * run the task for each block of rows, in parallel, if more than one block
+     */
+    private void runOnBlocks(BlockTask task) {
+        final int numberOfBlocks = blockStart.length - 1;
+        if (service == null) {
+            for (int b = 0; b < numberOfBlocks; b++)
+                task.apply(b);
+        } else {
+            final CountDownLatch countDownLatch = new CountDownLatch(numberOfBlocks);
+            for (int b = 0; b < numberOfBlocks; b++) {
+                final int block = b;
+                service.submit(() -> {
+                    try {
+                        task.apply(block);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
+            try {
+                countDownLatch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
         }
     }
 
+    private interface BlockTask {
+        void apply(int block);
+    }
 
     /**
      * Computes sum of squares of the lower triangle of the matrix x
@@ -557,27 +649,32 @@ class CircularSplitWeights {
      * @param b      the b matrix
      * @param active the active constraints
      * @param x      the x matrix
+     * @param AtWAx  AtWAx for the given x, if already known, or null
      */
-    static private void circularConjugateGrads(int ntax, int npairs,
-                                               double[] r, double[] w, double[] p, double[] y,
-                                               double[] W, double[] b,
-                                               boolean[] active, double[] x) {
+    private void circularConjugateGrads(int ntax, int npairs,
+                                        double[] r, double[] w, double[] p, double[] y,
+                                        double[] W, double[] b,
+                                        boolean[] active, double[] x, double[] AtWAx) {
         int kmax = ntax * (ntax - 1) / 2;
         /* Maximum number of iterations of the cg algorithm (probably too many) */
 
-        calculateAb(ntax, x, y);
+        if (AtWAx == null) {
+            calculateAb(ntax, x, y);
 
-        for (int k = 0; k < npairs; k++)
-            y[k] = W[k] * y[k];
-        calculateAtx(ntax, y, r); /*r = AtWAx */
+            for (int k = 0; k < npairs; k++)
+                y[k] = W[k] * y[k];
+            calculateAtx(ntax, y, r); /*r = AtWAx */
+        } else
+            System.arraycopy(AtWAx, 0, r, 0, npairs);
 
-        for (int k = 0; k < npairs; k++)
+        double rho = 0.0; // norm(r)
+        for (int k = 0; k < npairs; k++) {
             if (!active[k])
                 r[k] = b[k] - r[k];
             else
                 r[k] = 0.0;
-
-        double rho = norm(r);
+            rho += r[k] * r[k];
+        }
         double rho_old = 0;
 
         double e_0 = CG_EPSILON * Math.sqrt(norm(b));
@@ -602,22 +699,22 @@ class CircularSplitWeights {
                 y[i] *= W[i];
 
             calculateAtx(ntax, y, w); /*w = AtWAp */
-            for (int i = 0; i < npairs; i++)
+            double alpha = 0.0;
+            for (int i = 0; i < npairs; i++) {
                 if (active[i])
                     w[i] = 0.0;
-
-            double alpha = 0.0;
-            for (int i = 0; i < npairs; i++)
                 alpha += p[i] * w[i];
+            }
             alpha = rho / alpha;
 
             /* Update x and the residual, r */
+            rho_old = rho;
+            rho = 0.0; // norm(r)
             for (int i = 0; i < npairs; i++) {
                 x[i] += alpha * p[i];
                 r[i] -= alpha * w[i];
+                rho += r[i] * r[i];
             }
-            rho_old = rho;
-            rho = norm(r);
         }
     }
 }
@@ -18,21 +18,31 @@
  */
 package megan.clusteranalysis.nnet;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.util.CanceledException;
 import jloda.util.ProgressListener;
 import megan.clusteranalysis.tree.Distances;
 import megan.clusteranalysis.tree.Taxa;
 
-import java.util.Objects;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 
 /**
  * computes a cycle for the given splits using NeighborNet
- * Daniel Huson and Dave Bryant, 9.2007
+ * <p>
+ * Nodes are represented by their ids and stored in primitive arrays. The distance matrix only has rows for the active nodes,
+ * as two new nodes reuse the rows of two of the three nodes that they replace. The sums of distances and the search for the
+ * closest pair of clusters are distributed over threads, using the same order of summation and tie-breaking as before
+ * Daniel Huson and Dave Bryant, 9.2007, 10.2019
  */
 public class NeighborNet {
+    /* Minimum number of clusters per thread */
+    private static final int MIN_CLUSTERS_PER_THREAD = 100;
+
     private int[] ordering;
+    private int numberOfThreads = ProgramExecutorService.getNumberOfCoresToUse();
 
     /**
      * run neighbor-net
@@ -47,11 +57,11 @@ public class NeighborNet {
         progressListener.setTasks("Computing non-hierarchical clustering using", "Neighbor-Net");
         ordering = new int[taxa.size() + 1];
         if (taxa.size() > 3)
-            runNeighborNet(progressListener, taxa.size(), setupMatrix(distances), ordering);
+            runNeighborNet(progressListener, taxa.size(), distances, ordering);
         else
             return new SplitSystem();
 
-        return CircularSplitWeights.getWeightedSplits(ordering, distances, "ols", true, 0.0001f);
+        return CircularSplitWeights.getWeightedSplits(ordering, distances, "ols", true, 0.0001f, numberOfThreads);
     }
 
     /**
@@ -61,430 +71,511 @@ public class NeighborNet {
         return ordering;
     }
 
-    /**
-     * Sets up the working matrix. The original distance matrix is enlarged to
-     * handle the maximum number of nodes
-     *
-     * @param dist Distance block
-     * @return a working matrix of appropriate cardinality
-     */
-    private static double[][] setupMatrix(Distances dist) {
-        int ntax = dist.getNtax();
-        int max_num_nodes = Math.max(3, 3 * ntax - 5);
-        double[][] D = new double[max_num_nodes][max_num_nodes];
-        /* Copy the distance matrix into a larger, scratch distance matrix */
-        for (int i = 1; i <= ntax; i++) {
-            for (int j = 1; j <= ntax; j++)
-                D[i][j] = dist.get(i, j);
-        }
-        return D;
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
     }
 
     /**
      * Run the neighbor net algorithm
      */
-    private void runNeighborNet(ProgressListener progressListener, int ntax, double[][] D, int[] ordering) throws CanceledException {
-        NetNode netNodes = new NetNode();
-
-        /* Nodes are stored in a doubly linked list that we set up here */
-        for (int i = ntax; i >= 1; i--) /* Initially, all singleton nodes are active */ {
-            NetNode taxNode = new NetNode();
-            taxNode.id = i;
-            taxNode.next = netNodes.next;
-            netNodes.next = taxNode;
+    private void runNeighborNet(ProgressListener progressListener, int ntax, Distances distances, int[] ordering) throws CanceledException {
+        final int threads = Math.max(1, Math.min(numberOfThreads, ntax / MIN_CLUSTERS_PER_THREAD));
+        final ExecutorService service = (threads > 1 ? ProgramExecutorService.createServiceForParallelAlgorithm(threads) : null);
+        try {
+            final NetNodes netNodes = new NetNodes(ntax, distances, service, threads);
+            netNodes.agglomNodes(progressListener);
+            netNodes.expandNodes(progressListener, ordering);
+        } finally {
+            if (service != null)
+                service.shutdownNow();
         }
-
-        for (NetNode taxNode = netNodes; taxNode.next != null; taxNode = taxNode.next)
-            /* Set up links in other direction */
-            taxNode.next.prev = taxNode;
-
-        /* Perform the agglomeration step */
-        Stack amalgs = new Stack();
-        int num_nodes = ntax;
-        num_nodes = agglomNodes(progressListener, amalgs, D, netNodes, num_nodes);
-        expandNodes(progressListener, num_nodes, ntax, amalgs, netNodes, ordering);
     }
 
     /**
-     * Agglomerates the nodes
+     * the nodes of the net, stored in arrays indexed by node id. Id 0 is the head of the list of active nodes, ids 1..ntax are the taxa
      */
-    private int agglomNodes(ProgressListener progressListener, Stack amalgs, double[][] D, NetNode netNodes, int num_nodes) throws CanceledException {
-        //System.err.println("agglomNodes");
-
-        NetNode p, q, Cx, Cy, x, y;
-        double Qpq, best;
-        int num_active = num_nodes;
-        int num_clusters = num_nodes;
-        int m;
-        double Dpq;
-
-        while (num_active > 3) {
-
-            /* Special case
-            If we let this one go then we get a divide by zero when computing Qpq */
-            if (num_active == 4 && num_clusters == 2) {
-                p = netNodes.next;
-                if (p.next != p.nbr)
-                    q = p.next;
-                else
-                    q = p.next.next;
-                if (D[p.id][q.id] + D[p.nbr.id][q.nbr.id] < D[p.id][q.nbr.id] + D[p.nbr.id][q.id]) {
-                    agg3way(p, q, q.nbr, amalgs, D, netNodes, num_nodes);
-                    num_nodes += 2;
-                } else {
-                    agg3way(p, q.nbr, q, amalgs, D, netNodes, num_nodes);
-                    num_nodes += 2;
-                }
-                break;
+    private static class NetNodes {
+        private static final int NONE = -1;
+
+        private final ExecutorService service;
+        private final int numberOfThreads;
+
+        private final int[] nbr; // adjacent node
+        private final int[] ch1; // first child
+        private final int[] ch2; // second child
+        private final int[] next; // next in list of active nodes
+        private final int[] prev; // prev in list of active nodes
+        private final int[] row; // row of distance matrix
+        private final double[] Rx;
+        private final double[][] D;
+
+        /* The clusters, represented by the node of smaller id, in the order of the list, with the rows of their nodes and their Sx values */
+        private final int[] clusters;
+        private final int[] clusterRow;
+        private final int[] clusterNbrRow;
+        private final double[] Sx;
+        private int numberOfClusters;
+
+        private final int[] amalgs; // stack of amalgamations
+        private int numberOfAmalgs = 0;
+
+        private int num_nodes;
+
+        /**
+         * constructor
+         */
+        NetNodes(int ntax, Distances dist, ExecutorService service, int numberOfThreads) {
+            this.service = service;
+            this.numberOfThreads = numberOfThreads;
+
+            final int max_num_nodes = Math.max(3, 3 * ntax - 5) + 1;
+            nbr = new int[max_num_nodes];
+            ch1 = new int[max_num_nodes];
+            ch2 = new int[max_num_nodes];
+            next = new int[max_num_nodes];
+            prev = new int[max_num_nodes];
+            row = new int[max_num_nodes];
+            Rx = new double[max_num_nodes];
+            clusters = new int[ntax];
+            clusterRow = new int[ntax];
+            clusterNbrRow = new int[ntax];
+            Sx = new double[ntax];
+            amalgs = new int[max_num_nodes];
+            Arrays.fill(nbr, NONE);
+            Arrays.fill(ch1, NONE);
+            Arrays.fill(ch2, NONE);
+            Arrays.fill(next, NONE);
+            Arrays.fill(prev, NONE);
+
+            /* Copy the distance matrix into the working distance matrix */
+            D = new double[ntax + 1][ntax + 1];
+            for (int i = 1; i <= ntax; i++) {
+                for (int j = 1; j <= ntax; j++)
+                    D[i][j] = dist.get(i, j);
             }
 
-            /* Compute the "averaged" sums s_i from each cluster to every other cluster.
-
-      To Do: 2x speedup by using symmetry*/
-
-            for (p = netNodes.next; p != null; p = p.next)
-                p.Sx = 0.0;
-            for (p = netNodes.next; p != null; p = p.next) {
-                if (p.nbr == null || p.nbr.id > p.id) {
-                    for (q = p.next; q != null; q = q.next) {
-                        if (q.nbr == null || (q.nbr.id > q.id) && (q.nbr != p)) {
-                            if ((p.nbr == null) && (q.nbr == null))
-                                Dpq = D[p.id][q.id];
-                            else if ((p.nbr != null) && (q.nbr == null))
-                                Dpq = (D[p.id][q.id] + D[p.nbr.id][q.id]) / 2.0;
-                            else if (p.nbr == null)
-                                Dpq = (D[p.id][q.id] + D[p.id][q.nbr.id]) / 2.0;
-                            else
-                                Dpq = (D[p.id][q.id] + D[p.id][q.nbr.id] + D[p.nbr.id][q.id] + D[p.nbr.id][q.nbr.id]) / 4.0;
-
-                            p.Sx += Dpq;
-                            if (p.nbr != null)
-                                p.nbr.Sx += Dpq;
-                            q.Sx += Dpq;
-                            if (q.nbr != null)
-                                q.nbr.Sx += Dpq;
-                        }
-                    }
-                    if (progressListener != null)
-                        progressListener.checkForCancel();
-                }
+            /* Nodes are stored in a doubly linked list that we set up here. Initially, all singleton nodes are active */
+            for (int i = 0; i <= ntax; i++) {
+                row[i] = i;
+                next[i] = (i < ntax ? i + 1 : NONE);
+                prev[i] = (i > 0 ? i - 1 : NONE);
             }
+            num_nodes = ntax;
+        }
 
-            Cx = Cy = null;
-            /* Now minimize (m-2) D[C_i,C_k] - Sx - Sy */
-            best = 0;
-            for (p = netNodes.next; p != null; p = p.next) {
-                if ((p.nbr != null) && (p.nbr.id < p.id)) /* We only evaluate one node per cluster */
-                    continue;
-                for (q = netNodes.next; q != p; q = q.next) {
-                    if ((q.nbr != null) && (q.nbr.id < q.id)) /* We only evaluate one node per cluster */
-                        continue;
-                    if (q.nbr == p) /* We only evaluate nodes in different clusters */
-                        continue;
-                    if ((p.nbr == null) && (q.nbr == null))
-                        Dpq = D[p.id][q.id];
-                    else if ((p.nbr != null) && (q.nbr == null))
-                        Dpq = (D[p.id][q.id] + D[p.nbr.id][q.id]) / 2.0;
-                    else if (p.nbr == null)
-                        Dpq = (D[p.id][q.id] + D[p.id][q.nbr.id]) / 2.0;
+        /**
+         * Agglomerates the nodes
+         */
+        void agglomNodes(ProgressListener progressListener) throws CanceledException {
+            int num_active = num_nodes;
+            int num_clusters = num_nodes;
+
+            while (num_active > 3) {
+                /* Special case
+                If we let this one go then we get a divide by zero when computing Qpq */
+                if (num_active == 4 && num_clusters == 2) {
+                    final int p = next[0];
+                    final int q;
+                    if (next[p] != nbr[p])
+                        q = next[p];
                     else
-                        Dpq = (D[p.id][q.id] + D[p.id][q.nbr.id] + D[p.nbr.id][q.id] + D[p.nbr.id][q.nbr.id]) / 4.0;
-                    Qpq = ((double) num_clusters - 2.0) * Dpq - p.Sx - q.Sx;
-                    /* Check if this is the best so far */
-                    if ((Cx == null || (Qpq < best)) && (p.nbr != q)) {
-                        Cx = p;
-                        Cy = q;
-                        best = Qpq;
+                        q = next[next[p]];
+                    if (d(p, q) + d(nbr[p], nbr[q]) < d(p, nbr[q]) + d(nbr[p], q)) {
+                        agg3way(p, q, nbr[q]);
+                    } else {
+                        agg3way(p, nbr[q], q);
                     }
+                    break;
                 }
-            }
 
-            /* Find the node in each cluster */
-            x = Cx;
-            y = Cy;
-
-            if (Objects.requireNonNull(Cx).nbr != null || Objects.requireNonNull(Cy).nbr != null) {
-                Cx.Rx = ComputeRx(Cx, Cx, Cy, D, netNodes);
-                if (Cx.nbr != null)
-                    Cx.nbr.Rx = ComputeRx(Cx.nbr, Cx, Cy, D, netNodes);
-                Objects.requireNonNull(Cy).Rx = ComputeRx(Cy, Cx, Cy, D, netNodes);
-                if (Cy.nbr != null)
-                    Cy.nbr.Rx = ComputeRx(Cy.nbr, Cx, Cy, D, netNodes);
-            }
+                /* The clusters, represented by the node of smaller id, in the order of the list */
+                numberOfClusters = 0;
+                for (int p = next[0]; p != NONE; p = next[p]) {
+                    if (nbr[p] == NONE || nbr[p] > p) {
+                        clusters[numberOfClusters] = p;
+                        clusterRow[numberOfClusters] = row[p];
+                        clusterNbrRow[numberOfClusters++] = (nbr[p] != NONE ? row[nbr[p]] : NONE);
+                    }
+                }
 
-            m = num_clusters;
-            if (Cx.nbr != null)
-                m++;
-            if (Cy.nbr != null)
-                m++;
-
-            best = ((double) m - 2.0) * D[Cx.id][Cy.id] - Cx.Rx - Cy.Rx;
-            if (Cx.nbr != null) {
-                Qpq = ((double) m - 2.0) * D[Cx.nbr.id][Cy.id] - Cx.nbr.Rx - Cy.Rx;
-                if (Qpq < best) {
-                    x = Cx.nbr;
-                    y = Cy;
-                    best = Qpq;
+                /* Compute the "averaged" sums s_i from each cluster to every other cluster */
+                computeSx();
+                if (progressListener != null)
+                    progressListener.checkForCancel();
+
+                /* Now minimize (m-2) D[C_i,C_k] - Sx - Sy */
+                final long bestPair = findBestPair(num_clusters);
+                final int Cx = clusters[(int) (bestPair >>> 32)];
+                final int Cy = clusters[(int) bestPair];
+
+                /* Find the node in each cluster */
+                int x = Cx;
+                int y = Cy;
+
+                if (nbr[Cx] != NONE || nbr[Cy] != NONE) {
+                    Rx[Cx] = computeRx(Cx, Cx, Cy);
+                    if (nbr[Cx] != NONE)
+                        Rx[nbr[Cx]] = computeRx(nbr[Cx], Cx, Cy);
+                    Rx[Cy] = computeRx(Cy, Cx, Cy);
+                    if (nbr[Cy] != NONE)
+                        Rx[nbr[Cy]] = computeRx(nbr[Cy], Cx, Cy);
                 }
-            }
-            if (Cy.nbr != null) {
-                Qpq = ((double) m - 2.0) * D[Cx.id][Cy.nbr.id] - Cx.Rx - Cy.nbr.Rx;
-                if (Qpq < best) {
-                    x = Cx;
-                    y = Cy.nbr;
-                    best = Qpq;
+
+                int m = num_clusters;
+                if (nbr[Cx] != NONE)
+                    m++;
+                if (nbr[Cy] != NONE)
+                    m++;
+
+                double best = ((double) m - 2.0) * d(Cx, Cy) - Rx[Cx] - Rx[Cy];
+                if (nbr[Cx] != NONE) {
+                    final double Qpq = ((double) m - 2.0) * d(nbr[Cx], Cy) - Rx[nbr[Cx]] - Rx[Cy];
+                    if (Qpq < best) {
+                        x = nbr[Cx];
+                        y = Cy;
+                        best = Qpq;
+                    }
                 }
-            }
-            if ((Cx.nbr != null) && (Cy.nbr != null)) {
-                Qpq = ((double) m - 2.0) * D[Cx.nbr.id][Cy.nbr.id] - Cx.nbr.Rx - Cy.nbr.Rx;
-                if (Qpq < best) {
-                    x = Cx.nbr;
-                    y = Cy.nbr;
+                if (nbr[Cy] != NONE) {
+                    final double Qpq = ((double) m - 2.0) * d(Cx, nbr[Cy]) - Rx[Cx] - Rx[nbr[Cy]];
+                    if (Qpq < best) {
+                        x = Cx;
+                        y = nbr[Cy];
+                        best = Qpq;
+                    }
+                }
+                if ((nbr[Cx] != NONE) && (nbr[Cy] != NONE)) {
+                    final double Qpq = ((double) m - 2.0) * d(nbr[Cx], nbr[Cy]) - Rx[nbr[Cx]] - Rx[nbr[Cy]];
+                    if (Qpq < best) {
+                        x = nbr[Cx];
+                        y = nbr[Cy];
+                    }
                 }
-            }
 
-            /* We perform an agglomeration... one of three types */
-            if ((null == Objects.requireNonNull(x).nbr) && (null == Objects.requireNonNull(y).nbr)) {   /* Both vertices are isolated...add edge {x,y} */
-                agg2way(x, y);
-                num_clusters--;
-            } else if (null == x.nbr) {     /* X is isolated,  Y  is not isolated*/
-                agg3way(x, y, y.nbr, amalgs, D, netNodes, num_nodes);
-                num_nodes += 2;
-                num_active--;
-                num_clusters--;
-            } else if ((null == Objects.requireNonNull(y).nbr) || (num_active == 4)) { /* Y is isolated,  X is not isolated
+                /* We perform an agglomeration... one of three types */
+                if (nbr[x] == NONE && nbr[y] == NONE) {   /* Both vertices are isolated...add edge {x,y} */
+                    agg2way(x, y);
+                    num_clusters--;
+                } else if (nbr[x] == NONE) {     /* X is isolated,  Y  is not isolated*/
+                    agg3way(x, y, nbr[y]);
+                    num_active--;
+                    num_clusters--;
+                } else if (nbr[y] == NONE || num_active == 4) { /* Y is isolated,  X is not isolated
                                                         OR theres only four active nodes and none are isolated */
-                agg3way(y, x, x.nbr, amalgs, D, netNodes, num_nodes);
-                num_nodes += 2;
-                num_active--;
-                num_clusters--;
-            } else {  /* Both nodes are connected to others and there are more than 4 active nodes */
-                num_nodes = agg4way(x.nbr, x, y, y.nbr, amalgs, D, netNodes, num_nodes);
-                num_active -= 2;
-                num_clusters--;
+                    agg3way(y, x, nbr[x]);
+                    num_active--;
+                    num_clusters--;
+                } else {  /* Both nodes are connected to others and there are more than 4 active nodes */
+                    agg4way(nbr[x], x, y, nbr[y]);
+                    num_active -= 2;
+                    num_clusters--;
+                }
             }
         }
-        return num_nodes;
-    }
 
-    /**
-     * agglomerate 2 nodes
-     *
-     * @param x one node
-     * @param y other node
-     */
-    private void agg2way(NetNode x, NetNode y) {
-        x.nbr = y;
-        y.nbr = x;
-    }
-
-    /**
-     * agglomerate 3 nodes.
-     * Note that this version doesn't rescan num_nodes, you need to
-     * num_nodes+=2 after calling this!
-     *
-     * @param x one node
-     * @param y other node
-     * @param z other node
-     * @return one of the new nodes
-     */
-    private NetNode agg3way(NetNode x, NetNode y, NetNode z,
-                            Stack<NetNode> amalgs, double[][] D, NetNode netNodes, int num_nodes) {
-        /* Agglomerate x,y, and z to give TWO new nodes, u and v */
-/* In terms of the linked list: we replace x and z
-       by u and v and remove y from the linked list.
-  	 and replace y with the new node z
-    Returns a pointer to the node u */
-//printf("Three way: %d, %d, and %d\n",x.id,y.id,z.id);
-
-        NetNode u = new NetNode();
-        u.id = num_nodes + 1;
-        u.ch1 = x;
-        u.ch2 = y;
-
-        NetNode v = new NetNode();
-        v.id = num_nodes + 2;
-        v.ch1 = y;
-        v.ch2 = z;
-
-        /* Replace x by u in the linked list */
-        u.next = x.next;
-        u.prev = x.prev;
-        if (u.next != null)
-            u.next.prev = u;
-        if (u.prev != null)
-            u.prev.next = u;
-
-        /* Replace z by v in the linked list */
-        v.next = z.next;
-        v.prev = z.prev;
-        if (v.next != null)
-            v.next.prev = v;
-        if (v.prev != null)
-            v.prev.next = v;
-
-        /* Remove y from the linked list */
-        if (y.next != null)
-            y.next.prev = y.prev;
-        if (y.prev != null)
-            y.prev.next = y.next;
-
-        /* Add an edge between u and v, and add u into the list of amalgamations */
-        u.nbr = v;
-        v.nbr = u;
-
-        /* Update distance matrix */
-
-        for (NetNode p = netNodes.next; p != null; p = p.next) {
-            D[u.id][p.id] = D[p.id][u.id] = (2.0 / 3.0) * D[x.id][p.id] + D[y.id][p.id] / 3.0;
-            D[v.id][p.id] = D[p.id][v.id] = (2.0 / 3.0) * D[z.id][p.id] + D[y.id][p.id] / 3.0;
+        /**
+         * distance between two active nodes
+         */
+        private double d(int p, int q) {
+            return D[row[p]][row[q]];
         }
-        D[u.id][u.id] = D[v.id][v.id] = 0.0;
 
-        amalgs.push(u);
+        /**
+         * averaged distance between the clusters at positions a and b
+         */
+        private double dpq(int a, int b) {
+            final double[] Da = D[clusterRow[a]];
+            final int rb = clusterRow[b];
+            final int na = clusterNbrRow[a];
+            final int nb = clusterNbrRow[b];
+            if ((na == NONE) && (nb == NONE))
+                return Da[rb];
+            else if ((na != NONE) && (nb == NONE))
+                return (Da[rb] + D[na][rb]) / 2.0;
+            else if (na == NONE)
+                return (Da[rb] + Da[nb]) / 2.0;
+            else
+                return (Da[rb] + Da[nb] + D[na][rb] + D[na][nb]) / 4.0;
+        }
 
-        return u;
-    }
+        /**
+         * computes the sum of averaged distances from each cluster to all other clusters. The distances are added in the order
+         * of the clusters in the list. With one thread, each distance is computed once and added to both sums. Otherwise, the
+         * sums of different clusters are computed in parallel
+         */
+        private void computeSx() throws CanceledException {
+            if (numberOfThreads == 1) {
+                Arrays.fill(Sx, 0, numberOfClusters, 0.0);
+                for (int a = 0; a < numberOfClusters; a++) {
+                    for (int b = a + 1; b < numberOfClusters; b++) {
+                        final double Dpq = dpq(a, b);
+                        Sx[a] += Dpq;
+                        Sx[b] += Dpq;
+                    }
+                }
+            } else {
+                runInParallel(t -> {
+                    for (int a = t; a < numberOfClusters; a += numberOfThreads) {
+                        double sum = 0.0;
+                        for (int b = 0; b < a; b++)
+                            sum += dpq(b, a);
+                        for (int b = a + 1; b < numberOfClusters; b++)
+                            sum += dpq(a, b);
+                        Sx[a] = sum;
+                    }
+                });
+            }
+        }
 
-    /**
-     * Agglomerate four nodes
-     *
-     * @param x2 a node
-     * @param x  a node
-     * @param y  a node
-     * @param y2 a node
-     * @return the new number of nodes
-     */
-    private int agg4way(NetNode x2, NetNode x, NetNode y, NetNode y2,
-                        Stack amalgs, double[][] D, NetNode netNodes, int num_nodes) {
-/* Replace x2,x,y,y2 by with two vertices... performed using two
-       3 way amalgamations */
-
-        NetNode u;
-
-        u = agg3way(x2, x, y, amalgs, D, netNodes, num_nodes); /* Replace x2,x,y by two nodes, equalOverShorterOfBoth to x2_prev.next and y_prev.next. */
-        num_nodes += 2;
-        agg3way(u, u.nbr, y2, amalgs, D, netNodes, num_nodes); /* z = y_prev . next */
-        num_nodes += 2;
-        return num_nodes;
-    }
+        /**
+         * finds the pair of clusters that minimizes (m-2) D[C_i,C_k] - Sx - Sy. Among equal values, the first pair in the order
+         * of the list is used
+         *
+         * @return positions of the two clusters, the first in the upper 32 bits
+         */
+        private long findBestPair(int num_clusters) throws CanceledException {
+            final double[] bestValue = new double[numberOfThreads];
+            final long[] bestPair = new long[numberOfThreads];
+            runInParallel(t -> {
+                double best = Double.NaN;
+                long pair = -1;
+                for (int a = 1 + t; a < numberOfClusters; a += numberOfThreads) {
+                    for (int b = 0; b < a; b++) {
+                        final double Qpq = ((double) num_clusters - 2.0) * dpq(a, b) - Sx[a] - Sx[b];
+                        if (Qpq < best || (pair == -1 && !Double.isNaN(Qpq))) {
+                            best = Qpq;
+                            pair = ((long) a << 32) | b;
+                        }
+                    }
+                }
+                bestValue[t] = best;
+                bestPair[t] = pair;
+            });
+
+            /* The first pair is used if its value is undefined, as no other value is smaller */
+            if (Double.isNaN(((double) num_clusters - 2.0) * dpq(1, 0) - Sx[1] - Sx[0]))
+                return 1L << 32;
+
+            double best = Double.NaN;
+            long pair = -1;
+            for (int t = 0; t < numberOfThreads; t++) {
+                if (bestPair[t] != -1 && (pair == -1 || bestValue[t] < best || (bestValue[t] == best && bestPair[t] < pair))) {
+                    best = bestValue[t];
+                    pair = bestPair[t];
+                }
+            }
+            return pair;
+        }
 
-    /**
-     * Computes the Rx
-     *
-     * @param z        a node
-     * @param Cx       a node
-     * @param Cy       a node
-     * @param D        the distances
-     * @param netNodes the net nodes
-     * @return the Rx value
-     */
-    private double ComputeRx(NetNode z, NetNode Cx, NetNode Cy, double[][] D,
-                             NetNode netNodes) {
-        double Rx = 0.0;
-
-        for (NetNode p = netNodes.next; p != null; p = p.next) {
-            if (p == Cx || p == Cx.nbr || p == Cy || p == Cy.nbr || p.nbr == null)
-                Rx += D[z.id][p.id];
-            else /* p.nbr != null */
-                Rx += D[z.id][p.id] / 2.0; /* We take the average of the distances */
+        /**
+         * agglomerate 2 nodes
+         *
+         * @param x one node
+         * @param y other node
+         */
+        private void agg2way(int x, int y) {
+            nbr[x] = y;
+            nbr[y] = x;
         }
-        return Rx;
-    }
 
-    /**
-     * Expands the net nodes to obtain the ordering, quickly
-     *
-     * @param num_nodes number of nodes
-     * @param ntax      number of taxa
-     * @param amalgs    stack of amalagations
-     * @param netNodes  the net nodes
-     * @param ordering  the ordering
-     */
-    private void expandNodes(ProgressListener progressListener, int num_nodes, int ntax, Stack amalgs, NetNode netNodes,
-                             int[] ordering) throws CanceledException {
-        //System.err.println("expandNodes");
-        NetNode x, y, z, u, v, a;
-
-        /* Set up the circular order for the first three nodes */
-        x = netNodes.next;
-        y = x.next;
-        z = y.next;
-        z.next = x;
-        x.prev = z;
-
-        /* Now do the rest of the expansions */
-        while (!amalgs.empty()) {
-/* Find the three elements replacing u and v. Swap u and v around if v comes before u in the
-          circular ordering being built up */
-            u = (NetNode) (amalgs.pop());
-            // System.err.println("POP: u="+u);
-            v = u.nbr;
-            x = u.ch1;
-            y = u.ch2;
-            z = v.ch2;
-            if (v != u.next) {
-                NetNode tmp = u;
-                u = v;
-                v = tmp;
-                tmp = x;
-                x = z;
-                z = tmp;
+        /**
+         * agglomerate 3 nodes.
+         *
+         * @param x one node
+         * @param y other node
+         * @param z other node
+         * @return one of the new nodes
+         */
+        private int agg3way(int x, int y, int z) {
+            /* Agglomerate x,y, and z to give TWO new nodes, u and v */
+            /* In terms of the linked list: we replace x and z
+               by u and v and remove y from the linked list.
+               and replace y with the new node z
+               Returns the node u */
+            final int u = num_nodes + 1;
+            ch1[u] = x;
+            ch2[u] = y;
+
+            final int v = num_nodes + 2;
+            ch1[v] = y;
+            ch2[v] = z;
+            num_nodes += 2;
+
+            /* Replace x by u in the linked list */
+            next[u] = next[x];
+            prev[u] = prev[x];
+            if (next[u] != NONE)
+                prev[next[u]] = u;
+            if (prev[u] != NONE)
+                next[prev[u]] = u;
+
+            /* Replace z by v in the linked list */
+            next[v] = next[z];
+            prev[v] = prev[z];
+            if (next[v] != NONE)
+                prev[next[v]] = v;
+            if (prev[v] != NONE)
+                next[prev[v]] = v;
+
+            /* Remove y from the linked list */
+            if (next[y] != NONE)
+                prev[next[y]] = prev[y];
+            if (prev[y] != NONE)
+                next[prev[y]] = next[y];
+
+            /* Add an edge between u and v, and add u into the list of amalgamations */
+            nbr[u] = v;
+            nbr[v] = u;
+
+            /* Update distance matrix. u and v reuse the rows of x and z */
+            final int rx = row[x];
+            final int ry = row[y];
+            final int rz = row[z];
+            row[u] = rx;
+            row[v] = rz;
+            for (int p = next[0]; p != NONE; p = next[p]) {
+                if (p != u && p != v) {
+                    final int rp = row[p];
+                    D[rx][rp] = D[rp][rx] = (2.0 / 3.0) * D[rx][rp] + D[ry][rp] / 3.0;
+                    D[rz][rp] = D[rp][rz] = (2.0 / 3.0) * D[rz][rp] + D[ry][rp] / 3.0;
+                }
             }
+            D[rx][rx] = D[rz][rz] = D[rx][rz] = D[rz][rx] = 0.0;
+
+            amalgs[numberOfAmalgs++] = u;
+
+            return u;
+        }
 
-            /* Insert x,y,z into the circular order */
-            x.prev = u.prev;
-            x.prev.next = x;
-            x.next = y;
-            y.prev = x;
-            y.next = z;
-            z.prev = y;
-            z.next = v.next;
-            z.next.prev = z;
-            if (progressListener != null)
-                progressListener.checkForCancel();
+        /**
+         * Agglomerate four nodes
+         *
+         * @param x2 a node
+         * @param x  a node
+         * @param y  a node
+         * @param y2 a node
+         */
+        private void agg4way(int x2, int x, int y, int y2) {
+            /* Replace x2,x,y,y2 by with two vertices... performed using two
+               3 way amalgamations */
+            final int u = agg3way(x2, x, y); /* Replace x2,x,y by two nodes, equalOverShorterOfBoth to x2_prev.next and y_prev.next. */
+            agg3way(u, nbr[u], y2); /* z = y_prev . next */
         }
 
-        /* When we exit, we know that the point x points to a node in the circular order */
-        /* We loop through until we find the node after taxa zero */
-        while (x.id != 1) {
-            x = x.next;
+        /**
+         * Computes the Rx
+         *
+         * @param z  a node
+         * @param Cx a node
+         * @param Cy a node
+         * @return the Rx value
+         */
+        private double computeRx(int z, int Cx, int Cy) {
+            double Rx = 0.0;
+
+            for (int p = next[0]; p != NONE; p = next[p]) {
+                if (p == Cx || p == nbr[Cx] || p == Cy || p == nbr[Cy] || nbr[p] == NONE)
+                    Rx += d(z, p);
+                else /* nbr[p] != NONE */
+                    Rx += d(z, p) / 2.0; /* We take the average of the distances */
+            }
+            return Rx;
         }
 
-        /* extract the ordering */
-        a = x;
-        int t = 0;
-        do {
-            // System.err.println("a="+a);
-            ordering[++t] = a.id;
-            a = a.next;
-        } while (a != x);
+        /**
+         * Expands the net nodes to obtain the ordering, quickly
+         *
+         * @param ordering the ordering
+         */
+        void expandNodes(ProgressListener progressListener, int[] ordering) throws CanceledException {
+            int x, y, z, u, v;
+
+            /* Set up the circular order for the first three nodes */
+            x = next[0];
+            y = next[x];
+            z = next[y];
+            next[z] = x;
+            prev[x] = z;
+
+            /* Now do the rest of the expansions */
+            while (numberOfAmalgs > 0) {
+                /* Find the three elements replacing u and v. Swap u and v around if v comes before u in the
+                   circular ordering being built up */
+                u = amalgs[--numberOfAmalgs];
+                v = nbr[u];
+                x = ch1[u];
+                y = ch2[u];
+                z = ch2[v];
+                if (v != next[u]) {
+                    int tmp = u;
+                    u = v;
+                    v = tmp;
+                    tmp = x;
+                    x = z;
+                    z = tmp;
+                }
+
+                /* Insert x,y,z into the circular order */
+                prev[x] = prev[u];
+                next[prev[x]] = x;
+                next[x] = y;
+                prev[y] = x;
+                next[y] = z;
+                prev[z] = y;
+                next[z] = next[v];
+                prev[next[z]] = z;
+                if (progressListener != null && (numberOfAmalgs & 1023) == 0)
+                    progressListener.checkForCancel();
+            }
+
+            /* When we exit, we know that x is a node in the circular order */
+            /* We loop through until we find the node after taxa zero */
+            while (x != 1) {
+                x = next[x];
+            }
 
+            /* extract the ordering */
+            int a = x;
+            int t = 0;
+            do {
+                ordering[++t] = a;
+                a = next[a];
+            } while (a != x);
+        }
+
+        /**
+         * run the task once for each thread number, in parallel, if there is more than one thread
+         */
+        private void runInParallel(ThreadTask task) throws CanceledException {
+            if (service == null) {
+                for (int t = 0; t < numberOfThreads; t++)
+                    task.apply(t);
+            } else {
+                final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+                for (int t = 0; t < numberOfThreads; t++) {
+                    final int thread = t;
+                    service.submit(() -> {
+                        try {
+                            task.apply(thread);
+                        } finally {
+                            countDownLatch.countDown();
+                        }
+                    });
+                }
+                try {
+                    countDownLatch.await();
+                } catch (InterruptedException e) {
+                    throw new CanceledException();
+                }
+            }
+        }
     }
-}
 
-/* A node in the net */
-
-class NetNode {
-    int id = 0;
-    NetNode nbr = null; // adjacent node
-    NetNode ch1 = null; // first child
-    NetNode ch2 = null; // second child
-    NetNode next = null; // next in list of active nodes
-    NetNode prev = null; // prev in list of active nodes
-    double Rx = 0;
-    double Sx = 0;
-
-    public String toString() {
-        String str = "[id=" + id;
-        str += " nbr=" + (nbr == null ? "null" : ("" + nbr.id));
-        str += " ch1=" + (ch1 == null ? "null" : ("" + ch1.id));
-        str += " ch2=" + (ch2 == null ? "null" : ("" + ch2.id));
-        str += " prev=" + (prev == null ? "null" : ("" + prev.id));
-        str += " next=" + (next == null ? "null" : ("" + next.id));
-        str += " Rx=" + Rx;
-        str += " Sx=" + Sx;
-        str += "]";
-        return str;
+    private interface ThreadTask {
+        void apply(int thread);
     }
 }
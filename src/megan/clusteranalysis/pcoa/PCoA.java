@@ -20,10 +20,7 @@ package megan.clusteranalysis.pcoa;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
-import jloda.util.Basic;
-import jloda.util.CanceledException;
-import jloda.util.Pair;
-import jloda.util.ProgressListener;
+import jloda.util.*;
 import megan.clusteranalysis.tree.Distances;
 import megan.clusteranalysis.tree.Taxa;
 
@@ -31,15 +28,21 @@ import java.util.*;
 
 /**
  * does PCoA calculation
- * Daniel Huson, 9.2012
+ * <p>
+ * For small numbers of samples, a full eigenvalue decomposition is computed. Otherwise, only the top eigenvalues and eigenvectors are
+ * computed and the percent explained is estimated using the trace of the centered matrix
+ * Daniel Huson, 9.2012, 10.2019
  */
 public class PCoA {
     private final Taxa samples;
-    private final Matrix matrixD; // distances between samples
+    private final double[][] distances; // distances between samples
     private final int rank;
+    private int maxRankForFullDecomposition = ProgramProperties.get("PCoAMaxSamplesForFullDecomposition", 500);
+    private int numberOfAxesToCompute = ProgramProperties.get("PCoANumberOfAxes", 10);
     private int numberOfPositiveEigenValues;
     private double[] eigenValues;
     private double[] percentExplained;
+    private boolean percentExplainedEstimated;
     private final Map<String, double[]> sampleName2Point = new HashMap<>();
     private final double[][] points;
     private boolean done = false;
@@ -56,17 +59,7 @@ public class PCoA {
     public PCoA(Taxa samples, Distances distances) {
         this.samples = samples;
         rank = samples.size();
-        matrixD = new Matrix(rank, rank);
-        for (int i = 0; i < rank; i++) {
-            for (int j = 0; j < rank; j++) {
-                if (i == j)
-                    matrixD.set(i, j, 0);
-                else {
-                    double d = distances.get(i + 1, j + 1);
-                    matrixD.set(i, j, d);
-                }
-            }
-        }
+        this.distances = distances.getMatrix();
         points = new double[rank][];
     }
 
@@ -74,6 +67,16 @@ public class PCoA {
      * calculate the MDS analysis
      */
     public void calculateClassicMDS(ProgressListener progress) throws CanceledException {
+        if (rank <= maxRankForFullDecomposition)
+            calculateUsingFullDecomposition(progress);
+        else
+            calculateUsingPartialDecomposition(progress);
+    }
+
+    /**
+     * calculate the MDS analysis using a full eigenvalue decomposition
+     */
+    private void calculateUsingFullDecomposition(ProgressListener progress) throws CanceledException {
         progress.setSubtask("Eigenvalue decomposition");
 
         progress.setProgress(-1);
@@ -87,6 +90,14 @@ public class PCoA {
         //distanceMatrix.print(pw, rank, rank);
         //pw.flush();
 
+        final Matrix matrixD = new Matrix(rank, rank);
+        for (int i = 0; i < rank; i++) {
+            for (int j = 0; j < rank; j++) {
+                if (i != j)
+                    matrixD.set(i, j, distances[i][j]);
+            }
+        }
+
         final Matrix centered = Utilities.computeDoubleCenteringOfSquaredMatrix(matrixD);
 
         //System.err.println("centered:");
@@ -147,6 +158,7 @@ public class PCoA {
         for (int j = 0; j < numberOfPositiveEigenValues; j++) {
             total += eigenValues[j] = positiveEigenValues.get(indices[j], indices[j]);
         }
+        percentExplainedEstimated = false;
 
         System.err.println("Positive eigenvalues:");
         System.err.println(Basic.toString("%.8f", eigenValues, ", "));
@@ -173,6 +185,66 @@ public class PCoA {
         done = true;
     }
 
+    /**
+     * calculate the MDS analysis using only the top eigenvalues and eigenvectors
+     */
+    private void calculateUsingPartialDecomposition(ProgressListener progress) throws CanceledException {
+        progress.setSubtask("Partial eigenvalue decomposition");
+
+        loadingVectorsBiPlot.clear();
+        loadingVectorsTriPlot.clear();
+
+        final PartialEigenDecomposition decomposition = new PartialEigenDecomposition(distances);
+        decomposition.compute(numberOfAxesToCompute, progress);
+
+        final double[] topEigenValues = decomposition.getEigenValues();
+        final double[][] topEigenVectors = decomposition.getEigenVectors();
+
+        numberOfPositiveEigenValues = 0;
+        while (numberOfPositiveEigenValues < topEigenValues.length && topEigenValues[numberOfPositiveEigenValues] > 0.000000001)
+            numberOfPositiveEigenValues++;
+
+        System.err.println("numberOfPositiveEigenValues (of " + topEigenValues.length + " computed): " + numberOfPositiveEigenValues);
+
+        eigenValues = Arrays.copyOf(topEigenValues, numberOfPositiveEigenValues);
+        percentExplained = new double[numberOfPositiveEigenValues];
+
+        // the sum of all positive eigenvalues is unknown, estimate it by the trace, which is exact when the distances are Euclidean
+        double total = decomposition.getTrace();
+        double sumComputed = 0;
+        for (double value : eigenValues)
+            sumComputed += value;
+        total = Math.max(total, sumComputed);
+        percentExplainedEstimated = true;
+
+        System.err.println("Top positive eigenvalues:");
+        System.err.println(Basic.toString("%.8f", eigenValues, ", "));
+
+        if (total > 0) {
+            for (int j = 0; j < eigenValues.length; j++) {
+                percentExplained[j] = 100.0 * eigenValues[j] / total;
+            }
+        }
+
+        System.err.println("Percent explained (estimated):");
+        System.err.println(Basic.toString("%.1f%%", percentExplained, ", "));
+
+        progress.setSubtask("Calculating PCoA");
+        progress.setMaximum(rank);
+        progress.setProgress(0);
+        for (int i = 0; i < rank; i++) {
+            final String name = samples.getLabel(i + 1);
+            final double[] vector = new double[numberOfPositiveEigenValues];
+            sampleName2Point.put(name, vector);
+            for (int j = 0; j < numberOfPositiveEigenValues; j++) {
+                vector[j] = topEigenVectors[i][j] * Math.sqrt(eigenValues[j]);
+            }
+            points[i] = vector;
+            progress.incrementProgress();
+        }
+        done = true;
+    }
+
     public int getNumberOfPositiveEigenValues() {
         return numberOfPositiveEigenValues;
     }
@@ -205,6 +277,22 @@ public class PCoA {
         return done;
     }
 
+    public int getMaxRankForFullDecomposition() {
+        return maxRankForFullDecomposition;
+    }
+
+    public void setMaxRankForFullDecomposition(int maxRankForFullDecomposition) {
+        this.maxRankForFullDecomposition = maxRankForFullDecomposition;
+    }
+
+    public int getNumberOfAxesToCompute() {
+        return numberOfAxesToCompute;
+    }
+
+    public void setNumberOfAxesToCompute(int numberOfAxesToCompute) {
+        this.numberOfAxesToCompute = Math.max(3, numberOfAxesToCompute);
+    }
+
     public double[] getEigenValues() {
         return eigenValues;
     }
@@ -370,4 +458,13 @@ public class PCoA {
         return percentExplained[pc];
     }
 
+    /**
+     * is the percent explained only an estimate, because only the top eigenvalues were computed?
+     *
+     * @return true, if estimated
+     */
+    public boolean isPercentExplainedEstimated() {
+        return percentExplainedEstimated;
+    }
+
 }
@@ -0,0 +1,478 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.clusteranalysis.pcoa;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.util.CanceledException;
+import jloda.util.ProgressListener;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * computes the largest eigenvalues and their eigenvectors of the double-centered squared distance matrix used in PCoA,
+ * without computing a full eigenvalue decomposition
+ * <p>
+ * Uses block subspace iteration with Rayleigh-Ritz projection, starting from a random block. The centered matrix is never
+ * stored, its products with a block of vectors are computed from the distances, in parallel over blocks of rows.
+ * Subspace iteration finds the eigenvalues of largest absolute value, so for non-Euclidean distances (such as Bray-Curtis)
+ * large negative eigenvalues would displace the top positive ones. To avoid this, the smallest eigenvalue is estimated by
+ * power iteration on the matrix reflected at its Gershgorin upper bound, the spectrum is shifted so that the smallest
+ * eigenvalue becomes zero, and the shift is subtracted from the results.
+ * Daniel Huson, 10.2019
+ */
+public class PartialEigenDecomposition {
+    private static final int OVERSAMPLING = 10;
+    private static final int ROWS_PER_TASK = 64;
+    private static final int SHIFT_ITERATIONS = 50;
+
+    private final double[][] distances;
+    private final int n;
+    private final double[] rowAverage; // average squared distance per row
+    private final double overallAverage;
+    private double shift; // added to the diagonal during iteration, so that negative eigenvalues become small in absolute value
+    private boolean converged;
+
+    private int maxIterations = 300;
+    private double tolerance = 0.0000000001;
+
+    private double[] eigenValues;
+    private double[][] eigenVectors;
+
+    /**
+     * constructor
+     *
+     * @param distances symmetric matrix of distances, with 0 on the diagonal
+     */
+    public PartialEigenDecomposition(double[][] distances) {
+        this.distances = distances;
+        this.n = distances.length;
+        rowAverage = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            final double[] row = distances[i];
+            double rowSum = 0;
+            for (int j = 0; j < n; j++) {
+                if (i != j)
+                    rowSum += row[j] * row[j];
+            }
+            rowAverage[i] = rowSum / n;
+            sum += rowSum;
+        }
+        overallAverage = (n > 0 ? sum / ((double) n * n) : 0);
+    }
+
+    /**
+     * compute the top eigenvalues and eigenvectors
+     *
+     * @param k        number of eigenpairs to compute
+     * @param progress
+     * @throws CanceledException
+     */
+    public void compute(int k, ProgressListener progress) throws CanceledException {
+        k = Math.max(1, Math.min(k, n));
+        final int l = Math.min(n, k + OVERSAMPLING);
+
+        final int numberOfThreads = Math.max(1, Math.min(ProgramExecutorService.getNumberOfCoresToUse(), (n + ROWS_PER_TASK - 1) / ROWS_PER_TASK));
+        final ExecutorService service = ProgramExecutorService.createServiceForParallelAlgorithm(numberOfThreads);
+        try {
+            shift = 0;
+            converged = false;
+            final double[] bounds = computeGershgorinBounds();
+            if (bounds[0] < 0) // there might be negative eigenvalues
+                shift = Math.max(0, -estimateSmallestEigenValue(bounds[1], service, numberOfThreads));
+
+            double[][] block = new double[n][l]; // n x l, row major
+            final Random random = new Random(666);
+            for (double[] row : block) {
+                for (int c = 0; c < l; c++)
+                    row[c] = random.nextGaussian();
+            }
+            orthonormalizeColumns(block);
+
+            progress.setMaximum(maxIterations);
+            progress.setProgress(0);
+
+            double[] previous = null;
+            double[] ritzValues = null;
+            double[][] ritzVectors = null;
+            for (int iteration = 0; iteration < maxIterations; iteration++) {
+                final double[][] product = multiply(block, service, numberOfThreads);
+
+                // Rayleigh-Ritz: project onto the current subspace
+                final double[][] projected = new double[l][l];
+                for (int i = 0; i < n; i++) {
+                    final double[] q = block[i];
+                    final double[] y = product[i];
+                    for (int a = 0; a < l; a++) {
+                        for (int b = 0; b < l; b++)
+                            projected[a][b] += q[a] * y[b];
+                    }
+                }
+                for (int a = 0; a < l; a++) {
+                    for (int b = a + 1; b < l; b++)
+                        projected[a][b] = projected[b][a] = 0.5 * (projected[a][b] + projected[b][a]);
+                }
+                final double[][] rotation = new double[l][l];
+                ritzValues = jacobi(projected, rotation);
+                final Integer[] order = sortByDecreasingValue(ritzValues);
+
+                ritzVectors = new double[n][l];
+                final double[] sortedValues = new double[l];
+                for (int c = 0; c < l; c++) {
+                    final int src = order[c];
+                    sortedValues[c] = ritzValues[src] - shift;
+                    for (int i = 0; i < n; i++) {
+                        final double[] q = block[i];
+                        double sum = 0;
+                        for (int a = 0; a < l; a++)
+                            sum += q[a] * rotation[a][src];
+                        ritzVectors[i][c] = sum;
+                    }
+                }
+                ritzValues = sortedValues;
+
+                if (previous != null && hasConverged(previous, ritzValues, k)) {
+                    converged = true;
+                    break;
+                }
+                previous = ritzValues;
+
+                // next subspace: the product with the matrix, orthonormalized
+                block = product;
+                orthonormalizeColumns(block);
+                progress.setProgress(iteration + 1);
+            }
+
+            if (!converged)
+                System.err.println("Warning: partial eigenvalue decomposition did not converge within " + maxIterations + " iterations");
+
+            eigenValues = Arrays.copyOf(ritzValues, k);
+            eigenVectors = new double[n][k];
+            for (int i = 0; i < n; i++)
+                System.arraycopy(ritzVectors[i], 0, eigenVectors[i], 0, k);
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    /**
+     * did the last computation converge within the maximum number of iterations?
+     *
+     * @return true, if converged
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * the trace of the centered matrix, that is, the sum of all its eigenvalues
+     *
+     * @return trace
+     */
+    public double getTrace() {
+        double trace = 0;
+        for (int i = 0; i < n; i++)
+            trace += rowAverage[i] - 0.5 * overallAverage;
+        return trace;
+    }
+
+    /**
+     * computed eigenvalues, in decreasing order
+     *
+     * @return eigenvalues
+     */
+    public double[] getEigenValues() {
+        return eigenValues;
+    }
+
+    /**
+     * computed eigenvectors, row i contains the i-th coordinate of all eigenvectors
+     *
+     * @return eigenvectors
+     */
+    public double[][] getEigenVectors() {
+        return eigenVectors;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * multiply the centered matrix B=-0.5*(D2-rowAverage-colAverage+overallAverage) by a block of vectors
+     */
+    private double[][] multiply(double[][] block, ExecutorService service, int numberOfThreads) throws CanceledException {
+        final int l = block[0].length;
+        final double[] columnSum = new double[l];
+        final double[] weightedColumnSum = new double[l];
+        for (int j = 0; j < n; j++) {
+            final double[] x = block[j];
+            for (int c = 0; c < l; c++) {
+                columnSum[c] += x[c];
+                weightedColumnSum[c] += rowAverage[j] * x[c];
+            }
+        }
+
+        final double[][] result = new double[n][l];
+        final int numberOfTasks = (n + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+        final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+        final int[] nextTask = {0};
+        final AtomicReference<Throwable> exception = new AtomicReference<>();
+
+        for (int t = 0; t < numberOfThreads; t++) {
+            service.submit(() -> {
+                try {
+                    while (exception.get() == null) {
+                        final int task;
+                        synchronized (nextTask) {
+                            task = nextTask[0]++;
+                        }
+                        if (task >= numberOfTasks)
+                            break;
+                        final int end = Math.min(n, (task + 1) * ROWS_PER_TASK);
+                        for (int i = task * ROWS_PER_TASK; i < end; i++) {
+                            final double[] row = distances[i];
+                            final double[] y = result[i];
+                            for (int j = 0; j < n; j++) {
+                                if (j != i) {
+                                    final double d2 = row[j] * row[j];
+                                    final double[] x = block[j];
+                                    for (int c = 0; c < l; c++)
+                                        y[c] += d2 * x[c];
+                                }
+                            }
+                            final double[] x = block[i];
+                            for (int c = 0; c < l; c++)
+                                y[c] = -0.5 * (y[c] - rowAverage[i] * columnSum[c] - weightedColumnSum[c] + overallAverage * columnSum[c]) + shift * x[c];
+                        }
+                    }
+                } catch (Throwable ex) {
+                    exception.compareAndSet(null, ex); // the other workers stop after their current task
+                } finally {
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        try {
+            countDownLatch.await();
+        } catch (InterruptedException e) {
+            exception.compareAndSet(null, e);
+            throw new CanceledException();
+        }
+        if (exception.get() != null) {
+            if (exception.get() instanceof RuntimeException)
+                throw (RuntimeException) exception.get();
+            else if (exception.get() instanceof Error)
+                throw (Error) exception.get();
+            else
+                throw new RuntimeException("Matrix multiplication failed", exception.get());
+        }
+        return result;
+    }
+
+    /**
+     * Gershgorin bounds on the eigenvalues of the centered matrix: the minimum over all rows i of B_ii - sum_{j!=i} |B_ij|
+     * and the maximum over all rows of B_ii + sum_{j!=i} |B_ij|
+     *
+     * @return lower and upper bound
+     */
+    private double[] computeGershgorinBounds() {
+        double lower = Double.MAX_VALUE;
+        double upper = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            final double[] row = distances[i];
+            double offDiagonal = 0;
+            for (int j = 0; j < n; j++) {
+                if (j != i)
+                    offDiagonal += Math.abs(-0.5 * (row[j] * row[j] - rowAverage[i] - rowAverage[j] + overallAverage));
+            }
+            final double diagonal = rowAverage[i] - 0.5 * overallAverage;
+            lower = Math.min(lower, diagonal - offDiagonal);
+            upper = Math.max(upper, diagonal + offDiagonal);
+        }
+        return (n > 0 ? new double[]{lower, upper} : new double[]{0, 0});
+    }
+
+    /**
+     * estimate the smallest eigenvalue of the centered matrix B, using power iteration on upperBound*I-B, whose dominant
+     * eigenvector is the eigenvector of the smallest eigenvalue of B. The estimate is a Rayleigh quotient, so it is never
+     * smaller than the smallest eigenvalue
+     *
+     * @param upperBound upper bound on the eigenvalues of B
+     * @return estimate of smallest eigenvalue
+     */
+    private double estimateSmallestEigenValue(double upperBound, ExecutorService service, int numberOfThreads) throws CanceledException {
+        final double[][] vector = new double[n][1];
+        final Random random = new Random(777);
+        for (double[] row : vector)
+            row[0] = random.nextGaussian();
+        orthonormalizeColumns(vector);
+
+        double estimate = 0;
+        for (int iteration = 0; iteration < SHIFT_ITERATIONS; iteration++) {
+            final double[][] product = multiply(vector, service, numberOfThreads); // B*x
+            double rayleigh = 0;
+            for (int i = 0; i < n; i++) {
+                rayleigh += vector[i][0] * product[i][0];
+                product[i][0] = upperBound * vector[i][0] - product[i][0]; // (upperBound*I-B)*x
+            }
+            final boolean done = (iteration > 0 && Math.abs(rayleigh - estimate) <= 0.001 * Math.abs(upperBound));
+            estimate = rayleigh;
+            if (done)
+                break;
+            orthonormalizeColumns(product);
+            for (int i = 0; i < n; i++)
+                vector[i][0] = product[i][0];
+        }
+        return estimate;
+    }
+
+    /**
+     * have the top k values converged?
+     */
+    private boolean hasConverged(double[] previous, double[] current, int k) {
+        double scale = 0;
+        for (int c = 0; c < k; c++)
+            scale = Math.max(scale, Math.abs(current[c]));
+        for (int c = 0; c < k; c++) {
+            if (Math.abs(current[c] - previous[c]) > tolerance * Math.max(scale, Double.MIN_NORMAL))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * orthonormalize the columns of a row-major block using modified Gram-Schmidt, applied twice for numerical stability.
+     * Columns that become zero are replaced by random vectors
+     */
+    private static void orthonormalizeColumns(double[][] block) {
+        final int rows = block.length;
+        final int cols = block[0].length;
+        if (rows < cols)
+            throw new IllegalArgumentException("Block has more columns than rows");
+        final Random random = new Random(cols);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int c = 0; c < cols; c++) {
+                for (int b = 0; b < c; b++) {
+                    double dot = 0;
+                    for (double[] row : block)
+                        dot += row[b] * row[c];
+                    for (double[] row : block)
+                        row[c] -= dot * row[b];
+                }
+                double norm = 0;
+                for (double[] row : block)
+                    norm += row[c] * row[c];
+                norm = Math.sqrt(norm);
+                if (norm < 1e-12) { // lost this direction, restart it randomly
+                    for (double[] row : block)
+                        row[c] = random.nextGaussian();
+                    c--;
+                    continue;
+                }
+                for (double[] row : block)
+                    row[c] /= norm;
+            }
+        }
+    }
+
+    /**
+     * cyclic Jacobi eigenvalue algorithm for a small symmetric matrix
+     *
+     * @param matrix  symmetric matrix, is destroyed
+     * @param vectors on return, column i is the eigenvector of the i-th eigenvalue
+     * @return eigenvalues
+     */
+    static double[] jacobi(double[][] matrix, double[][] vectors) {
+        final int size = matrix.length;
+        for (int i = 0; i < size; i++) {
+            Arrays.fill(vectors[i], 0);
+            vectors[i][i] = 1;
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double offDiagonal = 0;
+            double diagonal = 0;
+            for (int p = 0; p < size; p++) {
+                diagonal += matrix[p][p] * matrix[p][p];
+                for (int q = p + 1; q < size; q++)
+                    offDiagonal += matrix[p][q] * matrix[p][q];
+            }
+            if (offDiagonal <= 1e-30 * Math.max(diagonal, Double.MIN_NORMAL))
+                break;
+
+            for (int p = 0; p < size; p++) {
+                for (int q = p + 1; q < size; q++) {
+                    final double apq = matrix[p][q];
+                    if (apq == 0)
+                        continue;
+                    final double theta = (matrix[q][q] - matrix[p][p]) / (2 * apq);
+                    final double t = Math.signum(theta == 0 ? 1 : theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    final double cos = 1 / Math.sqrt(t * t + 1);
+                    final double sin = t * cos;
+                    for (int r = 0; r < size; r++) {
+                        final double arp = matrix[r][p];
+                        final double arq = matrix[r][q];
+                        matrix[r][p] = cos * arp - sin * arq;
+                        matrix[r][q] = sin * arp + cos * arq;
+                    }
+                    for (int r = 0; r < size; r++) {
+                        final double apr = matrix[p][r];
+                        final double aqr = matrix[q][r];
+                        matrix[p][r] = cos * apr - sin * aqr;
+                        matrix[q][r] = sin * apr + cos * aqr;
+                    }
+                    for (int r = 0; r < size; r++) {
+                        final double vrp = vectors[r][p];
+                        final double vrq = vectors[r][q];
+                        vectors[r][p] = cos * vrp - sin * vrq;
+                        vectors[r][q] = sin * vrp + cos * vrq;
+                    }
+                }
+            }
+        }
+        final double[] values = new double[size];
+        for (int i = 0; i < size; i++)
+            values[i] = matrix[i][i];
+        return values;
+    }
+
+    private static Integer[] sortByDecreasingValue(double[] values) {
+        final Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Double.compare(values[b], values[a]));
+        return order;
+    }
+}
@@ -24,17 +24,22 @@ import jloda.graph.Node;
 import jloda.graph.NodeSet;
 import jloda.phylo.PhyloTree;
 import jloda.swing.graphview.PhyloTreeView;
+import jloda.fx.util.ProgramExecutorService;
 import jloda.swing.util.Geometry;
 import jloda.util.Basic;
+import jloda.util.CanceledException;
 
-import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 
 /**
  * run the NJ algorithm and compute an embedding
- * Daniel Huson, 9.2012
+ * Daniel Huson, 9.2012, 10.2019
  */
 public class NJ {
+    private static final int MIN_ROWS_PER_THREAD = 256;
+
     private static NJ instance;
 
     public static void apply(Taxa taxa, Distances distances, PhyloTreeView treeView) {
@@ -46,7 +51,7 @@ public class NJ {
     }
 
     /**
-     * run the UPGMA algorithm
+     * run the NJ algorithm
      *
      * @param taxa
      * @param dist
@@ -55,154 +60,295 @@ public class NJ {
     private void computeNJ(Taxa taxa, Distances dist, PhyloTree tree) {
         tree.clear();
         try {
-
-            HashMap<String, Node> TaxaHashMap = new HashMap<>();
-            int nbNtax = dist.getNtax();
-            StringBuffer[] tax = new StringBuffer[nbNtax + 1];
-            //Taxalabels are saved as a StringBuffer array
-
+            final int nbNtax = dist.getNtax();
+            final Node[] nodes = new Node[nbNtax + 1]; // current subtree for each index
             for (int i = 1; i <= nbNtax; i++) {
-                tax[i] = new StringBuffer();
-                tax[i].append(taxa.getLabel(i));
-                Node v = tree.newNode(); // create newNode for each Taxon
-                tree.setLabel(v, tax[i].toString());
-                TaxaHashMap.put(tax[i].toString(), v);
+                nodes[i] = tree.newNode(); // create newNode for each Taxon
+                tree.setLabel(nodes[i], taxa.getLabel(i));
             }
+            if (nbNtax < 2)
+                return;
 
-            double[][] h = new double[nbNtax + 1][nbNtax + 1];// distance matix
-            double[] b = new double[nbNtax + 1];// the b variable in Neighbor Joining
-            int i_min = 0, j_min = 0; // needed for manipulation of h and b
-            double temp, dist_e = 0.0, dist_f = 0.0;//new edge weights
-            StringBuffer tax_old_i; //labels of taxa that are being merged
-            StringBuffer tax_old_j;
-            Node v;
-            Edge e, f; //from tax_old to new=merged edge
-
-            for (int i = 0; i <= nbNtax; i++) {
-                h[0][i] = 1.0; // with 1.0 marked columns indicate columns/rows
-                h[i][0] = 1.0;// that haven't been deleted after merging
-            }
-            for (int i = 1; i <= nbNtax; i++) {
-                for (int j = 1; j <= nbNtax; j++) { //fill up the
-                    if (i < j)
-                        h[i][j] = dist.get(i, j);// distance matix h
-                    else
-                        h[i][j] = dist.get(j, i);
-                }
+            final Joins joins = computeJoins(dist, ProgramExecutorService.getNumberOfCoresToUse());
+
+            for (int s = 0; s < joins.size(); s++) {
+                // generate new Node for merged Taxa:
+                final Node v = tree.newNode();
+                // generate Edges from two Taxa that are merged to one:
+                final Edge e = tree.newEdge(nodes[joins.first[s]], v);
+                tree.setWeight(e, Math.max(joins.firstWeight[s], 0.0));
+                final Edge f = tree.newEdge(nodes[joins.second[s]], v);
+                tree.setWeight(f, Math.max(joins.secondWeight[s], 0.0));
+                nodes[joins.first[s]] = v;
             }
+            // evaluating last two nodes:
+            final int last = joins.size();
+            final Edge e = tree.newEdge(nodes[joins.first[last]], nodes[joins.second[last]]);
+            tree.setWeight(e, Math.max(joins.firstWeight[last], 0.0));
+        } catch (Exception ex) {
+            Basic.caught(ex);
+        }
+    }
 
-            // calculate b:
-            for (int i = 1; i <= nbNtax; i++) {
-                for (int j = 1; j <= nbNtax; j++) {
-                    b[i] += h[i][j];
+    /**
+     * computes the sequence of joins performed by neighbor joining
+     * <p>
+     * The distances are kept in a triangular array. To find the pair that minimizes the NJ criterion, each row keeps its columns
+     * sorted by distance, and the scan of a row stops as soon as a lower bound on the criterion (using the largest row sum) exceeds
+     * the best value found so far (as in RapidNJ). Row scans are distributed over threads. Entries that were changed by a join are
+     * recognized by the time at which their rows were last sorted and skipped, as the changed values appear in the re-sorted row of
+     * the joined node. The arithmetic and tie-breaking are the same as in the cubic scan over all pairs, so the tree is the same
+     *
+     * @param dist
+     * @param numberOfThreads
+     * @return joins, indices are 1-based
+     */
+    static Joins computeJoins(Distances dist, int numberOfThreads) throws CanceledException {
+        final int n = dist.getNtax();
+        final Joins joins = new Joins(n);
+
+        final TriangularMatrix h = new TriangularMatrix(n);
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++)
+                h.set(i, j, dist.get(i + 1, j + 1));
+        }
+        final double[] b = new double[n]; // row sums
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++)
+                b[i] += h.get(i, j);
+        }
+        final boolean[] active = new boolean[n];
+        java.util.Arrays.fill(active, true);
+
+        final long[][] sortedRows = new long[n][];
+        final int[] sortedAt = new int[n];
+
+        final int threads = Math.max(1, Math.min(numberOfThreads, n / MIN_ROWS_PER_THREAD));
+        final ExecutorService service = (threads > 1 ? ProgramExecutorService.createServiceForParallelAlgorithm(threads) : null);
+        try {
+            runOnRows(service, threads, n, i -> sortedRows[i] = sortRow(h, i, active));
+
+            for (int actual = n; actual > 2; actual--) {
+                final int r = actual - 2;
+
+                double bMax = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < n; i++) {
+                    if (active[i] && b[i] > bMax)
+                        bMax = b[i];
                 }
-            }
-            // recall: int i_min=0, j_min=0;
 
-            // actual for (finding all nearest Neighbors)
-            for (int actual = nbNtax; actual > 2; actual--) {
                 // find: min D (h, b, b)
-                double d_min = Double.MAX_VALUE;
-                for (int i = 1; i < nbNtax; i++) {
-                    if (h[0][i] == 0.0) continue;
-                    for (int j = i + 1; j <= nbNtax; j++) {
-                        if (h[0][j] == 0.0)
-                            continue;
-                        if (h[i][j] - ((b[i] + b[j]) / (actual - 2)) < d_min) {
-                            d_min = h[i][j] - ((b[i] + b[j]) / (actual - 2));
-                            i_min = i;
-                            j_min = j;
-                        }
+                final Candidate[] best = new Candidate[threads];
+                final double bMaxFinal = bMax;
+                runOnThreads(service, threads, t -> {
+                    final Candidate candidate = new Candidate();
+                    for (int i = t; i < n; i += best.length) {
+                        if (active[i])
+                            scanRow(i, sortedRows[i], sortedAt, h, b, active, r, bMaxFinal, candidate);
                     }
-                }
-                dist_e = 0.5 * (h[i_min][j_min] + b[i_min] / (actual - 2)
+                    best[t] = candidate;
+                });
+                final Candidate candidate = new Candidate();
+                for (Candidate other : best)
+                    candidate.update(other.q, other.i, other.j);
+                if (candidate.i == -1) // criterion undefined, join first two active nodes
+                    candidate.setFirstTwoActive(active);
+
+                final int i_min = candidate.i;
+                final int j_min = candidate.j;
+
+                final double dist_e = 0.5 * (h.get(i_min, j_min) + b[i_min] / (actual - 2)
                         - b[j_min] / (actual - 2));
-                dist_f = 0.5 * (h[i_min][j_min] + b[j_min] / (actual - 2)
+                final double dist_f = 0.5 * (h.get(i_min, j_min) + b[j_min] / (actual - 2)
                         - b[i_min] / (actual - 2));
 
-                h[j_min][0] = 0.0;// marking
-                h[0][j_min] = 0.0;
-
-                // tax taxa rescan:
-                tax_old_i = new StringBuffer(tax[i_min].toString());
-                tax_old_j = new StringBuffer(tax[j_min].toString());
-                tax[i_min].insert(0, "(");
-                tax[i_min].append(",");
-                tax[i_min].append(tax[j_min]);
-                tax[i_min].append(")");
-                tax[j_min].delete(0, tax[j_min].length());
-
-                // b rescan:
-
+                active[j_min] = false;
                 b[i_min] = 0.0;
                 b[j_min] = 0.0;
 
-                // fusion of h
-                // double h_min = h[i_min][j_min];
-
-                for (int i = 1; i <= nbNtax; i++) {
-                    if (h[0][i] == 0.0)
+                for (int i = 0; i < n; i++) {
+                    if (!active[i])
                         continue;
-                    //temp=(h[i][i_min] + h[i][j_min] - h_min)/2; This is incorrect
-                    temp = (h[i][i_min] + h[i][j_min] - dist_e - dist_f) / 2; // correct NJ
-
-
+                    final double temp = (h.get(i, i_min) + h.get(i, j_min) - dist_e - dist_f) / 2; // correct NJ
                     if (i != i_min) {
-                        b[i] = b[i] - h[i][i_min] - h[i][j_min] + temp;
+                        b[i] = b[i] - h.get(i, i_min) - h.get(i, j_min) + temp;
                     }
                     b[i_min] += temp;
-                    h[i][i_min] = temp;
-                    b[j_min] = 0.0;
+                    h.set(i, i_min, temp);
                 }
 
-                for (int i = 0; i <= nbNtax; i++) {
-                    h[i_min][i] = h[i][i_min];
-                    h[i][j_min] = 0.0;
-                    h[j_min][i] = 0.0;
-                }
-
-                // generate new Node for merged Taxa:
-                v = tree.newNode();
-                TaxaHashMap.put(tax[i_min].toString(), v);
+                joins.add(i_min + 1, j_min + 1, dist_e, dist_f);
 
-                // generate Edges from two Taxa that are merged to one:
-                e = tree.newEdge(TaxaHashMap.get(tax_old_i.toString()), v);
-                tree.setWeight(e, Math.max(dist_e, 0.0));
-                f = tree.newEdge(TaxaHashMap.get(tax_old_j.toString()), v);
-                tree.setWeight(f, Math.max(dist_f, 0.0));
+                sortedRows[i_min] = sortRow(h, i_min, active);
+                sortedAt[i_min] = n - actual + 1;
+                sortedRows[j_min] = null;
             }
 
             // evaluating last two nodes:
-            for (int i = 1; i <= nbNtax; i++) {
-                if (h[0][i] == 1.0) {
-                    i_min = i;
-                    i++;
-
-                    for (; i <= nbNtax; i++) {
-                        if (h[0][i] == 1.0) {
-                            j_min = i;
-                        }
+            int i_min = -1, j_min = -1;
+            for (int i = 0; i < n; i++) {
+                if (active[i]) {
+                    if (i_min == -1)
+                        i_min = i;
+                    else
+                        j_min = i;
+                }
+            }
+            joins.add(i_min + 1, j_min + 1, h.get(i_min, j_min), 0);
+        } finally {
+            if (service != null)
+                service.shutdownNow();
+        }
+        return joins;
+    }
+
+    /**
+     * scan a row for the pair that minimizes the NJ criterion, stopping when no remaining entry can improve on the best candidate
+     */
+    private static void scanRow(int i, long[] row, int[] sortedAt, TriangularMatrix h, double[] b, boolean[] active, int r, double bMax, Candidate candidate) {
+        final double offset = (b[i] + bMax) / r;
+        for (long entry : row) {
+            final int j = (int) entry;
+            final float key = sortableIntToFloat((int) (entry >> 32));
+            final double lowerBound = (key - Math.ulp(key)) - offset;
+            if (lowerBound > candidate.q + 0.000000001 * (Math.abs(candidate.q) + Math.abs(key) + Math.abs(offset)))
+                break;
+            if (!active[j] || sortedAt[j] > sortedAt[i]) // removed, or value changed since row was sorted
+                continue;
+            final int lo = Math.min(i, j);
+            final int hi = Math.max(i, j);
+            candidate.update(h.get(lo, hi) - ((b[lo] + b[hi]) / r), lo, hi);
+        }
+    }
+
+    /**
+     * sort all active columns of a row by distance. Each entry contains the distance (as sortable float) and the column
+     */
+    private static long[] sortRow(TriangularMatrix h, int i, boolean[] active) {
+        int count = 0;
+        for (int j = 0; j < active.length; j++) {
+            if (active[j] && j != i)
+                count++;
+        }
+        final long[] row = new long[count];
+        count = 0;
+        for (int j = 0; j < active.length; j++) {
+            if (active[j] && j != i)
+                row[count++] = ((long) floatToSortableInt((float) h.get(i, j)) << 32) | j;
+        }
+        java.util.Arrays.sort(row);
+        return row;
+    }
+
+    private static int floatToSortableInt(float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    private static float sortableIntToFloat(int sortable) {
+        return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & 0x7fffffff));
+    }
+
+    /**
+     * run the task for all rows, in parallel, if a service is given
+     */
+    private static void runOnRows(ExecutorService service, int numberOfThreads, int n, IntTask task) throws CanceledException {
+        runOnThreads(service, numberOfThreads, t -> {
+            for (int i = t; i < n; i += numberOfThreads)
+                task.apply(i);
+        });
+    }
+
+    /**
+     * run the task once for each thread number, in parallel, if a service is given
+     */
+    private static void runOnThreads(ExecutorService service, int numberOfThreads, IntTask task) throws CanceledException {
+        if (service == null) {
+            for (int t = 0; t < numberOfThreads; t++)
+                task.apply(t);
+        } else {
+            final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+            for (int t = 0; t < numberOfThreads; t++) {
+                final int thread = t;
+                service.submit(() -> {
+                    try {
+                        task.apply(thread);
+                    } finally {
+                        countDownLatch.countDown();
                     }
+                });
+            }
+            try {
+                countDownLatch.await();
+            } catch (InterruptedException e) {
+                throw new CanceledException();
+            }
+        }
+    }
+
+    private interface IntTask {
+        void apply(int value);
+    }
+
+    /**
+     * best pair found so far. Ties are broken by the smallest first index and then the smallest second index
+     */
+    private static class Candidate {
+        double q = Double.MAX_VALUE;
+        int i = -1;
+        int j = -1;
+
+        void update(double q, int i, int j) {
+            if (q < this.q || (q == this.q && i != -1 && this.i != -1 && (i < this.i || (i == this.i && j < this.j)))) {
+                this.q = q;
+                this.i = i;
+                this.j = j;
+            }
+        }
+
+        void setFirstTwoActive(boolean[] active) {
+            i = j = -1;
+            for (int k = 0; k < active.length && j == -1; k++) {
+                if (active[k]) {
+                    if (i == -1)
+                        i = k;
+                    else
+                        j = k;
                 }
             }
-            tax_old_i = new StringBuffer(tax[i_min].toString());
-            tax_old_j = new StringBuffer(tax[j_min].toString());
-
-            tax[i_min].insert(0, "(");
-            tax[i_min].append(",");
-            tax[i_min].append(tax[j_min]);
-            tax[i_min].append(")");
-            tax[j_min].delete(0, tax[j_min].length()); //not neces. but sets content to NULL
-
-            // generate new Node for merged Taxa:
-            // generate Edges from two Taxa that are merged to one:
-            e = tree.newEdge(TaxaHashMap.get
-                    (tax_old_i.toString()), TaxaHashMap.get(tax_old_j.toString()));
-            tree.setWeight(e, Math.max(h[i_min][j_min], 0.0));
-        } catch (Exception ex) {
-            Basic.caught(ex);
         }
-        //System.err.println(tree.toString());
+    }
+
+    /**
+     * sequence of joins. For each join, the two joined nodes and their edge weights. The last entry contains the final edge
+     */
+    static class Joins {
+        final int[] first;
+        final int[] second;
+        final double[] firstWeight;
+        final double[] secondWeight;
+        private int count = 0;
+
+        Joins(int n) {
+            first = new int[Math.max(1, n - 1)];
+            second = new int[first.length];
+            firstWeight = new double[first.length];
+            secondWeight = new double[first.length];
+        }
+
+        void add(int i, int j, double weightI, double weightJ) {
+            first[count] = i;
+            second[count] = j;
+            firstWeight[count] = weightI;
+            secondWeight[count++] = weightJ;
+        }
+
+        /**
+         * number of joins, not including the final edge
+         */
+        int size() {
+            return count - 1;
+        }
     }
 
     /**
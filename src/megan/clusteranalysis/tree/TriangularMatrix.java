@@ -0,0 +1,57 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.clusteranalysis.tree;
+
+/**
+ * symmetric matrix, including the diagonal, stored as a lower triangle in a single array
+ * Daniel Huson, 10.2019
+ */
+class TriangularMatrix {
+    private final int size;
+    private final double[] values;
+
+    /**
+     * constructor
+     *
+     * @param size number of rows and columns
+     */
+    TriangularMatrix(int size) {
+        final long length = (long) size * (size + 1) / 2;
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Matrix too large: " + size);
+        this.size = size;
+        this.values = new double[(int) length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    double get(int i, int j) {
+        return values[index(i, j)];
+    }
+
+    void set(int i, int j, double value) {
+        values[index(i, j)] = value;
+    }
+
+    private static int index(int i, int j) {
+        return (i >= j ? (int) ((long) i * (i + 1) / 2) + j : (int) ((long) j * (j + 1) / 2) + i);
+    }
+}
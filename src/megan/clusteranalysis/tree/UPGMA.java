@@ -29,7 +29,7 @@ import java.util.LinkedList;
 
 /**
  * run the UPGMA algorithm and compute an embedding
- * Daniel Huson, 3.2011 (enroute Frankfurt - Washington D.C.)
+ * Daniel Huson, 3.2011 (enroute Frankfurt - Washington D.C.), 10.2019
  */
 public class UPGMA {
     private static UPGMA instance;
@@ -50,6 +50,10 @@ public class UPGMA {
 
     /**
      * run the UPGMA algorithm
+     * <p>
+     * Distances are kept in a triangular array and the nearest neighbor of each row is cached, so that the closest pair is found by
+     * a linear scan of the rows and only rows affected by a merge are rescanned. Merges, ties and arithmetic are the same as in
+     * the quadratic scan, so the resulting tree is the same
      *
      * @param taxa
      * @param dist
@@ -70,35 +74,33 @@ public class UPGMA {
             sizes[i] = 1;
         }
 
-        double[][] d = new double[ntax + 1][ntax + 1];// distance matix
+        final TriangularMatrix d = new TriangularMatrix(ntax + 1); // distance matrix
 
         //Initialise d
-        //Compute the closest values for each taxa.
         for (int i = 1; i <= ntax; i++) {
             for (int j = i + 1; j <= ntax; j++) {
-                double dij = (dist.get(i, j) + dist.get(j, i)) / 2.0;// distance matix h
-                d[i][j] = d[j][i] = dij;
-
+                d.set(i, j, (dist.get(i, j) + dist.get(j, i)) / 2.0);
             }
         }
 
+        // nearest neighbor of each row i, considering only columns j>i:
+        final int[] nearest = new int[ntax + 1];
+        final double[] nearestDistance = new double[ntax + 1];
+        for (int i = 1; i <= ntax; i++)
+            updateNearest(d, i, ntax, nearest, nearestDistance);
+
         for (int actual = ntax; actual > 2; actual--) {
 
-            int i_min = 0, j_min = 0;
+            int i_min = 0, j_min;
             //Find closest pair.
             double d_min = Double.MAX_VALUE;
-            for (int i = 1; i <= actual; i++) {
-                for (int j = i + 1; j <= actual; j++) {
-                    double dij = d[i][j];
-                    if (i_min == 0 || dij < d_min) {
-                        i_min = i;
-                        j_min = j;
-                        d_min = dij;
-                    }
+            for (int i = 1; i < actual; i++) {
+                if (i_min == 0 || nearestDistance[i] < d_min) {
+                    i_min = i;
+                    d_min = nearestDistance[i];
                 }
-
             }
-
+            j_min = nearest[i_min];
 
             double height = d_min / 2.0;
 
@@ -117,22 +119,35 @@ public class UPGMA {
             int size_j = sizes[j_min];
             sizes[i_min] = size_i + size_j;
 
-            for (int k = 1; k <= ntax; k++) {
+            for (int k = 1; k <= actual; k++) {
                 if ((k == i_min) || k == j_min) continue;
-                double dki = (d[k][i_min] * size_i + d[k][j_min] * size_j) / ((double) (size_i + size_j));
-                d[k][i_min] = d[i_min][k] = dki;
+                double dki = (d.get(k, i_min) * size_i + d.get(k, j_min) * size_j) / ((double) (size_i + size_j));
+                d.set(k, i_min, dki);
             }
 
             //Copy the top row of the matrix and arrays into the empty j_min row/column.
             if (j_min < actual) {
                 for (int k = 1; k <= actual; k++) {
-                    d[j_min][k] = d[k][j_min] = d[actual][k];
+                    d.set(j_min, k, d.get(actual, k));
                 }
-                d[j_min][j_min] = 0.0;
+                d.set(j_min, j_min, 0.0);
                 subtrees[j_min] = subtrees[actual];
                 sizes[j_min] = sizes[actual];
                 heights[j_min] = heights[actual];
             }
+
+            // update nearest neighbors of rows affected by the merge:
+            final int last = actual - 1;
+            for (int k = 1; k < last; k++) {
+                if (k == i_min || k == j_min || nearest[k] == i_min || nearest[k] == j_min || nearest[k] == actual || Double.isNaN(nearestDistance[k]))
+                    updateNearest(d, k, last, nearest, nearestDistance);
+                else {
+                    if (i_min > k && !improveNearest(k, i_min, d.get(k, i_min), nearest, nearestDistance))
+                        updateNearest(d, k, last, nearest, nearestDistance);
+                    else if (j_min > k && j_min < actual && !improveNearest(k, j_min, d.get(k, j_min), nearest, nearestDistance))
+                        updateNearest(d, k, last, nearest, nearestDistance);
+                }
+            }
         }
 
         int sister = 2;
@@ -144,7 +159,7 @@ public class UPGMA {
 
         double w1, w2;
         double delta = Math.abs(heights[1] - heights[sister]);
-        double distance = d[1][sister] - delta;
+        double distance = d.get(1, sister) - delta;
 
         if (heights[1] <= heights[sister]) {
             w1 = 0.5 * distance + delta;
@@ -160,6 +175,36 @@ public class UPGMA {
         tree.setWeight(e2, w2);
     }
 
+    /**
+     * determine the nearest neighbor j of row i, for i<j<=last. In case of ties, the smallest j is used
+     */
+    private static void updateNearest(TriangularMatrix d, int i, int last, int[] nearest, double[] nearestDistance) {
+        nearest[i] = 0;
+        nearestDistance[i] = Double.MAX_VALUE;
+        for (int j = i + 1; j <= last; j++) {
+            final double dij = d.get(i, j);
+            if (nearest[i] == 0 || dij < nearestDistance[i]) {
+                nearest[i] = j;
+                nearestDistance[i] = dij;
+            }
+        }
+    }
+
+    /**
+     * update the nearest neighbor of row i, if the given column is closer
+     *
+     * @return false, if the comparison is undefined and the row must be rescanned
+     */
+    private static boolean improveNearest(int i, int j, double dij, int[] nearest, double[] nearestDistance) {
+        if (Double.isNaN(dij))
+            return false;
+        if (dij < nearestDistance[i] || (dij == nearestDistance[i] && j < nearest[i])) {
+            nearest[i] = j;
+            nearestDistance[i] = dij;
+        }
+        return true;
+    }
+
     /**
      * embed the tree
      *
@@ -144,7 +144,7 @@ public class CompareGroupsCommand extends jloda.swing.commands.CommandBase imple
                     tmpDocument.setMaxExpected(10000);
                     tmpDocument.setMinSupport(1);
                     tmpDocument.setDirty(true);
-                    for (String classificationName : tmpDocument.getDataTable().getClassification2Class2Counts().keySet()) {
+                    for (String classificationName : tmpDocument.getDataTable().getClassificationNames()) {
                         tmpDocument.getActiveViewers().add(classificationName);
                     }
 
@@ -179,7 +179,7 @@ public class CompareGroupsCommand extends jloda.swing.commands.CommandBase imple
             newDocument.setMinSupportPercent(0);
             newDocument.setMinSupport(1);
             newDocument.setMaxExpected(10000);
-            newDocument.getActiveViewers().addAll(newDocument.getDataTable().getClassification2Class2Counts().keySet());
+            newDocument.getActiveViewers().addAll(newDocument.getDataTable().getClassificationNames());
             newDocument.setDirty(true);
             if (newDocument.getNumberOfSamples() > 1) {
                 newViewer.getNodeDrawer().setStyle(ProgramProperties.get(MeganProperties.COMPARISON_STYLE, ""), NodeDrawer.Style.BarChart);
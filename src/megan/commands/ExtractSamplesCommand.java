@@ -87,7 +87,7 @@ public class ExtractSamplesCommand extends CommandBase implements ICommand {
                 newDocument.setMaxExpected(10000);
                 newDocument.setMinSupport(1);
                 newDocument.setDirty(true);
-                newDocument.getActiveViewers().addAll(newDocument.getDataTable().getClassification2Class2Counts().keySet());
+                newDocument.getActiveViewers().addAll(newDocument.getDataTable().getClassificationNames());
 
                 if (newDocument.getNumberOfSamples() > 1) {
                     newDir.getMainViewer().getNodeDrawer().setStyle(ProgramProperties.get(MeganProperties.COMPARISON_STYLE, ""), NodeDrawer.Style.PieChart);
@@ -49,7 +49,7 @@ import java.util.Objects;
 
 public class SaveCommand extends CommandBase implements ICommand {
     public String getSyntax() {
-        return "save file=<filename> [summary={true|false}];";
+        return "save file=<filename> [summary={true|false}] [binary={false|true}];";
     }
 
     public void apply(NexusStreamParser np) throws Exception {
@@ -65,6 +65,11 @@ public class SaveCommand extends CommandBase implements ICommand {
                 np.matchIgnoreCase("summary=");
                 summary = np.getBoolean();
             }
+            boolean binary = ProgramProperties.get("SaveSummaryAsBinary", false);
+            if (np.peekMatchIgnoreCase("binary")) {
+                np.matchIgnoreCase("binary=");
+                binary = np.getBoolean();
+            }
             np.matchIgnoreCase(";");
             File file = new File(fileName);
             doc.getProgressListener().setTasks("Saving MEGAN file", file.getName());
@@ -85,15 +90,22 @@ public class SaveCommand extends CommandBase implements ICommand {
                     }
                 }
 
-                try (FileWriter writer = new FileWriter(fileName)) {
-                    if (!doc.getChartColorManager().isUsingProgramColors()) {
-                        doc.getDataTable().setColorTable(doc.getChartColorManager().getColorTableName(), doc.getChartColorManager().isColorByPosition(), doc.getChartColorManager().getHeatMapTable().getName());
-                        doc.getDataTable().setColorEdits(doc.getChartColorManager().getColorEdits());
-                    }
+                if (!doc.getChartColorManager().isUsingProgramColors()) {
+                    doc.getDataTable().setColorTable(doc.getChartColorManager().getColorTableName(), doc.getChartColorManager().isColorByPosition(), doc.getChartColorManager().getHeatMapTable().getName());
+                    doc.getDataTable().setColorEdits(doc.getChartColorManager().getColorEdits());
+                }
+                doc.getDataTable().setParameters(doc.getParameterString());
 
-                    doc.getDataTable().setParameters(doc.getParameterString());
-                    doc.getDataTable().write(writer);
-                    doc.getSampleAttributeTable().write(writer, false, true);
+                // load all counts before the file is opened for writing, as they may be mapped from the file that is about to be overwritten:
+                doc.getDataTable().loadAllClassifications();
+
+                if (binary) {
+                    doc.getDataTable().writeBinary(fileName, doc.getSampleAttributeTable());
+                } else {
+                    try (FileWriter writer = new FileWriter(fileName)) {
+                        doc.getDataTable().write(writer);
+                        doc.getSampleAttributeTable().write(writer, false, true);
+                    }
                 }
                 if (doc.getMeganFile().getFileType() == MeganFile.Type.UNKNOWN_FILE)
                     doc.getMeganFile().setFileType(MeganFile.Type.MEGAN_SUMMARY_FILE);
@@ -134,7 +134,7 @@ public class CompareByAttributeCommand extends CommandBase implements ICommand {
                         factor[i] = (newSize > 0 ? (double) newSize / (double) newDocument.getNumberOfReads(tarSample) : 0);
                     }
                     final DataTable dataTable = newDocument.getDataTable();
-                    for (String classificationName : dataTable.getClassification2Class2Counts().keySet()) {
+                    for (String classificationName : dataTable.getClassificationNames()) {
                         Map<Integer, float[]> class2counts = dataTable.getClass2Counts(classificationName);
                         for (Integer classId : class2counts.keySet()) {
                             float[] counts = class2counts.get(classId);
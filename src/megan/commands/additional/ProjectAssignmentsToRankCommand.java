@@ -107,7 +107,7 @@ public class ProjectAssignmentsToRankCommand extends CommandBase implements ICom
         newDocument.setMinSupport(1);
         newDocument.setDirty(true);
         newDocument.getDataTable().setParameters(doc.getDataTable().getParameters());
-        newDocument.getActiveViewers().addAll(newDocument.getDataTable().getClassification2Class2Counts().keySet());
+        newDocument.getActiveViewers().addAll(newDocument.getDataTable().getClassificationNames());
         newDocument.getSampleAttributeTable().addTable(sampleAttributeTable, true, true);
 
         NotificationsInSwing.showInformation(String.format("Computed taxonomic profile for %,d reads", newDocument.getNumberOfReads()));
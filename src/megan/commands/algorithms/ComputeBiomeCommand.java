@@ -123,7 +123,7 @@ public class ComputeBiomeCommand extends CommandBase implements ICommand {
             newDocument.setMinSupport(1);
             newDocument.setMinSupportPercent(0);
             newDocument.setDirty(true);
-            for (String classificationName : newDocument.getDataTable().getClassification2Class2Counts().keySet()) {
+            for (String classificationName : newDocument.getDataTable().getClassificationNames()) {
                 newDocument.getActiveViewers().add(classificationName);
             }
 
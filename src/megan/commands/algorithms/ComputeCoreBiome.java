@@ -57,7 +57,7 @@ public class ComputeCoreBiome {
 
         if (sampleIds.cardinality() > 0) {
             DataTable dataTable = srcDoc.getDataTable();
-            for (String classificationName : dataTable.getClassification2Class2Counts().keySet()) {
+            for (String classificationName : dataTable.getClassificationNames()) {
                 final Map<Integer, float[]> srcClass2counts = srcDoc.getDataTable().getClass2Counts(classificationName);
                 final Node root;
 
@@ -85,7 +85,7 @@ public class ComputeCoreBiome {
                 }
             }
             if (size == 0) {
-                for (String classificationName : dataTable.getClassification2Class2Counts().keySet()) {
+                for (String classificationName : dataTable.getClassificationNames()) {
                     if (!classificationName.equals(ClassificationType.Taxonomy.toString())) {
                         final Map<Integer, float[]> id2counts = tarClassification2class2counts.get(classificationName);
                         if (id2counts != null) {
@@ -18,6 +18,7 @@
  */
 package megan.commands.export;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.swing.commands.ICommand;
 import jloda.swing.util.ResourceManager;
 import jloda.swing.window.NotificationsInSwing;
@@ -40,7 +41,9 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -167,7 +170,9 @@ public class ExportAlignmentsCommand extends CommandBase implements ICommand {
 
             Classification classification = (classificationName.equals(Classification.Taxonomy) ? null : ClassificationManager.get(classificationName, true));
 
-            for (Integer classId : classIds) {
+            final List<Integer> classIdList = new ArrayList<>(classIds);
+            final List<String> classNames = new ArrayList<>(classIdList.size());
+            for (Integer classId : classIdList) {
                 final String className;
                 if (getViewer() instanceof MainViewer) {
                     className = TaxonomyData.getName2IdMap().get(classId);
@@ -175,16 +180,16 @@ public class ExportAlignmentsCommand extends CommandBase implements ICommand {
                     className = classification.getName2IdMap().get(classId);
                 } else
                     className = "Unknown";
-
-                alignmentExporter.loadData(classificationName, classId, className, refSeqOnly, doc.getProgressListener());
-
-                Pair<Integer, Integer> numberOfReadsAndFiles = alignmentExporter.exportToFiles(totalFiles, fileName,
-                        useEachReadOnlyOnce, blastXAsProtein, asConsensus, minReads, minLength, minCoverage,
-                        doc.getProgressListener());
-                totalReads += numberOfReadsAndFiles.getFirst();
-                totalFiles = numberOfReadsAndFiles.getSecond();
+                classNames.add(className);
             }
 
+            // all classes are processed in one pass over the reads, where supported:
+            final Pair<Integer, Integer> numberOfReadsAndFiles = alignmentExporter.exportToFiles(classificationName, classIdList, classNames, refSeqOnly, fileName,
+                    useEachReadOnlyOnce, blastXAsProtein, asConsensus, minReads, minLength, minCoverage, ProgramExecutorService.getNumberOfCoresToUse(),
+                    doc.getProgressListener());
+            totalReads += numberOfReadsAndFiles.getFirst();
+            totalFiles = numberOfReadsAndFiles.getSecond();
+
             doc.getProgressListener().close();
             NotificationsInSwing.showInformation(getViewer().getFrame(), "Wrote " + totalReads + " sequences to " + totalFiles + " files");
         }
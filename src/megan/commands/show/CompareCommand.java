@@ -29,6 +29,7 @@ import megan.core.Document;
 import megan.core.MeganFile;
 import megan.dialogs.compare.CompareWindow;
 import megan.dialogs.compare.Comparer;
+import megan.dialogs.compare.SummaryComparer;
 import megan.main.MeganProperties;
 import megan.util.MeganFileFilter;
 import megan.util.MeganizedDAAFileFilter;
@@ -48,7 +49,7 @@ public class CompareCommand extends CommandBase implements ICommand {
     public String getSyntax() {
         return "compare mode={" + Basic.toString(Comparer.COMPARISON_MODE.values(), "|") + "}" +
                 " readAssignmentMode={" + Basic.toString(Document.ReadAssignmentMode.values(), "|") + "}" +
-                " [keep1={false|true}] [ignoreUnassigned={false|true}] [pid=<number> ...] [meganFile=<filename> ...];";
+                " [keep1={false|true}] [ignoreUnassigned={false|true}] [maxOpenFiles=<number>] [appendTo=<filename>] [pid=<number> ...] [meganFile=<filename> ...];";
     }
 
     public void apply(NexusStreamParser np) throws Exception {
@@ -81,9 +82,26 @@ public class CompareCommand extends CommandBase implements ICommand {
             np.matchIgnoreCase("ignoreUnassigned=");
             comparer.setIgnoreUnassigned(np.getBoolean());
         }
+
+        int maxOpenFiles = ProgramProperties.get("ComparisonMaxOpenFiles", 64);
+        if (np.peekMatchIgnoreCase("maxOpenFiles")) {
+            np.matchIgnoreCase("maxOpenFiles=");
+            maxOpenFiles = np.getInt(1, Integer.MAX_VALUE);
+        }
+
+        String appendTo = null;
+        if (np.peekMatchIgnoreCase("appendTo")) {
+            np.matchIgnoreCase("appendTo=");
+            appendTo = np.getWordRespectCase();
+            Basic.checkFileReadableNonEmpty(appendTo);
+        }
+
         final java.util.List<Director> toDelete = new LinkedList<>();
+        SummaryComparer summaryComparer = null;
         try {
+            boolean hasProjects = false;
             if (np.peekMatchIgnoreCase("pid")) {
+                hasProjects = true;
                 np.matchIgnoreCase("pid=");
                 do {
                     int pid = np.getInt();
@@ -115,6 +133,21 @@ public class CompareCommand extends CommandBase implements ICommand {
                 } while (!np.peekMatchIgnoreCase(";"));
                 np.matchIgnoreCase(";");
 
+                if (appendTo != null && (hasProjects || files.stream().anyMatch(name -> name.contains("::"))))
+                    throw new IOException("Appending to an existing comparison is only supported for local files");
+
+                if (!hasProjects && files.stream().noneMatch(name -> name.contains("::"))) {
+                    // only local files, so read their summaries directly, without opening a document for each
+                    summaryComparer = new SummaryComparer();
+                    summaryComparer.setMode(comparer.getMode().toString());
+                    summaryComparer.setKeep1(comparer.isKeep1());
+                    summaryComparer.setIgnoreUnassigned(comparer.isIgnoreUnassigned());
+                    summaryComparer.setMaxOpenFiles(maxOpenFiles);
+                    for (String fileName : files)
+                        summaryComparer.addFile(fileName);
+                    files.clear();
+                }
+
                 progress.setProgress(0);
                 progress.setMaximum(files.size());
                 for (String fileName : files) {
@@ -135,7 +168,14 @@ public class CompareCommand extends CommandBase implements ICommand {
 
             doc.clearReads();
             doc.setReadAssignmentMode(readAssignmentMode);
-            comparer.computeComparison(doc.getSampleAttributeTable(), doc.getDataTable(), progress);
+            if (appendTo != null) {
+                if (summaryComparer == null)
+                    throw new IOException("Appending to an existing comparison requires files to append");
+                summaryComparer.appendToComparison(appendTo, doc.getSampleAttributeTable(), doc.getDataTable(), progress);
+            } else if (summaryComparer != null)
+                summaryComparer.computeComparison(doc.getSampleAttributeTable(), doc.getDataTable(), progress);
+            else
+                comparer.computeComparison(doc.getSampleAttributeTable(), doc.getDataTable(), progress);
             doc.setNumberReads(doc.getDataTable().getTotalReads());
             doc.getMeganFile().setEmbeddedSourceFiles(doc.getSampleAttributeTable().getSourceFiles());
             doc.processReadHits();
@@ -144,7 +184,7 @@ public class CompareCommand extends CommandBase implements ICommand {
             doc.setMinSupportPercent(0);
             doc.setMinSupport(1);
             doc.setMaxExpected(10000);
-            doc.getActiveViewers().addAll(doc.getDataTable().getClassification2Class2Counts().keySet());
+            doc.getActiveViewers().addAll(doc.getDataTable().getClassificationNames());
             doc.setDirty(true);
             doc.getMeganFile().setFileType(MeganFile.Type.MEGAN_SUMMARY_FILE);
             final MainViewer mainViewer = dir.getMainViewer();
@@ -94,6 +94,7 @@ public class DataTable {
     private String contaminants;
 
     private final Map<String, Map<Integer, float[]>> classification2class2counts = new HashMap<>();
+    private final Map<String, IClass2CountsLoader> classification2loader = new HashMap<>();
 
     /**
      * constructor
@@ -121,6 +122,7 @@ public class DataTable {
         classification2EdgeFormats.clear();
         parameters = null;
         classification2class2counts.clear();
+        classification2loader.clear();
         // don't clear contaminants
     }
 
@@ -351,6 +353,26 @@ public class DataTable {
 
     }
 
+    /**
+     * write the data table and sample attributes to a binary file, see DataTableBinary
+     *
+     * @param fileName
+     * @param sampleAttributeTable
+     * @throws IOException
+     */
+    public void writeBinary(String fileName, SampleAttributeTable sampleAttributeTable) throws IOException {
+        loadAllClassifications(); // the file may be the one that the counts are loaded from
+        if (originalData != null && disabledSamples.size() > 0) {
+            originalData.disabledSamples.addAll(disabledSamples);
+            try {
+                DataTableBinary.write(originalData, sampleAttributeTable, fileName);
+            } finally {
+                originalData.disabledSamples.clear();
+            }
+        } else
+            DataTableBinary.write(this, sampleAttributeTable, fileName);
+    }
+
     /**
      * write data to writer
      *
@@ -364,6 +386,7 @@ public class DataTable {
             originalData.write(w, false);
             originalData.disabledSamples.clear();
         } else {
+            loadAllClassifications();
             // write the header:
             writeHeader(w);
 
@@ -500,6 +523,7 @@ public class DataTable {
             w.write(String.format("<b>%s:</b> %d<br>\n", ADDITIONAL_READS.substring(1), additionalReads));
 
         w.write("<b>Classifications:</b> ");
+        loadAllClassifications();
         for (String classification : classification2class2counts.keySet()) {
             Map<Integer, float[]> class2counts = classification2class2counts.get(classification);
             int size = class2counts != null ? class2counts.size() : 0;
@@ -556,6 +580,7 @@ public class DataTable {
             w.write(String.format("%s\t%d\n", ADDITIONAL_READS, additionalReads));
 
         w.write("Classifications:\n");
+        loadAllClassifications();
         for (String classification : classification2class2counts.keySet()) {
             Map<Integer, float[]> class2counts = classification2class2counts.get(classification);
             int size = class2counts != null ? class2counts.size() : 0;
@@ -674,7 +699,7 @@ public class DataTable {
      */
     private void determineSizesFromTaxonomyClassification() {
         // determine sizes:
-        Map<Integer, float[]> class2count = classification2class2counts.get(ClassificationType.Taxonomy.toString());
+        Map<Integer, float[]> class2count = getClass2Counts(ClassificationType.Taxonomy.toString());
         if (class2count != null) {
             float[] sizes = new float[getNumberOfSamples()];
             for (Integer classId : class2count.keySet()) {
@@ -709,14 +734,78 @@ public class DataTable {
     }
 
     /**
-     * gets the classification2class2counts mapping
+     * gets the classification2class2counts mapping. This loads all classifications that are loaded on demand,
+     * use getClassificationNames() and getClass2Counts(classification) to access one classification at a time
      *
      * @return mapping
      */
     public Map<String, Map<Integer, float[]>> getClassification2Class2Counts() {
+        loadAllClassifications();
         return classification2class2counts;
     }
 
+    /**
+     * gets the names of all classifications, without loading any classifications that are loaded on demand
+     *
+     * @return classification names
+     */
+    public synchronized Collection<String> getClassificationNames() {
+        final Set<String> names = new TreeSet<>(classification2class2counts.keySet());
+        names.addAll(classification2loader.keySet());
+        return names;
+    }
+
+    /**
+     * set a loader that is used to load the counts of the given classification when they are first accessed
+     *
+     * @param classification
+     * @param loader
+     */
+    public synchronized void setClass2CountsLoader(String classification, IClass2CountsLoader loader) {
+        classification2class2counts.remove(classification);
+        classification2loader.put(classification, loader);
+    }
+
+    /**
+     * does the given classification still have to be loaded?
+     *
+     * @param classification
+     * @return true, if not yet loaded
+     */
+    public synchronized boolean isLoadedOnDemand(String classification) {
+        return classification2loader.containsKey(classification);
+    }
+
+    /**
+     * load the counts of a classification, if it has not been loaded yet
+     *
+     * @param classification
+     */
+    private synchronized void loadClassification(String classification) {
+        final IClass2CountsLoader loader = classification2loader.remove(classification);
+        if (loader != null) {
+            try {
+                classification2class2counts.put(classification, loader.load());
+            } catch (IOException ex) {
+                Basic.caught(ex);
+                classification2class2counts.put(classification, new HashMap<>());
+            }
+        }
+    }
+
+    /**
+     * load all classifications that have not been loaded yet, also those of the original data, if present.
+     * Must be called before the file that the counts are loaded from is overwritten
+     */
+    public synchronized void loadAllClassifications() {
+        if (classification2loader.size() > 0) {
+            for (String classification : new ArrayList<>(classification2loader.keySet()))
+                loadClassification(classification);
+        }
+        if (originalData != null)
+            originalData.loadAllClassifications();
+    }
+
     /**
      * set the classification2class2count value for a given classification, classId, datasetid and count
      *
@@ -726,6 +815,7 @@ public class DataTable {
      * @param count
      */
     public void setClassification2Class2Count(String classification, int classId, int sampleId, float count) {
+        loadClassification(classification);
         Map<Integer, float[]> class2count = classification2class2counts.get(classification);
         if (class2count == null)
             class2count = new HashMap<>();
@@ -1010,14 +1100,16 @@ public class DataTable {
     }
 
     public Map<Integer, float[]> getClass2Counts(ClassificationType classification) {
-        return classification2class2counts.get(classification.toString());
+        return getClass2Counts(classification.toString());
     }
 
-    public Map<Integer, float[]> getClass2Counts(String classification) {
+    public synchronized Map<Integer, float[]> getClass2Counts(String classification) {
+        loadClassification(classification);
         return classification2class2counts.get(classification);
     }
 
-    public void setClass2Counts(String classification, Map<Integer, float[]> classId2count) {
+    public synchronized void setClass2Counts(String classification, Map<Integer, float[]> classId2count) {
+        classification2loader.remove(classification);
         classification2class2counts.put(classification, classId2count);
     }
 
@@ -1115,6 +1207,7 @@ public class DataTable {
         }
         int alive = sampleNames.size();
         // System.err.println("Remaining sample name: "+Basic.toString(sampleNames,","));
+        loadAllClassifications();
 
         for (Map<Integer, float[]> class2counts : classification2class2counts.values()) {
             for (Integer classId : class2counts.keySet()) {
@@ -1186,6 +1279,8 @@ public class DataTable {
 
             int tarId = Basic.getIndex(sample, target.sampleNames);
 
+            source.loadAllClassifications();
+            target.loadAllClassifications();
             for (String classification : source.classification2class2counts.keySet()) {
                 Map<Integer, float[]> sourceClass2counts = source.classification2class2counts.get(classification);
                 Map<Integer, float[]> targetClass2counts = target.classification2class2counts.computeIfAbsent(classification, k -> new HashMap<>());
@@ -1221,6 +1316,7 @@ public class DataTable {
 
             int tarId = Basic.getIndex(sample, this.sampleNames);
 
+            loadAllClassifications();
             for (String classification : sourceClassification2class2counts.keySet()) {
                 Map<Integer, float[]> sourceClass2counts = sourceClassification2class2counts.get(classification);
                 Map<Integer, float[]> targetClass2counts = this.classification2class2counts.computeIfAbsent(classification, k -> new HashMap<>());
@@ -1290,6 +1386,7 @@ public class DataTable {
         blastModes.add(mode);
 
         int tarId = Basic.getIndex(newName, sampleNames);
+        loadAllClassifications();
         for (Map<Integer, float[]> class2counts : classification2class2counts.values()) {
             for (Integer classId : class2counts.keySet()) {
                 float[] counts = class2counts.get(classId);
@@ -1335,9 +1432,8 @@ public class DataTable {
         final BlastMode[] modes = modify(order, getBlastModes());
         setSamples(datasetNames, uids, sizes, modes);
 
-        final Map<String, Map<Integer, float[]>> classification2Class2Counts = getClassification2Class2Counts();
-        for (String classification : classification2Class2Counts.keySet()) {
-            final Map<Integer, float[]> class2Counts = classification2Class2Counts.get(classification);
+        for (String classification : getClassificationNames()) {
+            final Map<Integer, float[]> class2Counts = getClass2Counts(classification);
             final Set<Integer> keys = new HashSet<>(class2Counts.keySet());
             for (Integer classId : keys) {
                 float[] values = class2Counts.get(classId);
@@ -1520,6 +1616,7 @@ public class DataTable {
         setTotalReads(totalReads);
 
         // write the data:
+        originalData.loadAllClassifications();
         for (String classification : originalData.classification2class2counts.keySet()) {
             Map<Integer, float[]> origClass2counts = originalData.classification2class2counts.get(classification);
             Map<Integer, float[]> class2counts = classification2class2counts.computeIfAbsent(classification, k -> new HashMap<>());
@@ -1571,4 +1668,10 @@ public class DataTable {
         return sampleIds;
     }
 
+    /**
+     * loads the counts of a classification on demand
+     */
+    public interface IClass2CountsLoader {
+        Map<Integer, float[]> load() throws IOException;
+    }
 }
@@ -0,0 +1,342 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.core;
+
+import jloda.util.Basic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * binary, memory-mappable format for MEGAN summary files
+ * <p>
+ * Layout (all numbers big-endian):
+ * magic, version,
+ * header block: the data table header in text format,
+ * sample attributes block: the sample attribute table in text format,
+ * one block per classification, in compressed sparse row format: class ids, array lengths, row starts,
+ * sample indices and counts of all non-zero entries,
+ * directory: number of samples, offsets and sizes of all blocks,
+ * trailer: offset of directory.
+ * <p>
+ * The header and sample attributes are read immediately, the classification blocks are memory mapped and only decoded when
+ * the classification is first accessed, so viewers only pay for the classifications that they display.
+ * Writing a file read from text format and reading it back gives the same data table.
+ * As the counts of a classification are only decoded when first accessed, all classifications must be loaded before
+ * the file that they are mapped from is overwritten, see DataTable.loadAllClassifications().
+ * Binary files keep the .megan suffix, so that all existing file filters, dialogs and recent-file handling apply to them,
+ * and are distinguished from text summary files only by the magic number at the start of the file. Versions of MEGAN that
+ * predate this format cannot open them.
+ * Daniel Huson, 10.2019
+ */
+public class DataTableBinary {
+    private static final byte[] MAGIC = "MEGANBIN".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private static final int SEGMENT_BYTES_BITS = 30; // map arrays in segments of 1GB
+
+    /**
+     * does the named file use the binary format?
+     *
+     * @param fileName
+     * @return true, if file starts with the binary format magic number
+     */
+    public static boolean isBinaryFile(String fileName) {
+        try (InputStream ins = new FileInputStream(fileName)) {
+            final byte[] bytes = new byte[MAGIC.length];
+            return ins.read(bytes) == MAGIC.length && Arrays.equals(bytes, MAGIC);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * write a data table and sample attribute table in binary format
+     *
+     * @param table
+     * @param sampleAttributeTable
+     * @param fileName
+     * @throws IOException
+     */
+    static void write(DataTable table, SampleAttributeTable sampleAttributeTable, String fileName) throws IOException {
+        table.loadAllClassifications(); // before the file is truncated, as it may be the one that the counts are mapped from
+        final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 20));
+        try (DataOutputStream outs = new DataOutputStream(counter)) {
+            outs.write(MAGIC);
+            outs.writeInt(VERSION);
+
+            final long headerPos = counter.getPosition();
+            final byte[] header = table.getUserStateAsBytes();
+            outs.write(header);
+
+            final long attributesPos = counter.getPosition();
+            final StringWriter w = new StringWriter();
+            sampleAttributeTable.write(w, false, true);
+            final byte[] attributes = w.toString().getBytes(StandardCharsets.UTF_8);
+            outs.write(attributes);
+
+            final List<BlockInfo> blocks = new ArrayList<>();
+            for (String classification : table.getClassificationNames()) {
+                final Map<Integer, float[]> class2counts = table.getClass2Counts(classification);
+                final BlockInfo block = new BlockInfo(classification);
+                block.position = counter.getPosition();
+                block.numberOfClasses = class2counts.size();
+
+                final Integer[] classIds = class2counts.keySet().toArray(new Integer[0]);
+                Arrays.sort(classIds);
+                for (Integer classId : classIds) {
+                    outs.writeInt(classId);
+                }
+                for (Integer classId : classIds) {
+                    outs.writeInt(class2counts.get(classId).length);
+                }
+                long nonZero = 0;
+                outs.writeLong(nonZero);
+                for (Integer classId : classIds) {
+                    for (float count : class2counts.get(classId)) {
+                        if (count != 0)
+                            nonZero++;
+                    }
+                    outs.writeLong(nonZero);
+                }
+                block.nonZero = nonZero;
+                for (Integer classId : classIds) {
+                    final float[] counts = class2counts.get(classId);
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] != 0)
+                            outs.writeInt(i);
+                    }
+                }
+                for (Integer classId : classIds) {
+                    for (float count : class2counts.get(classId)) {
+                        if (count != 0)
+                            outs.writeFloat(count);
+                    }
+                }
+                blocks.add(block);
+            }
+
+            final long directoryPos = counter.getPosition();
+            outs.writeInt(table.getNumberOfSamples());
+            outs.writeLong(headerPos);
+            outs.writeInt(header.length);
+            outs.writeLong(attributesPos);
+            outs.writeInt(attributes.length);
+            outs.writeInt(blocks.size());
+            for (BlockInfo block : blocks) {
+                outs.writeUTF(block.classification);
+                outs.writeLong(block.position);
+                outs.writeInt(block.numberOfClasses);
+                outs.writeLong(block.nonZero);
+            }
+            outs.writeLong(directoryPos);
+        }
+    }
+
+    /**
+     * read a binary file. The header and sample attributes are read immediately, the classifications are loaded on demand
+     *
+     * @param fileName
+     * @param table
+     * @param sampleAttributeTable
+     * @throws IOException
+     */
+    public static void read(String fileName, DataTable table, SampleAttributeTable sampleAttributeTable) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer magic = read(channel, 0, MAGIC.length + 4);
+            final byte[] bytes = new byte[MAGIC.length];
+            magic.get(bytes);
+            if (!Arrays.equals(bytes, MAGIC))
+                throw new IOException("Not a binary MEGAN file: " + fileName);
+            final int version = magic.getInt();
+            if (version > VERSION)
+                throw new IOException("Binary MEGAN file has unsupported version: " + version);
+
+            final long directoryPos = read(channel, channel.size() - 8, 8).getLong();
+            final DataInputStream directory = new DataInputStream(new ByteArrayInputStream(read(channel, directoryPos, (int) (channel.size() - 8 - directoryPos)).array()));
+
+            final int numberOfSamples = directory.readInt();
+            final long headerPos = directory.readLong();
+            final int headerLength = directory.readInt();
+            final long attributesPos = directory.readLong();
+            final int attributesLength = directory.readInt();
+
+            final String header = new String(read(channel, headerPos, headerLength).array(), StandardCharsets.UTF_8);
+            table.read(new BufferedReader(new StringReader(header)), true);
+            if (table.getNumberOfSamples() != numberOfSamples)
+                throw new IOException("Binary MEGAN file: number of samples in header (" + table.getNumberOfSamples() + ") differs from directory (" + numberOfSamples + ")");
+
+            final String attributes = new String(read(channel, attributesPos, attributesLength).array(), StandardCharsets.UTF_8);
+            sampleAttributeTable.read(new StringReader(attributes), table.getSampleNames(), true);
+
+            final int numberOfBlocks = directory.readInt();
+            for (int b = 0; b < numberOfBlocks; b++) {
+                final BlockInfo block = new BlockInfo(directory.readUTF());
+                block.position = directory.readLong();
+                block.numberOfClasses = directory.readInt();
+                block.nonZero = directory.readLong();
+
+                long pos = block.position;
+                final MappedArray classIds = new MappedArray(channel, pos, block.numberOfClasses, 4);
+                pos += 4L * block.numberOfClasses;
+                final MappedArray lengths = new MappedArray(channel, pos, block.numberOfClasses, 4);
+                pos += 4L * block.numberOfClasses;
+                final MappedArray rowStarts = new MappedArray(channel, pos, block.numberOfClasses + 1, 8);
+                pos += 8L * (block.numberOfClasses + 1);
+                final MappedArray sampleIndices = new MappedArray(channel, pos, block.nonZero, 4);
+                pos += 4L * block.nonZero;
+                final MappedArray counts = new MappedArray(channel, pos, block.nonZero, 4);
+
+                table.setClass2CountsLoader(block.classification, () -> {
+                    final Map<Integer, float[]> class2counts = new HashMap<>(2 * block.numberOfClasses);
+                    for (int c = 0; c < block.numberOfClasses; c++) {
+                        final float[] array = new float[lengths.getInt(c)];
+                        final long end = rowStarts.getLong(c + 1);
+                        for (long i = rowStarts.getLong(c); i < end; i++) {
+                            array[sampleIndices.getInt(i)] = counts.getFloat(i);
+                        }
+                        class2counts.put(classIds.getInt(c), array);
+                    }
+                    return class2counts;
+                });
+            }
+        }
+    }
+
+    /**
+     * convert a MEGAN summary file from text format to binary format, or vice versa
+     *
+     * @param inputFile
+     * @param outputFile
+     * @param binary     write binary format?
+     * @throws IOException
+     */
+    public static void convert(String inputFile, String outputFile, boolean binary) throws IOException {
+        final DataTable table = new DataTable();
+        final SampleAttributeTable sampleAttributeTable = new SampleAttributeTable();
+        if (isBinaryFile(inputFile))
+            read(inputFile, table, sampleAttributeTable);
+        else {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Basic.getInputStreamPossiblyZIPorGZIP(inputFile)))) {
+                table.read(reader, false);
+                sampleAttributeTable.read(reader, table.getSampleNames(), true);
+            }
+        }
+        if (binary)
+            table.writeBinary(outputFile, sampleAttributeTable);
+        else {
+            table.loadAllClassifications();
+            try (Writer writer = new BufferedWriter(new FileWriter(outputFile))) {
+                table.write(writer);
+                sampleAttributeTable.write(writer, false, true);
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1)
+                throw new EOFException("Unexpected end of binary MEGAN file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * an array of ints, floats or longs that is memory mapped in segments, so that it may have more than 2^31 bytes
+     */
+    private static class MappedArray {
+        private final MappedByteBuffer[] segments;
+        private final int shift;
+        private final int bits;
+        private final long mask;
+
+        MappedArray(FileChannel channel, long position, long length, int bytesPerEntry) throws IOException {
+            shift = Integer.numberOfTrailingZeros(bytesPerEntry);
+            bits = SEGMENT_BYTES_BITS - shift;
+            mask = (1L << bits) - 1;
+            final long entriesPerSegment = (1L << bits);
+            segments = new MappedByteBuffer[(int) ((length + entriesPerSegment - 1) / entriesPerSegment)];
+            for (int s = 0; s < segments.length; s++) {
+                final long start = s * entriesPerSegment;
+                final long count = Math.min(entriesPerSegment, length - start);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position + (start << shift), count << shift);
+            }
+        }
+
+        int getInt(long index) {
+            return segments[(int) (index >>> bits)].getInt((int) (index & mask) << shift);
+        }
+
+        float getFloat(long index) {
+            return segments[(int) (index >>> bits)].getFloat((int) (index & mask) << shift);
+        }
+
+        long getLong(long index) {
+            return segments[(int) (index >>> bits)].getLong((int) (index & mask) << shift);
+        }
+    }
+
+    /**
+     * directory entry of a classification block
+     */
+    private static class BlockInfo {
+        final String classification;
+        long position;
+        int numberOfClasses;
+        long nonZero;
+
+        BlockInfo(String classification) {
+            this.classification = classification;
+        }
+    }
+
+    /**
+     * output stream that keeps track of the number of bytes written
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long position;
+
+        CountingOutputStream(OutputStream outs) {
+            super(outs);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            position += length;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+}
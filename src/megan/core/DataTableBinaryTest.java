@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.core;
+
+import jloda.util.BlastMode;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * tests that a binary summary file can be saved in place, in binary or text format, after only one of its
+ * classifications has been accessed, as done by the save command
+ * Daniel Huson, 10.2019
+ */
+public class DataTableBinaryTest {
+    private static final String[] CLASSIFICATIONS = {"Taxonomy", "SEED", "KEGG"};
+
+    public static void main(String[] args) throws IOException {
+        final File file = File.createTempFile("megan-binary-test-", ".megan");
+        try {
+            final DataTable expected = createTable();
+            expected.writeBinary(file.getPath(), new SampleAttributeTable());
+
+            // save in place in binary format:
+            {
+                final DataTable table = new DataTable();
+                final SampleAttributeTable sampleAttributeTable = new SampleAttributeTable();
+                DataTableBinary.read(file.getPath(), table, sampleAttributeTable);
+                table.getClass2Counts(CLASSIFICATIONS[0]);
+                table.loadAllClassifications();
+                table.writeBinary(file.getPath(), sampleAttributeTable);
+
+                final DataTable result = new DataTable();
+                DataTableBinary.read(file.getPath(), result, new SampleAttributeTable());
+                compare("binary", expected, result);
+            }
+
+            // save in place in text format:
+            {
+                final DataTable table = new DataTable();
+                final SampleAttributeTable sampleAttributeTable = new SampleAttributeTable();
+                DataTableBinary.read(file.getPath(), table, sampleAttributeTable);
+                table.getClass2Counts(CLASSIFICATIONS[0]);
+                table.loadAllClassifications();
+                try (FileWriter writer = new FileWriter(file)) {
+                    table.write(writer);
+                    sampleAttributeTable.write(writer, false, true);
+                }
+
+                final DataTable result = new DataTable();
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    result.read(reader, false);
+                }
+                compare("text", expected, result);
+            }
+            System.err.println("Saving binary file in place: ok");
+        } finally {
+            if (!file.delete())
+                System.err.println("Failed to delete file: " + file);
+        }
+    }
+
+    /**
+     * create a small table with three samples and some counts for each classification
+     *
+     * @return table
+     */
+    private static DataTable createTable() {
+        final DataTable table = new DataTable();
+        table.setCreator("DataTableBinaryTest");
+        table.setSamples(new String[]{"A", "B", "C"}, null, new float[]{100, 200, 300}, new BlastMode[]{BlastMode.BlastX});
+        for (int c = 0; c < CLASSIFICATIONS.length; c++) {
+            final Map<Integer, float[]> class2counts = new HashMap<>();
+            for (int id = 1; id <= 50; id++) {
+                class2counts.put(1000 * c + id, new float[]{id, (id % 3 == 0 ? 0 : 2 * id), c + id % 7});
+            }
+            table.setClass2Counts(CLASSIFICATIONS[c], class2counts);
+        }
+        return table;
+    }
+
+    /**
+     * compare the counts of all classifications
+     *
+     * @param label
+     * @param expected
+     * @param result
+     * @throws IOException if counts differ
+     */
+    private static void compare(String label, DataTable expected, DataTable result) throws IOException {
+        if (!Arrays.equals(expected.getSampleNamesArray(), result.getSampleNamesArray()))
+            throw new IOException(label + ": samples differ: " + Arrays.toString(result.getSampleNamesArray()));
+        for (String classification : CLASSIFICATIONS) {
+            final Map<Integer, float[]> expectedCounts = expected.getClass2Counts(classification);
+            final Map<Integer, float[]> resultCounts = result.getClass2Counts(classification);
+            if (resultCounts == null || !expectedCounts.keySet().equals(resultCounts.keySet()))
+                throw new IOException(label + ": classes differ for classification: " + classification);
+            for (Integer classId : expectedCounts.keySet()) {
+                if (!sameCounts(expectedCounts.get(classId), resultCounts.get(classId)))
+                    throw new IOException(label + ": counts differ for classification: " + classification + ", class: " + classId);
+            }
+        }
+    }
+
+    /**
+     * compare two arrays of counts. The text format does not write trailing zeros, so missing entries are considered zero
+     *
+     * @param a
+     * @param b
+     * @return true, if same counts
+     */
+    private static boolean sameCounts(float[] a, float[] b) {
+        if (a == null || b == null)
+            return a == b;
+        for (int i = 0; i < Math.max(a.length, b.length); i++) {
+            if ((i < a.length ? a[i] : 0) != (i < b.length ? b[i] : 0))
+                return false;
+        }
+        return true;
+    }
+}
@@ -431,16 +431,20 @@ public class Document {
      * @throws IOException
      */
     public void loadMeganSummaryFile() throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(Basic.getInputStreamPossiblyZIPorGZIP(getMeganFile().getFileName())));
-        getDataTable().read(reader, false);
-        getSampleAttributeTable().read(reader, getSampleNames(), true);
-        reader.close();
+        if (DataTableBinary.isBinaryFile(getMeganFile().getFileName())) {
+            DataTableBinary.read(getMeganFile().getFileName(), getDataTable(), getSampleAttributeTable());
+        } else {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(Basic.getInputStreamPossiblyZIPorGZIP(getMeganFile().getFileName())));
+            getDataTable().read(reader, false);
+            getSampleAttributeTable().read(reader, getSampleNames(), true);
+            reader.close();
+        }
         String parameters = getDataTable().getParameters();
         if (parameters != null) {
             parseParameterString(parameters);
         }
         getActiveViewers().clear();
-        getActiveViewers().addAll(getDataTable().getClassification2Class2Counts().keySet());
+        getActiveViewers().addAll(getDataTable().getClassificationNames());
         loadColorTableFromDataTable();
     }
 
@@ -780,7 +784,7 @@ public class Document {
         for (int i = 0; i < samples.size(); i++)
             id2sample[i] = samples.get(i);
 
-        final Map<Integer, float[]> class2counts = dataTable.getClassification2Class2Counts().get(ClassificationType.Taxonomy.toString());
+        final Map<Integer, float[]> class2counts = dataTable.getClass2Counts(ClassificationType.Taxonomy.toString());
         if (class2counts != null) {
             for (Integer taxId : class2counts.keySet()) {
                 String taxonName = TaxonomyData.getName2IdMap().get(taxId);
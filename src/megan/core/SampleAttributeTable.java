@@ -46,7 +46,7 @@ public class SampleAttributeTable {
     public static final String DescriptionAttribute = "Description";
 
     public enum HiddenAttribute {
-        Shape, Color, Label, Source, GroupId;
+        Shape, Color, Label, Source, GroupId, NormalizedFrom; // NormalizedFrom: number of reads that the counts of a sample were normalized from
 
         /**
          * get the prefix used to identify hidden attributes
@@ -35,7 +35,7 @@ import java.util.*;
 
 /**
  * DAA connector
- * Daniel Huson, 8.2015
+ * Daniel Huson, 8.2015, 10.2019
  */
 public class DAAConnector implements IConnector {
     private String fileName;
@@ -251,6 +251,17 @@ public class DAAConnector implements IConnector {
         return label2data;
     }
 
+    /**
+     * load the locations of the reads of a set of classes, reading the classification only once
+     *
+     * @param classification
+     * @param classId2Locations maps each requested class id to the list that its read locations are added to
+     * @throws IOException
+     */
+    public void loadReadLocations(String classification, Map<Integer, ListOfLongs> classId2Locations) throws IOException {
+        AccessClassificationsDAA.loadQueryLocations(daaHeader, classification, classId2Locations);
+    }
+
     public DAAHeader getDAAHeader() {
         return daaHeader;
     }
@@ -23,7 +23,7 @@ import jloda.util.Pair;
 import megan.daa.io.*;
 import megan.data.IReadBlock;
 import megan.data.IReadBlockGetter;
-import megan.io.FileInputStreamAdapter;
+import megan.io.FileReadAheadAdapter;
 import megan.io.FileRandomAccessReadOnlyAdapter;
 
 import java.io.IOException;
@@ -79,7 +79,7 @@ public class ReadBlockGetterDAA implements IReadBlockGetter {
         this.start = daaHeader.computeBlockStart(daaHeader.getAlignmentsBlockIndex());
         this.end = start + daaHeader.getBlockSize(daaHeader.getAlignmentsBlockIndex());
 
-        reader = new InputReaderLittleEndian(streamOnly ? new FileInputStreamAdapter(daaHeader.getFileName()) : new FileRandomAccessReadOnlyAdapter(daaHeader.getFileName()));
+        reader = new InputReaderLittleEndian(streamOnly ? new FileReadAheadAdapter(daaHeader.getFileName()) : new FileRandomAccessReadOnlyAdapter(daaHeader.getFileName()));
         refReader = new InputReaderLittleEndian(new FileRandomAccessReadOnlyAdapter(daaHeader.getFileName()));
 
         // todo: 'stream only' doesn't work when need to grab reference headers
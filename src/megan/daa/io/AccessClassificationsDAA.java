@@ -26,10 +26,11 @@ import megan.io.FileRandomAccessReadOnlyAdapter;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * access classifications in a DAA file
- * Daniel Huson, 8.2015
+ * Daniel Huson, 8.2015, 10.2019
  */
 public class AccessClassificationsDAA {
 
@@ -80,6 +81,55 @@ public class AccessClassificationsDAA {
         return null;
     }
 
+    /**
+     * load the query locations of a set of classes in one scan of the classification key block
+     *
+     * @param daaHeader
+     * @param classificationName
+     * @param classId2Locations  maps each requested class id to the list that its locations are added to
+     * @return true, if classification found
+     * @throws IOException
+     */
+    public static boolean loadQueryLocations(DAAHeader daaHeader, String classificationName, Map<Integer, ListOfLongs> classId2Locations) throws IOException {
+        for (int i = 0; i < daaHeader.getBlockTypeRankArrayLength() - 1; i++) {
+            final int j = i + 1;
+            if (daaHeader.getBlockType(i) == BlockType.megan_classification_key_block && daaHeader.getBlockType(j) == BlockType.megan_classification_dump_block) {
+                try (InputReaderLittleEndian insKey = new InputReaderLittleEndian(new FileRandomAccessReadOnlyAdapter(daaHeader.getFileName()))) {
+                    final long keyBase = daaHeader.computeBlockStart(i);
+                    insKey.seek(keyBase);
+                    final String cName = insKey.readNullTerminatedBytes();
+
+                    if (cName.equals(classificationName)) {
+                        final int numberOfClasses = insKey.readInt();
+
+                        try (InputReaderLittleEndian insDump = new InputReaderLittleEndian(new FileRandomAccessReadOnlyAdapter(daaHeader.getFileName()))) {
+                            final long dumpBase = daaHeader.computeBlockStart(j);
+                            insDump.seek(dumpBase);
+                            if (!insDump.readNullTerminatedBytes().equals(classificationName))
+                                throw new IOException("Internal error: key-dump mismatch");
+
+                            for (int c = 0; c < numberOfClasses; c++) {
+                                int classId = insKey.readInt();
+                                insKey.skip(4); //  weight
+                                int size = insKey.readInt();
+                                final long offset = insKey.readLong();
+                                final ListOfLongs list = classId2Locations.get(classId);
+                                if (list != null) {
+                                    insDump.seek(dumpBase + offset);
+                                    for (int n = 0; n < size; n++) {
+                                        list.add(insDump.readLong());
+                                    }
+                                }
+                            }
+                        }
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * load a named classification block
      *
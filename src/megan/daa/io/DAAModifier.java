@@ -20,6 +20,8 @@
 package megan.daa.io;
 
 
+import megan.io.FileOutputStreamAdapter;
+
 import java.io.*;
 import java.util.Arrays;
 
@@ -128,7 +130,7 @@ public class DAAModifier {
      * @throws IOException
      */
     public static void appendBlocks(DAAHeader header, BlockType[] types, byte[][] blocks, int[] sizes) throws IOException {
-        try (OutputStream outs = new BufferedOutputStream(new FileOutputStream(header.getFileName(), true))) { // append to file...
+        try (OutputWriterLittleEndian outs = new OutputWriterLittleEndian(new FileOutputStreamAdapter(new File(header.getFileName()), true, true))) { // append to file, writes done in background...
             for (int i = 0; i < blocks.length; i++) {
                 final byte[] bytes = blocks[i];
                 final int size = sizes[i];
@@ -24,6 +24,7 @@ import jloda.util.Pair;
 import jloda.util.interval.Interval;
 import jloda.util.interval.IntervalTree;
 import megan.io.FileInputStreamAdapter;
+import megan.io.FileReadAheadAdapter;
 import megan.io.FileRandomAccessReadOnlyAdapter;
 import megan.parsers.blast.PostProcessMatches;
 
@@ -155,7 +156,7 @@ public class DAAParser {
             topProportionScoreToDominate = 0;
         }
 
-        try (InputReaderLittleEndian ins = new InputReaderLittleEndian(new FileInputStreamAdapter(header.getFileName()));
+        try (InputReaderLittleEndian ins = new InputReaderLittleEndian(new FileReadAheadAdapter(header.getFileName()));
              final InputReaderLittleEndian refIns = new InputReaderLittleEndian(new FileRandomAccessReadOnlyAdapter(header.getFileName()))) {
             ins.seek(header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex()));
             final DAAQueryRecord queryRecord = new DAAQueryRecord(this);
@@ -225,7 +226,7 @@ public class DAAParser {
     void getAllQueriesAndMatches(boolean wantMatches, int maxMatchesPerRead, BlockingQueue<Pair<DAAQueryRecord, DAAMatchRecord[]>> outputQueue, boolean longReads) throws IOException {
         final ByteInputBuffer inputBuffer = new ByteInputBuffer();
 
-        try (InputReaderLittleEndian ins = new InputReaderLittleEndian(new FileInputStreamAdapter(header.getFileName()));
+        try (InputReaderLittleEndian ins = new InputReaderLittleEndian(new FileReadAheadAdapter(header.getFileName()));
              final InputReaderLittleEndian refIns = new InputReaderLittleEndian(new FileRandomAccessReadOnlyAdapter(header.getFileName()))) {
             ins.seek(header.getLocationOfBlockInFile(header.getAlignmentsBlockIndex()));
 
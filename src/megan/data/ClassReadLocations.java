@@ -0,0 +1,210 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.data;
+
+import jloda.util.ListOfLongs;
+import megan.daa.connector.DAAConnector;
+import megan.rma6.RMA6Connector;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * the read locations of a list of classes, each given by a collection of class ids (such as a node and all nodes below it),
+ * used to process the reads of all classes in one pass over a DAA or RMA6 file.
+ * <p>
+ * Each read location is stored together with the index of a class that it belongs to, in one sorted array.
+ * Daniel Huson, 10.2019
+ */
+public class ClassReadLocations {
+    private final int numberOfClasses;
+    private final int indexBits;
+    private final long indexMask;
+    private final long[] keys;
+
+    /**
+     * are read locations available for the given connector?
+     *
+     * @param connector
+     * @return true, if DAA or RMA6 connector
+     */
+    public static boolean isSupported(IConnector connector) {
+        return connector instanceof DAAConnector || connector instanceof RMA6Connector;
+    }
+
+    /**
+     * constructor. Reads the classification block only once
+     *
+     * @param connector          must be supported
+     * @param classificationName
+     * @param classes            list of classes, each given by the collection of class ids whose reads belong to it
+     * @throws IOException
+     */
+    public ClassReadLocations(IConnector connector, String classificationName, List<? extends Collection<Integer>> classes) throws IOException {
+        numberOfClasses = classes.size();
+        indexBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(numberOfClasses));
+        indexMask = (1L << indexBits) - 1;
+
+        final Map<Integer, ListOfLongs> classId2Locations = new HashMap<>();
+        for (Collection<Integer> ids : classes) {
+            for (Integer id : ids) {
+                classId2Locations.putIfAbsent(id, new ListOfLongs());
+            }
+        }
+        if (connector instanceof DAAConnector)
+            ((DAAConnector) connector).loadReadLocations(classificationName, classId2Locations);
+        else if (connector instanceof RMA6Connector)
+            ((RMA6Connector) connector).loadReadLocations(classificationName, classId2Locations);
+        else
+            throw new IOException("Read locations not supported for: " + connector.getClass().getSimpleName());
+
+        long total = 0;
+        for (Collection<Integer> ids : classes) {
+            for (Integer id : ids) {
+                total += classId2Locations.get(id).size();
+            }
+        }
+        if (total > Integer.MAX_VALUE - 8)
+            throw new IOException("Too many reads: " + total);
+
+        final long[] keys = new long[(int) total];
+        int count = 0;
+        for (int c = 0; c < numberOfClasses; c++) {
+            for (Integer id : classes.get(c)) {
+                final ListOfLongs list = classId2Locations.get(id);
+                for (int i = 0; i < list.size(); i++) {
+                    final long location = list.get(i);
+                    if ((location >>> (63 - indexBits)) != 0)
+                        throw new IOException("File too large for read locations: " + location);
+                    keys[count++] = (location << indexBits) | c;
+                }
+            }
+        }
+        Arrays.parallelSort(keys);
+
+        // remove duplicates, as a read may be listed for more than one id of a class:
+        int top = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || keys[i] != keys[top - 1])
+                keys[top++] = keys[i];
+        }
+        this.keys = (top == keys.length ? keys : Arrays.copyOf(keys, top));
+    }
+
+    /**
+     * get the number of classes
+     *
+     * @return number of classes
+     */
+    public int getNumberOfClasses() {
+        return numberOfClasses;
+    }
+
+    /**
+     * get all read locations, each only once, in increasing order
+     *
+     * @return locations
+     */
+    public ListOfLongs getLocations() {
+        final ListOfLongs locations = new ListOfLongs(Math.max(16, keys.length));
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || (keys[i] >>> indexBits) != (keys[i - 1] >>> indexBits))
+                locations.add(keys[i] >>> indexBits);
+        }
+        return locations;
+    }
+
+    /**
+     * get all locations of reads that belong to at least one class in the given range, each only once, in increasing order
+     *
+     * @param fromClass first class index
+     * @param toClass   last class index, exclusive
+     * @return locations
+     */
+    public ListOfLongs getLocations(int fromClass, int toClass) {
+        final ListOfLongs locations = new ListOfLongs();
+        long previous = -1;
+        for (long key : keys) {
+            final int c = (int) (key & indexMask);
+            if (c >= fromClass && c < toClass && (key >>> indexBits) != previous) {
+                previous = key >>> indexBits;
+                locations.add(previous);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * get the locations of the reads of each class, each list in increasing order
+     *
+     * @return locations per class index
+     */
+    public ListOfLongs[] getLocationsPerClass() {
+        final int[] counts = getNumberOfReadsPerClass();
+        final ListOfLongs[] locations = new ListOfLongs[numberOfClasses];
+        for (int c = 0; c < numberOfClasses; c++) {
+            locations[c] = new ListOfLongs(Math.max(16, counts[c]));
+        }
+        for (long key : keys) {
+            locations[(int) (key & indexMask)].add(key >>> indexBits);
+        }
+        return locations;
+    }
+
+    /**
+     * get the number of reads in each class
+     *
+     * @return number of reads per class index
+     */
+    public int[] getNumberOfReadsPerClass() {
+        final int[] counts = new int[numberOfClasses];
+        for (long key : keys) {
+            counts[(int) (key & indexMask)]++;
+        }
+        return counts;
+    }
+
+    /**
+     * get the classes that the read at the given location belongs to
+     *
+     * @param location
+     * @param classes  indices of classes are written to this array, must have length at least number of classes
+     * @return number of classes, written in increasing order
+     */
+    public int getClasses(long location, int[] classes) {
+        int count = 0;
+        for (int i = lowerBound(location << indexBits); i < keys.length && (keys[i] >>> indexBits) == location; i++) {
+            classes[count++] = (int) (keys[i] & indexMask);
+        }
+        return count;
+    }
+
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -26,7 +26,7 @@ import java.io.IOException;
 /**
  * iterator over reads in named classes
  * <p/>
- * Daniel Huson, 4.2015
+ * Daniel Huson, 4.2015, 10.2019
  */
 public class ReadBlockIterator implements IReadBlockIterator {
     private final IReadBlockGetter readBlockGetter;
@@ -46,6 +46,15 @@ public class ReadBlockIterator implements IReadBlockIterator {
         this.readBlockGetter = readBlockGetter;
     }
 
+    /**
+     * get the locations of all reads to be visited by this iterator
+     *
+     * @return locations
+     */
+    public ListOfLongs getLocations() {
+        return list;
+    }
+
     @Override
     public String getStats() {
         return "Reads: " + countReads;
@@ -49,7 +49,7 @@ public class CompareWindow extends JDialog {
     private Comparer.COMPARISON_MODE mode = Comparer.COMPARISON_MODE.RELATIVE;
     private boolean ignoreNoHits;
     private boolean keep1;
-
+    private String appendToFile;
 
     private boolean canceled = false;
 
@@ -146,6 +146,7 @@ public class CompareWindow extends JDialog {
         modePanelRight.setLayout(new BoxLayout(modePanelRight, BoxLayout.Y_AXIS));
         modePanelRight.add(commandManager.getButton(SetIgnoreNoHitsCommand.NAME));
         modePanelRight.add(commandManager.getButton(SetKeep1Command.NAME));
+        modePanelRight.add(commandManager.getButton(SetAppendToCommand.NAME));
 
         modePanel.add(modePanelLeft, BorderLayout.WEST);
         modePanel.add(modePanelRight, BorderLayout.EAST);
@@ -251,6 +252,23 @@ public class CompareWindow extends JDialog {
         this.keep1 = keep1;
     }
 
+    /**
+     * get the existing comparison file that the selected samples are appended to
+     *
+     * @return file or null
+     */
+    public String getAppendToFile() {
+        return appendToFile;
+    }
+
+    public void setAppendToFile(String appendToFile) {
+        this.appendToFile = appendToFile;
+        if (appendToFile != null)
+            setTitle("Compare - append to " + Basic.getFileNameWithoutPath(appendToFile));
+        else
+            setTitle("Compare - " + ProgramProperties.getProgramVersion());
+    }
+
     public CommandManager getCommandManager() {
         return commandManager;
     }
@@ -279,6 +297,28 @@ public class CompareWindow extends JDialog {
             buf.append(" keep1=").append(isKeep1());
             buf.append(" ignoreUnassigned=").append(isIgnoreNoHits());
 
+            if (appendToFile != null) { // only files can be appended, so use the files of open documents
+                buf.append(" appendTo='").append(appendToFile).append("' meganFile=");
+                boolean first = true;
+                for (MyListItem item : selected) {
+                    final String fileName;
+                    if (item.getPID() >= 0) {
+                        final Director dir = (Director) ProjectManager.getProject(item.getPID());
+                        if (dir == null)
+                            continue;
+                        fileName = dir.getDocument().getMeganFile().getFileName();
+                    } else
+                        fileName = item.getName();
+                    if (first)
+                        first = false;
+                    else
+                        buf.append(", ");
+                    buf.append("'").append(fileName).append("'");
+                }
+                buf.append(";");
+                return buf.toString();
+            }
+
             boolean first = true;
             for (Object aSelected : selected) {
                 MyListItem item = (MyListItem) aSelected;
@@ -214,7 +214,7 @@ public class Comparer {
                                     progress = progressSilent;
                             }
 
-                            for (String classificationName : table.getClassification2Class2Counts().keySet()) {
+                            for (String classificationName : table.getClassificationNames()) {
                                 boolean isTaxonomy = classificationName.equals(ClassificationType.Taxonomy.toString());
 
                                 Map<Integer, float[]> class2countsSrc = table.getClass2Counts(classificationName);
@@ -224,7 +224,7 @@ public class Comparer {
                                         class2countsTarget = result.getClass2Counts(classificationName);
                                         if (class2countsTarget == null) {
                                             class2countsTarget = new HashMap<>();
-                                            result.getClassification2Class2Counts().put(classificationName, class2countsTarget);
+                                            result.setClass2Counts(classificationName, class2countsTarget);
                                         }
                                     }
                                 }
@@ -303,7 +303,7 @@ public class Comparer {
             service.shutdownNow();
 
             // if we have a taxonomy classification, then use it to get exact values:
-            if (result.getClassification2Class2Counts().containsKey(Classification.Taxonomy)) {
+            if (result.getClassificationNames().contains(Classification.Taxonomy)) {
                 Map<Integer, float[]> class2counts = result.getClass2Counts(Classification.Taxonomy);
                 Arrays.fill(sizes, 0);
                 for (float[] counts : class2counts.values()) {
@@ -317,7 +317,7 @@ public class Comparer {
 
             final long totalAssigned = Basic.getSum(assignedCountPerThread);
 
-            for (String classificationName : result.getClassification2Class2Counts().keySet()) {
+            for (String classificationName : result.getClassificationNames()) {
                 result.setNodeStyle(classificationName, NodeDrawer.Style.PieChart.toString());
             }
 
@@ -344,7 +344,7 @@ public class Comparer {
      * @param name
      * @return name or new name
      */
-    private String getUniqueName(String[] names, int pos, String name) {
+    static String getUniqueName(String[] names, int pos, String name) {
         boolean ok = false;
         int count = 0;
         String newName = name;
@@ -458,11 +458,11 @@ public class Comparer {
      *
      * @return mode
      */
-    private COMPARISON_MODE getMode() {
+    public COMPARISON_MODE getMode() {
         return mode;
     }
 
-    private boolean isIgnoreUnassigned() {
+    public boolean isIgnoreUnassigned() {
         return ignoreUnassigned;
     }
 
@@ -474,7 +474,7 @@ public class Comparer {
         return dirs;
     }
 
-    private boolean isKeep1() {
+    public boolean isKeep1() {
         return keep1;
     }
 
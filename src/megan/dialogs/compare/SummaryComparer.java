@@ -0,0 +1,554 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.dialogs.compare;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.graph.NodeData;
+import jloda.util.*;
+import megan.classification.Classification;
+import megan.classification.ClassificationManager;
+import megan.core.*;
+import megan.daa.io.DAAParser;
+import megan.data.IConnector;
+import megan.viewer.gui.NodeDrawer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * comparison of multiple datasets that only reads the classification summaries of the files
+ * <p>
+ * In contrast to Comparer, this does not require an opened document or viewer for each sample. The classification
+ * blocks of RMA and meganized DAA files, or the data table of a MEGAN summary file, are read on a bounded pool of threads,
+ * each thread processing one file at a time, so that at most maxOpenFiles files are open at any time.
+ * Produces the same data table as Comparer. Samples can also be appended to an existing comparison, in which case only the
+ * new files are read.
+ * Daniel Huson, 10.2019
+ */
+public class SummaryComparer {
+    private final List<String> fileNames = new ArrayList<>();
+
+    private Comparer.COMPARISON_MODE mode = Comparer.COMPARISON_MODE.ABSOLUTE;
+    private boolean ignoreUnassigned = false;
+    private boolean keep1 = false;
+    private int maxOpenFiles = ProgramProperties.get("ComparisonMaxOpenFiles", 64);
+
+    /**
+     * add a file to be compared
+     *
+     * @param fileName RMA, meganized DAA or MEGAN summary file
+     */
+    public void addFile(String fileName) {
+        fileNames.add(fileName);
+    }
+
+    public List<String> getFileNames() {
+        return fileNames;
+    }
+
+    /**
+     * compute a comparison
+     *
+     * @param sampleAttributeTable
+     * @param result
+     * @param progressListener
+     * @throws IOException
+     * @throws CanceledException
+     */
+    public void computeComparison(SampleAttributeTable sampleAttributeTable, DataTable result, ProgressListener progressListener) throws IOException, CanceledException {
+        System.err.println("Computing comparison: ");
+        addSamples(sampleAttributeTable, result, 0, 0, 0, 0, progressListener);
+    }
+
+    /**
+     * append the files to an existing comparison. Only the new files are read. In relative mode, the number of reads that each
+     * sample was normalized from is kept as a hidden sample attribute, and the existing counts are rescaled, if one of the
+     * new samples is smaller than the size that the existing comparison was normalized to
+     *
+     * @param existingFile         existing comparison file, text or binary
+     * @param sampleAttributeTable
+     * @param result
+     * @param progressListener
+     * @throws IOException
+     * @throws CanceledException
+     */
+    public void appendToComparison(String existingFile, SampleAttributeTable sampleAttributeTable, DataTable result, ProgressListener progressListener) throws IOException, CanceledException {
+        System.err.println("Appending to comparison: " + existingFile);
+        progressListener.setTasks("Comparison", "Reading existing comparison");
+        readSummaryFile(existingFile, result, sampleAttributeTable);
+        if (result.getDisabledSamples().size() > 0)
+            result.enableSamples(new ArrayList<>(result.getDisabledSamples()));
+
+        final String parameters = result.getParameters();
+        final Comparer.COMPARISON_MODE existingMode = Comparer.parseMode(parameters);
+        if (existingMode != mode)
+            System.err.println("Using mode of existing comparison: " + existingMode);
+        mode = existingMode;
+        ignoreUnassigned = (getParameter(parameters, "ignoreUnassigned=") != null && Boolean.parseBoolean(getParameter(parameters, "ignoreUnassigned=")));
+
+        long existingSampleSize = 0; // size that the existing samples are normalized to
+        long smallestExistingSample = 0; // smallest number of reads that an existing sample was normalized from
+        if (mode == Comparer.COMPARISON_MODE.RELATIVE) {
+            final String normalizedTo = getParameter(parameters, "normalizedTo=");
+            if (normalizedTo == null || !Basic.isLong(normalizedTo))
+                throw new IOException("Can't append to comparison in relative mode, parameter 'normalizedTo' not found: " + parameters);
+            existingSampleSize = Long.parseLong(normalizedTo);
+            for (String sample : result.getSampleNamesArray()) {
+                final Object value = sampleAttributeTable.get(sample, SampleAttributeTable.HiddenAttribute.NormalizedFrom.toString());
+                // comparisons written before the attribute was introduced only provide the size that they were normalized to:
+                final long numberOfReads = (value != null && Basic.isLong(value.toString()) ? Long.parseLong(value.toString()) : existingSampleSize);
+                if (smallestExistingSample == 0 || numberOfReads < smallestExistingSample)
+                    smallestExistingSample = numberOfReads;
+            }
+        }
+        addSamples(sampleAttributeTable, result, result.getNumberOfSamples(), existingSampleSize, smallestExistingSample, Math.max(0, result.getTotalReads()), progressListener);
+    }
+
+    /**
+     * add the samples to the comparison, after the given number of existing samples
+     *
+     * @param numberOfExisting       number of samples already contained in result
+     * @param existingSampleSize     size that existing samples are normalized to, in relative mode
+     * @param smallestExistingSample smallest number of reads that an existing sample was normalized from, in relative mode
+     * @param existingTotalReads     original number of reads of existing samples
+     */
+    private void addSamples(SampleAttributeTable sampleAttributeTable, DataTable result, int numberOfExisting, long existingSampleSize, long smallestExistingSample,
+                            long existingTotalReads, ProgressListener progressListener) throws IOException, CanceledException {
+        final SampleSummary[] samples = loadSampleSummaries(fileNames, maxOpenFiles, progressListener);
+        final int numberOfSamples = numberOfExisting + samples.length;
+
+        result.setCreator(ProgramProperties.getProgramName());
+        result.setCreationDate((new Date()).toString());
+
+        progressListener.setTasks("Computing comparison", "Using " + mode.toString().toLowerCase() + " mode");
+        progressListener.setMaximum(samples.length);
+        progressListener.setProgress(0);
+
+        final String[] names = (numberOfExisting > 0 ? Arrays.copyOf(result.getSampleNamesArray(), numberOfSamples) : new String[numberOfSamples]);
+        final Map<String, Object> sample2source = new HashMap<>();
+        final Map<String, Object> sample2normalizedFrom = new HashMap<>();
+        for (int i = 0; i < samples.length; i++) {
+            final SampleSummary sample = samples[i];
+            final int pos = numberOfExisting + i;
+            names[pos] = Comparer.getUniqueName(names, pos, sample.getName());
+            if (sample.getAttributes() != null)
+                sampleAttributeTable.addSample(names[pos], sample.getAttributes(), false, true);
+            sample2source.put(names[pos], sample.getFileName());
+            sample2normalizedFrom.put(names[pos], sample.getNumberOfReadsForNormalization(ignoreUnassigned));
+        }
+        sampleAttributeTable.addAttribute(SampleAttributeTable.HiddenAttribute.Source.toString(), sample2source, true, true);
+
+        final boolean useRelative = (mode == Comparer.COMPARISON_MODE.RELATIVE);
+        if (useRelative)
+            sampleAttributeTable.addAttribute(SampleAttributeTable.HiddenAttribute.NormalizedFrom.toString(), sample2normalizedFrom, true, true);
+
+        long newSampleSize = smallestExistingSample;
+        if (useRelative) {
+            for (SampleSummary sample : samples) {
+                final long numberOfReads = sample.getNumberOfReadsForNormalization(ignoreUnassigned);
+                if (newSampleSize == 0 || numberOfReads < newSampleSize)
+                    newSampleSize = numberOfReads;
+            }
+            System.err.println("Normalizing to: " + newSampleSize + " reads per sample");
+        }
+
+        if (numberOfExisting > 0) { // make room for new samples and rescale existing ones, if necessary
+            final double existingFactor = (useRelative && existingSampleSize > 0 ? (double) newSampleSize / (double) existingSampleSize : 1);
+            if (existingFactor != 1)
+                System.err.println("Rescaling existing samples from: " + existingSampleSize + " to: " + newSampleSize + " reads per sample");
+            for (String classificationName : result.getClassificationNames()) {
+                for (Map.Entry<Integer, float[]> entry : result.getClass2Counts(classificationName).entrySet()) {
+                    final float[] counts = Arrays.copyOf(entry.getValue(), numberOfSamples);
+                    if (existingFactor != 1) {
+                        for (int pos = 0; pos < numberOfExisting; pos++) {
+                            if (counts[pos] != 0) {
+                                counts[pos] = (int) Math.round(counts[pos] * existingFactor);
+                                if (counts[pos] == 0 && keep1)
+                                    counts[pos] = 1;
+                            }
+                        }
+                    }
+                    entry.setValue(counts);
+                }
+            }
+        }
+
+        String parameters = "mode=" + mode;
+        if (useRelative)
+            parameters += " normalizedTo=" + newSampleSize;
+        if (ignoreUnassigned)
+            parameters += " ignoreUnassigned=true";
+        result.setParameters(parameters);
+
+        final Long[] uids = new Long[numberOfSamples];
+        final float[] sizes = new float[numberOfSamples];
+        final BlastMode[] blastModes = new BlastMode[numberOfSamples];
+        if (numberOfExisting > 0) {
+            final Long[] existingUids = result.getSampleUIds();
+            System.arraycopy(existingUids, 0, uids, 0, Math.min(numberOfExisting, existingUids.length));
+            final BlastMode[] existingBlastModes = result.getBlastModes();
+            for (int pos = 0; pos < numberOfExisting; pos++)
+                blastModes[pos] = (pos < existingBlastModes.length ? existingBlastModes[pos] : BlastMode.Unknown);
+        }
+        float originalNumberOfReads = 0;
+        long totalAssigned = 0;
+
+        for (int i = 0; i < samples.length; i++) {
+            final SampleSummary sample = samples[i];
+            final int pos = numberOfExisting + i;
+            uids[pos] = sample.getUid();
+            blastModes[pos] = sample.getBlastMode();
+            originalNumberOfReads += (int) sample.getNumberOfReads();
+
+            final long numberOfReads = sample.getNumberOfReadsForNormalization(ignoreUnassigned);
+            final double factor = numberOfReads > 0 ? (double) newSampleSize / (double) numberOfReads : 1;
+
+            totalAssigned += addSampleToTable(sample, pos, numberOfSamples, factor, useRelative, result);
+            progressListener.incrementProgress();
+        }
+
+        if (result.getClassificationNames().contains(Classification.Taxonomy)) {
+            for (float[] counts : result.getClass2Counts(Classification.Taxonomy).values()) {
+                for (int i = 0; i < counts.length; i++)
+                    sizes[i] += counts[i];
+            }
+        }
+
+        result.setSamples(names, uids, sizes, blastModes);
+        sampleAttributeTable.removeAttribute(SampleAttributeTable.HiddenAttribute.Label.toString());
+
+        for (String classificationName : result.getClassificationNames()) {
+            result.setNodeStyle(classificationName, NodeDrawer.Style.PieChart.toString());
+        }
+
+        if (useRelative) {
+            System.err.println(String.format("Total assigned: %,12d normalized", totalAssigned));
+        } else {
+            System.err.println(String.format("Total assigned: %,12d", totalAssigned));
+        }
+        result.setTotalReads(existingTotalReads + (int) originalNumberOfReads);
+    }
+
+    /**
+     * get the value of a parameter from a parameter string
+     *
+     * @param parameters
+     * @param key        key, including the equals sign
+     * @return value or null
+     */
+    private static String getParameter(String parameters, String key) {
+        if (parameters != null) {
+            for (String token : parameters.split("\\s+")) {
+                if (token.startsWith(key))
+                    return token.substring(key.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * read a MEGAN summary file, in text or binary format
+     *
+     * @param fileName
+     * @param table
+     * @param sampleAttributeTable
+     * @throws IOException
+     */
+    private static void readSummaryFile(String fileName, DataTable table, SampleAttributeTable sampleAttributeTable) throws IOException {
+        if (DataTableBinary.isBinaryFile(fileName)) {
+            DataTableBinary.read(fileName, table, sampleAttributeTable);
+        } else {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Basic.getInputStreamPossiblyZIPorGZIP(fileName)))) {
+                table.read(reader, false);
+                sampleAttributeTable.read(reader, table.getSampleNames(), true);
+            }
+        }
+    }
+
+    /**
+     * adds the counts of a sample to the given column of the comparison table, as done by Comparer
+     *
+     * @return number of taxonomy reads added
+     */
+    long addSampleToTable(SampleSummary sample, int pos, int numberOfSamples, double factor, boolean useRelative, DataTable result) {
+        long readCount = 0;
+        for (String classificationName : sample.getClassificationNames()) {
+            final boolean isTaxonomy = classificationName.equals(ClassificationType.Taxonomy.toString());
+            Map<Integer, float[]> class2countsTarget = result.getClass2Counts(classificationName);
+            if (class2countsTarget == null) {
+                class2countsTarget = new HashMap<>();
+                result.setClass2Counts(classificationName, class2countsTarget);
+            }
+
+            final int[] ids = sample.getClassIds(classificationName);
+            final float[] sums = sample.getClassCounts(classificationName);
+            for (int i = 0; i < ids.length; i++) {
+                final int classId = ids[i];
+                // todo: here we assume that the nohits id is the same for all classifications...
+                if (!ignoreUnassigned || classId > 0) {
+                    final float[] countsTarget = class2countsTarget.computeIfAbsent(classId, k -> new float[numberOfSamples]);
+                    final float count = sums[i];
+                    if (count == 0)
+                        countsTarget[pos] = 0;
+                    else if (useRelative) {
+                        countsTarget[pos] = (int) Math.round(count * factor);
+                        if (countsTarget[pos] == 0 && keep1)
+                            countsTarget[pos] = 1;
+                    } else
+                        countsTarget[pos] = count;
+                    if (isTaxonomy)
+                        readCount += countsTarget[pos];
+                }
+            }
+        }
+        return readCount;
+    }
+
+    /**
+     * loads the summaries of all given files, using a bounded number of threads
+     *
+     * @param fileNames
+     * @param maxOpenFiles maximal number of files open at the same time
+     * @param progressListener
+     * @return summaries, in the same order as the files
+     */
+    public static SampleSummary[] loadSampleSummaries(List<String> fileNames, int maxOpenFiles, ProgressListener progressListener) throws IOException, CanceledException {
+        progressListener.setTasks("Comparison", "Reading summaries");
+        progressListener.setMaximum(fileNames.size());
+        progressListener.setProgress(0);
+
+        final SampleSummary[] samples = new SampleSummary[fileNames.size()];
+        if (fileNames.size() == 0)
+            return samples;
+
+        ClassificationManager.get(Classification.Taxonomy, true); // load taxonomy once, before the worker threads need it
+
+        final int numberOfThreads = Math.max(1, Math.min(Math.min(ProgramExecutorService.getNumberOfCoresToUse(), maxOpenFiles), fileNames.size()));
+        final ExecutorService service = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            final List<Future<SampleSummary>> futures = new ArrayList<>(fileNames.size());
+            for (String fileName : fileNames) {
+                futures.add(service.submit(() -> SampleSummary.load(fileName)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    samples[i] = futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    throw new IOException("Reading summary of file '" + fileNames.get(i) + "' failed: " + ex.getCause().getMessage(), ex.getCause());
+                } catch (InterruptedException ex) {
+                    throw new CanceledException();
+                }
+                progressListener.incrementProgress();
+            }
+        } finally {
+            service.shutdownNow();
+        }
+        return samples;
+    }
+
+    public void setMode(String modeName) {
+        mode = Comparer.COMPARISON_MODE.valueOfIgnoreCase(modeName);
+    }
+
+    public Comparer.COMPARISON_MODE getMode() {
+        return mode;
+    }
+
+    public boolean isIgnoreUnassigned() {
+        return ignoreUnassigned;
+    }
+
+    public void setIgnoreUnassigned(boolean ignoreUnassigned) {
+        this.ignoreUnassigned = ignoreUnassigned;
+    }
+
+    public boolean isKeep1() {
+        return keep1;
+    }
+
+    public void setKeep1(boolean keep1) {
+        this.keep1 = keep1;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public void setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+    }
+
+    /**
+     * the classification summary of one input file, with counts summed over all samples contained in the file
+     */
+    public static class SampleSummary {
+        private String fileName;
+        private String name;
+        private Long uid;
+        private long numberOfReads;
+        private BlastMode blastMode;
+        private Map<String, Object> attributes;
+        private long totalAssigned;
+        private long totalSummarized;
+        private final Map<String, int[]> classification2ids = new TreeMap<>();
+        private final Map<String, float[]> classification2counts = new TreeMap<>();
+
+        /**
+         * load the summary of a file, without opening a document
+         *
+         * @param fileName RMA, meganized DAA or MEGAN summary file
+         * @return summary
+         */
+        public static SampleSummary load(String fileName) throws IOException {
+            final SampleSummary sample = new SampleSummary();
+            sample.fileName = fileName;
+
+            final MeganFile meganFile = new MeganFile();
+            meganFile.setFileFromExistingFile(fileName, true);
+            sample.name = Basic.getFileBaseName(meganFile.getName());
+
+            final DataTable table = new DataTable();
+            final SampleAttributeTable sampleAttributeTable = new SampleAttributeTable();
+
+            if (meganFile.isMeganSummaryFile()) {
+                readSummaryFile(fileName, table, sampleAttributeTable);
+                sample.numberOfReads = table.getTotalReads();
+            } else if (meganFile.hasDataConnector()) {
+                // same steps as used when a document is loaded from a connector:
+                final IConnector connector = meganFile.getConnector();
+                SyncArchiveAndDataTable.syncArchive2Summary(Document.DEFAULT_READ_ASSIGNMENT_MODE_SHORT_READS, fileName, connector, table, sampleAttributeTable);
+                final Document.ReadAssignmentMode readAssignmentMode = getReadAssignmentMode(table.getParameters());
+                if (connector.getNumberOfReads() > 0)
+                    SyncArchiveAndDataTable.syncRecomputedArchive2Summary(readAssignmentMode, meganFile.getName(), "merge", table.getBlastMode(), "", connector, table, 0);
+                sample.numberOfReads = table.getTotalReads();
+                try {
+                    sample.uid = connector.getUId();
+                } catch (Exception e) {
+                    sample.uid = 0L;
+                }
+            } else
+                throw new IOException("File format not (or no longer) supported: " + fileName);
+
+            if (sample.numberOfReads == 0)
+                throw new IOException("No reads found in file: '" + fileName + "'");
+
+            sample.blastMode = table.getBlastMode();
+            if (sample.blastMode == BlastMode.Unknown && meganFile.isDAAFile())
+                sample.blastMode = DAAParser.getBlastMode(fileName);
+
+            if (sampleAttributeTable.getNumberOfSamples() == 1) {
+                final String oSample = sampleAttributeTable.getSampleSet().iterator().next();
+                sample.attributes = new HashMap<>(sampleAttributeTable.getAttributesToValues(oSample));
+            }
+
+            for (String classificationName : table.getClassificationNames()) {
+                final Map<Integer, float[]> class2counts = table.getClass2Counts(classificationName);
+                final int[] ids = new int[class2counts.size()];
+                final float[] counts = new float[class2counts.size()];
+                int i = 0;
+                for (Integer classId : class2counts.keySet()) {
+                    ids[i] = classId;
+                    counts[i++] = Basic.getSum(class2counts.get(classId));
+                }
+                sample.classification2ids.put(classificationName, ids);
+                sample.classification2counts.put(classificationName, counts);
+            }
+
+            // compute the same totals that the main viewer reports:
+            final Map<Integer, float[]> taxonCounts = table.getClass2Counts(Classification.Taxonomy);
+            if (taxonCounts != null) {
+                final Map<Integer, NodeData> id2data = new HashMap<>();
+                final megan.classification.data.ClassificationFullTree fullTree = ClassificationManager.get(Classification.Taxonomy, true).getFullTree();
+                fullTree.computeId2Data(table.getNumberOfSamples(), taxonCounts, id2data);
+                for (Integer id : id2data.keySet()) {
+                    if (id > 0)
+                        sample.totalAssigned += id2data.get(id).getCountAssigned();
+                }
+                final NodeData rootData = id2data.get((Integer) fullTree.getRoot().getInfo());
+                if (rootData != null)
+                    sample.totalSummarized = Math.round(rootData.getCountSummarized());
+            }
+            return sample;
+        }
+
+        private static Document.ReadAssignmentMode getReadAssignmentMode(String parameters) {
+            final Document doc = new Document();
+            if (parameters != null)
+                doc.parseParameterString(parameters);
+            return doc.getReadAssignmentMode();
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Long getUid() {
+            return uid;
+        }
+
+        public long getNumberOfReads() {
+            return numberOfReads;
+        }
+
+        public BlastMode getBlastMode() {
+            return blastMode;
+        }
+
+        /**
+         * get the sample attributes, if the file contains exactly one sample
+         *
+         * @return attributes or null
+         */
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * get the number of reads used to compute the normalization factor
+         *
+         * @param ignoreUnassigned
+         * @return number of assigned reads, if ignoreUnassigned, else number of all reads on taxonomy tree
+         */
+        public long getNumberOfReadsForNormalization(boolean ignoreUnassigned) {
+            return ignoreUnassigned ? totalAssigned : totalSummarized;
+        }
+
+        public Collection<String> getClassificationNames() {
+            return classification2ids.keySet();
+        }
+
+        public int[] getClassIds(String classificationName) {
+            return classification2ids.get(classificationName);
+        }
+
+        public float[] getClassCounts(String classificationName) {
+            return classification2counts.get(classificationName);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.dialogs.compare.commands;
+
+import jloda.swing.commands.CommandBase;
+import jloda.swing.commands.ICheckBoxCommand;
+import jloda.swing.util.ChooseFileDialog;
+import jloda.util.Basic;
+import jloda.util.ProgramProperties;
+import jloda.util.parse.NexusStreamParser;
+import megan.dialogs.compare.CompareWindow;
+import megan.main.MeganProperties;
+import megan.util.MeganFileFilter;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.io.File;
+
+/**
+ * append the selected samples to an existing comparison, rather than computing a new one
+ * Daniel Huson, 10.2019
+ */
+public class SetAppendToCommand extends CommandBase implements ICheckBoxCommand {
+
+    public boolean isSelected() {
+        CompareWindow viewer = (CompareWindow) getParent();
+        return viewer != null && viewer.getAppendToFile() != null;
+    }
+
+    /**
+     * parses the given command and executes it
+     *
+     * @param np
+     * @throws java.io.IOException
+     */
+    @Override
+    public void apply(NexusStreamParser np) throws Exception {
+        np.matchIgnoreCase("set appendTo=");
+        String fileName = np.getWordRespectCase();
+        np.matchIgnoreCase(";");
+
+        if (fileName.equalsIgnoreCase("none"))
+            fileName = null;
+        else
+            Basic.checkFileReadableNonEmpty(fileName);
+
+        CompareWindow viewer = (CompareWindow) getParent();
+        viewer.setAppendToFile(fileName);
+    }
+
+    /**
+     * get command-line usage description
+     *
+     * @return usage
+     */
+    @Override
+    public String getSyntax() {
+        return "set appendTo={<filename>|none};";
+    }
+
+    /**
+     * action to be performed
+     *
+     * @param ev
+     */
+    @Override
+    public void actionPerformed(ActionEvent ev) {
+        if (isSelected())
+            executeImmediately("set appendTo=none;");
+        else {
+            final CompareWindow viewer = (CompareWindow) getParent();
+            final File file = ChooseFileDialog.chooseFileToOpen(viewer, ProgramProperties.getFile(MeganProperties.MEGANFILE), new MeganFileFilter(), new MeganFileFilter(), ev, "Existing comparison to append to");
+            if (file != null)
+                executeImmediately("set appendTo='" + file.getPath() + "';");
+        }
+    }
+
+    final public static String NAME = "Append to Comparison...";
+
+    /**
+     * get the name to be used as a menu label
+     *
+     * @return name
+     */
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * get description to be used as a tooltip
+     *
+     * @return description
+     */
+    public String getDescription() {
+        return "Append the selected samples to an existing comparison file, reading only the new samples";
+    }
+
+    /**
+     * get icon to be used in menu or button
+     *
+     * @return icon
+     */
+    public ImageIcon getIcon() {
+        return null;
+    }
+
+    /**
+     * gets the accelerator key  to be used in menu
+     *
+     * @return accelerator key
+     */
+    public KeyStroke getAcceleratorKey() {
+        return null;
+    }
+
+    /**
+     * is this a critical command that can only be executed when no other command is running?
+     *
+     * @return true, if critical
+     */
+    public boolean isCritical() {
+        return true;
+    }
+
+    /**
+     * is the command currently applicable? Used to set enable state of command
+     *
+     * @return true, if command can be applied
+     */
+    public boolean isApplicable() {
+        return getParent() instanceof CompareWindow;
+    }
+}
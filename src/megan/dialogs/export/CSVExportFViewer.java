@@ -38,7 +38,7 @@ import java.util.*;
 
 /**
  * methods for exporting FViewer data in csv format
- * Daniel Huson, 4.2010
+ * Daniel Huson, 4.2010, 10.2019
  */
 public class CSVExportFViewer {
     /**
@@ -232,42 +232,29 @@ public class CSVExportFViewer {
             final Classification classification = ClassificationManager.get(cViewer.getClassName(), true);
             final String shortName = (cViewer.getClassName().toLowerCase().equals("taxonomy") ? "Taxon" : cViewer.getClassName());
 
-            try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+            try (BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
                 IConnector connector = cViewer.getDocument().getConnector();
-                java.util.Collection<Integer> classIds = cViewer.getSelectedIds();
+                final Integer[] classIds = cViewer.getSelectedIds().toArray(new Integer[0]);
                 progressListener.setSubtask(shortName + " to read names");
-                progressListener.setMaximum(classIds.size());
-                progressListener.setProgress(0);
 
                 final IClassificationBlock classificationBlock = connector.getClassificationBlock(cViewer.getClassName());
 
                 if (classificationBlock != null) {
-                    for (int classId : classIds) {
-                        final Collection<Integer> allBelow;
-                        final Node v = classification.getFullTree().getANode(classId);
-                        if (v.getOutDegree() > 0)
-                            allBelow = classification.getFullTree().getAllDescendants(classId);
-                        else
-                            allBelow = Collections.singletonList(classId);
-
-                        boolean hasSome = false;
-                        long length = 0L;
-
-                        try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(cViewer.getClassName(), allBelow, 0, 10000, true, false)) {
-                            while (it.hasNext()) {
-                                if (!hasSome) {
-                                    w.write(getLabelSource(shortName, classification, format, v));
-                                    hasSome = true;
-                                }
-                                length += it.next().getReadLength();
-                                progressListener.checkForCancel();
-                            }
+                    final long[] counts = new long[classIds.length];
+                    final long[] lengths = new long[classIds.length];
+                    ClassReadsVisitor.apply(connector, cViewer.getClassName(), getAllBelow(classification, classIds), false, (readBlock, classes, numberOfClasses) -> {
+                        for (int i = 0; i < numberOfClasses; i++) {
+                            counts[classes[i]]++;
+                            lengths[classes[i]] += readBlock.getReadLength();
                         }
-                        if (hasSome) {
-                            w.write(separator + " " + length + "\n");
+                        return 0;
+                    }, progressListener);
+
+                    for (int c = 0; c < classIds.length; c++) {
+                        if (counts[c] > 0) {
+                            w.write(getLabelSource(shortName, classification, format, classification.getFullTree().getANode(classIds[c])) + separator + " " + lengths[c] + "\n");
                             totalLines++;
                         }
-                        progressListener.incrementProgress();
                     }
                 }
             }
@@ -359,40 +346,23 @@ public class CSVExportFViewer {
             final Classification classification = ClassificationManager.get(cViewer.getClassName(), true);
             final String shortName = (cViewer.getClassName().toLowerCase().equals("taxonomy") ? "Taxon" : cViewer.getClassName());
 
-            try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+            try (BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
                 IConnector connector = cViewer.getDocument().getConnector();
-                java.util.Collection<Integer> ids = cViewer.getSelectedIds();
+                final Integer[] ids = cViewer.getSelectedIds().toArray(new Integer[0]);
                 progressListener.setSubtask("Read names to " + shortName);
-                progressListener.setMaximum(ids.size());
-                progressListener.setProgress(0);
 
                 final IClassificationBlock classificationBlock = connector.getClassificationBlock(cViewer.getClassName());
 
                 if (classificationBlock != null) {
-                    for (int classId : ids) {
-                        final Set<Long> seen = new HashSet<>();
-                        final Collection<Integer> allBelow;
-                        final Node v = classification.getFullTree().getANode(classId);
-                        if (v.getOutDegree() > 0)
-                            allBelow = classification.getFullTree().getAllDescendants(classId);
-                        else
-                            allBelow = Collections.singletonList(classId);
-
-                        try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(cViewer.getClassName(), allBelow, 0, 10000, true, false)) {
-                            while (it.hasNext()) {
-                                final IReadBlock readBlock = it.next();
-                                final long uid = readBlock.getUId();
-                                if (!seen.contains(uid)) {
-                                    if (uid != 0)
-                                        seen.add(uid);
-                                    w.write(readBlock.getReadName() + separator + " " + getLabelTarget(classification, format, v) + "\n");
-                                    totalLines++;
-                                }
-                            }
-                            progressListener.checkForCancel();
-                        }
-                        progressListener.incrementProgress();
+                    final String[] labels = new String[ids.length];
+                    for (int c = 0; c < ids.length; c++) {
+                        labels[c] = getLabelTarget(classification, format, classification.getFullTree().getANode(ids[c]));
                     }
+                    totalLines = ClassReadsVisitor.apply(connector, cViewer.getClassName(), getAllBelow(classification, ids), false, (readBlock, classes, numberOfClasses) -> {
+                        for (int i = 0; i < numberOfClasses; i++)
+                            w.write(readBlock.getReadName() + separator + " " + labels[classes[i]] + "\n");
+                        return numberOfClasses;
+                    }, progressListener);
                 }
             }
         } catch (CanceledException canceled) {
@@ -415,44 +385,39 @@ public class CSVExportFViewer {
             final Classification classification = ClassificationManager.get(cViewer.getClassName(), true);
             final String shortName = (cViewer.getClassName().toLowerCase().equals("taxonomy") ? "Taxon" : cViewer.getClassName());
 
-            try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+            try (BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
                 IConnector connector = cViewer.getDocument().getConnector();
-                java.util.Collection<Integer> ids = cViewer.getSelectedIds();
+                final Integer[] ids = cViewer.getSelectedIds().toArray(new Integer[0]);
                 progressListener.setSubtask(shortName + " to read names");
-                progressListener.setMaximum(ids.size());
-                progressListener.setProgress(0);
 
                 final IClassificationBlock classificationBlock = connector.getClassificationBlock(cViewer.getClassName());
 
                 if (classificationBlock != null) {
-                    for (int classId : ids) {
-                        final Collection<Integer> allBelow;
-                        final Node v = classification.getFullTree().getANode(classId);
-                        if (v.getOutDegree() > 0)
-                            allBelow = classification.getFullTree().getAllDescendants(classId);
-                        else {
-                            allBelow = Collections.singletonList(classId);
-                        }
-                        boolean hasSome = false;
+                    totalLines = ClassReadsVisitor.applyPerClass(connector, cViewer.getClassName(), getAllBelow(classification, ids), false, new ClassReadsVisitor.IClassReadsConsumer() {
+                        private int classIndex;
+                        private boolean hasReads;
 
-                        try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(cViewer.getClassName(), allBelow, 0, 10000, true, false)) {
-                            while (it.hasNext()) {
-                                if (!hasSome) {
-                                    w.write(getLabelSource(shortName, classification, format, v));
-                                    hasSome = true;
-                                }
+                        public void startClass(int classIndex) {
+                            this.classIndex = classIndex;
+                            hasReads = false;
+                        }
 
-                                String readId = it.next().getReadName();
-                                w.write(separator + " " + readId);
-                                progressListener.checkForCancel();
+                        public void apply(IReadBlock readBlock) throws IOException {
+                            if (!hasReads) {
+                                w.write(getLabelSource(shortName, classification, format, classification.getFullTree().getANode(ids[classIndex])));
+                                hasReads = true;
                             }
+                            w.write(separator + " " + readBlock.getReadName());
                         }
-                        if (hasSome) {
-                            w.write("\n");
-                            totalLines++;
+
+                        public int finishClass(int classIndex) throws IOException {
+                            if (hasReads) {
+                                w.write("\n");
+                                return 1;
+                            } else
+                                return 0;
                         }
-                        progressListener.incrementProgress();
-                    }
+                    }, progressListener);
                 }
             }
         } catch (CanceledException canceled) {
@@ -461,6 +426,25 @@ public class CSVExportFViewer {
         return totalLines;
     }
 
+    /**
+     * for each class, get the ids of all classes whose reads are reported for it. For a class that has children, these are all classes below it
+     *
+     * @param classification
+     * @param classIds
+     * @return list of collections of class ids
+     */
+    private static List<Collection<Integer>> getAllBelow(Classification classification, Integer[] classIds) {
+        final List<Collection<Integer>> list = new ArrayList<>(classIds.length);
+        for (int classId : classIds) {
+            final Node v = classification.getFullTree().getANode(classId);
+            if (v.getOutDegree() > 0)
+                list.add(classification.getFullTree().getAllDescendants(classId));
+            else
+                list.add(Collections.singletonList(classId));
+        }
+        return list;
+    }
+
     /**
      * get the desired label
      *
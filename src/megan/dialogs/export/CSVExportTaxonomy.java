@@ -27,7 +27,6 @@ import jloda.util.ProgressListener;
 import megan.algorithms.ActiveMatches;
 import megan.algorithms.TaxonPathAssignment;
 import megan.classification.Classification;
-import megan.core.ClassificationType;
 import megan.core.Director;
 import megan.core.Document;
 import megan.data.*;
@@ -40,7 +39,7 @@ import java.util.*;
 
 /**
  * export taxonomy related stuff in CVS format
- * Daniel Huson, 4.2010
+ * Daniel Huson, 4.2010, 10.2019
  */
 class CSVExportTaxonomy {
     /**
@@ -56,36 +55,22 @@ class CSVExportTaxonomy {
         int totalLines = 0;
         final MainViewer viewer = dir.getMainViewer();
 
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+        try (BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
             final IConnector connector = viewer.getDir().getDocument().getConnector();
-            final IClassificationBlock classificationBlock = connector.getClassificationBlock(ClassificationType.Taxonomy.toString());
-            final java.util.Collection<Integer> taxonIds = viewer.getSelectedIds();
+            final Integer[] taxonIds = viewer.getSelectedIds().toArray(new Integer[0]);
 
             progressListener.setSubtask("Taxa to total length");
-            progressListener.setMaximum(taxonIds.size());
-            progressListener.setProgress(0);
 
-            for (int taxonId : taxonIds) {
-                final Collection<Integer> allBelow;
-                final Node v = viewer.getTaxId2Node(taxonId);
-                if (v.getOutDegree() == 0)
-                    allBelow = TaxonomyData.getTree().getAllDescendants(taxonId);
-                else
-                    allBelow = Collections.singletonList(taxonId);
+            final long[] lengths = new long[taxonIds.length];
+            ClassReadsVisitor.apply(connector, viewer.getClassName(), getAllBelow(viewer, taxonIds), false, (readBlock, classes, numberOfClasses) -> {
+                for (int i = 0; i < numberOfClasses; i++)
+                    lengths[classes[i]] += readBlock.getReadLength();
+                return 0;
+            }, progressListener);
 
-                final String name = getTaxonLabelSource(format, taxonId);
-                w.write(name);
-                long length = 0L;
-
-                try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(viewer.getClassName(), allBelow, 0, 10000, true, false)) {
-                    while (it.hasNext()) {
-                        length += it.next().getReadLength();
-                        progressListener.checkForCancel();
-                    }
-                    w.write(separator + "" + length + "\n");
-                    totalLines++;
-                }
-                progressListener.incrementProgress();
+            for (int t = 0; t < taxonIds.length; t++) {
+                w.write(getTaxonLabelSource(format, taxonIds[t]) + separator + lengths[t] + "\n");
+                totalLines++;
             }
         } catch (CanceledException canceled) {
             System.err.println("USER CANCELED");
@@ -152,7 +137,7 @@ class CSVExportTaxonomy {
     }
 
     /**
-     * export readid to taxon names mapping
+     * export readid to taxon names mapping. Reads are visited in one pass and lines are written in order of reads
      *
      * @param dir
      * @param file
@@ -164,41 +149,30 @@ class CSVExportTaxonomy {
         int totalLines = 0;
         final MainViewer viewer = dir.getMainViewer();
 
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+        try (BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
             final IConnector connector = viewer.getDir().getDocument().getConnector();
-            final IClassificationBlock classificationBlock = connector.getClassificationBlock(ClassificationType.Taxonomy.toString());
-            final java.util.Collection<Integer> taxonIds = viewer.getSelectedIds();
+            final Integer[] taxonIds = viewer.getSelectedIds().toArray(new Integer[0]);
 
             progressListener.setSubtask("Read names to taxa");
-            progressListener.setMaximum(taxonIds.size());
-            progressListener.setProgress(0);
 
             final boolean wantMatches = (format.endsWith("PathPercent")); // PathPercent has been disabled
-
-            for (int taxonId : taxonIds) {
-                final Set<Long> seen = new HashSet<>();
-                final Collection<Integer> allBelow;
-                Node v = viewer.getTaxId2Node(taxonId);
-                if (v.getOutDegree() == 0)
-                    allBelow = TaxonomyData.getTree().getAllDescendants(taxonId);
-                else
-                    allBelow = Collections.singletonList(taxonId);
-
-                try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(viewer.getClassName(), allBelow, 0, 10000, true, wantMatches)) {
-                    while (it.hasNext()) {
-                        final IReadBlock readBlock = it.next();
-                        final long uid = readBlock.getUId();
-                        if (!seen.contains(uid)) {
-                            if (uid != 0)
-                                seen.add(uid);
-                            w.write(readBlock.getReadName() + separator + getTaxonLabelTarget(dir, format, taxonId, readBlock) + "\n");
-                            totalLines++;
-                        }
-                        progressListener.checkForCancel();
+            final String[] labels = new String[taxonIds.length];
+
+            totalLines = ClassReadsVisitor.apply(connector, viewer.getClassName(), getAllBelow(viewer, taxonIds), wantMatches, (readBlock, classes, numberOfClasses) -> {
+                for (int i = 0; i < numberOfClasses; i++) {
+                    final int t = classes[i];
+                    final String label;
+                    if (wantMatches)
+                        label = getTaxonLabelTarget(dir, format, taxonIds[t], readBlock);
+                    else {
+                        if (labels[t] == null)
+                            labels[t] = getTaxonLabelTarget(dir, format, taxonIds[t], readBlock);
+                        label = labels[t];
                     }
+                    w.write(readBlock.getReadName() + separator + label + "\n");
                 }
-                progressListener.incrementProgress();
-            }
+                return numberOfClasses;
+            }, progressListener);
         } catch (CanceledException canceled) {
             System.err.println("USER CANCELED");
         }
@@ -218,41 +192,19 @@ class CSVExportTaxonomy {
         int totalLines = 0;
         final MainViewer viewer = dir.getMainViewer();
 
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+        try (BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
             final IConnector connector = viewer.getDir().getDocument().getConnector();
-            final IClassificationBlock classificationBlock = connector.getClassificationBlock(viewer.getClassName());
             final java.util.Collection<Integer> taxonIds = viewer.getSelectedIds();
 
             progressListener.setSubtask("Read names to matches");
 
             if (taxonIds.size() > 0) {
-                progressListener.setMaximum(taxonIds.size());
-                progressListener.setProgress(0);
-
-                for (int taxonId : taxonIds) {
-                    final Set<Long> seen = new HashSet<>();
-                    final Collection<Integer> allBelow;
-                    final Node v = viewer.getTaxId2Node(taxonId);
-                    if (v.getOutDegree() == 0)
-                        allBelow = TaxonomyData.getTree().getAllDescendants(taxonId);
-                    else
-                        allBelow = Collections.singletonList(taxonId);
-
-                    try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(viewer.getClassName(), allBelow, 0, 10000, true, true)) {
-                        while (it.hasNext()) {
-                            final IReadBlock readBlock = it.next();
-                            final long uid = readBlock.getUId();
-                            if (!seen.contains(uid)) {
-                                if (uid != 0)
-                                    seen.add(uid);
-                                writeMatches(separator, readBlock.getReadName(), readBlock, w);
-                                totalLines++;
-                            }
-                            progressListener.checkForCancel();
-                        }
-                    }
-                    progressListener.incrementProgress();
-                }
+                final Integer[] ids = taxonIds.toArray(new Integer[0]);
+                totalLines = ClassReadsVisitor.apply(connector, viewer.getClassName(), getAllBelow(viewer, ids), true, (readBlock, classes, numberOfClasses) -> {
+                    for (int i = 0; i < numberOfClasses; i++)
+                        writeMatches(separator, readBlock.getReadName(), readBlock, w);
+                    return numberOfClasses;
+                }, progressListener);
             } else // process all reads:
             {
                 progressListener.setMaximum(viewer.getDir().getDocument().getNumberOfReads());
@@ -310,44 +262,7 @@ class CSVExportTaxonomy {
      * @return lines written
      */
     public static int exportTaxon2ReadNames(String format, Director dir, File file, char separator, ProgressListener progressListener) throws IOException {
-        int totalLines = 0;
-        final MainViewer viewer = dir.getMainViewer();
-
-        try (final BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
-            final IConnector connector = viewer.getDir().getDocument().getConnector();
-            final IClassificationBlock classificationBlock = connector.getClassificationBlock(viewer.getClassName());
-            final java.util.Collection<Integer> taxonIds = viewer.getSelectedIds();
-
-            progressListener.setSubtask("Taxa to read names");
-            progressListener.setMaximum(taxonIds.size());
-            progressListener.setProgress(0);
-
-            for (int taxonId : taxonIds) {
-                final Collection<Integer> allBelow;
-                final Node v = viewer.getTaxId2Node(taxonId);
-                if (v.getOutDegree() == 0)
-                    allBelow = TaxonomyData.getTree().getAllDescendants(taxonId);
-                else
-                    allBelow = Collections.singletonList(taxonId);
-
-                final String name = getTaxonLabelSource(format, taxonId);
-                w.write(name);
-
-                try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(viewer.getClassName(), allBelow, 0, 10000, true, false)) {
-                    while (it.hasNext()) {
-                        String readId = it.next().getReadName();
-                        w.write(separator + "" + readId);
-                        progressListener.checkForCancel();
-                    }
-                    w.write("\n");
-                    totalLines++;
-                }
-                progressListener.incrementProgress();
-            }
-        } catch (CanceledException canceled) {
-            System.err.println("USER CANCELED");
-        }
-        return totalLines;
+        return exportTaxon2ReadNames("Taxa to read names", format, dir, file, separator, progressListener);
     }
 
     /**
@@ -361,46 +276,71 @@ class CSVExportTaxonomy {
      * @throws IOException
      */
     public static int exportTaxon2ReadIds(String format, Director dir, File file, char separator, ProgressListener progressListener) throws IOException {
+        return exportTaxon2ReadNames("Taxa to read Ids", format, dir, file, separator, progressListener);
+    }
+
+    /**
+     * export taxon to the names of its reads. The reads are visited one taxon after the other, so that each line is written directly
+     *
+     * @param subtask
+     * @param format
+     * @param dir
+     * @param file
+     * @param separator
+     * @param progressListener
+     * @return lines written
+     * @throws IOException
+     */
+    private static int exportTaxon2ReadNames(String subtask, String format, Director dir, File file, char separator, ProgressListener progressListener) throws IOException {
         int totalLines = 0;
         final MainViewer viewer = dir.getMainViewer();
 
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(file))) {
+        try (final BufferedWriter w = ClassReadsVisitor.createWriter(file)) {
             final IConnector connector = viewer.getDir().getDocument().getConnector();
-            final IClassificationBlock classificationBlock = connector.getClassificationBlock(viewer.getClassName());
-            final java.util.Collection<Integer> taxonIds = viewer.getSelectedIds();
+            final Integer[] taxonIds = viewer.getSelectedIds().toArray(new Integer[0]);
 
-            progressListener.setSubtask("Taxa to read Ids");
-            progressListener.setMaximum(taxonIds.size());
-            progressListener.setProgress(0);
+            progressListener.setSubtask(subtask);
 
-            for (int taxonId : taxonIds) {
-                final Collection<Integer> allBelow;
-                final Node v = viewer.getTaxId2Node(taxonId);
-                if (v.getOutDegree() == 0)
-                    allBelow = TaxonomyData.getTree().getAllDescendants(taxonId);
-                else
-                    allBelow = Collections.singletonList(taxonId);
+            totalLines = ClassReadsVisitor.applyPerClass(connector, viewer.getClassName(), getAllBelow(viewer, taxonIds), false, new ClassReadsVisitor.IClassReadsConsumer() {
+                public void startClass(int classIndex) throws IOException {
+                    w.write(getTaxonLabelSource(format, taxonIds[classIndex]));
+                }
 
-                final String name = getTaxonLabelSource(format, taxonId);
-                w.write(name);
+                public void apply(IReadBlock readBlock) throws IOException {
+                    w.write(separator);
+                    w.write(readBlock.getReadName());
+                }
 
-                try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(viewer.getClassName(), allBelow, 0, 10000, true, false)) {
-                    while (it.hasNext()) {
-                        String readId = it.next().getReadName();
-                        w.write(separator + "" + readId);
-                        progressListener.checkForCancel();
-                    }
+                public int finishClass(int classIndex) throws IOException {
                     w.write("\n");
-                    totalLines++;
+                    return 1;
                 }
-                progressListener.incrementProgress();
-            }
+            }, progressListener);
         } catch (CanceledException canceled) {
             System.err.println("USER CANCELED");
         }
         return totalLines;
     }
 
+    /**
+     * for each taxon, get the ids of all taxa whose reads are reported for it. For a leaf of the viewer, these are all taxa below it
+     *
+     * @param viewer
+     * @param taxonIds
+     * @return list of collections of taxon ids
+     */
+    private static List<Collection<Integer>> getAllBelow(MainViewer viewer, Integer[] taxonIds) {
+        final List<Collection<Integer>> list = new ArrayList<>(taxonIds.length);
+        for (int taxonId : taxonIds) {
+            final Node v = viewer.getTaxId2Node(taxonId);
+            if (v.getOutDegree() == 0)
+                list.add(TaxonomyData.getTree().getAllDescendants(taxonId));
+            else
+                list.add(Collections.singletonList(taxonId));
+        }
+        return list;
+    }
+
     /**
      * determines which type of label is desired
      *
@@ -0,0 +1,209 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.dialogs.export;
+
+import jloda.util.CanceledException;
+import jloda.util.ListOfLongs;
+import jloda.util.ProgressListener;
+import megan.data.*;
+import megan.io.BackgroundOutputStream;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * visits the reads of a list of classes for export, each class given by a collection of class ids.
+ * For DAA and RMA6 files, the reads of all classes are visited in one pass in order of location, each read only once.
+ * Otherwise, each class is visited using its own reads iterator.
+ * Exports that write one line per class use applyPerClass instead, so that each line is written as soon as its class has been visited.
+ * Daniel Huson, 10.2019
+ */
+class ClassReadsVisitor {
+    /**
+     * consumes a read and the classes that it belongs to
+     */
+    interface IReadConsumer {
+        /**
+         * @param readBlock
+         * @param classes         indices of classes
+         * @param numberOfClasses number of classes
+         * @return number of lines written
+         */
+        int apply(IReadBlock readBlock, int[] classes, int numberOfClasses) throws IOException;
+    }
+
+    /**
+     * consumes the reads of one class at a time
+     */
+    interface IClassReadsConsumer {
+        /**
+         * called before the reads of a class are visited
+         *
+         * @param classIndex
+         */
+        void startClass(int classIndex) throws IOException;
+
+        /**
+         * @param readBlock a read of the current class
+         */
+        void apply(IReadBlock readBlock) throws IOException;
+
+        /**
+         * called after all reads of a class have been visited
+         *
+         * @param classIndex
+         * @return number of lines written for the class
+         */
+        int finishClass(int classIndex) throws IOException;
+    }
+
+    /**
+     * visit the reads of the given classes, one class after the other, so that the output of a class can be written as soon as
+     * its reads have been visited. For DAA and RMA6 files, the reads of each class are visited in order of location.
+     * A read that belongs to more than one class is visited once for each of them
+     *
+     * @param connector
+     * @param classificationName
+     * @param classes            list of classes, each given by the collection of class ids whose reads belong to it
+     * @param wantMatches
+     * @param consumer
+     * @param progress
+     * @return total number of lines written by the consumer
+     */
+    static int applyPerClass(IConnector connector, String classificationName, List<? extends Collection<Integer>> classes, boolean wantMatches,
+                             IClassReadsConsumer consumer, ProgressListener progress) throws IOException, CanceledException {
+        int totalLines = 0;
+
+        if (ClassReadLocations.isSupported(connector)) {
+            final ListOfLongs[] classLocations = new ClassReadLocations(connector, classificationName, classes).getLocationsPerClass();
+            long total = 0;
+            for (ListOfLongs locations : classLocations) {
+                total += locations.size();
+            }
+            progress.setMaximum(total);
+            progress.setProgress(0);
+
+            try (IReadBlockGetter readBlockGetter = connector.getReadBlockGetter(0, 10000, true, wantMatches)) {
+                for (int c = 0; c < classLocations.length; c++) {
+                    final ListOfLongs locations = classLocations[c];
+                    classLocations[c] = null;
+                    consumer.startClass(c);
+                    for (int r = 0; r < locations.size(); r++) {
+                        final long location = locations.get(r);
+                        final IReadBlock readBlock = readBlockGetter.getReadBlock(location);
+                        if (readBlock == null)
+                            throw new IOException("Failed to read block at location: " + location);
+                        consumer.apply(readBlock);
+                        progress.incrementProgress();
+                    }
+                    totalLines += consumer.finishClass(c);
+                }
+            }
+        } else {
+            progress.setMaximum(classes.size());
+            progress.setProgress(0);
+
+            for (int c = 0; c < classes.size(); c++) {
+                final Set<Long> seen = new HashSet<>();
+                consumer.startClass(c);
+                try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(classificationName, classes.get(c), 0, 10000, true, wantMatches)) {
+                    while (it.hasNext()) {
+                        final IReadBlock readBlock = it.next();
+                        final long uid = readBlock.getUId();
+                        if (uid == 0 || seen.add(uid))
+                            consumer.apply(readBlock);
+                        progress.checkForCancel();
+                    }
+                }
+                totalLines += consumer.finishClass(c);
+                progress.incrementProgress();
+            }
+        }
+        return totalLines;
+    }
+
+    /**
+     * visit all reads of the given classes
+     *
+     * @param connector
+     * @param classificationName
+     * @param classes            list of classes, each given by the collection of class ids whose reads belong to it
+     * @param wantMatches
+     * @param consumer
+     * @param progress
+     * @return total number of lines written by the consumer
+     */
+    static int apply(IConnector connector, String classificationName, List<? extends Collection<Integer>> classes, boolean wantMatches,
+                     IReadConsumer consumer, ProgressListener progress) throws IOException, CanceledException {
+        int totalLines = 0;
+        final int[] readClasses = new int[Math.max(1, classes.size())];
+
+        if (ClassReadLocations.isSupported(connector)) {
+            final ClassReadLocations readLocations = new ClassReadLocations(connector, classificationName, classes);
+            final ListOfLongs locations = readLocations.getLocations();
+            progress.setMaximum(locations.size());
+            progress.setProgress(0);
+
+            try (IReadBlockGetter readBlockGetter = connector.getReadBlockGetter(0, 10000, true, wantMatches)) {
+                for (int r = 0; r < locations.size(); r++) {
+                    final long location = locations.get(r);
+                    final IReadBlock readBlock = readBlockGetter.getReadBlock(location);
+                    if (readBlock == null)
+                        throw new IOException("Failed to read block at location: " + location);
+                    totalLines += consumer.apply(readBlock, readClasses, readLocations.getClasses(location, readClasses));
+                    progress.setProgress(r + 1);
+                }
+            }
+        } else {
+            progress.setMaximum(classes.size());
+            progress.setProgress(0);
+
+            for (int c = 0; c < classes.size(); c++) {
+                final Set<Long> seen = new HashSet<>();
+                readClasses[0] = c;
+                try (IReadBlockIterator it = connector.getReadsIteratorForListOfClassIds(classificationName, classes.get(c), 0, 10000, true, wantMatches)) {
+                    while (it.hasNext()) {
+                        final IReadBlock readBlock = it.next();
+                        final long uid = readBlock.getUId();
+                        if (uid == 0 || seen.add(uid))
+                            totalLines += consumer.apply(readBlock, readClasses, 1);
+                        progress.checkForCancel();
+                    }
+                }
+                progress.incrementProgress();
+            }
+        }
+        return totalLines;
+    }
+
+    /**
+     * creates a buffered writer for an export file. The file is written by a background thread and is gzipped, if its name ends on .gz
+     *
+     * @param file
+     * @return writer
+     */
+    static BufferedWriter createWriter(File file) throws IOException {
+        final OutputStream outs = new FileOutputStream(file);
+        return new BufferedWriter(new OutputStreamWriter(new BackgroundOutputStream(file.getName().endsWith(".gz") ? new GZIPOutputStream(outs, 65536) : outs)));
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.dialogs.extractor;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.util.Basic;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * writes text to a large number of output files, keeping only a bounded number of them open.
+ * <p>
+ * Text for a file is buffered and handed to a writer thread. Each file is always written by the same thread,
+ * which keeps its own least-recently-used set of open files. A file that is closed and written to again is
+ * reopened for appending. Files ending on .gz are compressed by the writer thread, a reopened file gets
+ * a new gzip member, which gzip readers treat as continuation of the same file.
+ * Daniel Huson, 10.2019
+ */
+class OutputFilePool implements Closeable {
+    private static final int BUFFER_BUDGET = 128 * 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final String[] fileNames;
+    private final byte[][] buffers;
+    private final int[] lengths;
+    private final int flushSize;
+
+    private final ArrayBlockingQueue<Chunk>[] queues;
+    private final ExecutorService service;
+    private final CountDownLatch countDownLatch;
+    private volatile IOException exception;
+
+    /**
+     * constructor
+     *
+     * @param fileNames       names of output files, a file is only created once something is written to it
+     * @param maxOpenFiles    maximum number of files open at the same time
+     * @param numberOfThreads number of writer threads
+     */
+    OutputFilePool(String[] fileNames, int maxOpenFiles, int numberOfThreads) {
+        this.fileNames = fileNames;
+        buffers = new byte[fileNames.length][];
+        lengths = new int[fileNames.length];
+        flushSize = Math.max(1024, Math.min(1024 * 1024, BUFFER_BUDGET / Math.max(1, fileNames.length)));
+
+        final int numberOfWriters = Math.max(1, Math.min(numberOfThreads, Math.min(maxOpenFiles, fileNames.length)));
+        final int maxOpenFilesPerWriter = Math.max(1, maxOpenFiles / numberOfWriters);
+
+        queues = new ArrayBlockingQueue[numberOfWriters];
+        service = ProgramExecutorService.createServiceForParallelAlgorithm(numberOfWriters);
+        countDownLatch = new CountDownLatch(numberOfWriters);
+
+        for (int t = 0; t < numberOfWriters; t++) {
+            final ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues[t] = queue;
+            service.submit(() -> {
+                final OpenFiles openFiles = new OpenFiles(maxOpenFilesPerWriter);
+                try {
+                    while (true) {
+                        final Chunk chunk = queue.take();
+                        if (chunk == Chunk.DONE)
+                            break;
+                        if (exception == null) {
+                            try {
+                                openFiles.getStream(chunk.file).write(chunk.bytes, 0, chunk.length);
+                            } catch (Throwable ex) { // keep draining the queue, so that the producer never blocks
+                                setException(ex);
+                            }
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                } finally {
+                    try {
+                        openFiles.closeAll();
+                    } catch (Throwable ex) {
+                        setException(ex);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * record the first exception that occurs in a writer thread
+     *
+     * @param ex
+     */
+    private synchronized void setException(Throwable ex) {
+        if (exception == null)
+            exception = (ex instanceof IOException ? (IOException) ex : new IOException(ex));
+    }
+
+    /**
+     * append text to a file. Not thread safe, all text must be written by the same thread
+     *
+     * @param file   index of file
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void write(int file, byte[] bytes, int offset, int length) throws IOException {
+        if (buffers[file] == null)
+            buffers[file] = new byte[Math.max(length, Math.min(1024, flushSize))];
+        else if (lengths[file] + length > buffers[file].length)
+            buffers[file] = Arrays.copyOf(buffers[file], Math.max(lengths[file] + length, 2 * buffers[file].length));
+        System.arraycopy(bytes, offset, buffers[file], lengths[file], length);
+        lengths[file] += length;
+        if (lengths[file] >= flushSize)
+            flush(file);
+    }
+
+    /**
+     * hand the buffered text of a file to its writer thread
+     *
+     * @param file
+     * @throws IOException
+     */
+    private void flush(int file) throws IOException {
+        if (exception != null)
+            throw exception;
+        if (lengths[file] > 0) {
+            try {
+                queues[file % queues.length].put(new Chunk(file, buffers[file], lengths[file]));
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            buffers[file] = null;
+            lengths[file] = 0;
+        }
+    }
+
+    /**
+     * write all remaining text and close all files
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (int file = 0; file < fileNames.length; file++) {
+                flush(file);
+            }
+        } finally {
+            try {
+                for (ArrayBlockingQueue<Chunk> queue : queues) {
+                    queue.put(Chunk.DONE);
+                }
+                countDownLatch.await();
+            } catch (InterruptedException ex) {
+                Basic.caught(ex);
+            } finally {
+                service.shutdownNow();
+            }
+        }
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * the files currently opened by one writer thread, in order of last access
+     */
+    private class OpenFiles extends LinkedHashMap<Integer, OutputStream> {
+        private final int maxOpenFiles;
+        private final BitSet created = new BitSet();
+
+        OpenFiles(int maxOpenFiles) {
+            super(16, 0.75f, true);
+            this.maxOpenFiles = maxOpenFiles;
+        }
+
+        OutputStream getStream(int file) throws IOException {
+            OutputStream outs = get(file);
+            if (outs == null) {
+                if (size() >= maxOpenFiles) {
+                    final Iterator<Map.Entry<Integer, OutputStream>> it = entrySet().iterator();
+                    final OutputStream eldest = it.next().getValue();
+                    it.remove();
+                    eldest.close();
+                }
+                final String fileName = fileNames[file];
+                final boolean append = created.get(file);
+                created.set(file);
+                outs = new FileOutputStream(fileName, append);
+                if (fileName.endsWith(".gz"))
+                    outs = new GZIPOutputStream(outs, 65536);
+                put(file, outs);
+            }
+            return outs;
+        }
+
+        void closeAll() throws IOException {
+            IOException first = null;
+            for (OutputStream outs : values()) {
+                try {
+                    outs.close();
+                } catch (IOException ex) {
+                    if (first == null)
+                        first = ex;
+                }
+            }
+            clear();
+            if (first != null)
+                throw first;
+        }
+    }
+
+    /**
+     * text to be written to a file
+     */
+    private static class Chunk {
+        static final Chunk DONE = new Chunk(-1, null, 0);
+
+        final int file;
+        final byte[] bytes;
+        final int length;
+
+        Chunk(int file, byte[] bytes, int length) {
+            this.file = file;
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
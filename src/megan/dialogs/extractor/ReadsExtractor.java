@@ -26,6 +26,7 @@ import megan.classification.Classification;
 import megan.classification.ClassificationManager;
 import megan.core.ClassificationType;
 import megan.core.Document;
+import megan.data.ClassReadLocations;
 import megan.data.IClassificationBlock;
 import megan.data.IConnector;
 import megan.data.IReadBlock;
@@ -38,7 +39,7 @@ import java.util.zip.GZIPOutputStream;
 
 /**
  * extract reads using the IConnector
- * Daniel Huson, 4.2010
+ * Daniel Huson, 4.2010, 10.2019
  */
 public class ReadsExtractor {
     /**
@@ -144,6 +145,97 @@ public class ReadsExtractor {
         return numberOfReads;
     }
 
+    /**
+     * extract all reads for the given classes in one sequential pass over all reads in the file. Each read is routed
+     * to the output file of its class, using the read locations stored for each class. Only a bounded number of output files is
+     * kept open and output files are written by separate threads. Reads appear in file order, rather than grouped by class.
+     * Only DAA and RMA6 files are supported, for other files, reads are extracted class by class
+     *
+     * @param cName
+     * @param progress
+     * @param classIds
+     * @param outDirectory
+     * @param fileName
+     * @param doc
+     * @param maxOpenFiles    maximum number of output files open at the same time
+     * @param numberOfThreads number of threads used to write (and compress) output files
+     * @return number of reads written
+     * @throws IOException
+     * @throws CanceledException
+     */
+    public static int extractReadsInOnePass(final String cName, final ProgressListener progress, final Collection<Integer> classIds, final String outDirectory, String fileName,
+                                            final Document doc, int maxOpenFiles, int numberOfThreads) throws IOException, CanceledException {
+        final IConnector connector = doc.getConnector();
+        if (!ClassReadLocations.isSupported(connector))
+            return extractReadsByFViewer(cName, progress, classIds, outDirectory, fileName, doc, false);
+
+        progress.setSubtask("Extracting by " + cName);
+
+        fileName = new File(outDirectory, fileName).getPath();
+        final boolean useOneOutputFile = (!fileName.contains("%t") && !fileName.contains("%i"));
+        final boolean reportTaxa = cName.equals(Classification.Taxonomy) && ProgramProperties.get("report-taxa-in-extract-reads", false);
+
+        final Integer[] ids = new LinkedHashSet<>(classIds).toArray(new Integer[0]);
+        final List<Collection<Integer>> classes = new ArrayList<>();
+        for (Integer id : ids) {
+            classes.add(Collections.singletonList(id));
+        }
+        final ClassReadLocations readLocations = new ClassReadLocations(connector, cName, classes);
+
+        final String[] fileNames;
+        if (useOneOutputFile)
+            fileNames = new String[]{fileName};
+        else {
+            final Classification classification = ClassificationManager.get(cName, true);
+            fileNames = new String[ids.length];
+            for (int c = 0; c < ids.length; c++) {
+                final String className = classification.getName2IdMap().get(ids[c]);
+                fileNames[c] = fileName.replaceAll("%t", Basic.toCleanName(className)).replaceAll("%i", "" + ids[c]);
+            }
+        }
+
+        int numberOfReads = 0;
+        try (OutputFilePool outputFiles = new OutputFilePool(fileNames, maxOpenFiles, numberOfThreads);
+             IReadBlockIterator it = connector.getAllReadsIterator(0, 10000, true, false)) {
+            progress.setMaximum(it.getMaximumProgress());
+            progress.setProgress(0);
+
+            final StringBuilder buf = new StringBuilder();
+            final int[] readClasses = new int[ids.length];
+            while (it.hasNext()) {
+                final IReadBlock readBlock = it.next();
+                final int numberOfClasses = readLocations.getClasses(readBlock.getUId(), readClasses);
+                for (int i = 0; i < numberOfClasses; i++) {
+                    final int c = readClasses[i];
+                    buf.setLength(0);
+                    final String readHeader = readBlock.getReadHeader().trim();
+                    if (!readHeader.startsWith(">"))
+                        buf.append(">");
+                    buf.append(readHeader);
+                    if (reportTaxa && ids[c] > 0) {
+                        if (!readHeader.endsWith("|"))
+                            buf.append("|");
+                        buf.append("tax|").append(ids[c]);
+                    }
+                    buf.append("\n");
+                    final String readData = readBlock.getReadSequence();
+                    if (readData != null) {
+                        buf.append(readData);
+                        if (!readData.endsWith("\n"))
+                            buf.append("\n");
+                    }
+                    final byte[] bytes = buf.toString().getBytes();
+                    outputFiles.write(useOneOutputFile ? 0 : c, bytes, 0, bytes.length);
+                    numberOfReads++;
+                }
+                progress.setProgress(it.getProgress());
+            }
+        } catch (CanceledException ex) {
+            System.err.println("USER CANCELED");
+        }
+        return numberOfReads;
+    }
+
     /**
      * extract all reads belonging to a given set of taxon ids
      *
@@ -19,17 +19,24 @@
 
 package megan.genes;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.util.*;
 import megan.classification.util.TaggedValueIterator;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * simple CDS annotation of a segment of DNA
- * Daniel Huson, 12.2017
+ * Daniel Huson, 12.2017, 10.2019
  */
 public class CDS {
     private String dnaId;
@@ -94,36 +101,103 @@ public class CDS {
      * @throws IOException, CanceledException
      */
     public static Collection<CDS> parseGFFforCDS(Collection<String> inputFiles, ProgressListener progress) throws IOException, CanceledException {
-        progress.setMaximum(inputFiles.size());
+        return parseGFFforCDS(inputFiles, ProgramExecutorService.getNumberOfCoresToUse(), progress);
+    }
+
+    /**
+     * parse GFF files to extract CDS. Files are parsed in parallel
+     *
+     * @param inputFiles
+     * @param numberOfThreads
+     * @return list of CDS items, in order of input files
+     * @throws IOException, CanceledException
+     */
+    public static Collection<CDS> parseGFFforCDS(Collection<String> inputFiles, int numberOfThreads, ProgressListener progress) throws IOException, CanceledException {
+        final String[] fileNames = inputFiles.toArray(new String[0]);
+        final Collection<CDS>[] file2list = new Collection[fileNames.length];
+
+        progress.setTasks("Processing GFF files", fileNames.length == 1 ? fileNames[0] : "");
+        progress.setMaximum(fileNames.length);
         progress.setProgress(0);
-        final ArrayList<CDS> list = new ArrayList<>();
-        for (String fileName : inputFiles) {
-            progress.setTasks("Processing GFF files", fileName);
-
-            try (FileLineIterator it = new FileLineIterator(fileName)) {
-                if (it.hasNext()) {
-                    {
-                        final String aLine = it.next();
-                        if (aLine.startsWith(">")) {
-                            final TaggedValueIterator vit = new TaggedValueIterator(false, true, "ref|");
-                            vit.restart(aLine);
-                            if (!vit.hasNext())
-                                throw new IOException("Can't find reference accession in file: '" + fileName + "', header line: '" + aLine + "'");
-                            final String dnaAccession = vit.getFirst();
-                            list.addAll(parseSimpleGFFforCDS(it, dnaAccession));
-                        } else if (aLine.startsWith("##gff-version 3")) {
-                            list.addAll(parseGFF3forCDS(it));
+
+        final int numberOfWorkers = Math.max(1, Math.min(numberOfThreads, fileNames.length));
+        final ExecutorService service = ProgramExecutorService.createServiceForParallelAlgorithm(numberOfWorkers);
+        final CountDownLatch countDownLatch = new CountDownLatch(numberOfWorkers);
+        final AtomicInteger nextFile = new AtomicInteger(0);
+        final AtomicInteger filesDone = new AtomicInteger(0);
+        final AtomicBoolean canceled = new AtomicBoolean(false);
+        final Single<IOException> exception = new Single<>();
+
+        try {
+            for (int t = 0; t < numberOfWorkers; t++) {
+                service.submit(() -> {
+                    try {
+                        int f;
+                        while (!canceled.get() && (f = nextFile.getAndIncrement()) < fileNames.length) {
+                            file2list[f] = parseGFFforCDS(fileNames[f]);
+                            filesDone.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        synchronized (exception) {
+                            if (exception.get() == null)
+                                exception.set(ex instanceof IOException ? (IOException) ex : new IOException(ex));
                         }
+                        canceled.set(true);
+                    } finally {
+                        countDownLatch.countDown();
                     }
+                });
+            }
+            try {
+                while (!countDownLatch.await(100, TimeUnit.MILLISECONDS)) {
+                    progress.setProgress(filesDone.get());
                 }
+            } catch (InterruptedException | CanceledException ex) {
+                canceled.set(true);
+                throw new CanceledException();
             }
-            progress.incrementProgress();
+        } finally {
+            service.shutdownNow();
         }
+        if (exception.get() != null)
+            throw exception.get();
+
+        final ArrayList<CDS> list = new ArrayList<>();
+        for (Collection<CDS> fileList : file2list) {
+            list.addAll(fileList);
+        }
+        progress.setProgress(fileNames.length);
         if (progress instanceof ProgressPercentage)
             ((ProgressPercentage) progress).reportTaskCompleted();
         return list;
     }
 
+    /**
+     * parse a GFF file to extract CDS
+     *
+     * @param fileName
+     * @return list of CDS items
+     * @throws IOException
+     */
+    private static Collection<CDS> parseGFFforCDS(String fileName) throws IOException {
+        try (FileLineIterator it = new FileLineIterator(fileName)) {
+            if (it.hasNext()) {
+                final String aLine = it.next();
+                if (aLine.startsWith(">")) {
+                    final TaggedValueIterator vit = new TaggedValueIterator(false, true, "ref|");
+                    vit.restart(aLine);
+                    if (!vit.hasNext())
+                        throw new IOException("Can't find reference accession in file: '" + fileName + "', header line: '" + aLine + "'");
+                    final String dnaAccession = vit.getFirst();
+                    return parseSimpleGFFforCDS(it, dnaAccession);
+                } else if (aLine.startsWith("##gff-version 3")) {
+                    return parseGFF3forCDS(it);
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
     /**
      * parse one line GFF3 format
      *
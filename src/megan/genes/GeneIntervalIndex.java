@@ -0,0 +1,279 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.genes;
+
+import jloda.util.interval.Interval;
+import megan.classification.IdMapper;
+import megan.io.ByteFileGetterMappedMemory;
+import megan.io.InputReader;
+import megan.io.OutputWriter;
+import megan.tools.AAdderBuild;
+import megan.tools.AAdderRun;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * genes of DNA references, as stored in an AAdd DB file. Genes are queried in place in the memory-mapped file.
+ * <p>
+ * The genes of a reference are stored as a block of columns: start, end and max-end arrays, sorted by start and laid out
+ * as an implicit interval tree (the node at index i has level equal to the number of trailing 1-bits of i, and max-end is
+ * the largest end in its subtree), followed by one column of ids per classification, protein-id offsets, strands and protein ids.
+ * Daniel Huson, 10.2019
+ */
+public class GeneIntervalIndex implements Closeable {
+    private final ByteFileGetterMappedMemory dbxGetter;
+    private final GeneItemCreator creator;
+
+    /**
+     * opens the DB file
+     *
+     * @param dbFile
+     * @throws IOException
+     */
+    public GeneIntervalIndex(File dbFile) throws IOException {
+        try (InputReader dbxIns = new InputReader(dbFile)) {
+            AAdderRun.readAndVerifyMagicNumber(dbxIns, AAdderBuild.MAGIC_NUMBER_DBX);
+            final String[] cNames = new String[dbxIns.readInt()];
+            for (int i = 0; i < cNames.length; i++) {
+                cNames[i] = dbxIns.readString();
+            }
+            creator = new GeneItemCreator(cNames, new IdMapper[0]);
+        }
+        dbxGetter = new ByteFileGetterMappedMemory(dbFile);
+    }
+
+    /**
+     * get the number of genes stored in the block at the given position
+     *
+     * @param pos position of block of genes for a reference
+     * @return number of genes
+     */
+    public int size(long pos) throws IOException {
+        return dbxGetter.getInt(pos);
+    }
+
+    /**
+     * find the gene that has the largest overlap with the given interval. Ties are broken in favor of the gene with smaller start
+     *
+     * @param pos                   position of block of genes for a reference
+     * @param start                 start of query interval
+     * @param end                   end of query interval, inclusive
+     * @param minCoverageProportion minimum proportion of query interval that must be covered by gene
+     * @return index of gene, or -1
+     */
+    public int getBestGene(long pos, int start, int end, double minCoverageProportion) throws IOException {
+        final int n = dbxGetter.getInt(pos);
+        if (n == 0)
+            return -1;
+        if (start > end) {
+            final int tmp = start;
+            start = end;
+            end = tmp;
+        }
+        final int maxLevel = dbxGetter.getInt(pos + 4);
+        final long starts = pos + 8;
+        final long ends = starts + 4L * n;
+        final long maxEnds = ends + 4L * n;
+        final double minOverlap = minCoverageProportion * (end - start + 1);
+
+        int best = -1;
+        int bestOverlap = 0;
+
+        // stack of nodes with level and whether left subtree has been visited
+        final long[] stackNode = new long[64];
+        final int[] stackLevel = new int[64];
+        final boolean[] stackLeftDone = new boolean[64];
+        int top = 0;
+        stackNode[top] = (1L << maxLevel) - 1;
+        stackLevel[top] = maxLevel;
+        stackLeftDone[top++] = false;
+
+        while (top > 0) {
+            top--;
+            final long x = stackNode[top];
+            final int k = stackLevel[top];
+            if (k <= 3) { // small subtree, scan it
+                final long i0 = (x >> k) << k;
+                final long i1 = Math.min(n, i0 + (1L << (k + 1)) - 1);
+                for (long i = i0; i < i1; i++) {
+                    final int geneStart = dbxGetter.getInt(starts + 4 * i);
+                    if (geneStart > end)
+                        break;
+                    final int overlap = Math.min(end, dbxGetter.getInt(ends + 4 * i)) - Math.max(start, geneStart) + 1;
+                    if (overlap > 0 && overlap >= minOverlap && (overlap > bestOverlap || (overlap == bestOverlap && i < best))) {
+                        best = (int) i;
+                        bestOverlap = overlap;
+                    }
+                }
+            } else if (!stackLeftDone[top]) {
+                final long y = x - (1L << (k - 1)); // left child
+                stackLeftDone[top++] = true;
+                if (y >= n || dbxGetter.getInt(maxEnds + 4 * y) >= start) {
+                    stackNode[top] = y;
+                    stackLevel[top] = k - 1;
+                    stackLeftDone[top++] = false;
+                }
+            } else if (x < n) {
+                final int geneStart = dbxGetter.getInt(starts + 4 * x);
+                if (geneStart <= end) {
+                    final int overlap = Math.min(end, dbxGetter.getInt(ends + 4 * x)) - Math.max(start, geneStart) + 1;
+                    if (overlap > 0 && overlap >= minOverlap && (overlap > bestOverlap || (overlap == bestOverlap && x < best))) {
+                        best = (int) x;
+                        bestOverlap = overlap;
+                    }
+                    stackNode[top] = x + (1L << (k - 1)); // right child
+                    stackLevel[top] = k - 1;
+                    stackLeftDone[top++] = false;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * get the annotation string for a gene, in the same format as GeneItem.getAnnotation()
+     *
+     * @param pos   position of block of genes for a reference
+     * @param index index of gene
+     * @return annotation
+     */
+    public String getAnnotation(long pos, int index) throws IOException {
+        final int n = dbxGetter.getInt(pos);
+        final int numberOfClassifications = creator.numberOfClassifications();
+        final long starts = pos + 8;
+        final long ends = starts + 4L * n;
+        final long ids = ends + 8L * n;
+        final long proteinIdOffsets = ids + 4L * n * numberOfClassifications;
+        final long reverse = proteinIdOffsets + 4L * (n + 1);
+        final long proteinIds = reverse + n;
+
+        final int start = dbxGetter.getInt(starts + 4L * index);
+        final int end = dbxGetter.getInt(ends + 4L * index);
+
+        final StringBuilder buf = new StringBuilder();
+        buf.append("pos|").append(dbxGetter.get(reverse + index) == 1 ? end + ".." + start : start + ".." + end);
+
+        final int proteinIdStart = dbxGetter.getInt(proteinIdOffsets + 4L * index);
+        final byte[] proteinId = new byte[dbxGetter.getInt(proteinIdOffsets + 4L * (index + 1)) - proteinIdStart];
+        dbxGetter.get(proteinIds + proteinIdStart, proteinId, 0, proteinId.length);
+        buf.append("|ref|").append(new String(proteinId));
+
+        for (int c = 0; c < numberOfClassifications; c++) {
+            final int id = dbxGetter.getInt(ids + 4L * (c * (long) n + index));
+            if (id > 0)
+                buf.append("|").append(creator.getShortTag(c)).append(id);
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public void close() {
+        dbxGetter.close();
+    }
+
+    /**
+     * write the block of genes for a reference
+     *
+     * @param dbxWriter
+     * @param intervals               genes, will be sorted
+     * @param numberOfClassifications
+     */
+    public static void write(OutputWriter dbxWriter, List<Interval<GeneItem>> intervals, int numberOfClassifications) throws IOException {
+        final List<Interval<GeneItem>> list = new ArrayList<>(intervals);
+        list.sort((a, b) -> {
+            if (a.getStart() < b.getStart())
+                return -1;
+            else if (a.getStart() > b.getStart())
+                return 1;
+            else
+                return Integer.compare(a.getEnd(), b.getEnd());
+        });
+        final int n = list.size();
+        final int[] ends = new int[n];
+        for (int i = 0; i < n; i++)
+            ends[i] = list.get(i).getEnd();
+        final int[] maxEnds = new int[n];
+        final int maxLevel = computeMaxEnds(ends, maxEnds);
+
+        dbxWriter.writeInt(n);
+        dbxWriter.writeInt(maxLevel);
+        for (Interval<GeneItem> interval : list)
+            dbxWriter.writeInt(interval.getStart());
+        for (int end : ends)
+            dbxWriter.writeInt(end);
+        for (int maxEnd : maxEnds)
+            dbxWriter.writeInt(maxEnd);
+        for (int c = 0; c < numberOfClassifications; c++) {
+            for (Interval<GeneItem> interval : list)
+                dbxWriter.writeInt(interval.getData().getId(c));
+        }
+        int offset = 0;
+        for (Interval<GeneItem> interval : list) {
+            dbxWriter.writeInt(offset);
+            final byte[] proteinId = interval.getData().getProteinId();
+            offset += (proteinId == null ? 0 : proteinId.length);
+        }
+        dbxWriter.writeInt(offset);
+        for (Interval<GeneItem> interval : list)
+            dbxWriter.write(interval.getData().isReverse() ? 1 : 0);
+        for (Interval<GeneItem> interval : list) {
+            final byte[] proteinId = interval.getData().getProteinId();
+            if (proteinId != null)
+                dbxWriter.write(proteinId);
+        }
+    }
+
+    /**
+     * computes the max end of each node of the implicit interval tree over intervals sorted by start
+     *
+     * @param ends    ends of intervals
+     * @param maxEnds max ends, output
+     * @return level of root
+     */
+    private static int computeMaxEnds(int[] ends, int[] maxEnds) {
+        final int n = ends.length;
+        if (n == 0)
+            return 0;
+        int lastIndex = 0;
+        int last = 0;
+        for (int i = 0; i < n; i += 2) { // leaves
+            lastIndex = i;
+            maxEnds[i] = last = ends[i];
+        }
+        int k;
+        for (k = 1; (1L << k) <= n; k++) {
+            final int x = 1 << (k - 1);
+            final int i0 = (x << 1) - 1;
+            final long step = (long) x << 2;
+            for (long i = i0; i < n; i += step) {
+                final int left = maxEnds[(int) i - x];
+                final int right = (i + x < n ? maxEnds[(int) i + x] : last);
+                maxEnds[(int) i] = Math.max(ends[(int) i], Math.max(left, right));
+            }
+            lastIndex = ((lastIndex >> k & 1) != 0 ? lastIndex - x : lastIndex + x);
+            if (lastIndex < n && maxEnds[lastIndex] > last)
+                last = maxEnds[lastIndex];
+        }
+        return k - 1;
+    }
+}
@@ -29,7 +29,7 @@ import java.io.RandomAccessFile;
 
 /**
  * a gene item
- * Daniel Huson, 11.2017
+ * Daniel Huson, 11.2017, 10.2019
  */
 public class GeneItem {
     private byte[] proteinId;
@@ -43,7 +43,7 @@ public class GeneItem {
         ids = new int[creator.numberOfClassifications()];
     }
 
-    private byte[] getProteinId() {
+    byte[] getProteinId() {
         return proteinId;
     }
 
@@ -56,7 +56,7 @@ public class GeneItem {
         return getId(creator.rank(classificationName));
     }
 
-    private int getId(Integer rank) {
+    int getId(Integer rank) {
         return rank == null ? 0 : ids[rank];
     }
 
@@ -68,7 +68,7 @@ public class GeneItem {
         ids[rank] = id;
     }
 
-    private boolean isReverse() {
+    boolean isReverse() {
         return reverse;
     }
 
@@ -24,9 +24,6 @@ import jloda.util.Basic;
 import jloda.util.CanceledException;
 import jloda.util.ProgressPercentage;
 import jloda.util.UsageException;
-import jloda.util.interval.Interval;
-import jloda.util.interval.IntervalTree;
-import megan.classification.IdMapper;
 import megan.io.InputReader;
 import megan.tools.AAdderBuild;
 import megan.tools.AAdderRun;
@@ -35,19 +32,13 @@ import java.io.*;
 
 /**
  * class used to access gene items
- * Daniel Huson, 6.2018
+ * Daniel Huson, 6.2018, 10.2019
  */
 public class GeneItemAccessor {
     private final int size;
     private final long[] refIndex2FilePos;
-    private final IntervalTree<GeneItem>[] refIndex2Intervals;
     private final String[] index2ref;
-    private final RandomAccessFile dbRaf;
-
-    private final GeneItemCreator creator;
-
-    private final int syncBits = 1023;
-    private final Object[] syncObjects = new Object[syncBits + 1];  // use lots of objects to synchronize on so that threads don't in each others way
+    private final GeneIntervalIndex geneIntervalIndex;
 
     /**
      * construct the gene table from the gene-table index file
@@ -57,11 +48,6 @@ public class GeneItemAccessor {
      * @throws IOException
      */
     public GeneItemAccessor(File indexFile, File dbFile) throws IOException {
-        // create the synchronization objects
-        for (int i = 0; i < (syncBits + 1); i++) {
-            syncObjects[i] = new Object();
-        }
-
         try (InputReader ins = new InputReader(indexFile); ProgressPercentage progress = new ProgressPercentage("Reading file: " + indexFile)) {
             AAdderRun.readAndVerifyMagicNumber(ins, AAdderBuild.MAGIC_NUMBER_IDX);
             final String creator = ins.readString();
@@ -78,64 +64,11 @@ public class GeneItemAccessor {
                 progress.incrementProgress();
             }
         }
-        refIndex2Intervals = (IntervalTree<GeneItem>[]) new IntervalTree[size];
-
-        try (InputReader dbxIns = new InputReader(dbFile)) {
-            AAdderRun.readAndVerifyMagicNumber(dbxIns, AAdderBuild.MAGIC_NUMBER_DBX);
-            final String[] cNames = new String[dbxIns.readInt()];
-            for (int i = 0; i < cNames.length; i++) {
-                cNames[i] = dbxIns.readString();
-                System.err.println(cNames[i]);
-            }
-            creator = new GeneItemCreator(cNames, new IdMapper[0]);
-        }
-        dbRaf = new RandomAccessFile(dbFile, "r");
+        geneIntervalIndex = new GeneIntervalIndex(dbFile);
     }
 
     private int warned = 0;
 
-    /**
-     * get intervals for a given ref index
-     *
-     * @param refIndex
-     * @return intervals or null
-     * @throws IOException
-     */
-    private IntervalTree<GeneItem> getIntervals(int refIndex) {
-        synchronized (syncObjects[refIndex & syncBits]) {
-            if (refIndex2Intervals[refIndex] == null && refIndex2FilePos[refIndex] != 0) {
-                synchronized (dbRaf) {
-                    try {
-                        final long pos = refIndex2FilePos[refIndex];
-                        dbRaf.seek(pos);
-                        int intervalsLength = dbRaf.readInt();
-                        if (intervalsLength > 0) {
-                            IntervalTree<GeneItem> intervals = new IntervalTree<>();
-                            for (int i = 0; i < intervalsLength; i++) {
-                                int start = dbRaf.readInt();
-                                int end = dbRaf.readInt();
-                                GeneItem geneItem = new GeneItem(creator);
-                                geneItem.read(dbRaf);
-                                intervals.add(start, end, geneItem);
-                                //System.err.println(refIndex+"("+start+"-"+end+") -> "+geneItem);
-                            }
-                            refIndex2Intervals[refIndex] = intervals;
-                        }
-                    } catch (IOException ex) {
-                        if (warned < 10) {
-                            Basic.caught(ex);
-                            if (++warned == 0) {
-                                System.err.println("Suppressing all further such exceptions");
-                            }
-                        }
-                    }
-                }
-
-            }
-            return refIndex2Intervals[refIndex];
-        }
-    }
-
     /**
      * adds annotations to reference header
      *
@@ -146,16 +79,20 @@ public class GeneItemAccessor {
      * @return annotated reference header
      */
     public String annotateRefString(String referenceHeader, Integer refIndex, int alignStart, int alignEnd) {
-        final IntervalTree<GeneItem> tree = getIntervals(refIndex);
-
-        if (tree != null) {
-            final Interval<Object> alignInterval = new Interval<>(alignStart, alignEnd, null);
-            final Interval<GeneItem> refInterval = tree.getBestInterval(alignInterval, 0.9);
-
-            if (refInterval != null) {
-                final GeneItem geneItem = refInterval.getData();
-
-                return Basic.swallowLeadingGreaterSign(Basic.getFirstWord(referenceHeader)) + "|" + geneItem.getAnnotation(refInterval);
+        final long pos = refIndex2FilePos[refIndex];
+
+        if (pos != 0) {
+            try {
+                final int gene = geneIntervalIndex.getBestGene(pos, alignStart, alignEnd, 0.9);
+                if (gene != -1)
+                    return Basic.swallowLeadingGreaterSign(Basic.getFirstWord(referenceHeader)) + "|" + geneIntervalIndex.getAnnotation(pos, gene);
+            } catch (IOException ex) {
+                if (warned < 10) {
+                    Basic.caught(ex);
+                    if (++warned == 10) {
+                        System.err.println("Suppressing all further such exceptions");
+                    }
+                }
             }
         }
         return referenceHeader;
@@ -186,9 +123,9 @@ public class GeneItemAccessor {
         try (Writer w = new BufferedWriter(outputFile.equals("stdout") ? new OutputStreamWriter(System.out) : new FileWriter(outputFile))) {
             for (int i = 0; i < geneTableAccess.size(); i++) {
                 System.err.println("ref[" + i + "]=" + geneTableAccess.getIndex2ref(i) + ":");
-                final IntervalTree<GeneItem> tree = geneTableAccess.getIntervals(i);
-                if (tree != null) {
-                    System.err.println("Tree[" + idxFile + "]: " + Basic.abbreviateDotDotDot(tree.toString(), 1000));
+                final long pos = geneTableAccess.refIndex2FilePos[i];
+                if (pos != 0) {
+                    System.err.println("Genes[" + idxFile + "]: " + geneTableAccess.geneIntervalIndex.size(pos));
                 }
             }
         }
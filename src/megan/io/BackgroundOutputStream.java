@@ -0,0 +1,233 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.io;
+
+import jloda.util.ProgramProperties;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * output stream that fills large buffers on the calling thread and writes them to the underlying stream on a background thread
+ * <p>
+ * Full buffers are handed to the writer thread through a bounded queue and recycled once written, so at most
+ * queueDepth+1 buffers are in use. Any failure of the writer thread is reported as an IOException by the next write, flush or close.
+ * Daniel Huson, 10.2019
+ */
+public class BackgroundOutputStream extends OutputStream {
+    private static final byte[] SENTINEL = new byte[0];
+
+    private final OutputStream outs;
+    private final BlockingQueue<Buffer> fullBuffers;
+    private final BlockingQueue<Buffer> freeBuffers;
+    private final Thread writerThread;
+
+    private Buffer current;
+    private volatile IOException writeException;
+    private boolean closed = false;
+
+    /**
+     * constructor using default buffer size and queue depth
+     *
+     * @param outs
+     */
+    public BackgroundOutputStream(OutputStream outs) {
+        this(outs, ProgramProperties.get("BackgroundWriteBufferSize", 4 * 1024 * 1024), ProgramProperties.get("BackgroundWriteQueueDepth", 2));
+    }
+
+    /**
+     * constructor
+     *
+     * @param outs       underlying stream, written to on the background thread only
+     * @param bufferSize size of each buffer
+     * @param queueDepth number of full buffers that may wait to be written
+     */
+    public BackgroundOutputStream(OutputStream outs, int bufferSize, int queueDepth) {
+        this.outs = outs;
+        bufferSize = Math.max(8192, bufferSize);
+        queueDepth = Math.max(1, queueDepth);
+        fullBuffers = new ArrayBlockingQueue<>(queueDepth + 1);
+        freeBuffers = new ArrayBlockingQueue<>(queueDepth + 1);
+        for (int i = 0; i < queueDepth; i++)
+            freeBuffers.add(new Buffer(bufferSize));
+        current = new Buffer(bufferSize);
+
+        writerThread = new Thread(this::writeLoop, "BackgroundOutputStream");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (current.length == current.bytes.length)
+            handOver();
+        current.bytes[current.length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (current.length == current.bytes.length)
+                handOver();
+            final int count = Math.min(length, current.bytes.length - current.length);
+            System.arraycopy(bytes, offset, current.bytes, current.length, count);
+            current.length += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * waits until all data written so far has been passed to the underlying stream, and then flushes it
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current.length > 0)
+            handOver();
+        final Buffer marker = new Buffer(0);
+        marker.flush = true;
+        put(marker);
+        final boolean done;
+        try {
+            synchronized (marker) {
+                while (!marker.done && writeException == null && writerThread.isAlive())
+                    marker.wait(100);
+                done = marker.done;
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Flush interrupted");
+        }
+        checkException();
+        if (!done)
+            throw new IOException("Background writer has stopped");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (current.length > 0)
+                handOver();
+            final Buffer last = new Buffer(0);
+            last.bytes = SENTINEL;
+            put(last);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            throw new IOException("Close interrupted");
+        } finally {
+            outs.close();
+        }
+        checkException();
+    }
+
+    /**
+     * hand the current buffer to the writer thread and obtain a free one
+     */
+    private void handOver() throws IOException {
+        checkException();
+        put(current);
+        try {
+            Buffer next;
+            while ((next = freeBuffers.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkWriter();
+            }
+            next.length = 0;
+            current = next;
+        } catch (InterruptedException ex) {
+            throw new IOException("Write interrupted");
+        }
+    }
+
+    private void put(Buffer buffer) throws IOException {
+        try {
+            while (!fullBuffers.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                checkWriter();
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Write interrupted");
+        }
+    }
+
+    private void checkException() throws IOException {
+        if (writeException != null)
+            throw writeException;
+    }
+
+    /**
+     * check that the writer thread is still running, used while waiting for it
+     */
+    private void checkWriter() throws IOException {
+        checkException();
+        if (!writerThread.isAlive()) {
+            checkException(); // the writer thread may have failed just now
+            throw new IOException("Background writer has stopped");
+        }
+    }
+
+    /**
+     * runs on the writer thread
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                final Buffer buffer = fullBuffers.take();
+                if (buffer.bytes == SENTINEL)
+                    break;
+                if (buffer.flush) {
+                    outs.flush();
+                    synchronized (buffer) {
+                        buffer.done = true;
+                        buffer.notifyAll();
+                    }
+                } else {
+                    outs.write(buffer.bytes, 0, buffer.length);
+                    freeBuffers.put(buffer);
+                }
+            }
+            outs.flush();
+        } catch (IOException ex) {
+            writeException = ex;
+        } catch (InterruptedException ex) {
+            writeException = new IOException("Background write interrupted");
+        } catch (Throwable ex) { // any failure must be reported, otherwise the calling thread waits for ever
+            writeException = new IOException("Background write failed: " + ex, ex);
+        }
+    }
+
+    /**
+     * a buffer
+     */
+    private static class Buffer {
+        byte[] bytes;
+        int length;
+        boolean flush;
+        boolean done;
+
+        Buffer(int size) {
+            bytes = new byte[size];
+        }
+    }
+}
@@ -26,17 +26,45 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 /**
  * compress and decompress strings
- * Daniel Huson, 8.2008
+ * <p>
+ * Supports several codecs: Deflate at a given level (level 9 is the original format), Deflate with a preset dictionary
+ * of typical read and SAM text, and the very fast FastLZ. The codec is not stored with each string, so the codec used
+ * for writing must be recorded elsewhere (in the RMA6 header, for example) and set before reading.
+ * Daniel Huson, 8.2008, 10.2019
  */
 public class Compressor {
+    /**
+     * available codecs
+     */
+    public enum Codec {Deflate, DeflateDictionary, LZ}
+
+    /**
+     * the original codec, used for all files that do not record a codec
+     */
+    public static final String DEFAULT_CODEC_SPEC = "Deflate:9";
+
+    private static final byte[] DICTIONARY = (
+            "tr|sp|WP_XP_NP_YP_ref|gi|gb|emb|dbj|pdb|MULTISPECIES: hypothetical protein uncharacterized protein " +
+                    "transporter ATP-binding protein ABC transporter permease transcriptional regulator [Bacteroides] [Escherichia coli] " +
+                    "\tZF:i:-1\tZF:i:-2\tZF:i:-3\tZF:i:1\tZF:i:2\tZF:i:3\tAL:Z:\tZQ:i:\t*\t0\t0\t*\t*\t" +
+                    "\t0\t255\t\t256\t16\t272\tM\tD\tI\tS\tH\t=\t" +
+                    "AS:i:\tNM:i:\tZL:i:\tZR:i:\tZE:f:\tZI:i:100\tZS:i:1\tMD:Z:\n" +
+                    "e-10\tZI:i:\tZS:i:\tMD:Z:\n"
+    ).getBytes(StandardCharsets.UTF_8);
+
     private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
     private final Inflater inflater = new Inflater(true);
+    private final FastLZ fastLZ = new FastLZ();
+    private Codec codec = Codec.Deflate;
+    private int level = Deflater.BEST_COMPRESSION;
+
     private byte[] buffer;
     public static final int MIN_SIZE_FOR_DEFLATION = 90;
     private boolean enabled = true;
@@ -64,6 +92,9 @@ public class Compressor {
      * @return deflated string
      */
     public byte[] deflateString2ByteArray(String inputString) {
+        final int maxLength = getMaxCompressedLength(3 * inputString.length()); // UTF-8 uses at most 3 bytes per char
+        if (buffer.length < maxLength)
+            buffer = new byte[maxLength];
         int length = deflateString2ByteArray(inputString, buffer);
         byte[] result = new byte[Math.abs(length)];
         System.arraycopy(buffer, 0, result, 0, Math.abs(length));
@@ -91,23 +122,48 @@ public class Compressor {
         return deflateString2ByteArray(input, 0, input.length, bytes);
     }
 
+    /**
+     * gets the size of a buffer that is large enough to hold the result of compressing the given number of bytes with the current codec
+     *
+     * @param length number of uncompressed bytes
+     * @return max number of bytes written by deflateString2ByteArray
+     */
+    public int getMaxCompressedLength(int length) {
+        if (codec == Codec.LZ)
+            return 4 + FastLZ.maxCompressedLength(length);
+        else // bound for raw deflate, as in zlib's deflateBound(), plus some slack
+            return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+
     /**
      * compresses a string to an array of bytes
      *
      * @param input
      * @param inputOffset
      * @param inputLength
-     * @param bytes       array to write bytes to
+     * @param bytes       array to write bytes to, must have at least getMaxCompressedLength(inputLength) bytes
      * @return number of bytes written  (negative number, if bytes are not deflated)
      */
     public int deflateString2ByteArray(byte[] input, int inputOffset, int inputLength, byte[] bytes) {
         if (inputLength >= MIN_SIZE_FOR_DEFLATION) {
-            // Compress the bytes
-            deflater.setInput(input, inputOffset, inputLength);
-            deflater.finish();
-            int compressedDataLength = deflater.deflate(bytes);
-            deflater.reset();
-            return -compressedDataLength;
+            if (codec == Codec.LZ) {
+                writeInt(inputLength, bytes, 0); // uncompressed length, so that reader can allocate target
+                return -(4 + fastLZ.compress(input, inputOffset, inputLength, bytes, 4));
+            } else {
+                // Compress the bytes
+                if (codec == Codec.DeflateDictionary)
+                    deflater.setDictionary(DICTIONARY);
+                deflater.setInput(input, inputOffset, inputLength);
+                deflater.finish();
+                int compressedDataLength = 0;
+                while (!deflater.finished() && compressedDataLength < bytes.length) // first call after a change of level may return no output
+                    compressedDataLength += deflater.deflate(bytes, compressedDataLength, bytes.length - compressedDataLength);
+                final boolean finished = deflater.finished();
+                deflater.reset();
+                if (!finished)
+                    throw new IllegalArgumentException("Buffer too small for compressed string");
+                return -compressedDataLength;
+            }
         } else {
             System.arraycopy(input, inputOffset, bytes, 0, inputLength);
             return inputLength;
@@ -143,10 +199,13 @@ public class Compressor {
                 return buf.toString();
             }
         }
-        inflater.setInput(bytes, 0, numberOfBytes);
-        if (buffer.length < 100 * bytes.length)  // try to make sure the result buffer is long enough
+        if (codec == Codec.LZ) {
+            final int uncompressedLength = readInt(bytes, 0);
+            if (buffer.length < uncompressedLength)
+                buffer = new byte[uncompressedLength];
+        } else if (buffer.length < 100 * bytes.length)  // try to make sure the result buffer is long enough
             buffer = new byte[100 * bytes.length];
-        int resultLength = inflater.inflate(buffer);
+        int resultLength = decode(numberOfBytes, bytes, buffer);
 
         String outputString;
         try {
@@ -159,7 +218,6 @@ public class Compressor {
             outputString = buf.toString();
 
         }
-        inflater.reset();
         return outputString;
     }
 
@@ -186,10 +244,99 @@ public class Compressor {
             System.arraycopy(source, 0, target, 0, source.length);
             return Math.abs(numberOfBytes);
         }
-        inflater.setInput(source, 0, numberOfBytes);
-        int resultLength = inflater.inflate(target);
-        inflater.reset();
-        return resultLength;
+        return decode(numberOfBytes, source, target);
+    }
+
+    /**
+     * decode compressed bytes using the current codec
+     *
+     * @param numberOfBytes number of compressed bytes
+     * @param source        compressed bytes
+     * @param target        output
+     * @return number of bytes
+     * @throws DataFormatException
+     */
+    private int decode(int numberOfBytes, byte[] source, byte[] target) throws DataFormatException {
+        if (codec == Codec.LZ) {
+            try {
+                return FastLZ.decompress(source, 4, numberOfBytes - 4, target, 0);
+            } catch (IndexOutOfBoundsException ex) {
+                throw new DataFormatException("Invalid or truncated LZ data");
+            }
+        } else {
+            if (codec == Codec.DeflateDictionary)
+                inflater.setDictionary(DICTIONARY);
+            inflater.setInput(source, 0, numberOfBytes);
+            int resultLength = inflater.inflate(target);
+            inflater.reset();
+            return resultLength;
+        }
+    }
+
+    /**
+     * set the codec
+     *
+     * @param codec
+     * @param level compression level, used by Deflate and DeflateDictionary, 1-9
+     */
+    public void setCodec(Codec codec, int level) {
+        this.codec = codec;
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        deflater.setLevel(this.level);
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * get the codec specification, such as Deflate:9, DeflateDictionary:6 or LZ
+     *
+     * @return specification
+     */
+    public String getCodecSpec() {
+        return (codec == Codec.LZ ? codec.toString() : codec + ":" + level);
+    }
+
+    /**
+     * set the codec from a specification, such as Deflate:9, DeflateDictionary:6 or LZ
+     *
+     * @param spec specification, if null, the default codec is used
+     * @throws IOException unknown codec
+     */
+    public void setCodecSpec(String spec) throws IOException {
+        if (spec == null)
+            spec = DEFAULT_CODEC_SPEC;
+        final String[] tokens = spec.split(":");
+        Codec codec = null;
+        for (Codec value : Codec.values()) {
+            if (value.toString().equalsIgnoreCase(tokens[0].trim()))
+                codec = value;
+        }
+        if (codec == null)
+            throw new IOException("Unknown compression codec: " + spec);
+        int level = Deflater.BEST_COMPRESSION;
+        if (tokens.length > 1) {
+            if (!Basic.isInteger(tokens[1].trim()))
+                throw new IOException("Invalid compression level: " + spec);
+            level = Basic.parseInt(tokens[1].trim());
+        }
+        setCodec(codec, level);
+    }
+
+    private static void writeInt(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
     }
 
     /**
@@ -0,0 +1,200 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.io;
+
+/**
+ * very fast LZ77-type block compression, in pure Java
+ * <p>
+ * Uses the LZ4 block layout: each sequence consists of a token (4 bits literal length, 4 bits match length - 4),
+ * the literals, a 2-byte little-endian offset and any extra match-length bytes. The last sequence consists of literals only.
+ * Not thread safe, each thread should use its own instance.
+ * Daniel Huson, 10.2019
+ */
+public class FastLZ {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    private final int[] hashTable = new int[1 << HASH_BITS];
+
+    /**
+     * maximal number of bytes that compressing the given number of bytes can produce
+     *
+     * @param length
+     * @return max compressed length
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * compress
+     *
+     * @param src       source
+     * @param srcOffset
+     * @param srcLength
+     * @param dest      destination, must have at least maxCompressedLength(srcLength) bytes available
+     * @param destOffset
+     * @return number of bytes written to dest
+     */
+    public int compress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        final int srcEnd = srcOffset + srcLength;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int findLimit = srcEnd - MATCH_FIND_LIMIT;
+
+        int ip = srcOffset;
+        int anchor = srcOffset;
+        int op = destOffset;
+
+        // hash table entries from previous calls may be stale, so every candidate is range-checked and verified
+        while (ip < findLimit) {
+            final int sequence = getInt(src, ip);
+            final int h = hash(sequence);
+            int ref = hashTable[h];
+            hashTable[h] = ip;
+            if (ref >= srcOffset && ref < ip && ip - ref <= MAX_OFFSET && getInt(src, ref) == sequence) {
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength])
+                    matchLength++;
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dest, op);
+                ip += matchLength;
+                anchor = ip;
+                if (ip < findLimit)
+                    hashTable[hash(getInt(src, ip - 2))] = ip - 2;
+            } else
+                ip += 1 + ((ip - anchor) >>> 6); // skip faster through incompressible data
+        }
+        return writeLastLiterals(src, anchor, srcEnd - anchor, dest, op) - destOffset;
+    }
+
+    /**
+     * decompress
+     *
+     * @param src       compressed data
+     * @param srcOffset
+     * @param srcLength
+     * @param dest      destination, must be large enough to hold the uncompressed data
+     * @param destOffset
+     * @return number of bytes written to dest
+     */
+    public static int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        final int srcEnd = srcOffset + srcLength;
+        int ip = srcOffset;
+        int op = destOffset;
+
+        while (ip < srcEnd) {
+            final int token = src[ip++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                }
+                while (b == 255);
+            }
+            System.arraycopy(src, ip, dest, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip >= srcEnd)
+                break;
+
+            final int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                }
+                while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            final int ref = op - offset;
+            if (offset >= matchLength)
+                System.arraycopy(dest, ref, dest, op, matchLength);
+            else { // overlapping copy
+                for (int i = 0; i < matchLength; i++)
+                    dest[op + i] = dest[ref + i];
+            }
+            op += matchLength;
+        }
+        return op - destOffset;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength, byte[] dest, int op) {
+        final int tokenPos = op++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            op = writeLength(literalLength - 15, dest, op);
+        } else
+            token = literalLength << 4;
+        System.arraycopy(src, literalStart, dest, op, literalLength);
+        op += literalLength;
+
+        dest[op++] = (byte) offset;
+        dest[op++] = (byte) (offset >>> 8);
+
+        final int extra = matchLength - MIN_MATCH;
+        if (extra >= 15) {
+            token |= 15;
+            op = writeLength(extra - 15, dest, op);
+        } else
+            token |= extra;
+        dest[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart, int literalLength, byte[] dest, int op) {
+        if (literalLength >= 15) {
+            dest[op++] = (byte) (15 << 4);
+            op = writeLength(literalLength - 15, dest, op);
+        } else
+            dest[op++] = (byte) (literalLength << 4);
+        System.arraycopy(src, literalStart, dest, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dest, int op) {
+        while (length >= 255) {
+            dest[op++] = (byte) 255;
+            length -= 255;
+        }
+        dest[op++] = (byte) length;
+        return op;
+    }
+
+    private static int getInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | (bytes[pos + 1] & 0xFF) << 8 | (bytes[pos + 2] & 0xFF) << 16 | (bytes[pos + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
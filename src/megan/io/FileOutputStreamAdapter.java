@@ -26,7 +26,7 @@ import java.io.*;
  */
 public class FileOutputStreamAdapter implements IOutput {
     private static final int BUFFER_SIZE = 8192;
-    private final BufferedOutputStream outs;
+    private final OutputStream outs;
     private long position;
 
     /**
@@ -53,6 +53,21 @@ public class FileOutputStreamAdapter implements IOutput {
             position = file.length();
     }
 
+    /**
+     * constructor
+     *
+     * @param file
+     * @param append
+     * @param writeInBackground if true, file writes are performed on a background thread, see BackgroundOutputStream
+     * @throws FileNotFoundException
+     */
+    public FileOutputStreamAdapter(File file, boolean append, boolean writeInBackground) throws FileNotFoundException {
+        final FileOutputStream fileOutputStream = new FileOutputStream(file, append);
+        outs = (writeInBackground ? new BackgroundOutputStream(fileOutputStream) : new BufferedOutputStream(fileOutputStream, BUFFER_SIZE));
+        if (append)
+            position = file.length();
+    }
+
     /**
      * get position in file
      *
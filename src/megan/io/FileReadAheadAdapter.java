@@ -0,0 +1,333 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.io;
+
+import jloda.util.ProgramProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * read-only file input that reads ahead on a dedicated I/O thread
+ * <p>
+ * The file is read in chunks of bufferSize bytes. While the consumer works on one chunk, up to numberOfBuffers-1
+ * following chunks are read in the background. Seeking within the read-ahead window reuses the chunks already read,
+ * seeking elsewhere restarts the read-ahead at the new position.
+ * Keeps track of the number of bytes read and of the time that the consumer had to wait for data, so that I/O-bound runs
+ * can be distinguished from CPU-bound ones.
+ * Daniel Huson, 10.2019
+ */
+public class FileReadAheadAdapter implements IInput {
+    private static final AtomicLong totalBytesRead = new AtomicLong();
+    private static final AtomicLong totalStallNanos = new AtomicLong();
+
+    private final FileChannel channel;
+    private final long length;
+    private final int bufferSize;
+    private final int numberOfBuffers;
+    private final ExecutorService ioService;
+
+    private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+    private final ArrayDeque<Long> pendingPositions = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+    private long nextReadPosition;
+
+    private Chunk current;
+    private int offset; // position inside current chunk
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private long stallNanos;
+    private long numberOfStalls;
+
+    /**
+     * constructor using default buffer size and number of buffers
+     *
+     * @param fileName
+     * @throws IOException
+     */
+    public FileReadAheadAdapter(String fileName) throws IOException {
+        this(new File(fileName));
+    }
+
+    /**
+     * constructor using default buffer size and number of buffers
+     *
+     * @param file
+     * @throws IOException
+     */
+    public FileReadAheadAdapter(File file) throws IOException {
+        this(file, ProgramProperties.get("ReadAheadBufferSize", 4 * 1024 * 1024), ProgramProperties.get("ReadAheadNumberOfBuffers", 3));
+    }
+
+    /**
+     * constructor
+     *
+     * @param file
+     * @param bufferSize      size of each chunk read in one I/O operation
+     * @param numberOfBuffers number of buffers, at least 2 (double buffering)
+     * @throws IOException
+     */
+    public FileReadAheadAdapter(File file, int bufferSize, int numberOfBuffers) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = channel.size();
+        this.bufferSize = Math.max(4096, bufferSize);
+        this.numberOfBuffers = Math.max(2, numberOfBuffers);
+        this.ioService = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "FileReadAheadAdapter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        current = new Chunk(0, new byte[0], 0);
+        nextReadPosition = 0;
+        fillPending();
+    }
+
+    public int read() throws IOException {
+        if (offset >= current.length && !nextChunk())
+            return -1;
+        return current.bytes[offset++] & 0xFF;
+    }
+
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            if (offset >= current.length && !nextChunk())
+                break;
+            final int count = Math.min(len - total, current.length - offset);
+            System.arraycopy(current.bytes, offset, bytes, off + total, count);
+            offset += count;
+            total += count;
+        }
+        return (total == 0 && len > 0 ? -1 : total);
+    }
+
+    public int skipBytes(int n) throws IOException {
+        final long position = getPosition();
+        final long target = Math.min(length, position + n);
+        seek(target);
+        return (int) (target - position);
+    }
+
+    public long getPosition() {
+        return current.position + offset;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean supportsSeek() {
+        return true;
+    }
+
+    /**
+     * seek to the given position. Chunks that have already been read ahead are reused, if possible
+     *
+     * @param pos
+     * @throws IOException
+     */
+    public void seek(long pos) throws IOException {
+        if (pos >= current.position && pos <= current.position + current.length) {
+            offset = (int) (pos - current.position);
+            return;
+        }
+        if (pos > current.position) { // move forward through read-ahead window
+            while (pendingPositions.size() > 0 && pendingPositions.peekFirst() + bufferSize <= pos) {
+                recycle(take());
+            }
+            if (pendingPositions.size() > 0 && pendingPositions.peekFirst() <= pos) {
+                recycle(current);
+                current = take();
+                offset = (int) (pos - current.position);
+                fillPending();
+                return;
+            }
+        }
+        // restart read-ahead at new position
+        while (pending.size() > 0) {
+            recycle(take());
+        }
+        recycle(current);
+        current = new Chunk(pos, new byte[0], 0);
+        offset = 0;
+        nextReadPosition = pos;
+        fillPending();
+    }
+
+    public void close() throws IOException {
+        ioService.shutdownNow();
+        channel.close();
+    }
+
+    /**
+     * gets the number of bytes read from the file
+     *
+     * @return bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * gets the total time that the consumer had to wait for data to be read
+     *
+     * @return stall time in milliseconds
+     */
+    public long getStallTimeMilliseconds() {
+        return stallNanos / 1000000;
+    }
+
+    /**
+     * gets the number of times that the consumer had to wait for data to be read
+     *
+     * @return number of stalls
+     */
+    public long getNumberOfStalls() {
+        return numberOfStalls;
+    }
+
+    /**
+     * gets the number of bytes read by all read-ahead adapters
+     *
+     * @return bytes read
+     */
+    public static long getTotalBytesRead() {
+        return totalBytesRead.get();
+    }
+
+    /**
+     * gets the total time that consumers of all read-ahead adapters had to wait for data
+     *
+     * @return stall time in milliseconds
+     */
+    public static long getTotalStallTimeMilliseconds() {
+        return totalStallNanos.get() / 1000000;
+    }
+
+    public String toString() {
+        return String.format("Read-ahead: %,d bytes read, %,d stalls, %,d ms stalled", bytesRead.get(), numberOfStalls, getStallTimeMilliseconds());
+    }
+
+    /**
+     * move to the next chunk
+     *
+     * @return false, if at end of file
+     */
+    private boolean nextChunk() throws IOException {
+        if (current.position + current.length >= length || pending.size() == 0)
+            return false;
+        final Chunk next = take();
+        recycle(current);
+        current = next;
+        offset = 0;
+        fillPending();
+        return current.length > 0;
+    }
+
+    /**
+     * take the next chunk from the read-ahead window, waiting for it, if necessary
+     *
+     * @return chunk
+     */
+    private Chunk take() throws IOException {
+        final Future<Chunk> future = pending.pollFirst();
+        pendingPositions.pollFirst();
+        if (future == null)
+            throw new IOException("Read-ahead window is empty");
+        try {
+            if (!future.isDone()) {
+                final long start = System.nanoTime();
+                final Chunk chunk = future.get();
+                final long stall = System.nanoTime() - start;
+                stallNanos += stall;
+                numberOfStalls++;
+                totalStallNanos.addAndGet(stall);
+                return chunk;
+            } else
+                return future.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Read-ahead interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * submit reads until the read-ahead window is full
+     */
+    private void fillPending() {
+        while (pending.size() < numberOfBuffers - 1 && nextReadPosition < length) {
+            final long position = nextReadPosition;
+            final byte[] buffer = (freeBuffers.size() > 0 ? freeBuffers.pop() : new byte[bufferSize]);
+            pending.add(ioService.submit(() -> readChunk(position, buffer)));
+            pendingPositions.add(position);
+            nextReadPosition += bufferSize;
+        }
+    }
+
+    /**
+     * read a chunk, runs on the I/O thread
+     */
+    private Chunk readChunk(long position, byte[] buffer) throws IOException {
+        final int toRead = (int) Math.min(buffer.length, length - position);
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, toRead);
+        long filePosition = position;
+        while (byteBuffer.hasRemaining()) {
+            final int count = channel.read(byteBuffer, filePosition);
+            if (count == -1)
+                break;
+            filePosition += count;
+        }
+        final int got = byteBuffer.position();
+        bytesRead.addAndGet(got);
+        totalBytesRead.addAndGet(got);
+        return new Chunk(position, buffer, got);
+    }
+
+    private void recycle(Chunk chunk) {
+        if (chunk.bytes.length == bufferSize && freeBuffers.size() < numberOfBuffers)
+            freeBuffers.push(chunk.bytes);
+    }
+
+    /**
+     * a chunk of the file
+     */
+    private static class Chunk {
+        final long position;
+        final byte[] bytes;
+        final int length;
+
+        Chunk(long position, byte[] bytes, int length) {
+            this.position = position;
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
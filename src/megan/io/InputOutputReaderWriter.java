@@ -25,7 +25,7 @@ import java.util.zip.DataFormatException;
 
 /**
  * read input and write output
- * Daniel Huson, 6.2009
+ * Daniel Huson, 6.2009, 10.2019
  */
 public class InputOutputReaderWriter implements IInputReaderOutputWriter {
     private final Compressor compressor = new Compressor();
@@ -226,8 +226,9 @@ public class InputOutputReaderWriter implements IInputReaderOutputWriter {
             writeInt(0);
         else {
             if (useCompression && length >= Compressor.MIN_SIZE_FOR_DEFLATION) {
-                if (byteBuffer.length < length)
-                    byteBuffer = new byte[2 * length]; // surely compressed with never be longer than 2*uncompressed
+                final int maxCompressedLength = compressor.getMaxCompressedLength(length);
+                if (byteBuffer.length < maxCompressedLength)
+                    byteBuffer = new byte[maxCompressedLength];
                 int numberOfBytes = compressor.deflateString2ByteArray(str, offset, length, byteBuffer);
                 writeInt(numberOfBytes);
                 io.write(byteBuffer, 0, Math.abs(numberOfBytes));
@@ -331,4 +332,13 @@ public class InputOutputReaderWriter implements IInputReaderOutputWriter {
     public void seek(long pos) throws IOException {
         io.seek(pos + offset);
     }
+
+    /**
+     * get the compressor used for strings, e.g. to set the codec
+     *
+     * @return compressor
+     */
+    public Compressor getCompressor() {
+        return compressor;
+    }
 }
@@ -249,5 +249,13 @@ public class InputReader implements IInputReader {
     public boolean isUseAbsoluteFilePositions() {
         return useAbsoluteFilePositions;
     }
-}
 
+    /**
+     * get the compressor used for strings, e.g. to set the codec
+     *
+     * @return compressor
+     */
+    public Compressor getCompressor() {
+        return compressor;
+    }
+}
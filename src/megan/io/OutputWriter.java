@@ -19,18 +19,15 @@
 package megan.io;
 
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
 
 /**
  * class for writing output
- * Daniel Huson, 6.2009, 8.2015
+ * Daniel Huson, 6.2009, 8.2015, 10.2019
  */
 public class OutputWriter implements IOutputWriter, IInputReaderOutputWriter {
     private static final int BUFFER_SIZE = 8192;
-    private final BufferedOutputStream outs;
+    private final OutputStream outs;
     private long position;
 
     private final Compressor compressor = new Compressor();
@@ -60,6 +57,20 @@ public class OutputWriter implements IOutputWriter, IInputReaderOutputWriter {
         position = file.length();
     }
 
+    /**
+     * constructor
+     *
+     * @param file
+     * @param append
+     * @param writeInBackground if true, file writes are performed on a background thread, see BackgroundOutputStream
+     * @throws IOException
+     */
+    public OutputWriter(File file, boolean append, boolean writeInBackground) throws IOException {
+        final FileOutputStream fileOutputStream = new FileOutputStream(file, append);
+        this.outs = (writeInBackground ? new BackgroundOutputStream(fileOutputStream) : new BufferedOutputStream(fileOutputStream, BUFFER_SIZE));
+        position = (append ? file.length() : 0);
+    }
+
     /**
      * write an int
      *
@@ -165,8 +176,9 @@ public class OutputWriter implements IOutputWriter, IInputReaderOutputWriter {
             writeInt(0);
         else {
             if (useCompression && length >= Compressor.MIN_SIZE_FOR_DEFLATION) {
-                if (byteBuffer.length < length)
-                    byteBuffer = new byte[2 * length]; // surely compressed with never be longer than 2*uncompressed
+                final int maxCompressedLength = compressor.getMaxCompressedLength(length);
+                if (byteBuffer.length < maxCompressedLength)
+                    byteBuffer = new byte[maxCompressedLength];
                 int numberOfBytes = compressor.deflateString2ByteArray(str, offset, length, byteBuffer);
                 writeInt(numberOfBytes);
                 outs.write(byteBuffer, 0, Math.abs(numberOfBytes));
@@ -348,4 +360,13 @@ public class OutputWriter implements IOutputWriter, IInputReaderOutputWriter {
     public String readString() throws IOException {
         throw new IOException("Not implemented");
     }
+
+    /**
+     * get the compressor used for strings, e.g. to set the codec
+     *
+     * @return compressor
+     */
+    public Compressor getCompressor() {
+        return compressor;
+    }
 }
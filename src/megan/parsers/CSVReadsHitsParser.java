@@ -236,11 +236,11 @@ public class CSVReadsHitsParser {
                 unassignedCounts[0] += (countInputReadNames - countOutputReadNames);
             }
 
-            table.getClassification2Class2Counts().put(ClassificationType.Taxonomy.toString(), class2counts);
+            table.setClass2Counts(ClassificationType.Taxonomy.toString(), class2counts);
         } else {
             Map<Integer, float[]> class2counts = new HashMap<>();
             class2counts.put(IdMapper.UNASSIGNED_ID, new float[]{totalReads});
-            table.getClassification2Class2Counts().put(ClassificationType.Taxonomy.toString(), class2counts);
+            table.setClass2Counts(ClassificationType.Taxonomy.toString(), class2counts);
         }
 
         for (int i = 0; i < cNames.length; i++) {
@@ -266,7 +266,7 @@ public class CSVReadsHitsParser {
                     }
                     progress.incrementProgress();
                 }
-                table.getClassification2Class2Counts().put(cNames[i], class2counts);
+                table.setClass2Counts(cNames[i], class2counts);
                 if (progress instanceof ProgressPercentage)
                     ((ProgressPercentage) progress).reportTaskCompleted();
             }
@@ -221,13 +221,13 @@ public class CSVSummaryParser {
             final Map<Integer, float[]> unassigned = new HashMap<>();
             unassigned.put(IdMapper.UNASSIGNED_ID, sizes);
             doc.getActiveViewers().add(Classification.Taxonomy);
-            table.getClassification2Class2Counts().put(Classification.Taxonomy, unassigned);
+            table.setClass2Counts(Classification.Taxonomy, unassigned);
         } else
             System.arraycopy(total[taxonomyIndex], 0, sizes, 0, sizes.length);
 
         table.setSamples(names, null, sizes, null);
         for (int i = 0; i < cNames.length; i++) {
-            table.getClassification2Class2Counts().put(cNames[i], class2counts[i]);
+            table.setClass2Counts(cNames[i], class2counts[i]);
         }
         doc.getSampleAttributeTable().setSampleOrder(Arrays.asList(names));
 
@@ -0,0 +1,466 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.parsers.blast;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.util.Pair;
+import jloda.util.interval.Interval;
+import jloda.util.interval.IntervalTree;
+import megan.parsers.sam.BGZFInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeSet;
+
+/**
+ * parses a BAM file into SAM format
+ * <p>
+ * Records are decoded directly from the binary representation. Only the fields needed to select matches
+ * (query name, flag, reference, score and query coordinates) are decoded for every record, SAM text is only
+ * generated for the matches that are kept. As BAM can only represent nucleotide sequences, this is
+ * only used for BlastN-mode alignments.
+ * Daniel Huson, 10.2019
+ */
+public class BAM2SAMIterator implements ISAMIterator {
+    private static final char[] CIGAR_OPERATORS = "MIDNSHP=X".toCharArray();
+    private static final char[] SEQUENCE_CODES = "=ACMGRSVTWYHKDBN".toCharArray();
+
+    private final Pair<byte[], Integer> matchesTextAndLength = new Pair<>(new byte[10000000], 0);
+
+    private final TreeSet<Match> matches = new TreeSet<>(new Match());
+    private final IntervalTree<Match> matchesIntervalTree = new IntervalTree<>();
+
+    private final BGZFInputStream ins;
+    private final String[] referenceNames;
+    private final int maxNumberOfMatchesPerRead;
+    private final PostProcessMatches postProcessMatches = new PostProcessMatches();
+    private boolean parseLongReads;
+
+    private final byte[] intBuffer = new byte[4];
+    private byte[] record = new byte[10000];
+    private int recordLength;
+    private boolean hasRecord;
+    private long numberOfRecords;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    // fields of the current record:
+    private String queryName;
+    private int flag;
+    private int refId;
+    private int score;
+    private int alignedQueryStart;
+    private int alignedQueryEnd;
+
+    /**
+     * constructor
+     *
+     * @param fileName
+     * @param maxNumberOfMatchesPerRead
+     * @throws IOException
+     */
+    public BAM2SAMIterator(String fileName, int maxNumberOfMatchesPerRead) throws IOException {
+        this.maxNumberOfMatchesPerRead = maxNumberOfMatchesPerRead;
+        ins = new BGZFInputStream(fileName, Math.max(1, ProgramExecutorService.getNumberOfCoresToUse() - 1));
+
+        // read header:
+        final byte[] magic = new byte[4];
+        ins.readFully(magic, 0, 4);
+        if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1)
+            throw new IOException("Not a BAM file: " + fileName);
+        final int headerTextLength = readInt();
+        ins.readFully(new byte[headerTextLength], 0, headerTextLength);
+        final int numberOfReferences = readInt();
+        referenceNames = new String[numberOfReferences];
+        for (int r = 0; r < numberOfReferences; r++) {
+            final int nameLength = readInt();
+            final byte[] name = new byte[nameLength];
+            ins.readFully(name, 0, nameLength);
+            referenceNames[r] = new String(name, 0, nameLength - 1, StandardCharsets.US_ASCII); // name is NUL-terminated
+            readInt(); // reference length
+        }
+        moveToNextRecord();
+    }
+
+    /**
+     * is there more data?
+     *
+     * @return true, if more data available
+     */
+    @Override
+    public boolean hasNext() {
+        return hasRecord;
+    }
+
+    /**
+     * gets the next matches
+     *
+     * @return number of matches
+     */
+    @Override
+    public int next() {
+        if (!hasRecord)
+            return -1; // at end of file
+
+        final String firstQueryName = queryName;
+        final int firstTemplate = (flag & 192);
+
+        int matchId = 0; // used to distinguish between matches when sorting
+        matches.clear();
+        matchesTextAndLength.setSecond(0);
+        matchesIntervalTree.clear();
+
+        try {
+            while (hasRecord && queryName.equals(firstQueryName) && (flag & 192) == firstTemplate) {
+                if (refId >= 0) {
+                    if (parseLongReads) { // when parsing long reads we keep alignments based on local critera
+                        final Match match = new Match();
+                        match.bitScore = score;
+                        match.id = matchId++;
+                        match.samLine = toSAMLine();
+                        matchesIntervalTree.add(new Interval<>(alignedQueryStart, alignedQueryEnd, match));
+                    } else if (matches.size() < maxNumberOfMatchesPerRead || score > matches.last().bitScore) {
+                        final Match match = new Match();
+                        match.bitScore = score;
+                        match.id = matchId++;
+                        match.samLine = toSAMLine();
+                        matches.add(match);
+                        if (matches.size() > maxNumberOfMatchesPerRead)
+                            matches.remove(matches.last());
+                    }
+                }
+                moveToNextRecord();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Error parsing BAM file near record " + numberOfRecords + ": " + ex.getMessage());
+        }
+        return postProcessMatches.apply(firstQueryName, matchesTextAndLength, parseLongReads, matchesIntervalTree, matches, null);
+    }
+
+    /**
+     * reads the next record and decodes the fields needed to select matches
+     */
+    private void moveToNextRecord() throws IOException {
+        try {
+            recordLength = readInt();
+        } catch (EOFException ex) {
+            hasRecord = false;
+            return;
+        }
+        if (recordLength > record.length)
+            record = new byte[2 * recordLength];
+        ins.readFully(record, 0, recordLength);
+        numberOfRecords++;
+
+        refId = getInt(record, 0);
+        final int nameLength = record[8] & 0xff;
+        final int numberOfCigarOps = getUnsignedShort(record, 12);
+        flag = getUnsignedShort(record, 14);
+        final int sequenceLength = getInt(record, 16);
+        queryName = new String(record, 32, nameLength - 1, StandardCharsets.US_ASCII);
+
+        score = 0;
+        alignedQueryStart = 0;
+        alignedQueryEnd = 0;
+        if (refId < 0) {
+            hasRecord = true;
+            return;
+        }
+
+        final int cigarStart = 32 + nameLength;
+        int tagsStart = cigarStart + 4 * numberOfCigarOps + (sequenceLength + 1) / 2 + sequenceLength;
+
+        // scan tags for score and query coordinates:
+        int zs = Integer.MIN_VALUE;
+        int zq = Integer.MIN_VALUE;
+        int pos = tagsStart;
+        while (pos < recordLength) {
+            final char tag1 = (char) record[pos];
+            final char tag2 = (char) record[pos + 1];
+            final char type = (char) record[pos + 2];
+            pos += 3;
+            if (type == 'c' || type == 'C' || type == 's' || type == 'S' || type == 'i' || type == 'I') {
+                final int value = getIntegerTagValue(type, pos);
+                if (tag1 == 'A' && tag2 == 'S')
+                    score = value;
+                else if (tag1 == 'Z' && tag2 == 'S')
+                    zs = value;
+                else if (tag1 == 'Z' && tag2 == 'Q')
+                    zq = value;
+            }
+            pos = skipTagValue(type, pos);
+        }
+
+        if (parseLongReads) {
+            if (zs != Integer.MIN_VALUE)
+                alignedQueryStart = zs;
+            else {
+                alignedQueryStart = 1;
+                if (numberOfCigarOps > 0) {
+                    final int op = getInt(record, cigarStart);
+                    if ((op & 0xf) == 4 || (op & 0xf) == 5) // S or H
+                        alignedQueryStart = (op >>> 4) + 1;
+                }
+            }
+            if (zq != Integer.MIN_VALUE)
+                alignedQueryEnd = zq;
+            else {
+                int alignedLength = 0;
+                if (sequenceLength > 0) {
+                    for (int i = 0; i < numberOfCigarOps; i++) {
+                        final int op = getInt(record, cigarStart + 4 * i);
+                        switch (op & 0xf) {
+                            case 0: // M
+                            case 1: // I
+                            case 7: // =
+                            case 8: // X
+                                alignedLength += (op >>> 4);
+                        }
+                    }
+                }
+                alignedQueryEnd = alignedQueryStart + alignedLength - 1;
+            }
+        }
+        hasRecord = true;
+    }
+
+    /**
+     * formats the current record as a line of SAM
+     *
+     * @return SAM line
+     */
+    private String toSAMLine() {
+        final int pos = getInt(record, 4);
+        final int nameLength = record[8] & 0xff;
+        final int mapQuality = record[9] & 0xff;
+        final int numberOfCigarOps = getUnsignedShort(record, 12);
+        final int sequenceLength = getInt(record, 16);
+        final int nextRefId = getInt(record, 20);
+        final int nextPos = getInt(record, 24);
+        final int templateLength = getInt(record, 28);
+
+        buffer.setLength(0);
+        buffer.append(queryName).append('\t').append(flag).append('\t').append(refId >= 0 ? referenceNames[refId] : "*").append('\t')
+                .append(pos + 1).append('\t').append(mapQuality).append('\t');
+
+        int offset = 32 + nameLength;
+        if (numberOfCigarOps == 0)
+            buffer.append('*');
+        else {
+            for (int i = 0; i < numberOfCigarOps; i++) {
+                final int op = getInt(record, offset);
+                buffer.append(op >>> 4).append(CIGAR_OPERATORS[op & 0xf]);
+                offset += 4;
+            }
+        }
+        buffer.append('\t');
+        if (nextRefId < 0)
+            buffer.append('*');
+        else if (nextRefId == refId)
+            buffer.append('=');
+        else
+            buffer.append(referenceNames[nextRefId]);
+        buffer.append('\t').append(nextPos + 1).append('\t').append(templateLength).append('\t');
+
+        if (sequenceLength == 0)
+            buffer.append('*');
+        else {
+            for (int i = 0; i < sequenceLength; i++) {
+                final int code = (i % 2 == 0 ? (record[offset + i / 2] >> 4) : record[offset + i / 2]) & 0xf;
+                buffer.append(SEQUENCE_CODES[code]);
+            }
+        }
+        offset += (sequenceLength + 1) / 2;
+        buffer.append('\t');
+
+        if (sequenceLength == 0 || (record[offset] & 0xff) == 0xff)
+            buffer.append('*');
+        else {
+            for (int i = 0; i < sequenceLength; i++)
+                buffer.append((char) (record[offset + i] + 33));
+        }
+        offset += sequenceLength;
+
+        while (offset < recordLength) {
+            buffer.append('\t').append((char) record[offset]).append((char) record[offset + 1]).append(':');
+            final char type = (char) record[offset + 2];
+            offset += 3;
+            switch (type) {
+                case 'A':
+                    buffer.append("A:").append((char) record[offset]);
+                    break;
+                case 'c':
+                case 'C':
+                case 's':
+                case 'S':
+                case 'i':
+                    buffer.append("i:").append(getIntegerTagValue(type, offset));
+                    break;
+                case 'I':
+                    buffer.append("i:").append(getInt(record, offset) & 0xffffffffL);
+                    break;
+                case 'f':
+                    buffer.append("f:").append(Float.intBitsToFloat(getInt(record, offset)));
+                    break;
+                case 'Z':
+                case 'H': {
+                    buffer.append(type).append(':');
+                    for (int i = offset; record[i] != 0; i++)
+                        buffer.append((char) record[i]);
+                    break;
+                }
+                case 'B': {
+                    final char subType = (char) record[offset];
+                    final int count = getInt(record, offset + 1);
+                    buffer.append("B:").append(subType);
+                    int p = offset + 5;
+                    for (int i = 0; i < count; i++) {
+                        buffer.append(',');
+                        if (subType == 'f')
+                            buffer.append(Float.intBitsToFloat(getInt(record, p)));
+                        else if (subType == 'I')
+                            buffer.append(getInt(record, p) & 0xffffffffL);
+                        else
+                            buffer.append(getIntegerTagValue(subType, p));
+                        p += getTypeSize(subType);
+                    }
+                    break;
+                }
+            }
+            offset = skipTagValue(type, offset);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * gets the value of an integer-valued tag
+     */
+    private int getIntegerTagValue(char type, int offset) {
+        switch (type) {
+            case 'c':
+                return record[offset];
+            case 'C':
+                return record[offset] & 0xff;
+            case 's':
+                return (short) getUnsignedShort(record, offset);
+            case 'S':
+                return getUnsignedShort(record, offset);
+            default:
+                return getInt(record, offset);
+        }
+    }
+
+    /**
+     * skips the value of a tag
+     *
+     * @return offset of next tag
+     */
+    private int skipTagValue(char type, int offset) {
+        switch (type) {
+            case 'Z':
+            case 'H':
+                while (record[offset] != 0)
+                    offset++;
+                return offset + 1;
+            case 'B':
+                return offset + 5 + getInt(record, offset + 1) * getTypeSize((char) record[offset]);
+            default:
+                return offset + getTypeSize(type);
+        }
+    }
+
+    private static int getTypeSize(char type) {
+        switch (type) {
+            case 'A':
+            case 'c':
+            case 'C':
+                return 1;
+            case 's':
+            case 'S':
+                return 2;
+            default: // i, I, f
+                return 4;
+        }
+    }
+
+    private int readInt() throws IOException {
+        ins.readFully(intBuffer, 0, 4);
+        return getInt(intBuffer, 0);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private static int getUnsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * gets the matches text
+     *
+     * @return matches text
+     */
+    @Override
+    public byte[] getMatchesText() {
+        return matchesTextAndLength.getFirst();
+    }
+
+    /**
+     * length of matches text
+     *
+     * @return length of text
+     */
+    @Override
+    public int getMatchesTextLength() {
+        return matchesTextAndLength.getSecond();
+    }
+
+    @Override
+    public byte[] getQueryText() {
+        return null;
+    }
+
+    @Override
+    public long getMaximumProgress() {
+        return ins.getCompressedLength();
+    }
+
+    @Override
+    public long getProgress() {
+        return ins.getCompressedPosition();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ins.close();
+    }
+
+    @Override
+    public void setParseLongReads(boolean parseLongReads) {
+        this.parseLongReads = parseLongReads;
+        postProcessMatches.setParseLongReads(parseLongReads);
+    }
+
+    @Override
+    public boolean isParseLongReads() {
+        return parseLongReads;
+    }
+}
@@ -33,7 +33,7 @@ import java.io.IOException;
  * Daniel Huson. 4.2015
  */
 public enum BlastFileFormat {
-    Unknown, DAA, BlastText, BlastXML, BlastTab, LastMAF, RapSearch2Aln, IlluminaReporter, RDPAssignmentDetails, RDPStandalone, Mothur, SAM, References_as_FastA;
+    Unknown, DAA, BlastText, BlastXML, BlastTab, LastMAF, RapSearch2Aln, IlluminaReporter, RDPAssignmentDetails, RDPStandalone, Mothur, SAM, BAM, References_as_FastA;
 
     /**
      * Determine the file format of an alignment file
@@ -52,6 +52,8 @@ public enum BlastFileFormat {
 
         if (SAMFileFilter.getInstance().accept(fileName))
             result = SAM;
+        else if (BAMFileFilter.getInstance().accept(fileName))
+            result = BAM;
         else if (DAAFileFilter.getInstance().accept(fileName))
             result = DAA;
         else if (BlastXTextFileFilter.getInstance().accept(fileName))
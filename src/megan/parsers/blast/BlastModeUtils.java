@@ -56,6 +56,8 @@ public class BlastModeUtils {
     public static jloda.util.BlastMode getBlastMode(String fileName) {
         if (SAMFileFilter.getInstance().accept(fileName))
             return determineBlastModeSAMFile(fileName);
+        else if (BAMFileFilter.getInstance().accept(fileName))
+            return jloda.util.BlastMode.BlastN; // BAM can only represent nucleotide sequences
         else if (DAAFileFilter.getInstance().accept(fileName))
             return DAAParser.getBlastMode(fileName);
         else if (BlastXTextFileFilter.getInstance().accept(fileName))
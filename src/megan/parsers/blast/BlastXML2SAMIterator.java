@@ -37,6 +37,8 @@ import java.util.concurrent.Executors;
  * Daniel Huson, 4.2015
  */
 public class BlastXML2SAMIterator implements ISAMIterator {
+    private static final int QUEUE_CAPACITY = 1000;
+
     private final ExecutorService executorService;
     private final BlastXMLParser blastXMLParser;
     private final BlockingQueue<MatchesText> queue;
@@ -59,7 +61,7 @@ public class BlastXML2SAMIterator implements ISAMIterator {
             NotificationsInSwing.showWarning("Might not be a BLAST file in XML format: " + fileName);
         }
 
-        queue = new ArrayBlockingQueue<>(10000);
+        queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
         sentinel = new MatchesText();
         currentMatches = null;
         nextMatches = null;
@@ -70,12 +72,14 @@ public class BlastXML2SAMIterator implements ISAMIterator {
         executorService.execute(() -> {
             try {
                 blastXMLParser.apply();
+            } catch (InterruptedException ignored) { // iterator was closed
             } catch (Exception e) {
                 Basic.caught(e);
                 NotificationsInSwing.showError(Basic.getShortName(e.getClass()) + ": " + e.getMessage());
             } finally {
                 try {
-                    queue.put(sentinel);
+                    if (!done)
+                        queue.put(sentinel);
                 } catch (InterruptedException e) {
                     done = true;
                     Basic.caught(e);
@@ -162,6 +166,8 @@ public class BlastXML2SAMIterator implements ISAMIterator {
 
     @Override
     public void close() throws IOException {
+        done = true;
+        executorService.shutdownNow(); // stops the parser, if still running
     }
 
     @Override
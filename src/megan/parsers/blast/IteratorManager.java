@@ -19,13 +19,17 @@
 package megan.parsers.blast;
 
 import jloda.util.BlastMode;
+import jloda.util.CanceledException;
+import jloda.util.ProgressPercentage;
 import megan.daa.io.DAA2SAMIterator;
+import megan.parsers.maf.MAFSorter;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
  * manages the alignment file iterators
- * Daniel Huson, 4.2015
+ * Daniel Huson, 4.2015, 10.2019
  */
 public class IteratorManager {
     /**
@@ -73,4 +77,34 @@ public class IteratorManager {
         iterator.setParseLongReads(longReads);
         return iterator;
     }
+
+    /**
+     * if the given file is a MAF file whose alignments are spread over different batches, sorts it by query into a temporary file
+     *
+     * @param blastFile
+     * @param readsFile reads file, used to determine the order of queries, or null
+     * @param format
+     * @return temporary sorted file, which the caller must delete, or null, if no sorting required
+     * @throws IOException
+     */
+    public static File sortMAFFileIfNecessary(String blastFile, String readsFile, BlastFileFormat format) throws IOException {
+        if (format == BlastFileFormat.LastMAF && MAFSorter.isUnsorted(blastFile)) {
+            try (ProgressPercentage progress = new ProgressPercentage("Sorting MAF file: " + blastFile)) {
+                return MAFSorter.apply(readsFile, blastFile, progress);
+            } catch (CanceledException ex) {
+                throw new IOException(ex);
+            }
+        } else
+            return null;
+    }
+
+    /**
+     * deletes a temporary file, if non-null
+     *
+     * @param file
+     */
+    public static void deleteTemporaryFile(File file) {
+        if (file != null && file.exists() && !file.delete())
+            System.err.println("Failed to delete temporary file: " + file);
+    }
 }
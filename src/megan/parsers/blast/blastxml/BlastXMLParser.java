@@ -22,30 +22,75 @@ import jloda.util.Basic;
 import jloda.util.CanceledException;
 import megan.parsers.blast.Match;
 import megan.parsers.blast.Utilities;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import java.io.File;
-import java.io.IOException;
-import java.io.StringReader;
-import java.util.LinkedList;
-import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
 
 /**
  * parser for BLAST XML files. Matches are posted to the given Queue
+ * <p>
+ * Uses a StAX pull parser. Only the best HSP of each hit is kept and hits are filtered as soon as they are complete,
+ * so that memory usage does not depend on the number of hits per query.
  * Daniel Huson, 2.2011, 4.2015
  */
-public class BlastXMLParser extends DefaultHandler {
-    static private final long AVERAGE_CHARACTERS_PER_READ = 10000L; // guess used in progress bar
+public class BlastXMLParser {
+    private static XMLInputFactory xmlInputFactory;
 
-    static private SAXParserFactory saxParserFactory;
+    /**
+     * elements whose text we need
+     */
+    private static final Set<String> textElements = new HashSet<>();
+
+    static {
+        textElements.add("BlastOutput_program");
+        textElements.add("BlastOutput_query-def");
+        textElements.add("BlastOutput_query-len");
+        textElements.add("BlastOutput_db");
+        textElements.add("Parameters_matrix");
+        textElements.add("Parameters_expect");
+        textElements.add("Parameters_gap-open");
+        textElements.add("Parameters_gap-extend");
+        textElements.add("Parameters_filter");
+        textElements.add("Iteration_iter-num");
+        textElements.add("Iteration_query-def");
+        textElements.add("Iteration_query-len");
+        textElements.add("Hit_def");
+        textElements.add("Hit_accession");
+        textElements.add("Hit_id");
+        textElements.add("Hit_len");
+        textElements.add("Hsp_bit-score");
+        textElements.add("Hsp_score");
+        textElements.add("Hsp_evalue");
+        textElements.add("Hsp_query-from");
+        textElements.add("Hsp_query-to");
+        textElements.add("Hsp_hit-from");
+        textElements.add("Hsp_hit-to");
+        textElements.add("Hsp_hit-frame");
+        textElements.add("Hsp_query-frame");
+        textElements.add("Hsp_identity");
+        textElements.add("Hsp_positive");
+        textElements.add("Hsp_gaps");
+        textElements.add("Hsp_align-len");
+        textElements.add("Hsp_density");
+        textElements.add("Hsp_qseq");
+        textElements.add("Hsp_hseq");
+        textElements.add("Statistics_db-num");
+        textElements.add("Statistics_db-len");
+        textElements.add("Statistics_hsp-len");
+        textElements.add("Statistics_eff-space");
+        textElements.add("Statistics_kappa");
+        textElements.add("Statistics_lambda");
+        textElements.add("Statistics_entropy");
+    }
 
     // stuff we need to access:
     private final File blastFile;
@@ -57,20 +102,24 @@ public class BlastXMLParser extends DefaultHandler {
     private final InfoBlock parameters = new InfoBlock("Parameters");
     private final InfoBlock stats = new InfoBlock("Stats");
 
-    private StringBuilder elementText;
+    private final StringBuilder elementText = new StringBuilder();
+    private boolean collectText = false;
 
     private int numberOfReads = 0;
     private int totalMatches = 0;
     private int totalDiscardedMatches = 0;
 
-    private Iteration iteration;
-    private Hit hit;
-    private HSP hsp;
-    private final List<Hit> iterationHits = new LinkedList<>();
+    private final Iteration iteration = new Iteration();
+    private final Hit hit = new Hit();
+    private HSP hsp = new HSP();
+    private HSP bestHsp = new HSP();
+    private int numberOfIterationHits = 0;
+    private int numberOfMatches = 0;
 
     private final TreeSet<Match> matches = new TreeSet<>(new Match()); // set of matches found for a given query
 
     private final long maximumProgress;
+    private CountingInputStream countingInputStream;
 
     /**
      * constructor
@@ -82,7 +131,7 @@ public class BlastXMLParser extends DefaultHandler {
         this.blastFile = blastFile;
         this.blockQueue = blockQueue;
         this.maxMatchesPerRead = maxMatchesPerRead;
-        maximumProgress = (Basic.isZIPorGZIPFile(blastFile.getPath()) ? blastFile.length() / (10 * AVERAGE_CHARACTERS_PER_READ) : blastFile.length() / AVERAGE_CHARACTERS_PER_READ);
+        maximumProgress = blastFile.length();
     }
 
     /**
@@ -91,61 +140,87 @@ public class BlastXMLParser extends DefaultHandler {
      * @throws CanceledException
      * @throws IOException
      */
-    public void apply() throws CanceledException, IOException, ParserConfigurationException, SAXException {
-        if (saxParserFactory == null)
-            saxParserFactory = SAXParserFactory.newInstance();
-        SAXParser saxParser = saxParserFactory.newSAXParser();
-        saxParser.parse(Basic.getInputStreamPossiblyZIPorGZIP(blastFile.getPath()), this);
-    }
+    public void apply() throws CanceledException, IOException, XMLStreamException, InterruptedException {
+        if (xmlInputFactory == null) {
+            xmlInputFactory = XMLInputFactory.newInstance();
+            xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        }
 
-    /**
-     * start the document
-     *
-     * @throws SAXException
-     */
-    @Override
-    public void startDocument() throws SAXException {
-        super.startDocument();
+        try (InputStream ins = openInputStream()) {
+            final XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(ins);
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            startElement(reader.getLocalName());
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                            if (collectText)
+                                elementText.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            endElement(reader.getLocalName());
+                            collectText = false;
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
     }
 
     /**
-     * end the document
+     * opens the input stream, counting the number of bytes read from the file
      *
-     * @throws SAXException
+     * @return input stream
+     * @throws IOException
      */
-    @Override
-    public void endDocument() throws SAXException {
-        super.endDocument();
+    private InputStream openInputStream() throws IOException {
+        countingInputStream = new CountingInputStream(new FileInputStream(blastFile));
+        final InputStream ins = new BufferedInputStream(countingInputStream, 1024 * 1024);
+        final String name = blastFile.getName().toLowerCase();
+        if (name.endsWith(".gz"))
+            return new BufferedInputStream(new GZIPInputStream(ins, 65536), 1024 * 1024);
+        else if (name.endsWith(".zip")) {
+            final ZipInputStream zipInputStream = new ZipInputStream(ins);
+            zipInputStream.getNextEntry();
+            return new BufferedInputStream(zipInputStream, 1024 * 1024);
+        } else
+            return ins;
     }
 
     /**
      * start an element
      *
-     * @param uri
-     * @param localName
-     * @param qName
-     * @param attributes
-     * @throws SAXException
+     * @param name
      */
-    @Override
-    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-        elementText = new StringBuilder();
+    private void startElement(String name) {
+        collectText = textElements.contains(name);
+        if (collectText)
+            elementText.setLength(0);
 
-        switch (qName) {
+        switch (name) {
             case "Iteration":
-                iteration = new Iteration();
-                iterationHits.clear();
-                break;
-            case "Iteration_stat":
+                iteration.clear();
+                numberOfIterationHits = 0;
+                numberOfMatches = 0;
+                matches.clear();
                 break;
             case "Iteration_hits":
-                iterationHits.clear();
+                numberOfIterationHits = 0;
+                numberOfMatches = 0;
+                matches.clear();
                 break;
             case "Hit":
-                hit = new Hit();
+                hit.clear();
+                bestHsp.clear();
                 break;
             case "Hsp":
-                hsp = new HSP();
+                hsp.clear();
                 break;
         }
     }
@@ -153,103 +228,54 @@ public class BlastXMLParser extends DefaultHandler {
     /**
      * end an element
      *
-     * @param uri
-     * @param localName
-     * @param qName
-     * @throws SAXException
+     * @param name
      */
-    @Override
-    public void endElement(String uri, String localName, String qName) throws SAXException {
-        switch (qName) {
+    private void endElement(String name) throws InterruptedException {
+        switch (name) {
             case "BlastOutput_program":
-                preamble.add(qName, getElementText());
-                break;
-            // else if (qName.equals("BlastOutput_query-ID"))
-            //     preamble.add(qName, getElementText());
             case "BlastOutput_query-def":
-                preamble.add(qName, getElementText());
-                break;
             case "BlastOutput_query-len":
-                preamble.add(qName, getElementText());
-                break;
             case "BlastOutput_db":
-                preamble.add(qName, getElementText());
+                preamble.add(name, getElementText());
                 break;
             case "Parameters_matrix":
-                parameters.add(qName, getElementText());
+            case "Parameters_filter":
+                parameters.add(name, getElementText());
                 break;
             case "Parameters_expect":
-                parameters.addDouble(qName, getElementText());
+                parameters.addDouble(name, getElementText());
                 break;
             case "Parameters_gap-open":
-                parameters.addInt(qName, getElementText());
-                break;
             case "Parameters_gap-extend":
-                parameters.addInt(qName, getElementText());
-                break;
-            case "Parameters_filter":
-                parameters.add(qName, getElementText());
+                parameters.addInt(name, getElementText());
                 break;
             case "Iteration":
-// ending an iteration, write it out
-
+                // ending an iteration, write it out
                 numberOfReads++;
 
-                MatchesText matchesText = new MatchesText();
+                final MatchesText matchesText = new MatchesText();
 
-                if (iterationHits.size() == 0) {
+                if (numberOfIterationHits == 0) {
                     matchesText.setNumberOfMatches(0);
                     matchesText.setText(iteration.queryDef.getBytes());
                     matchesText.setLengthOfText(matchesText.getText().length);
-
                 } else {
-                    int numberOfMatches = 0;
-                    matches.clear();
-                    for (Hit hit : iterationHits) {
-                        if (matches.size() < getMaxMatchesPerRead() || hit.hsp.bitScore > matches.last().getBitScore()) {
-                            final Match match = new Match();
-                            final HSP hsp = hit.hsp;
-                            match.setBitScore(hsp.bitScore);
-                            match.setId(numberOfMatches++);
-                            int queryStart = (int) (hsp.queryFrame >= 0 ? hsp.queryFrom : hsp.queryTo);
-                            int queryEnd = (int) (hsp.queryFrame >= 0 ? hsp.queryTo : hsp.queryFrom);
-
-                            final StringBuilder buf = new StringBuilder();
-                            if (hit.accession != null)
-                                buf.append(hit.accession).append(" ");
-                            if (hit.id != null)
-                                buf.append(hit.id).append(" ");
-                            if (hit.def != null)
-                                buf.append(hit.def);
-
-                            match.setSamLine(makeSAM(iteration.queryDef, buf.toString().replaceAll("\\s+", " "), hit.len, hsp.bitScore, (float) hsp.eValue,
-                                    (int) hsp.score, hsp.identity, hsp.queryFrame, queryStart, queryEnd, (int) hsp.hitFrom, (int) hsp.hitTo, hsp.qSeq, hsp.hSeq));
-                            matches.add(match);
-                            if (matches.size() > maxMatchesPerRead)
-                                matches.remove(matches.last());
-                        }
-                    }
-                    StringBuilder buf = new StringBuilder();
+                    final StringBuilder buf = new StringBuilder();
                     for (Match match : matches) {
                         buf.append(match.getSamLine()).append("\n");
                     }
                     matchesText.setText(buf.toString().getBytes());
                     matchesText.setLengthOfText(matchesText.getText().length);
                     matchesText.setNumberOfMatches(matches.size());
-                    totalMatches += iterationHits.size();
-                    totalDiscardedMatches += (iterationHits.size() - matchesText.getNumberOfMatches());
-                }
-                try {
-                    blockQueue.put(matchesText);
-                } catch (InterruptedException e) {
-                    throw new SAXException("Interrupted");
+                    totalMatches += numberOfIterationHits;
+                    totalDiscardedMatches += (numberOfIterationHits - matchesText.getNumberOfMatches());
                 }
+                matches.clear();
+                blockQueue.put(matchesText);
                 break;
             case "Iteration_iter-num":
                 iteration.iterNum = Basic.parseLong(getElementText());
                 break;
-            //  else if (qName.equals("Iteration_query-ID"))
-            //              iteration.queryID = getElementText();
             case "Iteration_query-def":
                 iteration.queryDef = getElementText();
                 break;
@@ -269,12 +295,16 @@ public class BlastXMLParser extends DefaultHandler {
                 hit.len = Basic.parseInt(getElementText());
                 break;
             case "Hsp":
-                // todo: a hit can have more than one HSP but we only keep the first one, for now
-                if (hit.hsp == null || hsp.bitScore > hit.hsp.bitScore)
-                    hit.hsp = hsp;
+                // todo: a hit can have more than one HSP but we only keep the best one, for now
+                if (!hit.hasHsp || hsp.bitScore > bestHsp.bitScore) {
+                    final HSP tmp = bestHsp;
+                    bestHsp = hsp;
+                    hsp = tmp;
+                    hit.hasHsp = true;
+                }
                 break;
             case "Hit":
-                iterationHits.add(hit);
+                processHit();
                 break;
             case "Hsp_bit-score":
                 hsp.bitScore = Basic.parseFloat(getElementText());
@@ -324,58 +354,55 @@ public class BlastXMLParser extends DefaultHandler {
             case "Hsp_hseq":
                 hsp.hSeq = getElementText();
                 break;
-            case "Hsp_midline":
-                hsp.midLine = getElementText();
-                break;
             case "Statistics_db-num":
-                stats.addLong(qName, getElementText());
-                break;
             case "Statistics_db-len":
-                stats.addLong(qName, getElementText());
-                break;
             case "Statistics_hsp-len":
-                stats.addLong(qName, getElementText());
+                if (stats.getValue(name) == null) // BLAST+ reports statistics for every iteration, only keep the first
+                    stats.addLong(name, getElementText());
                 break;
             case "Statistics_eff-space":
-                stats.addDouble(qName, getElementText());
+                if (stats.getValue(name) == null)
+                    stats.addDouble(name, getElementText());
                 break;
             case "Statistics_kappa":
-                stats.addFloat(qName, getElementText());
-                break;
             case "Statistics_lambda":
-                stats.addFloat(qName, getElementText());
-                break;
             case "Statistics_entropy":
-                stats.addFloat(qName, getElementText());
+                if (stats.getValue(name) == null)
+                    stats.addFloat(name, getElementText());
                 break;
         }
     }
 
     /**
-     * resolve an entity
-     *
-     * @param publicId
-     * @param systemId
-     * @return
-     * @throws IOException
-     * @throws SAXException
-     */
-    @Override
-    public InputSource resolveEntity(String publicId, String systemId) throws IOException, SAXException {
-        return new InputSource(new StringReader(""));
-    }
-
-    /**
-     * build current element text
-     *
-     * @param chars
-     * @param start
-     * @param length
-     * @throws SAXException
+     * a hit is complete, add it to the set of matches, if it is good enough
      */
-    @Override
-    public void characters(char[] chars, int start, int length) throws SAXException {
-        elementText.append(chars, start, length);
+    private void processHit() {
+        if (!hit.hasHsp) // no alignment given, ignore
+            return;
+        numberOfIterationHits++;
+
+        if (matches.size() < getMaxMatchesPerRead() || bestHsp.bitScore > matches.last().getBitScore()) {
+            final Match match = new Match();
+            final HSP hsp = bestHsp;
+            match.setBitScore(hsp.bitScore);
+            match.setId(numberOfMatches++);
+            int queryStart = (int) (hsp.queryFrame >= 0 ? hsp.queryFrom : hsp.queryTo);
+            int queryEnd = (int) (hsp.queryFrame >= 0 ? hsp.queryTo : hsp.queryFrom);
+
+            final StringBuilder buf = new StringBuilder();
+            if (hit.accession != null)
+                buf.append(hit.accession).append(" ");
+            if (hit.id != null)
+                buf.append(hit.id).append(" ");
+            if (hit.def != null)
+                buf.append(hit.def);
+
+            match.setSamLine(makeSAM(iteration.queryDef, buf.toString().replaceAll("\\s+", " "), hit.len, hsp.bitScore, (float) hsp.eValue,
+                    (int) hsp.score, hsp.identity, hsp.queryFrame, queryStart, queryEnd, (int) hsp.hitFrom, (int) hsp.hitTo, hsp.qSeq, hsp.hSeq));
+            matches.add(match);
+            if (matches.size() > maxMatchesPerRead)
+                matches.remove(matches.last());
+        }
     }
 
     /**
@@ -408,7 +435,7 @@ public class BlastXMLParser extends DefaultHandler {
     }
 
     public long getProgress() {
-        return numberOfReads * AVERAGE_CHARACTERS_PER_READ;
+        return countingInputStream != null ? countingInputStream.getCount() : 0;
     }
 
     /**
@@ -431,15 +458,15 @@ public class BlastXMLParser extends DefaultHandler {
         buffer.append(alignedQuery.replaceAll("-", "")).append("\t");
         buffer.append("*\t");
 
-        buffer.append(String.format("AS:i:%d\t", Math.round(bitScore)));
-        buffer.append(String.format("NM:i:%d\t", Utilities.computeEditDistance(alignedQuery, alignedReference)));
-        buffer.append(String.format("ZL:i:%d\t", referenceLength));
-        buffer.append(String.format("ZR:i:%d\t", rawScore));
+        buffer.append("AS:i:").append(Math.round(bitScore)).append("\t");
+        buffer.append("NM:i:").append(Utilities.computeEditDistance(alignedQuery, alignedReference)).append("\t");
+        buffer.append("ZL:i:").append(referenceLength).append("\t");
+        buffer.append("ZR:i:").append(rawScore).append("\t");
         buffer.append(String.format("ZE:f:%g\t", expect));
-        buffer.append(String.format("ZI:i:%d\t", Math.round(percentIdentity)));
+        buffer.append("ZI:i:").append(Math.round(percentIdentity)).append("\t");
         if (frame != 0)
-            buffer.append(String.format("ZF:i:%d\t", frame));
-        buffer.append(String.format("ZS:i:%s\t", queryStart));
+            buffer.append("ZF:i:").append(frame).append("\t");
+        buffer.append("ZS:i:").append(queryStart).append("\t");
 
         Utilities.appendMDString(alignedQuery, alignedReference, buffer);
 
@@ -454,6 +481,12 @@ public class BlastXMLParser extends DefaultHandler {
         // public String queryID;
         String queryDef;
         int queryLen;
+
+        void clear() {
+            iterNum = 0;
+            queryDef = null;
+            queryLen = 0;
+        }
     }
 
     /**
@@ -464,6 +497,52 @@ public class BlastXMLParser extends DefaultHandler {
         String accession;
         String id;
         int len;
-        HSP hsp;
+        boolean hasHsp;
+
+        void clear() {
+            def = null;
+            accession = null;
+            id = null;
+            len = 0;
+            hasHsp = false;
+        }
+    }
+
+    /**
+     * counts the number of bytes read from the file, used to report progress
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream ins) {
+            super(ins);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result != -1)
+                count++;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            final int result = super.read(bytes, offset, length);
+            if (result > 0)
+                count += result;
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long result = super.skip(n);
+            count += result;
+            return result;
+        }
+
+        long getCount() {
+            return count;
+        }
     }
 }
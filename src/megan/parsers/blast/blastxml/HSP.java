@@ -43,6 +43,29 @@ public class HSP {
     public String hSeq;
     public String midLine;
 
+    /**
+     * erase all values, so that the object can be reused
+     */
+    public void clear() {
+        bitScore = 0;
+        score = 0;
+        eValue = 0;
+        queryFrom = 0;
+        queryTo = 0;
+        hitFrom = 0;
+        hitTo = 0;
+        queryFrame = 0;
+        hitFrame = 0;
+        identity = 0;
+        positive = 0;
+        gaps = 0;
+        alignLength = 0;
+        density = 0;
+        qSeq = null;
+        hSeq = null;
+        midLine = null;
+    }
+
     /**
      * return human readable string representation
      *
@@ -23,156 +23,257 @@ import jloda.util.*;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
 
 /**
- * sorts a MAF file, if necessary
+ * sorts a MAF file by query, using an external k-way merge sort
+ * <p>
+ * Alignments are read in runs of bounded size, each run is sorted by the order of the reads in the reads file
+ * (or by order of first appearance, if no reads file is given) and then by decreasing score, and is
+ * spilled to a temporary file in a compact binary format. The runs are then merged using a heap.
+ * The map from read names to read order is kept in memory, so memory use is bounded by the run size plus
+ * the size of this map, which grows with the number of distinct reads.
  * Daniel Huson, October 2017
- * todo: unfortunately, this doesn't work because alignments for a given read do not appear consecutively even within batches...
  */
 public class MAFSorter {
-    private static final Pair<String, String[]> start = new Pair<>("", new String[0]);
-    private static final Pair<String, String[]> done = new Pair<>("", new String[0]);
-
-    private static final String SORTED = "# Sorted";
+    public static final String SORTED = "# Sorted";
     private static final String BATCH = "# batch";
 
+    public static final int DEFAULT_RUN_SIZE_MB = 256;
+    private static final int MAX_FAN_IN = 128;
+    private static final int RUN_BUFFER_SIZE = 65536;
+
     /**
-     * apply the sorter
+     * sorts a MAF file whose alignments are spread over different batches into a temporary file
      *
-     * @param readsFile
+     * @param readsFile reads file, determines output order, or null
      * @param mafFile
-     * @return name of temporary file containing all sorted alignments
+     * @return temporary file containing all sorted alignments, uncompressed. The caller is responsible for deleting it
      * @throws IOException
      */
-    private static String apply(File readsFile, File mafFile, ProgressListener progress) throws IOException, CanceledException {
-        if (isUnsorted(mafFile)) {
-            String header = getHeaderLines(mafFile);
-            return createSortedFile(header, readsFile, mafFile, progress);
-        } else // is already sorted, so return this file
-            return mafFile.getPath();
+    public static File apply(String readsFile, String mafFile, ProgressListener progress) throws IOException, CanceledException {
+        final File outputFile = File.createTempFile("megan-sorted-", ".maf");
+        boolean ok = false;
+        try {
+            sort(readsFile, mafFile, outputFile.getPath(), DEFAULT_RUN_SIZE_MB * 1024L * 1024L, progress);
+            ok = true;
+            return outputFile;
+        } finally {
+            if (!ok && !outputFile.delete())
+                System.err.println("Failed to delete temporary file: " + outputFile);
+        }
     }
 
     /**
-     * create a sorted file
+     * sort the alignments in a MAF file by query
      *
-     * @param fileHeader
-     * @param readsFile
-     * @param mafFile
+     * @param readsFile    reads file, determines output order, or null
+     * @param mafFile      input file (.gz ok)
+     * @param outputFile   output file (.gz ok, 'stdout' ok)
+     * @param maxRunBytes  max number of bytes of alignment text to hold in memory at one time
      * @param progress
-     * @return original file or new sorted file
+     * @return number of alignments and number of reads written
      * @throws IOException
      */
-    private static String createSortedFile(String fileHeader, File readsFile, File mafFile, ProgressListener progress) throws IOException, CanceledException {
-
-        final ArrayList<Long> batchPositions = getBatchStartPositions(mafFile, progress);
-        final int numberOfBatches = batchPositions.size();
+    public static Pair<Long, Long> sort(String readsFile, String mafFile, String outputFile, long maxRunBytes, ProgressListener progress) throws IOException, CanceledException {
+        final HashMap<String, Integer> readName2Index = new HashMap<>(1000000);
+        final int numberOfReadsInReadsFile;
 
-        if (numberOfBatches == 1)
-            return mafFile.toString();
-        else
-            System.err.println("Batches in MAF file: " + numberOfBatches);
+        if (readsFile != null && readsFile.length() > 0) {
+            progress.setSubtask("Processing reads file");
+            try (IFastAIterator iterator = FastAFileIterator.getFastAOrFastQAsFastAIterator(readsFile)) {
+                progress.setMaximum(iterator.getMaximumProgress());
+                progress.setProgress(0);
+                while (iterator.hasNext()) {
+                    readName2Index.putIfAbsent(Basic.getFirstWord(Basic.swallowLeadingGreaterSign(iterator.next().get1())), readName2Index.size());
+                    progress.setProgress(iterator.getProgress());
+                }
+            }
+            reportTaskCompleted(progress);
+        }
+        numberOfReadsInReadsFile = readName2Index.size();
 
-        final ArrayList<BufferedReader> readers = getReaders(mafFile, batchPositions);
-        final ArrayList<Pair<String, String[]>> nextMaf = new ArrayList<>();
-        for (int i = 0; i < numberOfBatches; i++)
-            nextMaf.add(start);
+        final File tmpDirectory = new File(System.getProperty("java.io.tmpdir"));
+        final ArrayList<File> runFiles = new ArrayList<>();
+        final StringBuilder header = new StringBuilder();
 
-        final File outputFile = new File(mafFile.getParent(), Basic.replaceFileSuffix(mafFile.getName(), "-sorted.maf.gz"));
-        try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(Basic.getOutputStreamPossiblyZIPorGZIP(outputFile.getPath())))) {
-            w.write(fileHeader);
+        final ArrayList<Record> run = new ArrayList<>();
+        long runBytes = 0;
+        long alignmentsIn = 0;
+        boolean warnedUnknownRead = false;
 
-            try {
-                progress.setSubtask("Processing batches:");
+        try {
+            progress.setSubtask("Sorting runs");
+            try (FileLineIterator it = new FileLineIterator(mafFile)) {
+                progress.setMaximum(it.getMaximumProgress());
                 progress.setProgress(0);
-                try (FileLineIterator it = new FileLineIterator(readsFile)) {
-                    progress.setProgress(it.getMaximumProgress());
-                    while (it.hasNext()) {
-                        final String line = it.next();
-                        if (line.startsWith(">")) {
-                            final String name = Basic.getFirstWord(line.substring(1));
-                            for (int i = 0; i < numberOfBatches; i++) {
-                                if (nextMaf.get(i) == start) {
-                                    nextMaf.set(i, readNextMafRecord(readers.get(i)));
+                boolean inInitialComments = true;
+                while (it.hasNext()) {
+                    final String line = it.next();
+                    if (line.startsWith("#")) {
+                        if (inInitialComments && !line.startsWith(BATCH) && !line.equals(SORTED))
+                            header.append(line).append("\n");
+                    } else {
+                        inInitialComments = false;
+                        if (line.startsWith("a ") && it.hasNext()) {
+                            final String line1 = it.next();
+                            if (it.hasNext()) {
+                                final String line2 = it.next();
+                                final String readName = getSecondWord(line2);
+                                Integer readIndex = readName2Index.get(readName);
+                                if (readIndex == null) {
+                                    if (numberOfReadsInReadsFile > 0 && !warnedUnknownRead) {
+                                        System.err.println("Warning: alignments found for queries that are not mentioned in the provided reads file");
+                                        warnedUnknownRead = true;
+                                    }
+                                    readIndex = readName2Index.size();
+                                    readName2Index.put(readName, readIndex);
                                 }
-                                while (nextMaf.get(i).getFirst().equals(name)) {
-                                    w.write("\n");
-                                    w.write(Basic.toString(nextMaf.get(i).getSecond(), "\n"));
-                                    w.write("\n");
-                                    nextMaf.set(i, readNextMafRecord(readers.get(i)));
+                                final Record record = new Record(readIndex, parseScore(line), alignmentsIn++, new byte[][]{line.getBytes(), line1.getBytes(), line2.getBytes()});
+                                run.add(record);
+                                runBytes += record.size();
+                                if (runBytes >= maxRunBytes) {
+                                    runFiles.add(writeRun(run, tmpDirectory));
+                                    run.clear();
+                                    runBytes = 0;
                                 }
                             }
                         }
-                        progress.setProgress(it.getProgress());
                     }
+                    progress.setProgress(it.getProgress());
                 }
-                if (progress instanceof ProgressPercentage) {
-                    ((ProgressPercentage) progress).reportTaskCompleted();
-                }
-                for (int i = 0; i < nextMaf.size(); i++) {
-                    final Pair<String, String[]> pair = nextMaf.get(i);
-                    if (pair != done) {
-                        System.err.println("Error: not all MAF records in batch " + i + " processed, e.g:\n" + Basic.toString(pair.getSecond(), "\n"));
+            }
+            reportTaskCompleted(progress);
+            readName2Index.clear();
+
+            if (run.size() > 0 && runFiles.size() > 0) {
+                runFiles.add(writeRun(run, tmpDirectory));
+                run.clear();
+            }
+
+            header.append(SORTED).append("\n");
+
+            // reduce the number of runs so that we never have too many files open at the same time:
+            while (runFiles.size() > MAX_FAN_IN) {
+                progress.setSubtask("Merging runs");
+                final ArrayList<File> mergedRuns = new ArrayList<>();
+                for (int start = 0; start < runFiles.size(); start += MAX_FAN_IN) {
+                    final ArrayList<File> group = new ArrayList<>(runFiles.subList(start, Math.min(runFiles.size(), start + MAX_FAN_IN)));
+                    final File mergedRun = File.createTempFile("maf-run-", ".tmp", tmpDirectory);
+                    mergedRun.deleteOnExit();
+                    try (DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRun), RUN_BUFFER_SIZE))) {
+                        merge(group, record -> record.write(outs), progress);
                     }
+                    deleteAll(group);
+                    mergedRuns.add(mergedRun);
                 }
-            } finally {
-                for (BufferedReader r : readers) {
-                    try {
-                        r.close();
-                    } catch (IOException ex) {
-                        Basic.caught(ex);
+                runFiles.clear();
+                runFiles.addAll(mergedRuns);
+            }
+
+            progress.setSubtask("Writing sorted file");
+            final long[] readsOut = {0};
+            final long[] alignmentsOut = {0};
+            try (BufferedWriter w = new BufferedWriter(outputFile.equals("stdout") ? new OutputStreamWriter(System.out) : new OutputStreamWriter(Basic.getOutputStreamPossiblyZIPorGZIP(outputFile)))) {
+                w.write(header.toString());
+                final int[] previousReadIndex = {-1};
+                final RecordConsumer writer = record -> {
+                    for (byte[] line : record.lines) {
+                        w.write(Basic.toString(line));
+                        w.write('\n');
                     }
-                }
+                    w.write('\n');
+                    alignmentsOut[0]++;
+                    if (record.readIndex != previousReadIndex[0]) {
+                        readsOut[0]++;
+                        previousReadIndex[0] = record.readIndex;
+                    }
+                };
+                if (runFiles.size() == 0) { // everything fit into memory
+                    run.sort(Record::compareTo);
+                    progress.setMaximum(run.size());
+                    progress.setProgress(0);
+                    for (Record record : run) {
+                        writer.accept(record);
+                        progress.incrementProgress();
+                    }
+                } else
+                    merge(runFiles, writer, progress);
             }
+            reportTaskCompleted(progress);
+
+            if (alignmentsIn != alignmentsOut[0])
+                System.err.println("Alignments: in=" + alignmentsIn + ", out=" + alignmentsOut[0]);
+            return new Pair<>(alignmentsOut[0], readsOut[0]);
+        } finally {
+            deleteAll(runFiles);
         }
-        return outputFile.getPath();
     }
 
     /**
-     * gets the next MAF record
-     * Format:
-     * a score=159 EG2=1e-08 E=4.3e-17
-     * s WP_005682092.1                       18 33 + 516 SAEANENERRWNDDKIDRKNQDSTNNYDKTRMK
-     * s HISEQ:457:C5366ACXX:2:1101:2641:2226  1 99 + 100 TAEANENERHWNDDKIERKNQDPTNHYDKSRMR
-     * *
+     * sort a run and write it to a temporary file
      *
-     * @param r
-     * @return
+     * @param run
+     * @param tmpDirectory
+     * @return file
+     * @throws IOException
      */
-    private static Pair<String, String[]> readNextMafRecord(BufferedReader r) throws IOException {
-        String aLine;
-        while ((aLine = r.readLine()) != null) {
-            if (aLine.startsWith("a")) {
-                String s2 = r.readLine();
-                String s3 = r.readLine();
-                String name = Basic.getFirstWord(s3.substring((2)));
-                return new Pair<>(name, new String[]{aLine, s2, s3});
-            } else if (aLine.startsWith(BATCH))
-                break;
+    private static File writeRun(ArrayList<Record> run, File tmpDirectory) throws IOException {
+        run.sort(Record::compareTo);
+        final File file = File.createTempFile("maf-run-", ".tmp", tmpDirectory);
+        file.deleteOnExit();
+        try (DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE))) {
+            for (Record record : run) {
+                record.write(outs);
+            }
         }
-        return done;
+        return file;
     }
 
     /**
-     * get the header lines from a maf file
+     * k-way merge of sorted runs
      *
-     * @param mafFile
-     * @return header lines
+     * @param runFiles
+     * @param consumer
+     * @param progress
      * @throws IOException
+     * @throws CanceledException
      */
-    private static String getHeaderLines(File mafFile) throws IOException {
-        final StringBuilder buf = new StringBuilder();
-        try (FileLineIterator it = new FileLineIterator(mafFile)) {
-            while (it.hasNext()) {
-                final String aLine = it.next();
-                if (aLine.startsWith("#")) {
-                    if (!aLine.startsWith(BATCH))
-                        buf.append(aLine).append("\n");
-                } else
-                    break;
+    private static void merge(ArrayList<File> runFiles, RecordConsumer consumer, ProgressListener progress) throws IOException, CanceledException {
+        final ArrayList<RunReader> readers = new ArrayList<>(runFiles.size());
+        try {
+            long totalBytes = 0;
+            for (File file : runFiles) {
+                readers.add(new RunReader(file));
+                totalBytes += file.length();
+            }
+            progress.setMaximum(totalBytes);
+            progress.setProgress(0);
+
+            final PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, readers.size()), (a, b) -> a.current.compareTo(b.current));
+            for (RunReader reader : readers) {
+                if (reader.advance())
+                    queue.add(reader);
+            }
+            long bytesDone = 0;
+            while (queue.size() > 0) {
+                final RunReader reader = queue.poll();
+                consumer.accept(reader.current);
+                bytesDone += reader.current.size() + 16;
+                if (reader.advance())
+                    queue.add(reader);
+                progress.setProgress(bytesDone);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    Basic.caught(ex);
+                }
             }
         }
-        buf.append(SORTED).append("\n");
-        return buf.toString();
     }
 
     /**
@@ -182,7 +283,7 @@ public class MAFSorter {
      * @return true, if not sorted
      * @throws IOException
      */
-    private static boolean isUnsorted(File mafFile) throws IOException {
+    public static boolean isUnsorted(String mafFile) throws IOException {
         try (FileLineIterator it = new FileLineIterator(mafFile)) {
             while (it.hasNext()) {
                 String line = it.next();
@@ -195,63 +296,152 @@ public class MAFSorter {
                     return false;
             }
         }
-        return true;
+        return false;
     }
 
     /**
-     * locate all batch start positions
+     * parses the score from the 'a' line of an alignment
      *
-     * @param mafFile
-     * @return
-     * @throws IOException
+     * @param line
+     * @return score
+     */
+    private static int parseScore(String line) {
+        final int a = line.indexOf('=') + 1;
+        int b = a;
+        while (b < line.length() && !Character.isWhitespace(line.charAt(b)))
+            b++;
+        return Basic.parseInt(line.substring(a, b));
+    }
+
+    /**
+     * gets the second word in a line
+     *
+     * @param string
+     * @return second word or empty string
      */
-    private static ArrayList<Long> getBatchStartPositions(File mafFile, ProgressListener progress) throws IOException, CanceledException {
-        progress.setSubtask("Determining batches in MAF file");
-        final ArrayList<Long> batchStartPositions = new ArrayList<>();
+    private static String getSecondWord(String string) {
+        int a = 0;
+        while (a < string.length() && Character.isWhitespace(string.charAt(a))) // skip leading white space
+            a++;
+        while (a < string.length() && !Character.isWhitespace(string.charAt(a))) // skip first word
+            a++;
+        while (a < string.length() && Character.isWhitespace(string.charAt(a))) // skip separating white space
+            a++;
+        int b = a;
+        while (b < string.length() && !Character.isWhitespace(string.charAt(b))) // find end of second word
+            b++;
+        return string.substring(a, b);
+    }
 
-        try (FileLineIterator it = new FileLineIterator(mafFile)) {
-            progress.setMaximum(it.getMaximumProgress());
-            progress.setProgress(0);
-            while (it.hasNext()) {
-                String aLine = it.next();
-                if (aLine.startsWith(BATCH))
-                    batchStartPositions.add(it.getPosition() + BATCH.length());
-                progress.setProgress(it.getProgress());
-            }
+    private static void deleteAll(ArrayList<File> files) {
+        for (File file : files) {
+            if (file.exists() && !file.delete())
+                System.err.println("Failed to delete temporary file: " + file);
         }
-        if (progress instanceof ProgressPercentage) {
+    }
+
+    private static void reportTaskCompleted(ProgressListener progress) {
+        if (progress instanceof ProgressPercentage)
             ((ProgressPercentage) progress).reportTaskCompleted();
-        }
-        return batchStartPositions;
     }
 
     /**
-     * get a reader for each given position
-     *
-     * @param mafFile
-     * @param positions
-     * @return readers
-     * @throws IOException
+     * an alignment, consisting of the 'a' line and the two 's' lines
      */
-    private static ArrayList<BufferedReader> getReaders(File mafFile, ArrayList<Long> positions) throws IOException {
-        final ArrayList<BufferedReader> readers = new ArrayList<>(positions.size());
-
-        for (Long position : positions) {
-            FileInputStream ins = new FileInputStream(mafFile);
-            long skipped = 0;
-            while (skipped < position) {
-                skipped += ins.skip(position - skipped);
+    private static class Record implements Comparable<Record> {
+        private final int readIndex;
+        private final int score;
+        private final long order;
+        private final byte[][] lines;
+
+        Record(int readIndex, int score, long order, byte[][] lines) {
+            this.readIndex = readIndex;
+            this.score = score;
+            this.order = order;
+            this.lines = lines;
+        }
+
+        /**
+         * sort by read, then by decreasing score, then by input order
+         */
+        public int compareTo(Record that) {
+            if (this.readIndex < that.readIndex)
+                return -1;
+            else if (this.readIndex > that.readIndex)
+                return 1;
+            else if (this.score > that.score)
+                return -1;
+            else if (this.score < that.score)
+                return 1;
+            else
+                return Long.compare(this.order, that.order);
+        }
+
+        /**
+         * approximate number of bytes used
+         */
+        long size() {
+            return 64 + lines[0].length + lines[1].length + lines[2].length;
+        }
+
+        void write(DataOutputStream outs) throws IOException {
+            outs.writeInt(readIndex);
+            outs.writeInt(score);
+            outs.writeLong(order);
+            for (byte[] line : lines) {
+                outs.writeInt(line.length);
+                outs.write(line);
+            }
+        }
+
+        static Record read(DataInputStream ins) throws IOException {
+            final int readIndex;
+            try {
+                readIndex = ins.readInt();
+            } catch (EOFException ex) {
+                return null;
+            }
+            final int score = ins.readInt();
+            final long order = ins.readLong();
+            final byte[][] lines = new byte[3][];
+            for (int i = 0; i < 3; i++) {
+                lines[i] = new byte[ins.readInt()];
+                ins.readFully(lines[i]);
             }
-            readers.add(new BufferedReader(new InputStreamReader(ins)));
+            return new Record(readIndex, score, order, lines);
         }
-        return readers;
+    }
+
+    /**
+     * reads the records of a sorted run
+     */
+    private static class RunReader implements Closeable {
+        private final DataInputStream ins;
+        private Record current;
+
+        RunReader(File file) throws IOException {
+            ins = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            current = Record.read(ins);
+            return current != null;
+        }
+
+        public void close() throws IOException {
+            ins.close();
+        }
+    }
+
+    private interface RecordConsumer {
+        void accept(Record record) throws IOException;
     }
 
     public static void main(String[] args) throws Exception {
         String mafFile = "/Users/huson/data/long-reads/nus-march2017/Anammox-R4-MinION.maf";
         String readsFile = "/Users/huson/data/long-reads/nus-march2017/Anammox-R4-MinION.fasta";
 
-        String result = apply(new File(readsFile), new File(mafFile), new ProgressPercentage());
+        final File result = apply(readsFile, mafFile, new ProgressPercentage());
 
         System.err.println("Result: " + result);
     }
@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.parsers.sam;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * input stream for BGZF-compressed files (as used by BAM)
+ * <p>
+ * Compressed blocks are read on the calling thread and decompressed ahead of time on a pool of threads,
+ * decompressed blocks are delivered in file order.
+ * Daniel Huson, 10.2019
+ */
+public class BGZFInputStream extends InputStream {
+    private static final int BLOCK_HEADER_LENGTH = 18;
+    private static final int MAX_BLOCK_SIZE = 65536;
+
+    private final InputStream ins;
+    private final long compressedLength;
+    private long compressedPosition = 0;
+
+    private final ExecutorService executor;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int readAhead;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private boolean endOfInput = false;
+    private byte[] current = new byte[0];
+    private int currentPos = 0;
+
+    /**
+     * constructor
+     *
+     * @param fileName
+     * @param numberOfThreads number of threads used for decompression
+     * @throws IOException
+     */
+    public BGZFInputStream(String fileName, int numberOfThreads) throws IOException {
+        this.ins = new BufferedInputStream(new FileInputStream(fileName), 8 * MAX_BLOCK_SIZE);
+        this.compressedLength = new File(fileName).length();
+        numberOfThreads = Math.max(1, numberOfThreads);
+        this.executor = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+            final Thread thread = new Thread(runnable, "BGZFInputStream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.readAhead = 4 * numberOfThreads;
+    }
+
+    /**
+     * is this a BGZF file?
+     *
+     * @param fileName
+     * @return true, if file starts with a BGZF block header
+     */
+    public static boolean isBGZFFile(String fileName) {
+        try (InputStream ins = new FileInputStream(fileName)) {
+            final byte[] header = new byte[BLOCK_HEADER_LENGTH];
+            return readFully(ins, header, 0, header.length) == header.length && isBlockHeader(header);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable())
+            return -1;
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        int total = 0;
+        while (total < length && ensureAvailable()) {
+            final int count = Math.min(length - total, current.length - currentPos);
+            System.arraycopy(current, currentPos, buffer, offset + total, count);
+            currentPos += count;
+            total += count;
+        }
+        return (total == 0 ? -1 : total);
+    }
+
+    /**
+     * reads exactly the requested number of bytes
+     *
+     * @throws EOFException if end of input reached before all bytes read
+     */
+    public void readFully(byte[] buffer, int offset, int length) throws IOException {
+        if (read(buffer, offset, length) < length && length > 0)
+            throw new EOFException();
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    /**
+     * gets the number of compressed bytes consumed so far
+     *
+     * @return compressed position
+     */
+    public long getCompressedPosition() {
+        return compressedPosition;
+    }
+
+    /**
+     * gets the length of the compressed file
+     *
+     * @return length
+     */
+    public long getCompressedLength() {
+        return compressedLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        ins.close();
+    }
+
+    /**
+     * makes sure that there is at least one byte available in the current block
+     *
+     * @return false, if at end of input
+     */
+    private boolean ensureAvailable() throws IOException {
+        while (currentPos >= current.length) {
+            fillPending();
+            final Future<byte[]> future = pending.poll();
+            if (future == null)
+                return false;
+            try {
+                current = future.get();
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new IOException("BGZF decompression failed", ex.getCause() != null ? ex.getCause() : ex);
+            }
+            currentPos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * reads compressed blocks and submits them for decompression, until the read-ahead window is full
+     */
+    private void fillPending() throws IOException {
+        while (!endOfInput && pending.size() < readAhead) {
+            final byte[] block = readNextCompressedBlock();
+            if (block == null)
+                endOfInput = true;
+            else
+                pending.add(executor.submit(() -> decompressBlock(block)));
+        }
+    }
+
+    /**
+     * reads the next complete compressed block
+     *
+     * @return block or null, if at end of input
+     */
+    private byte[] readNextCompressedBlock() throws IOException {
+        final byte[] header = new byte[BLOCK_HEADER_LENGTH];
+        final int got = readFully(ins, header, 0, header.length);
+        if (got == 0)
+            return null;
+        if (got < header.length || !isBlockHeader(header))
+            throw new IOException("Invalid BGZF block header at file position " + compressedPosition);
+
+        final int blockSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+        if (blockSize < BLOCK_HEADER_LENGTH + 8 || blockSize > MAX_BLOCK_SIZE)
+            throw new IOException("Invalid BGZF block size " + blockSize + " at file position " + compressedPosition);
+
+        final byte[] block = new byte[blockSize];
+        System.arraycopy(header, 0, block, 0, header.length);
+        if (readFully(ins, block, header.length, blockSize - header.length) < blockSize - header.length)
+            throw new EOFException("Truncated BGZF block at file position " + compressedPosition);
+        compressedPosition += blockSize;
+        return block;
+    }
+
+    /**
+     * decompress a BGZF block
+     *
+     * @param block complete compressed block, including header and footer
+     * @return uncompressed data
+     */
+    private byte[] decompressBlock(byte[] block) throws IOException {
+        final int extraLength = (block[10] & 0xff) | (block[11] & 0xff) << 8;
+        final int dataStart = 12 + extraLength;
+        final int dataLength = block.length - dataStart - 8;
+        final int uncompressedSize = getInt(block, block.length - 4);
+        final byte[] result = new byte[uncompressedSize];
+        if (uncompressedSize > 0) {
+            final Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(block, dataStart, dataLength);
+            try {
+                int count = 0;
+                while (count < uncompressedSize && !inflater.finished()) {
+                    final int inflated = inflater.inflate(result, count, uncompressedSize - count);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    count += inflated;
+                }
+                if (count != uncompressedSize)
+                    throw new IOException("BGZF block: expected " + uncompressedSize + " bytes, got " + count);
+            } catch (DataFormatException ex) {
+                throw new IOException(ex);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isBlockHeader(byte[] header) {
+        return (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && header[2] == 8 && (header[3] & 4) != 0
+                && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private static int readFully(InputStream ins, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int count = ins.read(buffer, offset + total, length - total);
+            if (count == -1)
+                break;
+            total += count;
+        }
+        return total;
+    }
+}
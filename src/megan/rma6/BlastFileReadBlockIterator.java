@@ -27,6 +27,7 @@ import megan.parsers.blast.ISAMIterator;
 import megan.parsers.blast.IteratorManager;
 import megan.parsers.sam.SAMMatch;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -43,6 +44,7 @@ public class BlastFileReadBlockIterator implements Iterator<ReadBlockRMA6>, IClo
     private final IdParser[] parsers;
 
     private final ISAMIterator iterator;
+    private final File sortedMAFFile; // temporary file, if we had to sort an unsorted MAF file
     private final FileLineBytesIterator fastaIterator;
     private final boolean isFasta;
     private final byte[] queryName = new byte[100000];
@@ -74,15 +76,23 @@ public class BlastFileReadBlockIterator implements Iterator<ReadBlockRMA6>, IClo
         }
         this.blastMode = blastMode;
 
-        iterator = IteratorManager.getIterator(blastFile, format, blastMode, maxMatchesPerRead, longReads);
-        if (readsFile != null) {
-            fastaIterator = new FileLineBytesIterator(readsFile);
-            isFasta = (fastaIterator.peekNextByte() == '>');
-            if (!isFasta && (fastaIterator.peekNextByte() != '@'))
-                throw new IOException("Cannot determine type of reads file (doesn't start with '>' or '@");
-        } else {
-            fastaIterator = null;
-            isFasta = false;
+        sortedMAFFile = IteratorManager.sortMAFFileIfNecessary(blastFile, readsFile, format);
+        boolean ok = false;
+        try {
+            iterator = IteratorManager.getIterator(sortedMAFFile != null ? sortedMAFFile.getPath() : blastFile, format, blastMode, maxMatchesPerRead, longReads);
+            if (readsFile != null) {
+                fastaIterator = new FileLineBytesIterator(readsFile);
+                isFasta = (fastaIterator.peekNextByte() == '>');
+                if (!isFasta && (fastaIterator.peekNextByte() != '@'))
+                    throw new IOException("Cannot determine type of reads file (doesn't start with '>' or '@");
+            } else {
+                fastaIterator = null;
+                isFasta = false;
+            }
+            ok = true;
+        } finally {
+            if (!ok)
+                IteratorManager.deleteTemporaryFile(sortedMAFFile);
         }
     }
 
@@ -92,7 +102,11 @@ public class BlastFileReadBlockIterator implements Iterator<ReadBlockRMA6>, IClo
      * @throws IOException
      */
     public void close() throws IOException {
-        iterator.close();
+        try {
+            iterator.close();
+        } finally {
+            IteratorManager.deleteTemporaryFile(sortedMAFFile);
+        }
     }
 
     /**
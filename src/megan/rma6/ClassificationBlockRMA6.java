@@ -33,7 +33,7 @@ import java.util.Set;
 
 /**
  * implements a classification block
- * Created by huson on 5/16/14.
+ * Created by huson on 5/16/14, 10.2019
  */
 public class ClassificationBlockRMA6 implements IClassificationBlock {
     private final Map<Integer, Integer> id2count = new HashMap<>();
@@ -177,6 +177,30 @@ public class ClassificationBlockRMA6 implements IClassificationBlock {
         return list.size();
     }
 
+    /**
+     * read all locations for a set of classes in one scan of the block and adds them to the list of each class
+     *
+     * @param reader
+     * @param classId2Locations maps each requested class id to the list that its locations are added to
+     * @throws IOException
+     */
+    public void readLocations(long position, IInputReader reader, Map<Integer, ListOfLongs> classId2Locations) throws IOException {
+        reader.seek(position);
+        final int numberOfClasses = reader.readInt();
+        for (int i = 0; i < numberOfClasses; i++) {
+            final int currentId = reader.readInt();
+            reader.readInt(); // weight
+            final int count = reader.readInt();
+            final ListOfLongs list = classId2Locations.get(currentId);
+            if (list != null) {
+                for (int z = 0; z < count; z++) {
+                    list.add(reader.readLong());
+                }
+            } else
+                reader.skipBytes(count * 8); // skip all locations, 8 bytes each
+        }
+    }
+
     /**
      * human readable representation
      *
@@ -82,6 +82,7 @@ public class ExtractToNewDocumentRMA6 {
                 footerSection.setStartHeaderSection(0);
                 sourceRMA6File.getHeaderSectionRMA6().write(writer);
                 footerSection.setEndHeaderSection(writer.getPosition());
+                writer.getCompressor().setCodecSpec(sourceRMA6File.getHeaderSectionRMA6().getCompressionCodec());
 
                 footerSection.setStartReadsSection(writer.getPosition());
 
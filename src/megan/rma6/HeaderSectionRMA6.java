@@ -19,6 +19,7 @@
 package megan.rma6;
 
 import jloda.util.BlastMode;
+import megan.io.Compressor;
 import megan.io.IInputReader;
 import megan.io.IOutputWriter;
 
@@ -34,6 +35,7 @@ public class HeaderSectionRMA6 {
     private BlastMode blastMode;
     private boolean pairedReads;
     private String[] matchClassNames;  // classifications for which matches have identifiers
+    private String compressionCodec = Compressor.DEFAULT_CODEC_SPEC; // codec used for strings after the header
 
     /**
      * read the header
@@ -58,6 +60,10 @@ public class HeaderSectionRMA6 {
         for (int i = 0; i < matchClassNames.length; i++) {
             matchClassNames[i] = reader.readString();
         }
+        if (minorVersion >= 1)
+            compressionCodec = reader.readString();
+        else
+            compressionCodec = Compressor.DEFAULT_CODEC_SPEC;
     }
 
     /**
@@ -79,6 +85,7 @@ public class HeaderSectionRMA6 {
         writer.writeInt(matchClassNames.length);
         for (String name : matchClassNames)
             writer.writeString(name);
+        writer.writeString(compressionCodec);
     }
 
     public String getCreator() {
@@ -113,6 +120,19 @@ public class HeaderSectionRMA6 {
         this.pairedReads = isPairedReads;
     }
 
+    /**
+     * get the codec used to compress all strings that follow the header, such as Deflate:9 or LZ
+     *
+     * @return codec specification
+     */
+    public String getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    public void setCompressionCodec(String compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
     public String[] getMatchClassNames() {
         return matchClassNames;
     }
@@ -30,7 +30,7 @@ import java.util.*;
 
 /**
  * RMA6 connector
- * Created by huson on 2.2015
+ * Created by huson on 2.2015, 10.2019
  */
 public class RMA6Connector implements IConnector {
     private String fileName;
@@ -89,6 +89,20 @@ public class RMA6Connector implements IConnector {
         }
     }
 
+    /**
+     * load the locations of the reads of a set of classes, reading the classification block only once
+     *
+     * @param classification
+     * @param classId2Locations maps each requested class id to the list that its read locations are added to
+     * @throws IOException
+     */
+    public void loadReadLocations(String classification, Map<Integer, ListOfLongs> classId2Locations) throws IOException {
+        try (final RMA6File rma6File = new RMA6File(fileName, RMA6File.READ_ONLY)) {
+            final long start = rma6File.getFooterSectionRMA6().getStartClassification(classification);
+            new ClassificationBlockRMA6(classification).readLocations(start, rma6File.getReader(), classId2Locations);
+        }
+    }
+
     @Override
     public IReadBlockGetter getReadBlockGetter(float minScore, float maxExpected, boolean wantReadSequence, boolean wantMatches) throws IOException {
         final RMA6File rma6File = new RMA6File(fileName, RMA6File.READ_ONLY);
@@ -29,12 +29,12 @@ import java.util.Map;
 
 /**
  * read-alignment archive file
- * Daniel Huson, 6.2015
+ * Daniel Huson, 6.2015, 10.2019
  */
 public class RMA6File implements Closeable {
     public final static int MAGIC_NUMBER = ('R' << 3) | ('M' << 2) | ('A' << 1) | ('R');
     public final static int VERSION = 6;
-    public final static int MINOR_VERSION = 0;
+    public final static int MINOR_VERSION = 1; // 1: header records compression codec
 
     final public static String READ_ONLY = "r";
     final static String READ_WRITE = "rw";
@@ -72,12 +72,32 @@ public class RMA6File implements Closeable {
     private void load(String fileName, String mode) throws IOException {
         this.fileName = fileName;
 
-        this.readerWriter = new InputOutputReaderWriter(fileName, mode);
-        headerSectionRMA6.read(readerWriter);
+        this.readerWriter = openReaderWriter(fileName, mode, headerSectionRMA6);
         readerWriter.seek(FooterSectionRMA6.readStartFooterSection(readerWriter));
         footerSectionRMA6.read(readerWriter);
     }
 
+    /**
+     * opens an RMA6 file, reads its header and sets the compression codec recorded in the header
+     *
+     * @param fileName
+     * @param mode          r or rw
+     * @param headerSection the header is read into this
+     * @return reader-writer, positioned after the header
+     * @throws IOException
+     */
+    public static InputOutputReaderWriter openReaderWriter(String fileName, String mode, HeaderSectionRMA6 headerSection) throws IOException {
+        final InputOutputReaderWriter readerWriter = new InputOutputReaderWriter(fileName, mode);
+        try {
+            headerSection.read(readerWriter);
+            readerWriter.getCompressor().setCodecSpec(headerSection.getCompressionCodec());
+            return readerWriter;
+        } catch (IOException ex) {
+            readerWriter.close();
+            throw ex;
+        }
+    }
+
     /**
      * close the file
      *
@@ -21,6 +21,8 @@ package megan.rma6;
 
 import jloda.util.BlastMode;
 import jloda.util.ListOfLongs;
+import jloda.util.ProgramProperties;
+import megan.io.Compressor;
 import megan.io.OutputWriter;
 
 import java.io.File;
@@ -68,6 +70,7 @@ public class RMA6FileCreator extends RMA6File {
         headerSection.setBlastMode(blastMode);
         headerSection.setMatchClassNames(matchClassificationNames);
         headerSection.setIsPairedReads(isPairedReads);
+        headerSection.setCompressionCodec(ProgramProperties.get("RMA6CompressionCodec", Compressor.DEFAULT_CODEC_SPEC));
 
         this.isPairedReads = isPairedReads;
         numberOfClassificationNames = matchClassificationNames.length;
@@ -76,12 +79,14 @@ public class RMA6FileCreator extends RMA6File {
         if (file.exists() && !file.delete())
             throw new IOException("Can't delete existing file: " + file);
 
-        readerWriter = new OutputWriter(new File(fileName)); // need to stream output for efficiency
-        readerWriter.setUseCompression(useCompression);
+        final OutputWriter outputWriter = new OutputWriter(new File(fileName), false, true); // need to stream output for efficiency, file writes done in background
+        outputWriter.setUseCompression(useCompression);
+        readerWriter = outputWriter;
 
         getFooterSectionRMA6().setStartHeaderSection(readerWriter.getPosition());
         getHeaderSectionRMA6().write(readerWriter);
         getFooterSectionRMA6().setEndHeaderSection(readerWriter.getPosition());
+        outputWriter.getCompressor().setCodecSpec(headerSection.getCompressionCodec());
     }
 
     /**
@@ -55,6 +55,7 @@ public class RMA6FileModifier extends RMA6File implements Closeable {
      */
     public void updateClassifications(String[] cNames, Map<Integer, ListOfLongs>[] fName2ClassId2Location, Map<Integer, Float>[] fName2ClassId2Weight) throws IOException {
         io = new InputOutputReaderWriter(new File(fileName), READ_WRITE);
+        io.getCompressor().setCodecSpec(getHeaderSectionRMA6().getCompressionCodec());
 
         io.seek(footerSectionRMA6.getStartClassificationsSection());
         io.setLength(io.getPosition());
@@ -110,6 +111,7 @@ public class RMA6FileModifier extends RMA6File implements Closeable {
         final long location = footerSectionRMA6.getStartAuxDataSection();
 
         io = new InputOutputReaderWriter(new File(fileName), READ_WRITE);
+        io.getCompressor().setCodecSpec(getHeaderSectionRMA6().getCompressionCodec());
 
         io.setLength(location);
         io.seek(location);
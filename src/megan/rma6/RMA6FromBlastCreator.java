@@ -33,6 +33,7 @@ import megan.parsers.blast.BlastFileFormat;
 import megan.parsers.blast.ISAMIterator;
 import megan.parsers.blast.IteratorManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Arrays;
@@ -162,6 +163,7 @@ public class RMA6FromBlastCreator {
             mapClassificationId2DatabaseRank = null;
         }
 
+        File sortedMAFFile = null; // temporary file, if we had to sort an unsorted MAF file
         try {
             for (int fileNumber = 0; fileNumber < blastFiles.length; fileNumber++) {
                 int missingReadWarnings = 0;
@@ -169,15 +171,17 @@ public class RMA6FromBlastCreator {
                 progress.setTasks("Parsing file", Basic.getFileNameWithoutPath(blastFile));
                 System.err.println("Parsing file: " + blastFile);
 
-                final ISAMIterator iterator = IteratorManager.getIterator(blastFile, format, blastMode, maxMatchesPerRead, longReads);
+                final String readsFile = (readsFiles != null && readsFiles.length > fileNumber && Basic.fileExistsAndIsNonEmpty(readsFiles[fileNumber]) ? readsFiles[fileNumber] : null);
+                sortedMAFFile = IteratorManager.sortMAFFileIfNecessary(blastFile, readsFile, format);
+                final ISAMIterator iterator = IteratorManager.getIterator(sortedMAFFile != null ? sortedMAFFile.getPath() : blastFile, format, blastMode, maxMatchesPerRead, longReads);
 
                 progress.setProgress(0);
                 progress.setMaximum(iterator.getMaximumProgress());
 
                 final FileLineBytesIterator fastaIterator;
                 final boolean isFasta;
-                if (readsFiles != null && readsFiles.length > fileNumber && Basic.fileExistsAndIsNonEmpty(readsFiles[fileNumber])) {
-                    fastaIterator = new FileLineBytesIterator(readsFiles[fileNumber]);
+                if (readsFile != null) {
+                    fastaIterator = new FileLineBytesIterator(readsFile);
                     isFasta = (fastaIterator.peekNextByte() == '>');
                     if (!isFasta && (fastaIterator.peekNextByte() != '@'))
                         throw new IOException("Cannot determine type of reads file (doesn't start with '>' or '@': " + readsFiles[fileNumber]);
@@ -310,8 +314,12 @@ public class RMA6FromBlastCreator {
                     rma6FileCreator.addQuery(queryText, queryTextLength, numberOfMatches, matchesText, matchesTextLength, match2classification2id, mateLocation != null ? mateLocation : 0);
                     progress.setProgress(iterator.getProgress());
                 } // end of iterator
+                iterator.close();
+                IteratorManager.deleteTemporaryFile(sortedMAFFile);
+                sortedMAFFile = null;
             } // end of files
         } finally {
+            IteratorManager.deleteTemporaryFile(sortedMAFFile);
             if (accessAccessionMappingDatabase != null)
                 accessAccessionMappingDatabase.close();
         }
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.stats;
+
+import java.util.SplittableRandom;
+
+/**
+ * alias table for drawing classes with probability proportional to their counts in constant time
+ * <p>
+ * Each draw uses a single random long: the high bits select a bucket, the low bits decide between the bucket and its alias.
+ * Daniel Huson, 10.2019
+ */
+class AliasTable {
+    private static final long ONE = 1L << 32;
+
+    private final int size;
+    private final long total;
+    private final long[] threshold;
+    private final int[] alias;
+
+    /**
+     * constructor
+     *
+     * @param counts count of each class. Counts are truncated to integers in the same way as by a running integer sum
+     */
+    AliasTable(float[] counts) {
+        size = counts.length;
+        threshold = new long[size];
+        alias = new int[size];
+
+        final long[] weights = new long[size];
+        int sum = 0;
+        for (int i = 0; i < size; i++) {
+            final int previous = sum;
+            sum += counts[i];
+            weights[i] = Math.max(0, sum - previous);
+        }
+        long total = 0;
+        for (long weight : weights)
+            total += weight;
+        this.total = total;
+
+        if (total > 0) {
+            // each bucket holds total units, the weight of class i is scaled to weight*size units
+            final int[] small = new int[size];
+            final int[] large = new int[size];
+            int numberOfSmall = 0;
+            int numberOfLarge = 0;
+            final long[] scaled = new long[size];
+            for (int i = 0; i < size; i++) {
+                scaled[i] = weights[i] * size;
+                if (scaled[i] < total)
+                    small[numberOfSmall++] = i;
+                else
+                    large[numberOfLarge++] = i;
+            }
+            while (numberOfSmall > 0 && numberOfLarge > 0) {
+                final int s = small[--numberOfSmall];
+                final int l = large[numberOfLarge - 1];
+                threshold[s] = (long) ((double) scaled[s] / total * ONE);
+                alias[s] = l;
+                scaled[l] -= (total - scaled[s]);
+                if (scaled[l] < total) {
+                    numberOfLarge--;
+                    small[numberOfSmall++] = l;
+                }
+            }
+            while (numberOfLarge > 0) {
+                final int l = large[--numberOfLarge];
+                threshold[l] = ONE;
+                alias[l] = l;
+            }
+            while (numberOfSmall > 0) { // not reached, as weights are integers
+                final int s = small[--numberOfSmall];
+                threshold[s] = ONE;
+                alias[s] = s;
+            }
+        }
+    }
+
+    /**
+     * does the table have any positive weight?
+     *
+     * @return true, if nothing can be drawn
+     */
+    boolean isEmpty() {
+        return total == 0;
+    }
+
+    /**
+     * draw a class
+     *
+     * @param random
+     * @return index of class
+     */
+    int draw(SplittableRandom random) {
+        final long r = random.nextLong();
+        final int i = (int) (((r >>> 32) * size) >>> 32);
+        return (r & 0xffffffffL) < threshold[i] ? i : alias[i];
+    }
+}
@@ -18,19 +18,27 @@
  */
 package megan.stats;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.swing.util.ArgsOptions;
-import jloda.util.CanceledException;
-import jloda.util.ProgressCmdLine;
-import jloda.util.ProgressListener;
-import jloda.util.UsageException;
+import jloda.util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * compares two datasets and ranks entries by the significance of their difference
+ * <p>
+ * Resampling is done in memory and in parallel, drawing from alias tables of the counts.
+ * Daniel Huson, 10.2019
  */
 public class ResamplingMethod {
+    private static final int REPEATS_PER_CHUNK = 100;
+
     private int resamplingSize = 10000;
     private int repeatitions = 20000;
     private double p_left = 5;
@@ -39,7 +47,8 @@ public class ResamplingMethod {
     private String inputFileName2;
     private boolean useSecond = false;
     private String outputFileName = "out.txt";
-    private final Random random;
+    private long seed;
+    private int numberOfThreads = ProgramExecutorService.getNumberOfCoresToUse();
     private boolean optionWarningOnBoundary = true;
     private ProgressListener progressListener = new ProgressCmdLine();
     /*
@@ -54,7 +63,7 @@ public class ResamplingMethod {
      * constructor
      */
     public ResamplingMethod() {
-        random = new Random();
+        seed = new Random().nextLong();
     }
 
     /**
@@ -63,7 +72,7 @@ public class ResamplingMethod {
      * @param seed random generator seed
      */
     public ResamplingMethod(long seed) {
-        random = new Random(seed);
+        this.seed = seed;
     }
 
     /*
@@ -118,7 +127,7 @@ public class ResamplingMethod {
         this.p_left = p_left;
         this.useSecond = useSecond;
         this.optionWarningOnBoundary = optionWarningOnBoundary;
-        if (seed != 0) random.setSeed(seed);
+        if (seed != 0) this.seed = seed;
     }
 
     /* options: */
@@ -168,6 +177,14 @@ public class ResamplingMethod {
         this.optionWarningOnBoundary = optionWarningOnBoundary;
     }
 
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
 
     /**
      * determine whether statistical test is applicable
@@ -255,9 +272,10 @@ public class ResamplingMethod {
         /*
          * now goto the old process
          */
-        float[] median = computeMedians(sample1, sample2, resamplingSize, repeatitions);
+        final SplittableRandom random = new SplittableRandom(seed);
+        float[] median = computeMedians(sample1, sample2, resamplingSize, repeatitions, random);
 
-        float[][] p05_95 = computePercentileLimits(useSecond ? sample2 : sample1, resamplingSize, repeatitions, p_left, p_right);
+        float[][] p05_95 = computePercentileLimits(useSecond ? sample2 : sample1, resamplingSize, repeatitions, p_left, p_right, random);
         System.err.println("########################");
         //check array of p05_95 and median
         for (int i = 0; i < median.length; i++) {
@@ -316,9 +334,10 @@ public class ResamplingMethod {
         if (sample1.length != sample2.length)
             throw new Exception("Samples have different lengths: " + sample1.length + " vs " + sample2.length);
 
-        float[] median = computeMedians(sample1, sample2, resamplingSize, repeatitions);
+        final SplittableRandom random = new SplittableRandom(seed);
+        float[] median = computeMedians(sample1, sample2, resamplingSize, repeatitions, random);
 
-        float[][] p05_95 = computePercentileLimits(useSecond ? sample2 : sample1, resamplingSize, repeatitions, p_left, p_right);
+        float[][] p05_95 = computePercentileLimits(useSecond ? sample2 : sample1, resamplingSize, repeatitions, p_left, p_right, random);
         System.err.println("########################");
         //check array of p05_95 and median
         for (int i = 0; i < median.length; i++) {
@@ -348,132 +367,104 @@ public class ResamplingMethod {
     }
 
     /**
-     * generate a random sample
-     *
-     * @param sample
-     * @param size
-     * @return random sample
-     */
-    private float[] getRandomSample(float[] sample, int size) {
-        float[] commulativeSum = new float[sample.length];
-        float[] result = new float[sample.length];
-        int sum = 0;
-
-        for (int i = 0; i < sample.length; i++) {
-            sum += sample[i];
-            commulativeSum[i] = sum;
-        }
-
-        /*
-         * added on 14.11.07
-         * if no values in the dataset, also all values are 0, return int[] mit 0;
-         */
-        if (sum == 0) return result;
-        //
-
-        for (int j = 0; j < size; j++) {
-            //trying another position for new Random()
-            //Random rnd = new Random();
-            //trying different seeds
-            //rnd.setSeed(System.nanoTime());
-            int r = random.nextInt(sum) + 1; //1<=r<=sum
-            //check generation of random numbers
-            //System.err.println("radomnum "+j+" "+r);
-            //
-            int bucket = Arrays.binarySearch(commulativeSum, r);
-            /*
-             * ?which positon for negativ Index
-             */
-            if (bucket < 0) bucket = -bucket - 1;
-            //			check count of bucket
-            //System.err.println("Gene"+bucket+" is selected");
-            //
-            result[bucket]++;
-        }
-        //check number of every bucket
-        /*
-           for (int i = 0; i < result.length; i++){
-               System.err.println(result[i]);
-           }
-        */
-
-        //check summe of all numbers
-        /*
-           int checksume = 0;
-           for (int i = 0; i < result.length; i++){
-               checksume += result[i];
-           }
-           System.err.println(checksume);
-        */
-        return result;
-
-    }
-
-    /**
-     * get the array of absolute differences between N1 and N2
-     *
-     * @param N1
-     * @param N2
-     * @return absolute differences
-     */
-    private float[] getAbsoluteDifference(float[] N1, float[] N2) {
-
-        assert (N1.length == N2.length);
-
-        float[] result = new float[N1.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = Math.abs(N1[i] - N2[i]);
-        }
-
-        return result;
-    }
-
-    /**
-     * extract a row from a two dimensional matrix
+     * draws pairs of random samples of the given size and records the absolute differences of their class counts.
+     * Repetitions are run in parallel, each chunk of repetitions uses its own random stream, so that the
+     * result only depends on the seed and not on the number of threads
      *
-     * @param twoDimArray
-     * @param r
-     * @return r-th row
+     * @param sample1
+     * @param sample2
+     * @param resamplingSize
+     * @param repeats
+     * @param random         source of the random streams
+     * @return differences
      */
-    private float[] extractRow(float[][] twoDimArray, int r) throws CanceledException {
-
-        assert ((r >= 0) && (r < twoDimArray[0].length));
-
-        float[] row = new float[twoDimArray.length];
-        progressListener.setMaximum(row.length);
+    private Differences sampleDifferences(float[] sample1, float[] sample2, int resamplingSize, int repeats, SplittableRandom random) throws CanceledException {
+        assert (sample1.length == sample2.length);
 
-        for (int i = 0; i < row.length; i++) {
-            row[i] = twoDimArray[i][r];
-            progressListener.setProgress(i);
-        }
+        final int length = sample1.length;
+        final AliasTable table1 = new AliasTable(sample1);
+        final AliasTable table2 = (sample2 == sample1 ? table1 : new AliasTable(sample2));
 
-        return row;
-    }
+        final int numberOfChunks = (repeats + REPEATS_PER_CHUNK - 1) / REPEATS_PER_CHUNK;
+        final SplittableRandom[] randoms = new SplittableRandom[numberOfChunks];
+        for (int chunk = 0; chunk < numberOfChunks; chunk++)
+            randoms[chunk] = random.split();
 
-    /**
-     * get the median of a row of numbers
-     *
-     * @param row
-     * @return median
-     */
-    private float getMedian(float[] row) {
-        /*
-        int[] tmp = new int[row.length];
+        final Differences differences = new Differences(length, repeats);
 
-        System.arraycopy(row, 0, tmp, 0, row.length);
+        final int numberOfWorkers = Math.max(1, Math.min(numberOfThreads, numberOfChunks));
+        final ExecutorService service = ProgramExecutorService.createServiceForParallelAlgorithm(numberOfWorkers);
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicBoolean canceled = new AtomicBoolean(false);
+        final CountDownLatch countDownLatch = new CountDownLatch(numberOfWorkers);
 
-        Arrays.sort(tmp);
-        return tmp[(tmp.length-1) / 2];
-        // don't rewrite to use average with number of values is even because median must be one of the values.
-        */
+        progressListener.setMaximum(repeats);
+        progressListener.setProgress(0);
+        try {
+            for (int w = 0; w < numberOfWorkers; w++) {
+                service.submit(() -> {
+                    try {
+                        final Differences local = new Differences(length, repeats);
+                        final int[] counts1 = new int[length];
+                        final int[] counts2 = new int[length];
+                        final int[] touched = new int[length];
+                        int chunk;
+                        while (!canceled.get() && (chunk = nextChunk.getAndIncrement()) < numberOfChunks) {
+                            final SplittableRandom chunkRandom = randoms[chunk];
+                            final int top = Math.min(repeats, (chunk + 1) * REPEATS_PER_CHUNK);
+                            for (int i = chunk * REPEATS_PER_CHUNK; i < top; i++) {
+                                int numberTouched = 0;
+                                if (!table1.isEmpty()) {
+                                    for (int j = 0; j < resamplingSize; j++) {
+                                        final int c = table1.draw(chunkRandom);
+                                        if (counts1[c]++ == 0)
+                                            touched[numberTouched++] = c;
+                                    }
+                                }
+                                if (!table2.isEmpty()) {
+                                    for (int j = 0; j < resamplingSize; j++) {
+                                        final int c = table2.draw(chunkRandom);
+                                        if (counts2[c]++ == 0 && counts1[c] == 0)
+                                            touched[numberTouched++] = c;
+                                    }
+                                }
+                                for (int t = 0; t < numberTouched; t++) {
+                                    final int c = touched[t];
+                                    local.add(c, Math.abs(counts1[c] - counts2[c]));
+                                    counts1[c] = 0;
+                                    counts2[c] = 0;
+                                }
+                            }
+                            completed.addAndGet(top - chunk * REPEATS_PER_CHUNK);
+                        }
+                        synchronized (differences) {
+                            differences.addAll(local);
+                        }
+                    } catch (Exception ex) {
+                        Basic.caught(ex);
+                        canceled.set(true);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
 
-        //10.30.2007 try to output average value
-        float sum = 0;
-        for (float p : row) {
-            sum += p;
+            try {
+                while (!countDownLatch.await(100, TimeUnit.MILLISECONDS)) {
+                    progressListener.setProgress(completed.get());
+                }
+            } catch (InterruptedException | CanceledException ex) {
+                canceled.set(true);
+                throw new CanceledException();
+            }
+        } finally {
+            service.shutdownNow();
         }
-        return sum / row.length;
-        //
+        if (completed.get() < repeats)
+            throw new RuntimeException("Resampling failed");
+        progressListener.setProgress(repeats);
+        return differences;
     }
 
     /**
@@ -483,90 +474,19 @@ public class ResamplingMethod {
      * @param sample2
      * @param resamplingSize
      * @param repeats
+     * @param random
      * @return medians
      */
-    private float[] computeMedians(float[] sample1, float[] sample2, int resamplingSize, int repeats) throws CanceledException {
-
-        assert (sample1.length == sample2.length);
-
-        int length = sample1.length;
-
-        final float[][] diff = new float[repeats][length];
-
+    private float[] computeMedians(float[] sample1, float[] sample2, int resamplingSize, int repeats, SplittableRandom random) throws CanceledException {
         progressListener.setSubtask("random sampling");
-        progressListener.setMaximum(repeats);
-        for (int i = 0; i < repeats; i++) {
-            float[] N1 = getRandomSample(sample1, resamplingSize);
-            /*
-            //check N1 for median
-            BufferedWriter RandomsampleN1ofMedian = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("RandomsampleN1ofMedian_rep"+(i+1)+".txt", false)));
-            for (int res1 : N1) {
-            	RandomsampleN1ofMedian.write(res1 + "\n");
-            }
-            RandomsampleN1ofMedian.close();
-            //
-            */
-            float[] N2 = getRandomSample(sample2, resamplingSize);
-            /*
-            //check N2 for median
-            BufferedWriter RandomsampleN2ofMedian = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("RandomsampleN2ofMedian_rep"+(i+1)+".txt", false)));
-            for (int res2 : N2) {
-            	RandomsampleN2ofMedian.write(res2 + "\n");
-            }
-            RandomsampleN2ofMedian.close();
-            //
-            */
-            diff[i] = getAbsoluteDifference(N1, N2);
-            /*
-            //check difference of N1, N2 for median
-            BufferedWriter DiffofN1N2ofMedian = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("DiffofN1N2ofMedian_rep"+(i+1)+".txt", false)));
-            for (int res3 : diff[i]) {
-            	DiffofN1N2ofMedian.write(res3 + "\n");
-            }
-            DiffofN1N2ofMedian.close();
-            //
-            */
-            progressListener.setProgress(i);
-        }
-
-        progressListener.setSubtask("computing medians");
-        progressListener.setMaximum(-1);
-        progressListener.setProgress(-1);
-
-        float[] median = new float[length];
-        for (int j = 0; j < length; j++) {
-            float[] row = extractRow(diff, j);
-            /*
-            //check unsorted  median of Gene
-            BufferedWriter UnsortedMedianofGene = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("UnsortedMedianofGene"+(j+1)+".txt", false)));
-            for (int h = 0; h < row.length; h++) {
-            	UnsortedMedianofGene.write(row[h]+"\n");
-            }
-            UnsortedMedianofGene.close();
-            //
-            */
-
-            /*
-            //check sorted median of Gene
-            int[] tmp = new int[row.length];
-
-            System.arraycopy(row, 0, tmp, 0, row.length);
-
-            Arrays.sort(tmp);
-            BufferedWriter SortedMedianofGene = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("SortedMedianofGene"+(j+1)+".txt", false)));
-            for (int h = 0; h < tmp.length; h++) {
-                SortedMedianofGene.write(tmp[h]+"\n");
-            }
-            SortedMedianofGene.write("median is "+tmp[(tmp.length-1) / 2]);
-            SortedMedianofGene.close();
-            //
-            */
-            median[j] = getMedian(row);
-            progressListener.setProgress(j);
+        final Differences diff = sampleDifferences(sample1, sample2, resamplingSize, repeats, random);
 
+        // 10.30.2007 output average value rather than median
+        final float[] median = new float[sample1.length];
+        for (int j = 0; j < median.length; j++) {
+            median[j] = diff.getAverage(j);
         }
         return median;
-
     }
     /*
      * end of Part A
@@ -575,40 +495,32 @@ public class ResamplingMethod {
     /**
      * compute the boundaries for the percentile interval
      *
-     * @param diff_i
+     * @param diff
+     * @param c
      * @param leftValue
      * @param rightValue
      * @return leftlimit, rightlimit, middle value
      */
-    private float[] getPercentileInterval(float[] diff_i, double leftValue, double rightValue) {
-
-        float[] sorted = new float[diff_i.length];
-        System.arraycopy(diff_i, 0, sorted, 0, diff_i.length);
-        Arrays.sort(sorted);
+    private static float[] getPercentileInterval(Differences diff, int c, double leftValue, double rightValue) {
+        final int repeats = diff.getRepeats();
 
-        assert (diff_i.length * leftValue / 100.0 > 0);
-        assert (diff_i.length * rightValue / 100.0 <= 100);
-
-        int leftPer = (int) (diff_i.length * leftValue / 100.0);
+        int leftPer = (int) (repeats * leftValue / 100.0);
         if (leftPer < 1)
             leftPer = 1;
         //wenn repeatstime is too small, rightPer can be 0 or -1
-        int rightPer = (int) (diff_i.length * rightValue / 100.0) - 1;
+        int rightPer = (int) (repeats * rightValue / 100.0) - 1;
         if (rightPer < 1)
             rightPer = 1;
 
-        assert leftPer > 0 && leftPer <= diff_i.length && rightPer <= diff_i.length && leftPer <= rightPer;
+        assert leftPer > 0 && leftPer <= repeats && rightPer <= repeats && leftPer <= rightPer;
 
         /*
          * result[0]:leftlimit; result[1]:rightlimit; result[2]:middelvalue
          */
-        float[] result = new float[3];
-
-        result[0] = sorted[leftPer - 1];
-        result[1] = sorted[rightPer - 1];
-
-        result[2] = sorted[(diff_i.length - 1) / 2];
-
+        final float[] result = new float[3];
+        result[0] = diff.getSorted(c, leftPer - 1);
+        result[1] = diff.getSorted(c, rightPer - 1);
+        result[2] = diff.getSorted(c, (repeats - 1) / 2);
         return result;
     }
 
@@ -620,85 +532,17 @@ public class ResamplingMethod {
      * @param repeats
      * @param leftValue
      * @param rightValue
+     * @param random
      * @return left and right value for each class
      */
-    private float[][] computePercentileLimits(float[] sample, int resamplingSize, int repeats, double leftValue, double rightValue) throws CanceledException {
-
-        int length = sample.length;
-
-        float[][] diff = new float[repeats][length];
-        for (int i = 0; i < repeats; i++) {
-            float[] N1 = getRandomSample(sample, resamplingSize);
-            /*
-            //check N1 for percentile
-            BufferedWriter RandomsampleN1ofPer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("RandomsampleN1ofPer_rep"+(i+1)+".txt", false)));
-            for (int res1 : N1) {
-            	RandomsampleN1ofPer.write(res1 + "\n");
-            }
-            RandomsampleN1ofPer.close();
-            //
-            */
-            float[] N2 = getRandomSample(sample, resamplingSize);
-            /*
-            //check N2 for percentile
-            BufferedWriter RandomsampleN2ofPer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("RandomsampleN2ofPer_rep"+(i+1)+".txt", false)));
-            for (int res2 : N2) {
-            	RandomsampleN2ofPer.write(res2 + "\n");
-            }
-            RandomsampleN2ofPer.close();
-            //
-            */
-            diff[i] = getAbsoluteDifference(N1, N2);
-            /*
-            //check difference of N1, N2 for percentile
-            BufferedWriter DiffofN1N2ofPer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("DiffofN1N2ofPer_rep"+(i+1)+".txt", false)));
-            for (int res3 : diff[i]) {
-            	DiffofN1N2ofPer.write(res3 + "\n");
-            }
-            DiffofN1N2ofPer.close();
-            //
-            */
-        }
-
-        float[][] p5_95 = new float[length][3];
-        for (int i = 0; i < length; i++) {
-            float[] diff_i = extractRow(diff, i);
-            /*
-           //check unsorted  percentile of Gene
-            BufferedWriter UnsortedPerofGene = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("UnsortedPerofGene"+(i+1)+".txt", false)));
-            for (int h = 0; h < diff_i.length; h++) {
-                UnsortedPerofGene.write(diff_i[h]+"\n");
-            }
-            UnsortedPerofGene.close();
-            //
-            */
-
-            /*
-            //check sorted percentile of Gene
-            int[] sorted = new int[diff_i.length];
-            System.arraycopy(diff_i, 0, sorted, 0, diff_i.length);
-            Arrays.sort(sorted);
-
-            assert(diff_i.length * leftValue / 100.0>0);
-            assert(diff_i.length * rightValue / 100.0<=100);
-
-            int leftPer = (int) (diff_i.length * leftValue / 100.0);
-            if (leftPer < 1)
-                leftPer = 1;
-            int rightPer = (int) (diff_i.length * rightValue / 100.0) - 1;
-            assert ((leftPer >0) && (leftPer <= diff_i.length) && (rightPer > 0) && (rightPer <= diff_i.length) && (leftPer <= rightPer));
-            BufferedWriter SortedPerofGene = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("SortedPerofGene"+(i+1)+".txt", false)));
-            for (int h = 0; h < sorted.length; h++) {
-                SortedPerofGene.write(sorted[h]+ "\n");
-            }
-            SortedPerofGene.write("p5: "+sorted[leftPer]+"         p95: "+sorted[rightPer]+ "\n");
-            SortedPerofGene.close();
-            //
-            */
-            p5_95[i] = getPercentileInterval(diff_i, leftValue, rightValue);
+    private float[][] computePercentileLimits(float[] sample, int resamplingSize, int repeats, double leftValue, double rightValue, SplittableRandom random) throws CanceledException {
+        progressListener.setSubtask("computing percentiles");
+        final Differences diff = sampleDifferences(sample, sample, resamplingSize, repeats, random);
 
+        final float[][] p5_95 = new float[sample.length][];
+        for (int i = 0; i < sample.length; i++) {
+            p5_95[i] = getPercentileInterval(diff, i, leftValue, rightValue);
         }
-
         return p5_95;
     }
     /*
@@ -864,7 +708,8 @@ public class ResamplingMethod {
 
         int seed = options.getOption("-seed", "randSeed", "use as seed for random number generate, if !=0", 0);
         if (seed != 0)
-            random.setSeed(seed);
+            this.seed = seed;
+        setNumberOfThreads(options.getOption("-t", "threads", "Number of threads", numberOfThreads));
         options.done();
     }
 
@@ -994,4 +839,79 @@ public class ResamplingMethod {
         System.err.println(fileDst + " is generated!");
     }
 
+
+    /**
+     * absolute differences of class counts over all repetitions, kept as a histogram per class
+     */
+    private static class Differences {
+        private final int repeats;
+        private final long[] sums;
+        private final int[] nonZero;
+        private final int[][] histograms;
+
+        Differences(int length, int repeats) {
+            this.repeats = repeats;
+            sums = new long[length];
+            nonZero = new int[length];
+            histograms = new int[length][];
+        }
+
+        int getRepeats() {
+            return repeats;
+        }
+
+        /**
+         * record the difference of a class in one repetition. Zero differences need not be recorded
+         */
+        void add(int c, int value) {
+            if (value > 0)
+                add(c, value, 1);
+        }
+
+        void addAll(Differences other) {
+            for (int c = 0; c < sums.length; c++) {
+                final int[] histogram = other.histograms[c];
+                if (histogram != null) {
+                    for (int value = 1; value < histogram.length; value++) {
+                        if (histogram[value] > 0)
+                            add(c, value, histogram[value]);
+                    }
+                }
+            }
+        }
+
+        private void add(int c, int value, int count) {
+            int[] histogram = histograms[c];
+            if (histogram == null)
+                histogram = histograms[c] = new int[Math.max(value + 1, 16)];
+            else if (value >= histogram.length)
+                histogram = histograms[c] = Arrays.copyOf(histogram, Math.max(value + 1, 2 * histogram.length));
+            histogram[value] += count;
+            nonZero[c] += count;
+            sums[c] += (long) count * value;
+        }
+
+        /**
+         * get the average difference of a class over all repetitions
+         */
+        float getAverage(int c) {
+            return (float) ((double) sums[c] / repeats);
+        }
+
+        /**
+         * get the k-th smallest difference of a class over all repetitions, with k starting at 0
+         */
+        float getSorted(int c, int k) {
+            int remaining = k - (repeats - nonZero[c]);
+            if (remaining < 0)
+                return 0;
+            final int[] histogram = histograms[c];
+            for (int value = 1; value < histogram.length; value++) {
+                remaining -= histogram[value];
+                if (remaining < 0)
+                    return value;
+            }
+            return histogram.length - 1;
+        }
+    }
 }
@@ -19,6 +19,7 @@
 
 package megan.tools;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.swing.util.ArgsOptions;
 import jloda.swing.util.BasicSwing;
 import jloda.swing.util.ResourceManager;
@@ -28,6 +29,7 @@ import megan.classification.Classification;
 import megan.classification.ClassificationManager;
 import megan.classification.IdMapper;
 import megan.genes.CDS;
+import megan.genes.GeneIntervalIndex;
 import megan.genes.GeneItem;
 import megan.genes.GeneItemCreator;
 import megan.io.OutputWriter;
@@ -39,11 +41,11 @@ import java.util.*;
 
 /**
  * build the aadder index
- * Daniel Huson, 5.2018
+ * Daniel Huson, 5.2018, 10.2019
  */
 public class AAdderBuild {
-    final public static byte[] MAGIC_NUMBER_IDX = "AAddIdxV0.1.".getBytes();
-    final public static byte[] MAGIC_NUMBER_DBX = "AAddDbxV0.1.".getBytes();
+    final public static byte[] MAGIC_NUMBER_IDX = "AAddIdxV0.2.".getBytes();
+    final public static byte[] MAGIC_NUMBER_DBX = "AAddDbxV0.2.".getBytes();
 
     private final static String INDEX_CREATOR = "AADD";
 
@@ -92,6 +94,7 @@ public class AAdderBuild {
 
         options.comment(ArgsOptions.OTHER);
         final boolean lookInside = options.getOption("-ex", "extraStrict", "When given an input directory, look inside every input file to check that it is indeed in GFF3 format", false);
+        final int numberOfThreads = options.getOption("-t", "threads", "Number of threads used to parse GFF files", ProgramExecutorService.getNumberOfCoresToUse());
         options.done();
 
         // setup the gff file:
@@ -101,7 +104,7 @@ public class AAdderBuild {
         final GeneItemCreator creator = setupCreator(acc2TaxaFile, class2AccessionFile);
 
         // obtains the gene annotations:
-        Map<String, ArrayList<Interval<GeneItem>>> dnaId2list = computeAnnotations(creator, gffFiles);
+        Map<String, ArrayList<Interval<GeneItem>>> dnaId2list = computeAnnotations(creator, gffFiles, numberOfThreads);
 
         saveIndex(INDEX_CREATOR, creator, indexDirectory, dnaId2list, dnaId2list.keySet());
     }
@@ -173,9 +176,23 @@ public class AAdderBuild {
      * @throws CanceledException
      */
     public static Map<String, ArrayList<Interval<GeneItem>>> computeAnnotations(GeneItemCreator creator, Collection<String> gffFiles) throws IOException, CanceledException {
+        return computeAnnotations(creator, gffFiles, ProgramExecutorService.getNumberOfCoresToUse());
+    }
+
+    /**
+     * compute annotations
+     *
+     * @param creator
+     * @param gffFiles
+     * @param numberOfThreads number of threads used to parse GFF files
+     * @return
+     * @throws IOException
+     * @throws CanceledException
+     */
+    public static Map<String, ArrayList<Interval<GeneItem>>> computeAnnotations(GeneItemCreator creator, Collection<String> gffFiles, int numberOfThreads) throws IOException, CanceledException {
         Map<String, ArrayList<Interval<GeneItem>>> dnaId2list = new HashMap<>();
 
-        final Collection<CDS> annotations = CDS.parseGFFforCDS(gffFiles, new ProgressPercentage("Processing GFF files"));
+        final Collection<CDS> annotations = CDS.parseGFFforCDS(gffFiles, numberOfThreads, new ProgressPercentage("Processing GFF files"));
 
         try (ProgressListener progress = new ProgressPercentage("Building annotation list", annotations.size())) {
             for (CDS cds : annotations) {
@@ -227,13 +244,7 @@ public class AAdderBuild {
                     idxWriter.writeLong(0); // no intervals
                 } else {
                     idxWriter.writeLong(dbxWriter.getPosition()); // position of intervals in DB file
-
-                    dbxWriter.writeInt(list.size());
-                    for (Interval<GeneItem> interval : Basic.randomize(list, 666)) { // need to save in random order
-                        dbxWriter.writeInt(interval.getStart());
-                        dbxWriter.writeInt(interval.getEnd());
-                        interval.getData().write(dbxWriter);
-                    }
+                    GeneIntervalIndex.write(dbxWriter, list, creator.numberOfClassifications());
                     totalRefWithAGene++;
                 }
                 progress.incrementProgress();
@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.tools;
+
+import jloda.util.ProgressPercentage;
+import megan.genes.GeneIntervalIndex;
+import megan.io.InputReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * provides the genes of DNA references, as stored in an AAdd index. Genes are looked up in place in the memory-mapped DB file.
+ * Can be used by multiple threads
+ * Daniel Huson, 10.2019
+ */
+class AAdderIndex implements Closeable {
+    private final Map<String, Long> ref2Pos;
+    private final GeneIntervalIndex geneIntervalIndex;
+
+    /**
+     * opens the index
+     *
+     * @param indexDirectory
+     */
+    AAdderIndex(String indexDirectory) throws IOException {
+        final File indexFile = new File(indexDirectory, "aadd.idx");
+
+        try (InputReader ins = new InputReader(indexFile); ProgressPercentage progress = new ProgressPercentage("Reading file: " + indexFile)) {
+            AAdderRun.readAndVerifyMagicNumber(ins, AAdderBuild.MAGIC_NUMBER_IDX);
+            final String creator = ins.readString();
+            System.err.println("Index created by: " + creator);
+            final int entries = ins.readInt();
+            progress.setMaximum(entries);
+
+            ref2Pos = new HashMap<>(2 * entries);
+
+            for (int t = 0; t < entries; t++) {
+                final String dnaId = ins.readString();
+                final long pos = ins.readLong();
+                ref2Pos.put(dnaId, pos);
+                progress.incrementProgress();
+            }
+        }
+        geneIntervalIndex = new GeneIntervalIndex(new File(indexDirectory, "aadd.dbx"));
+    }
+
+    /**
+     * get the position of the genes of a reference in the DB file
+     *
+     * @param ref
+     * @return position, 0, if reference has no genes, or -1, if reference not contained in index
+     */
+    long getPosition(String ref) {
+        final Long pos = ref2Pos.get(ref);
+        return pos == null ? -1 : pos;
+    }
+
+    /**
+     * get the annotation of the gene that best covers the given interval of a reference
+     *
+     * @param pos                   position of genes of reference, as obtained from getPosition()
+     * @param start
+     * @param end
+     * @param minCoverageProportion minimum proportion of the interval that must be covered by the gene
+     * @return annotation or null
+     */
+    String getAnnotation(long pos, int start, int end, double minCoverageProportion) throws IOException {
+        if (pos <= 0)
+            return null;
+        final int gene = geneIntervalIndex.getBestGene(pos, start, end, minCoverageProportion);
+        return gene == -1 ? null : geneIntervalIndex.getAnnotation(pos, gene);
+    }
+
+    @Override
+    public void close() {
+        geneIntervalIndex.close();
+    }
+}
@@ -19,27 +19,25 @@
 
 package megan.tools;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.swing.util.ArgsOptions;
 import jloda.swing.util.ResourceManager;
 import jloda.util.*;
-import jloda.util.interval.Interval;
-import jloda.util.interval.IntervalTree;
-import megan.classification.IdMapper;
-import megan.genes.GeneItem;
-import megan.genes.GeneItemCreator;
+import megan.io.BackgroundOutputStream;
 import megan.io.IInputReader;
-import megan.io.InputReader;
 import megan.main.Megan6;
 
 import java.io.*;
-import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * add functional annotations to DNA alignments
- * Daniel Huson, 5.2018
+ * Daniel Huson, 5.2018, 10.2019
  */
 public class AAdderRun {
     /**
@@ -78,6 +76,7 @@ public class AAdderRun {
         options.comment(ArgsOptions.OTHER);
         final double minCoverageProportion = options.getOption("-c", "percentToCover", "Percent of alignment that must be covered by protein", 90.00) / 100.0;
         final boolean reportUnmappedAccessions = options.getOption("-rnf", "reportNotFound", "Report the names of DNA references for which no functional accession is available", false);
+        final int numberOfThreads = options.getOption("-t", "threads", "Number of threads", ProgramExecutorService.getNumberOfCoresToUse());
         options.done();
 
         final File outputDir;
@@ -89,40 +88,9 @@ public class AAdderRun {
                 throw new UsageException("Number of output files doesn't match number of input files");
         }
 
-        final Map<String, Pair<Long, IntervalTree<GeneItem>>> ref2PosAndTree;
-        final File indexFile = new File(indexDirectory, "aadd.idx");
-
-        try (InputReader ins = new InputReader(indexFile); ProgressPercentage progress = new ProgressPercentage("Reading file: " + indexFile)) {
-            readAndVerifyMagicNumber(ins, AAdderBuild.MAGIC_NUMBER_IDX);
-            final String creator = ins.readString();
-            System.err.println("Index created by: " + creator);
-            final int entries = ins.readInt();
-            progress.setMaximum(entries);
-
-            ref2PosAndTree = new HashMap<>(2 * entries);
-
-            for (int t = 0; t < entries; t++) {
-                final String dnaId = ins.readString();
-                final long pos = ins.readLong();
-                ref2PosAndTree.put(dnaId, new Pair<>(pos, null));
-                progress.incrementProgress();
-            }
-        }
-
-        final IntervalTree<GeneItem> emptyTree = new IntervalTree<>();
-
-        final File dbFile = new File(indexDirectory, "aadd.dbx");
-
-        try (InputReader dbxIns = new InputReader(dbFile)) {
-            System.err.println("Opening file: " + dbFile);
-
-            readAndVerifyMagicNumber(dbxIns, AAdderBuild.MAGIC_NUMBER_DBX);
-            final String[] cNames = new String[dbxIns.readInt()];
-            for (int i = 0; i < cNames.length; i++) {
-                cNames[i] = dbxIns.readString();
-            }
-            final GeneItemCreator creator = new GeneItemCreator(cNames, new IdMapper[0]);
+        final ExecutorService service = ProgramExecutorService.createServiceForParallelAlgorithm(Math.max(1, numberOfThreads));
 
+        try (AAdderIndex index = new AAdderIndex(indexDirectory)) {
             for (int i = 0; i < inputFiles.length; i++) {
                 File inputFile = new File(inputFiles[i]);
                 final File outputFile;
@@ -134,127 +102,237 @@ public class AAdderRun {
                     throw new IOException("Input file equals output file: " + inputFile);
                 final boolean gzipOutput = outputFile.getName().toLowerCase().endsWith(".gz");
 
-                long countLines = 0;
-                long countAlignments = 0;
-                long countAnnotated = 0;
-                long countReferencesLoaded = 0;
+                final Counts counts = new Counts();
 
-                final Set<String> refNotFound = new HashSet<>();
+                final Set<String> refNotFound = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
-                try (final FileLineIterator it = new FileLineIterator(inputFile, true);
-                     final BufferedWriter w = new BufferedWriter(new OutputStreamWriter(gzipOutput ? new GZIPOutputStream(new FileOutputStream(outputFile)) : new FileOutputStream(outputFile)))) {
+                try (InputStream ins = Basic.getInputStreamPossiblyZIPorGZIP(inputFile.getPath());
+                     OutputStream outs = new BackgroundOutputStream(gzipOutput ? new GZIPOutputStream(new FileOutputStream(outputFile)) : new FileOutputStream(outputFile))) {
                     System.err.println("Writing file: " + outputFile);
 
-                    while (it.hasNext()) {
-                        final String aLine = it.next();
-                        if (aLine.startsWith("@"))
-                            w.write(aLine);
-                        else {
-
-                            final String[] tokens = Basic.split(aLine, '\t');
-
-                            if (tokens.length < 2 || tokens[2].equals("*")) {
-                                w.write(aLine);
-                            } else {
-                                final IntervalTree<GeneItem> tree;
-                                {
-                                    final int pos = tokens[2].indexOf(".");
-                                    final String ref = (pos > 0 ? tokens[2].substring(0, pos) : tokens[2]);
-
-                                    final Pair<Long, IntervalTree<GeneItem>> pair = ref2PosAndTree.get(ref);
-
-                                    if (pair != null) {
-                                        if (pair.getSecond() == null && pair.getFirst() != 0) {
-                                            dbxIns.seek(pair.getFirst());
-
-                                            int intervalsLength = dbxIns.readInt();
-                                            if (intervalsLength > 0) {
-                                                tree = new IntervalTree<>();
-                                                for (int t = 0; t < intervalsLength; t++) {
-                                                    final int start = dbxIns.readInt();
-                                                    final int end = dbxIns.readInt();
-                                                    final GeneItem geneItem = creator.createGeneItem();
-                                                    geneItem.read(dbxIns);
-                                                    tree.add(start, end, geneItem);
-                                                    //System.err.println(refIndex+"("+start+"-"+end+") -> "+geneItem);
-                                                }
-                                                countReferencesLoaded++;
-                                            } else {
-                                                tree = emptyTree;
-                                            }
-                                            pair.setSecond(tree);
-                                        } else {
-                                            tree = pair.getSecond();
-                                        }
-                                    } else {
-                                        if (!refNotFound.contains(ref)) {
-                                            refNotFound.add(ref);
-                                            if (reportUnmappedAccessions)
-                                                System.err.println("Reference not found: " + ref);
-                                        }
-                                        continue;
-                                    }
-                                }
-
-                                final int startSubject = Basic.parseInt(tokens[3]);
-                                final int endSubject = startSubject + getRefLength(tokens[5]) - 1;
-
-                                final Interval<GeneItem> refInterval = tree.getBestInterval(new Interval<GeneItem>(startSubject, endSubject, null), minCoverageProportion);
-
-                                String annotatedRef = tokens[2];
-                                if (refInterval != null) {
-                                    final GeneItem geneItem = refInterval.getData();
-                                    final String remainder;
-                                    final int len = annotatedRef.indexOf(' ');
-                                    if (len >= 0 && len < annotatedRef.length()) {
-                                        remainder = annotatedRef.substring(len); // keep space...
-                                        annotatedRef = annotatedRef.substring(0, len);
-                                    } else
-                                        remainder = "";
-                                    annotatedRef += (annotatedRef.endsWith("|") ? "" : "|") + geneItem.getAnnotation(refInterval) + remainder;
-                                }
-                                for (int t = 0; t < tokens.length; t++) {
-                                    if (t > 0)
-                                        w.write('\t');
-                                    if (t == 2 && !annotatedRef.equals(tokens[2])) {
-                                        w.write(annotatedRef);
-                                        countAnnotated++;
-                                    } else
-                                        w.write(tokens[t]);
+                    // chunks of complete lines are annotated in parallel and written in input order:
+                    final LinkedList<Future<Chunk>> pending = new LinkedList<>();
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int length = 0;
+                    while (true) {
+                        final int got = ins.read(buffer, length, buffer.length - length);
+                        if (got > 0)
+                            length += got;
+                        if (got == -1 || length == buffer.length) {
+                            int end = length;
+                            if (got != -1) {
+                                while (end > 0 && buffer[end - 1] != '\n')
+                                    end--;
+                                if (end == 0) { // line longer than buffer
+                                    buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                                    continue;
                                 }
                             }
-                            countAlignments++;
+                            if (end > 0) {
+                                final byte[] bytes = buffer;
+                                final int bytesLength = end;
+                                pending.add(service.submit(() -> annotate(bytes, bytesLength, index, minCoverageProportion, refNotFound, reportUnmappedAccessions)));
+                                if (pending.size() > 2 * numberOfThreads)
+                                    writeChunk(pending.removeFirst(), outs, counts);
+                            }
+                            if (got == -1)
+                                break;
+                            final byte[] next = new byte[Math.max(CHUNK_SIZE, length - end)];
+                            System.arraycopy(buffer, end, next, 0, length - end);
+                            buffer = next;
+                            length -= end;
                         }
-                        w.write("\n");
-                        countLines++;
                     }
+                    while (pending.size() > 0)
+                        writeChunk(pending.removeFirst(), outs, counts);
                 }
 
-                System.err.println(String.format("Lines:     %,11d", countLines));
-                System.err.println(String.format("Alignments:%,11d", countAlignments));
-                System.err.println(String.format("Annotated: %,11d", countAnnotated));
-                System.err.println(String.format("(Loaded refs:%,9d)", countReferencesLoaded));
+                System.err.println(String.format("Lines:     %,11d", counts.lines));
+                System.err.println(String.format("Alignments:%,11d", counts.alignments));
+                System.err.println(String.format("Annotated: %,11d", counts.annotated));
                 if (refNotFound.size() > 0)
                     System.err.println(String.format("(Missing refs:%,8d)", refNotFound.size()));
             }
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * annotated lines and counts for a chunk of input
+     */
+    private static class Chunk {
+        final ByteArrayOutputStream output;
+        final Counts counts = new Counts();
+
+        Chunk(int size) {
+            output = new ByteArrayOutputStream(size + size / 4);
+        }
+    }
+
+    private static class Counts {
+        long lines;
+        long alignments;
+        long annotated;
+    }
+
+    /**
+     * waits for a chunk to be annotated and then writes it
+     */
+    private static void writeChunk(Future<Chunk> future, OutputStream outs, Counts counts) throws IOException {
+        final Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e.getCause() != null ? e.getCause() : e);
+        }
+        chunk.output.writeTo(outs);
+        counts.lines += chunk.counts.lines;
+        counts.alignments += chunk.counts.alignments;
+        counts.annotated += chunk.counts.annotated;
+    }
+
+    /**
+     * annotate all lines contained in a chunk of input. The reference name, start and CIGAR string are obtained directly from the bytes of a line
+     *
+     * @param bytes  input lines
+     * @param length number of bytes to use
+     * @return annotated lines
+     */
+    private static Chunk annotate(byte[] bytes, int length, AAdderIndex index, double minCoverageProportion, Set<String> refNotFound, boolean reportUnmappedAccessions) throws IOException {
+        final Chunk chunk = new Chunk(length);
+        final ByteArrayOutputStream w = chunk.output;
+        final int[] tabs = new int[6];
+
+        // consecutive alignments usually are to the same reference:
+        byte[] prevRef = null;
+        long prevPos = 0;
+
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && bytes[lineEnd] != '\n')
+                lineEnd++;
+            final int next = lineEnd + 1;
+            if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r')
+                lineEnd--;
+
+            if (bytes[lineStart] == '@')
+                w.write(bytes, lineStart, lineEnd - lineStart);
+            else {
+                int numberOfTabs = 0;
+                for (int i = lineStart; i < lineEnd && numberOfTabs < tabs.length; i++) {
+                    if (bytes[i] == '\t')
+                        tabs[numberOfTabs++] = i;
+                }
+                final int refStart = (numberOfTabs >= 2 ? tabs[1] + 1 : lineEnd);
+                final int refEnd = (numberOfTabs >= 3 ? tabs[2] : lineEnd);
+
+                if (numberOfTabs < 5 || (refEnd - refStart == 1 && bytes[refStart] == '*')) {
+                    w.write(bytes, lineStart, lineEnd - lineStart);
+                } else {
+                    int refIdEnd = refStart;
+                    while (refIdEnd < refEnd && bytes[refIdEnd] != '.')
+                        refIdEnd++;
+                    if (refIdEnd == refStart)
+                        refIdEnd = refEnd;
+
+                    final long pos;
+                    if (prevRef != null && equals(prevRef, bytes, refStart, refIdEnd))
+                        pos = prevPos;
+                    else {
+                        final String ref = new String(bytes, refStart, refIdEnd - refStart);
+                        pos = index.getPosition(ref);
+                        if (pos == -1) {
+                            if (refNotFound.add(ref) && reportUnmappedAccessions)
+                                System.err.println("Reference not found: " + ref);
+                            lineStart = next;
+                            continue; // line is not written
+                        }
+                        prevRef = Arrays.copyOfRange(bytes, refStart, refIdEnd);
+                        prevPos = pos;
+                    }
+
+                    final int startSubject = parseInt(bytes, tabs[2] + 1, tabs[3]);
+                    final int endSubject = startSubject + getRefLength(bytes, tabs[4] + 1, numberOfTabs >= 6 ? tabs[5] : lineEnd) - 1;
+
+                    final String annotation = index.getAnnotation(pos, startSubject, endSubject, minCoverageProportion);
+
+                    if (annotation != null) {
+                        String annotatedRef = new String(bytes, refStart, refEnd - refStart);
+                        final String remainder;
+                        final int len = annotatedRef.indexOf(' ');
+                        if (len >= 0 && len < annotatedRef.length()) {
+                            remainder = annotatedRef.substring(len); // keep space...
+                            annotatedRef = annotatedRef.substring(0, len);
+                        } else
+                            remainder = "";
+                        annotatedRef += (annotatedRef.endsWith("|") ? "" : "|") + annotation + remainder;
+
+                        w.write(bytes, lineStart, refStart - lineStart);
+                        w.write(annotatedRef.getBytes());
+                        w.write(bytes, refEnd, lineEnd - refEnd);
+                        chunk.counts.annotated++;
+                    } else
+                        w.write(bytes, lineStart, lineEnd - lineStart);
+                }
+                chunk.counts.alignments++;
+            }
+            w.write('\n');
+            chunk.counts.lines++;
+            lineStart = next;
         }
+        return chunk;
     }
 
-    private static final Pattern pattern = Pattern.compile("[0-9]+[MDN]+");
+    /**
+     * does the array equal the given range of bytes?
+     */
+    private static boolean equals(byte[] array, byte[] bytes, int start, int end) {
+        if (array.length != end - start)
+            return false;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] != bytes[start + i])
+                return false;
+        }
+        return true;
+    }
 
-    private static int getRefLength(String cigar) {
-        final Matcher matcher = pattern.matcher(cigar);
-        final ArrayList<String> pairs = new ArrayList<>();
-        while (matcher.find())
-            pairs.add(matcher.group());
+    /**
+     * parse an integer, returns 0, if no digits present
+     */
+    private static int parseInt(byte[] bytes, int start, int end) {
+        boolean negative = false;
+        if (start < end && (bytes[start] == '-' || bytes[start] == '+'))
+            negative = (bytes[start++] == '-');
+        int value = 0;
+        for (int i = start; i < end && Character.isDigit(bytes[i]); i++)
+            value = 10 * value + (bytes[i] - '0');
+        return negative ? -value : value;
+    }
 
+    /**
+     * get the number of reference letters covered by a CIGAR string, i.e. the sum of lengths of all M, D and N operations
+     */
+    private static int getRefLength(byte[] cigar, int start, int end) {
         int length = 0;
-        for (String p : pairs) {
-            int num = Integer.parseInt(p.substring(0, p.length() - 1));
-            length += num;
+        int number = 0;
+        boolean hasNumber = false;
+        for (int i = start; i < end; i++) {
+            final byte a = cigar[i];
+            if (Character.isDigit(a)) {
+                number = 10 * number + (a - '0');
+                hasNumber = true;
+            } else {
+                if (hasNumber && (a == 'M' || a == 'D' || a == 'N'))
+                    length += number;
+                number = 0;
+                hasNumber = false;
+            }
         }
         return length;
-
     }
 
     /**
@@ -0,0 +1,194 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.tools;
+
+import jloda.swing.util.ArgsOptions;
+import jloda.swing.util.ResourceManager;
+import jloda.util.*;
+import megan.io.Compressor;
+import megan.io.FastLZ;
+import megan.io.IInputReader;
+import megan.main.Megan6;
+import megan.rma6.RMA6File;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * measures speed and compression ratio of the available string compression codecs on the read and match texts of an RMA6 file
+ * Daniel Huson, 10.2019
+ */
+public class CompressionBenchmark {
+    /**
+     * compression benchmark
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    public static void main(String[] args) {
+        try {
+            ResourceManager.addResourceRoot(Megan6.class, "megan.resources");
+            ProgramProperties.setProgramName("CompressionBenchmark");
+            ProgramProperties.setProgramVersion(megan.main.Version.SHORT_DESCRIPTION);
+
+            PeakMemoryUsageMonitor.start();
+            (new CompressionBenchmark()).run(args);
+            System.err.println("Total time:  " + PeakMemoryUsageMonitor.getSecondsSinceStartString());
+            System.err.println("Peak memory: " + PeakMemoryUsageMonitor.getPeakUsageString());
+            System.exit(0);
+        } catch (Exception ex) {
+            Basic.caught(ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    private void run(String[] args) throws UsageException, IOException, DataFormatException {
+        final ArgsOptions options = new ArgsOptions(args, this, "Measures speed and compression ratio of string compression codecs on RMA6 content");
+        options.setVersion(ProgramProperties.getProgramVersion());
+        options.setLicense("Copyright (C) 2019 Daniel H. Huson. This program comes with ABSOLUTELY NO WARRANTY.");
+        options.setAuthors("Daniel H. Huson");
+
+        options.comment("Input");
+        final String inputFile = options.getOptionMandatory("-i", "in", "Input RMA6 file", "");
+        final int maxMegaBytes = options.getOption("-m", "maxMB", "Maximal amount of uncompressed text to use (in MB)", 100);
+
+        options.comment("Codecs");
+        final String[] codecs = options.getOption("-c", "codecs", "Codecs to compare", new String[]{"Deflate:9", "Deflate:6", "Deflate:1", "DeflateDictionary:9", "DeflateDictionary:6", "DeflateDictionary:1", "LZ"});
+        final int rounds = options.getOption("-r", "rounds", "Number of timed rounds per codec", 3);
+        options.done();
+
+        final List<byte[]> texts = loadTexts(inputFile, 1024L * 1024L * maxMegaBytes);
+        long totalBytes = 0;
+        int maxLength = 0;
+        for (byte[] text : texts) {
+            totalBytes += text.length;
+            maxLength = Math.max(maxLength, text.length);
+        }
+        System.err.println(String.format("Texts: %,d, total size: %s", texts.size(), Basic.getMemorySizeString(totalBytes)));
+
+        final byte[] compressed = new byte[4 + FastLZ.maxCompressedLength(2 * maxLength) + 64];
+        final byte[] decompressed = new byte[maxLength];
+        final int[] compressedLengths = new int[texts.size()];
+        final List<byte[]> compressedTexts = new ArrayList<>(texts.size());
+
+        System.out.println("# Codec\tCompress(MB/s)\tDecompress(MB/s)\tRatio");
+        for (String codec : codecs) {
+            final Compressor compressor = new Compressor(maxLength);
+            compressor.setCodecSpec(codec);
+
+            // warm up and keep compressed texts for decompression:
+            compressedTexts.clear();
+            long compressedBytes = 0;
+            for (int t = 0; t < texts.size(); t++) {
+                final byte[] text = texts.get(t);
+                compressedLengths[t] = compressor.deflateString2ByteArray(text, 0, text.length, compressed);
+                compressedTexts.add(Arrays.copyOf(compressed, Math.abs(compressedLengths[t])));
+                compressedBytes += Math.abs(compressedLengths[t]);
+            }
+
+            long compressNanos = Long.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                final long start = System.nanoTime();
+                for (byte[] text : texts) {
+                    compressor.deflateString2ByteArray(text, 0, text.length, compressed);
+                }
+                compressNanos = Math.min(compressNanos, System.nanoTime() - start);
+            }
+
+            long decompressNanos = Long.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                final long start = System.nanoTime();
+                for (int t = 0; t < texts.size(); t++) {
+                    if (compressedLengths[t] < 0)
+                        compressor.inflateByteArray(-compressedLengths[t], compressedTexts.get(t), decompressed);
+                }
+                decompressNanos = Math.min(decompressNanos, System.nanoTime() - start);
+            }
+
+            // verify:
+            for (int t = 0; t < texts.size(); t++) {
+                if (compressedLengths[t] < 0) {
+                    final int length = compressor.inflateByteArray(-compressedLengths[t], compressedTexts.get(t), decompressed);
+                    final byte[] text = texts.get(t);
+                    if (length != text.length || !Arrays.equals(text, Arrays.copyOf(decompressed, length)))
+                        throw new IOException("Codec " + codec + ": decompressed text differs from original");
+                }
+            }
+
+            System.out.println(String.format("%s\t%.1f\t%.1f\t%.2f", compressor.getCodecSpec(), megaBytesPerSecond(totalBytes, compressNanos),
+                    megaBytesPerSecond(totalBytes, decompressNanos), (double) totalBytes / compressedBytes));
+        }
+    }
+
+    /**
+     * loads the read and matches texts of an RMA6 file
+     *
+     * @param fileName
+     * @param maxBytes
+     * @return texts
+     */
+    private static List<byte[]> loadTexts(String fileName, long maxBytes) throws IOException {
+        final List<byte[]> texts = new ArrayList<>();
+        try (RMA6File rma6File = new RMA6File(fileName, RMA6File.READ_ONLY)) {
+            final boolean pairedReads = rma6File.getHeaderSectionRMA6().isPairedReads();
+            final int numberOfClassifications = rma6File.getHeaderSectionRMA6().getMatchClassNames().length;
+            final long end = rma6File.getFooterSectionRMA6().getEndReadsSection();
+
+            final IInputReader reader = rma6File.getReader();
+            reader.seek(rma6File.getFooterSectionRMA6().getStartReadsSection());
+
+            final ProgressPercentage progress = new ProgressPercentage("Reading file: " + fileName, end);
+            long totalBytes = 0;
+            while (reader.getPosition() < end && totalBytes < maxBytes) {
+                if (pairedReads)
+                    reader.skipBytes(8);
+                final byte[] readText = reader.readString().getBytes(StandardCharsets.UTF_8);
+                final int numberOfMatches = reader.readInt();
+                reader.skipBytes(4 * numberOfMatches * numberOfClassifications);
+                final byte[] matchesText = reader.readString().getBytes(StandardCharsets.UTF_8);
+
+                for (byte[] text : new byte[][]{readText, matchesText}) {
+                    if (text.length >= Compressor.MIN_SIZE_FOR_DEFLATION) {
+                        texts.add(text);
+                        totalBytes += text.length;
+                    }
+                }
+                progress.setProgress(reader.getPosition());
+            }
+            progress.close();
+        }
+        return texts;
+    }
+
+    private static double megaBytesPerSecond(long bytes, long nanos) {
+        return (bytes / (1024.0 * 1024.0)) / Math.max(1e-9, nanos / 1e9);
+    }
+}
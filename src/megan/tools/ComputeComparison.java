@@ -78,7 +78,9 @@ public class ComputeComparison {
 
         options.comment("Input and Output:");
         final String[] inputFiles = options.getOptionMandatory("-i", "in", "Input RMA and/or meganized DAA files", new String[0]);
+        final String appendTo = options.getOption("-a", "appendTo", "Existing comparison file to append the input files to (mode and normalization are taken from it)", "");
         final String outputFile = options.getOption("-o", "out", "Output file", "comparison.megan");
+        final boolean binaryOutput = options.getOption("-b", "binary", "Write output file in binary format (faster to open for many samples, keeps the .megan suffix)", false);
 
         options.comment("Options:");
 
@@ -89,12 +91,17 @@ public class ComputeComparison {
         final Document.ReadAssignmentMode readAssignmentMode = Document.ReadAssignmentMode.valueOfIgnoreCase(options.getOption("-ram", "readAssignmentMode", "Set the desired read-assignment mode", Document.ReadAssignmentMode.readCount.toString()));
         final boolean keepOne = options.getOption("-k1", "keepOne", "In a normalized comparison, minimum non-zero count is set to 1", false);
 
+        options.comment(ArgsOptions.OTHER);
+        final int maxOpenFiles = options.getOption("-mf", "maxOpenFiles", "Maximal number of input files read at the same time", ProgramProperties.get("ComparisonMaxOpenFiles", 64));
+
         options.done();
 
         for (String fileName : inputFiles) {
             if (!Basic.fileExistsAndIsNonEmpty(fileName))
                 throw new IOException("No such file or file empty: " + fileName);
         }
+        if (appendTo.length() > 0 && !Basic.fileExistsAndIsNonEmpty(appendTo))
+            throw new IOException("No such file or file empty: " + appendTo);
 
         final Director dir = Director.newProject(false);
         final Document doc = dir.getDocument();
@@ -104,7 +111,7 @@ public class ComputeComparison {
             CompareCommand compareCommand = new CompareCommand();
             compareCommand.setDir(dir);
             final String command = "compare mode=" + (normalize ? Comparer.COMPARISON_MODE.RELATIVE : Comparer.COMPARISON_MODE.ABSOLUTE) +
-                    " readAssignmentMode=" + readAssignmentMode + " keep1=" + keepOne + " ignoreUnassigned=" + ignoreUnassignedReads +
+                    " readAssignmentMode=" + readAssignmentMode + " keep1=" + keepOne + " ignoreUnassigned=" + ignoreUnassignedReads + " maxOpenFiles=" + maxOpenFiles + (appendTo.length() > 0 ? " appendTo='" + appendTo + "'" : "") +
                     " meganFile='" + Basic.toString(inputFiles, "', '") + "';";
             try {
                 compareCommand.apply(new NexusStreamParser(new StringReader(command)));
@@ -117,7 +124,7 @@ public class ComputeComparison {
         final SaveCommand saveCommand = new SaveCommand();
         saveCommand.setDir(dir);
         System.err.println("Saving to file: " + outputFile);
-        saveCommand.apply(new NexusStreamParser(new StringReader("save file='" + outputFile + "';")));
+        saveCommand.apply(new NexusStreamParser(new StringReader("save file='" + outputFile + "' binary=" + binaryOutput + ";")));
 
     }
 }
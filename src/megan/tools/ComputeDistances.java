@@ -0,0 +1,131 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.tools;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.swing.util.ArgsOptions;
+import jloda.swing.util.ResourceManager;
+import jloda.util.*;
+import megan.clusteranalysis.indices.BrayCurtisDissimilarity;
+import megan.clusteranalysis.indices.DistanceEngine;
+import megan.clusteranalysis.indices.SampleProfiles;
+import megan.core.DataTable;
+import megan.core.DataTableBinary;
+import megan.core.SampleAttributeTable;
+import megan.main.Megan6;
+
+import java.io.*;
+
+/**
+ * computes the matrix of distances between all samples of a comparison file
+ * Daniel Huson, 10.2019
+ */
+public class ComputeDistances {
+    /**
+     * ComputeDistances
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    public static void main(String[] args) {
+        try {
+            ResourceManager.addResourceRoot(Megan6.class, "megan.resources");
+            ProgramProperties.setProgramName("ComputeDistances");
+            ProgramProperties.setProgramVersion(megan.main.Version.SHORT_DESCRIPTION);
+
+            PeakMemoryUsageMonitor.start();
+            (new ComputeDistances()).run(args);
+            System.err.println("Total time:  " + PeakMemoryUsageMonitor.getSecondsSinceStartString());
+            System.err.println("Peak memory: " + PeakMemoryUsageMonitor.getPeakUsageString());
+            System.exit(0);
+        } catch (Exception ex) {
+            Basic.caught(ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    private void run(String[] args) throws UsageException, IOException, CanceledException {
+        final ArgsOptions options = new ArgsOptions(args, this, "Computes the distances between all samples of a MEGAN comparison file");
+        options.setVersion(ProgramProperties.getProgramVersion());
+        options.setLicense("Copyright (C) 2019 Daniel H. Huson. This program comes with ABSOLUTELY NO WARRANTY.");
+        options.setAuthors("Daniel H. Huson");
+
+        options.comment("Input and Output:");
+        final String inputFile = options.getOptionMandatory("-i", "in", "Input MEGAN comparison file (text or binary format)", "");
+        final String outputFile = options.getOption("-o", "out", "Output file (tab-separated matrix, use stdout for standard output)", "stdout");
+
+        options.comment("Options:");
+        final String classification = options.getOption("-c", "classification", "Classification to use", "Taxonomy");
+        final String method = options.getOption("-m", "method", "Distance to compute", DistanceEngine.getNames(), BrayCurtisDissimilarity.NAME);
+        final boolean ignoreUnassigned = options.getOption("-iu", "ignoreUnassigned", "Ignore unassigned, no-hit or contaminant reads", true);
+
+        options.comment(ArgsOptions.OTHER);
+        final int numberOfThreads = options.getOption("-t", "threads", "Number of threads", ProgramExecutorService.getNumberOfCoresToUse());
+        options.done();
+
+        if (!Basic.fileExistsAndIsNonEmpty(inputFile))
+            throw new IOException("No such file or file empty: " + inputFile);
+        if (!DistanceEngine.isSupported(method))
+            throw new UsageException("Unsupported method: " + method);
+
+        final DataTable table = new DataTable();
+        final SampleAttributeTable sampleAttributeTable = new SampleAttributeTable();
+        if (DataTableBinary.isBinaryFile(inputFile))
+            DataTableBinary.read(inputFile, table, sampleAttributeTable);
+        else {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Basic.getInputStreamPossiblyZIPorGZIP(inputFile)))) {
+                table.read(reader, false);
+            }
+        }
+        if (table.getClass2Counts(classification) == null)
+            throw new IOException("Classification not found in file: " + classification);
+
+        final String[] sampleNames = table.getSampleNamesArray();
+        final SampleProfiles profiles = SampleProfiles.fromDataTable(table, classification, ignoreUnassigned);
+        System.err.println(String.format("Samples: %,d, classes: %,d", profiles.getNumberOfSamples(), profiles.getNumberOfClasses()));
+
+        final double[][] matrix = new double[profiles.getNumberOfSamples()][profiles.getNumberOfSamples()];
+        final ProgressPercentage progress = new ProgressPercentage();
+        try (DistanceEngine engine = new DistanceEngine(numberOfThreads)) {
+            engine.apply(method, profiles, matrix, progress);
+        }
+        progress.close();
+
+        try (BufferedWriter w = new BufferedWriter(outputFile.equalsIgnoreCase("stdout") ? new OutputStreamWriter(System.out) : new FileWriter(outputFile))) {
+            w.write("#" + method);
+            for (String name : sampleNames)
+                w.write("\t" + name);
+            w.write("\n");
+            for (int s = 0; s < matrix.length; s++) {
+                w.write(sampleNames[s]);
+                for (double value : matrix[s])
+                    w.write("\t" + (float) value);
+                w.write("\n");
+            }
+        }
+    }
+}
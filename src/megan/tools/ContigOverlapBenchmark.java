@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.tools;
+
+import jloda.swing.util.ArgsOptions;
+import jloda.swing.util.ResourceManager;
+import jloda.util.*;
+import megan.assembly.align.SimpleAligner4DNA;
+import megan.main.Megan6;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * measures the time used to compute overlaps between random DNA contigs, as done when merging contigs
+ * Daniel Huson, 10.2019
+ */
+public class ContigOverlapBenchmark {
+    private static final byte[] NUCLEOTIDES = "ACGT".getBytes();
+
+    /**
+     * contig overlap benchmark
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    public static void main(String[] args) {
+        try {
+            ResourceManager.addResourceRoot(Megan6.class, "megan.resources");
+            ProgramProperties.setProgramName("ContigOverlapBenchmark");
+            ProgramProperties.setProgramVersion(megan.main.Version.SHORT_DESCRIPTION);
+
+            PeakMemoryUsageMonitor.start();
+            (new ContigOverlapBenchmark()).run(args);
+            System.err.println("Total time:  " + PeakMemoryUsageMonitor.getSecondsSinceStartString());
+            System.err.println("Peak memory: " + PeakMemoryUsageMonitor.getPeakUsageString());
+            System.exit(0);
+        } catch (Exception ex) {
+            Basic.caught(ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    private void run(String[] args) throws UsageException, IOException {
+        final ArgsOptions options = new ArgsOptions(args, this, "Measures the time used to compute overlaps between random DNA contigs");
+        options.setVersion(ProgramProperties.getProgramVersion());
+        options.setLicense("Copyright (C) 2019 Daniel H. Huson. This program comes with ABSOLUTELY NO WARRANTY.");
+        options.setAuthors("Daniel H. Huson");
+
+        options.comment("Input");
+        final int numberOfPairs = options.getOption("-n", "pairs", "Number of pairs of contigs to align", 10000);
+        final int genomeLength = options.getOption("-g", "genomeLength", "Length of random genome that contigs are taken from", 5000);
+        final int maxContigLength = options.getOption("-l", "maxLength", "Maximum contig length", 2000);
+        final double errorRate = options.getOption("-e", "errorRate", "Rate of substitution errors in contigs", 0.005);
+        final String[] minPercentIdentities = options.getOption("-p", "percentIdentity", "Minimum percent identities to run", new String[]{"0", "98"});
+        final int seed = options.getOption("-s", "seed", "Random number seed", 666);
+
+        options.comment(ArgsOptions.OTHER);
+        final int rounds = options.getOption("-r", "rounds", "Number of timed rounds per minimum percent identity", 1);
+        options.done();
+
+        if (maxContigLength > genomeLength || maxContigLength < 100)
+            throw new UsageException("Maximum contig length must be at least 100 and at most genome length");
+
+        final Random random = new Random(seed);
+        final byte[] genome = randomSequence(genomeLength, random);
+        final byte[][] queries = new byte[numberOfPairs][];
+        final byte[][] references = new byte[numberOfPairs][];
+        long totalLength = 0;
+        for (int i = 0; i < numberOfPairs; i++) {
+            final byte[] a = randomContig(genome, maxContigLength, errorRate, random);
+            final byte[] b = randomContig(genome, maxContigLength, errorRate, random);
+            queries[i] = (a.length <= b.length ? a : b);
+            references[i] = (a.length <= b.length ? b : a);
+            totalLength += queries[i].length;
+        }
+
+        System.out.println("# MinPercentIdentity\tSeconds\tPairs/s\tQueryBases/s\tOverlaps");
+        for (String minPercentIdentity : minPercentIdentities) {
+            long nanos = Long.MAX_VALUE;
+            int numberOfOverlaps = 0;
+            for (int r = 0; r < rounds; r++) {
+                final SimpleAligner4DNA aligner = new SimpleAligner4DNA();
+                aligner.setMinPercentIdentity(Basic.parseFloat(minPercentIdentity));
+                final Single<Integer> overlap = new Single<>(0);
+                numberOfOverlaps = 0;
+                final long start = System.nanoTime();
+                for (int i = 0; i < numberOfPairs; i++) {
+                    if (aligner.getOverlap(queries[i], references[i], overlap) != SimpleAligner4DNA.OverlapType.None)
+                        numberOfOverlaps++;
+                }
+                nanos = Math.min(nanos, System.nanoTime() - start);
+            }
+            final double seconds = Math.max(1e-9, nanos / 1e9);
+            System.out.println(String.format("%s\t%.3f\t%.0f\t%.0f\t%d", minPercentIdentity, seconds, numberOfPairs / seconds, totalLength / seconds, numberOfOverlaps));
+        }
+    }
+
+    private static byte[] randomSequence(int length, Random random) {
+        final byte[] sequence = new byte[length];
+        for (int i = 0; i < length; i++)
+            sequence[i] = NUCLEOTIDES[random.nextInt(NUCLEOTIDES.length)];
+        return sequence;
+    }
+
+    /**
+     * a random segment of the genome, with substitution errors
+     */
+    private static byte[] randomContig(byte[] genome, int maxLength, double errorRate, Random random) {
+        final int length = 100 + random.nextInt(maxLength - 99);
+        final int start = random.nextInt(genome.length - length + 1);
+        final byte[] contig = Arrays.copyOfRange(genome, start, start + length);
+        for (int i = 0; i < length; i++) {
+            if (random.nextDouble() < errorRate)
+                contig[i] = NUCLEOTIDES[random.nextInt(NUCLEOTIDES.length)];
+        }
+        return contig;
+    }
+}
@@ -32,6 +32,7 @@ import megan.core.ContaminantManager;
 import megan.core.Document;
 import megan.core.SampleAttributeTable;
 import megan.daa.io.DAAParser;
+import megan.io.FileReadAheadAdapter;
 import megan.main.Megan6;
 import megan.main.MeganProperties;
 import megan.parsers.blast.BlastFileFormat;
@@ -67,6 +68,8 @@ public class DAA2RMA6 {
             (new DAA2RMA6()).run(args);
             System.err.println("Total time:  " + PeakMemoryUsageMonitor.getSecondsSinceStartString());
             System.err.println("Peak memory: " + PeakMemoryUsageMonitor.getPeakUsageString());
+            if (FileReadAheadAdapter.getTotalBytesRead() > 0)
+                System.err.println(String.format("I/O:         %s read, %.1fs waiting for input", Basic.getMemorySizeString(FileReadAheadAdapter.getTotalBytesRead()), FileReadAheadAdapter.getTotalStallTimeMilliseconds() / 1000.0));
             System.exit(0);
         } catch (Exception ex) {
             Basic.caught(ex);
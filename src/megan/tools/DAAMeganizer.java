@@ -31,6 +31,7 @@ import megan.classification.IdParser;
 import megan.classification.data.ClassificationCommandHelper;
 import megan.core.Document;
 import megan.daa.Meganize;
+import megan.io.FileReadAheadAdapter;
 import megan.main.Megan6;
 import megan.main.MeganProperties;
 import megan.util.DAAFileFilter;
@@ -64,6 +65,8 @@ public class DAAMeganizer {
             (new DAAMeganizer()).run(args);
             System.err.println("Total time:  " + PeakMemoryUsageMonitor.getSecondsSinceStartString());
             System.err.println("Peak memory: " + PeakMemoryUsageMonitor.getPeakUsageString());
+            if (FileReadAheadAdapter.getTotalBytesRead() > 0)
+                System.err.println(String.format("I/O:         %s read, %.1fs waiting for input", Basic.getMemorySizeString(FileReadAheadAdapter.getTotalBytesRead()), FileReadAheadAdapter.getTotalStallTimeMilliseconds() / 1000.0));
             System.exit(0);
         } catch (Exception ex) {
             Basic.caught(ex);
@@ -36,15 +36,15 @@ import megan.main.Megan6;
 import megan.main.MeganProperties;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * performs gene-centric assemblies
- * Daniel Huson, 8/2016
+ * Daniel Huson, 8/2016, 10.2019
  */
 public class GCAssembler {
     /**
@@ -111,6 +111,7 @@ public class GCAssembler {
         options.comment(ArgsOptions.OTHER);
 
         final int desiredNumberOfThreads = options.getOption("-t", "threads", "Number of worker threads", 4);
+        final int prefetchReads = options.getOption("-pf", "prefetchReads", "Classes with fewer reads are read in batches of about this many reads, 0 to turn off", 10000);
         final boolean veryVerbose = options.getOption("-vv", "veryVerbose", "Report program is very verbose detail", false);
 
         options.done();
@@ -147,6 +148,7 @@ public class GCAssembler {
 
         final Classification classification;
         final List<Integer> classIdsList;
+        final Map<Integer, Integer> classId2Size = new HashMap<>();
         if (classificationName.equalsIgnoreCase("none")) {
             classification = null;
             classIdsList = Collections.singletonList(0);
@@ -162,7 +164,6 @@ public class GCAssembler {
                 for (Integer id : classificationBlock.getKeySet()) {
                     if (id > 0 && classificationBlock.getSum(id) > 0)
                         classIdsList.add(id);
-                    classIdsList.sort((i, j) -> i.compareTo(j));
                 }
             } else {
                 classIdsList = new ArrayList<>(selectedClassIds.length);
@@ -180,6 +181,20 @@ public class GCAssembler {
                     }
                 }
             }
+            // schedule largest classes first, so that a large class is not started last and keeps all other threads waiting:
+            for (Integer id : classIdsList) {
+                classId2Size.put(id, classificationBlock.getSum(id));
+            }
+            classIdsList.sort((i, j) -> {
+                final int sizeI = classId2Size.get(i);
+                final int sizeJ = classId2Size.get(j);
+                if (sizeI > sizeJ)
+                    return -1;
+                else if (sizeI < sizeJ)
+                    return 1;
+                else
+                    return i.compareTo(j);
+            });
         }
         if (options.isVerbose())
             System.err.println("Number of classes to assemble: " + classIdsList.size());
@@ -187,13 +202,35 @@ public class GCAssembler {
         if (classIdsList.size() == 0)
             throw new UsageException("No valid classes specified");
 
-        final int numberOfThreads = Math.min(classIdsList.size(), desiredNumberOfThreads);
-        final int remainingThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - numberOfThreads);
+        // each work item is a single class or a batch of small classes whose reads are collected in one pass:
+        final List<int[]> workItems = new ArrayList<>();
+        {
+            final List<Integer> batch = new ArrayList<>();
+            int batchSize = 0;
+            for (Integer classId : classIdsList) {
+                final int size = classId2Size.getOrDefault(classId, Integer.MAX_VALUE);
+                if (size < prefetchReads) {
+                    batch.add(classId);
+                    batchSize += size;
+                    if (batchSize >= prefetchReads) {
+                        workItems.add(toArray(batch));
+                        batch.clear();
+                        batchSize = 0;
+                    }
+                } else
+                    workItems.add(new int[]{classId});
+            }
+            if (batch.size() > 0)
+                workItems.add(toArray(batch));
+        }
+
+        final int numberOfThreads = Math.min(workItems.size(), desiredNumberOfThreads);
+        final int numberOfCores = Math.max(numberOfThreads, Runtime.getRuntime().availableProcessors());
         final ExecutorService service = Executors.newFixedThreadPool(numberOfThreads);
         final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
 
-        final BlockingQueue<Integer> queue = new ArrayBlockingQueue<>(classIdsList.size() + numberOfThreads, true);
-        final Integer sentinel = Integer.MAX_VALUE;
+        final AtomicInteger nextWorkItem = new AtomicInteger(0);
+        final AtomicInteger activeThreads = new AtomicInteger(numberOfThreads);
 
         final int[] numberOfFilesProduced = new int[numberOfThreads];
         final int[] totalContigs = new int[numberOfThreads];
@@ -213,12 +250,23 @@ public class GCAssembler {
                     doc.loadMeganFile();
                     final IConnector connector = doc.getConnector();
 
-                    while (true) {
-                        Integer classId = queue.take();
-                        if (classId.equals(sentinel))
-                            return;
-                        try (final IReadBlockIterator it = getIterator(connector, classificationName, classId)) {
-                            final List<ReadData> readData = ReadDataCollector.apply(it, veryVerbose ? new ProgressPercentage() : new ProgressSilent());
+                    int w;
+                    while ((w = nextWorkItem.getAndIncrement()) < workItems.size()) {
+                        final int[] classIds = workItems.get(w);
+                        final List<ReadData>[] class2readData;
+                        if (classIds.length == 1) {
+                            class2readData = new List[1];
+                            try (final IReadBlockIterator it = getIterator(connector, classificationName, classIds[0])) {
+                                class2readData[0] = ReadDataCollector.apply(it, veryVerbose ? new ProgressPercentage() : new ProgressSilent());
+                            }
+                        } else
+                            class2readData = ReadDataCollector.apply(connector, classificationName, classIds, veryVerbose ? new ProgressPercentage() : new ProgressSilent());
+
+                        for (int c = 0; c < classIds.length; c++) {
+                            final int classId = classIds[c];
+                            final List<ReadData> readData = class2readData[c];
+                            class2readData[c] = null;
+
                             final String className = classification != null ? classification.getName2IdMap().get(classId) : "none";
                             if (veryVerbose)
                                 System.err.println("++++ Assembling class " + +classId + ": " + className + ": ++++");
@@ -226,6 +274,8 @@ public class GCAssembler {
                             final String outputFile = createOutputFileName(outputFileTemplate, classId, className, classIdsList.size());
                             final String label = classificationName + ". Id: " + classId;
 
+                            // threads that have run out of work items are given to the classes that are still being assembled:
+                            readAssembler.setNumberOfThreads(numberOfCores / activeThreads.get());
                             readAssembler.computeOverlapGraph(label, minOverlapReads, readData, progress);
 
                             int count = readAssembler.computeContigs(minReads, minAvCoverage, minLength, progress);
@@ -234,13 +284,13 @@ public class GCAssembler {
                                 System.err.println(String.format("Number of contigs:%6d", count));
 
                             if (doOverlapContigs) {
-                                count = ReadAssembler.mergeOverlappingContigs(remainingThreads, progress, minPercentIdentityContigs, minOverlapContigs, readAssembler.getContigs(), veryVerbose);
+                                count = ReadAssembler.mergeOverlappingContigs(numberOfCores / activeThreads.get(), progress, minPercentIdentityContigs, minOverlapContigs, readAssembler.getContigs(), veryVerbose);
                                 if (veryVerbose)
                                     System.err.println(String.format("Remaining contigs:%6d", count));
                             }
 
-                            try (Writer w = new BufferedWriter(new FileWriter(outputFile))) {
-                                readAssembler.writeContigs(w, progress);
+                            try (Writer writer = new BufferedWriter(new FileWriter(outputFile))) {
+                                readAssembler.writeContigs(writer, progress);
                                 if (veryVerbose) {
                                     System.err.println("Contigs written to: " + outputFile);
                                     readAssembler.reportContigStats();
@@ -248,9 +298,9 @@ public class GCAssembler {
                                 numberOfFilesProduced[threadNumber]++;
                                 totalContigs[threadNumber] += readAssembler.getContigs().size();
                             }
-                        }
-                        synchronized (totalProgress) {
-                            totalProgress.incrementProgress();
+                            synchronized (totalProgress) {
+                                totalProgress.incrementProgress();
+                            }
                         }
                     }
                 } catch (Exception e) {
@@ -259,25 +309,12 @@ public class GCAssembler {
                         System.exit(1);
                     }
                 } finally {
+                    activeThreads.decrementAndGet();
                     countDownLatch.countDown();
                 }
             });
         }
 
-        for (Integer classId : classIdsList) {
-            try {
-                queue.put(classId);
-            } catch (InterruptedException e) {
-                Basic.caught(e);
-            }
-        }
-
-        try {
-            for (int i = 0; i < numberOfThreads; i++)
-                queue.put(sentinel);
-        } catch (InterruptedException e) {
-            Basic.caught(e);
-        }
         try {
             countDownLatch.await();
         } catch (InterruptedException e) {
@@ -331,4 +368,11 @@ public class GCAssembler {
         else
             return connector.getReadsIterator(classificationName, classId, 0, 10, true, true);
     }
-}
\ No newline at end of file
+
+    private static int[] toArray(List<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright (C) 2019 Daniel H. Huson
+ *
+ *  (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package megan.tools;
+
+import jloda.fx.util.ProgramExecutorService;
+import jloda.swing.util.ArgsOptions;
+import jloda.swing.util.ResourceManager;
+import jloda.util.*;
+import megan.clusteranalysis.nnet.NeighborNet;
+import megan.clusteranalysis.nnet.SplitSystem;
+import megan.clusteranalysis.tree.Distances;
+import megan.clusteranalysis.tree.Taxa;
+import megan.main.Megan6;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * measures the time used by Neighbor-Net on random distances for different numbers of taxa
+ * Daniel Huson, 10.2019
+ */
+public class NeighborNetBenchmark {
+    /**
+     * Neighbor-Net benchmark
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    public static void main(String[] args) {
+        try {
+            ResourceManager.addResourceRoot(Megan6.class, "megan.resources");
+            ProgramProperties.setProgramName("NeighborNetBenchmark");
+            ProgramProperties.setProgramVersion(megan.main.Version.SHORT_DESCRIPTION);
+
+            PeakMemoryUsageMonitor.start();
+            (new NeighborNetBenchmark()).run(args);
+            System.err.println("Total time:  " + PeakMemoryUsageMonitor.getSecondsSinceStartString());
+            System.err.println("Peak memory: " + PeakMemoryUsageMonitor.getPeakUsageString());
+            System.exit(0);
+        } catch (Exception ex) {
+            Basic.caught(ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run
+     *
+     * @param args
+     * @throws UsageException
+     * @throws IOException
+     */
+    private void run(String[] args) throws UsageException, IOException, CanceledException {
+        final ArgsOptions options = new ArgsOptions(args, this, "Measures the time used by Neighbor-Net on random distances");
+        options.setVersion(ProgramProperties.getProgramVersion());
+        options.setLicense("Copyright (C) 2019 Daniel H. Huson. This program comes with ABSOLUTELY NO WARRANTY.");
+        options.setAuthors("Daniel H. Huson");
+
+        options.comment("Input");
+        final String[] sizes = options.getOption("-n", "taxa", "Numbers of taxa to run", new String[]{"100", "500", "2000"});
+        final int dimensions = options.getOption("-d", "dimensions", "Dimension of space in which random taxa are placed", 5);
+        final double noise = options.getOption("-x", "noise", "Amount of random noise added to distances", 0.1);
+        final int seed = options.getOption("-s", "seed", "Random number seed", 666);
+
+        options.comment(ArgsOptions.OTHER);
+        final int rounds = options.getOption("-r", "rounds", "Number of timed rounds per number of taxa", 1);
+        final int numberOfThreads = options.getOption("-t", "threads", "Number of threads", ProgramExecutorService.getNumberOfCoresToUse());
+        options.done();
+
+        System.out.println("# Taxa\tSeconds\tSplits");
+        for (String size : sizes) {
+            final int ntax = Basic.parseInt(size);
+            if (ntax < 1)
+                throw new UsageException("Illegal number of taxa: " + size);
+
+            final Taxa taxa = new Taxa();
+            for (int t = 1; t <= ntax; t++)
+                taxa.add("t" + t);
+            final Distances distances = createRandomDistances(ntax, dimensions, noise, new Random(seed));
+
+            long nanos = Long.MAX_VALUE;
+            int numberOfSplits = 0;
+            for (int r = 0; r < rounds; r++) {
+                final NeighborNet neighborNet = new NeighborNet();
+                neighborNet.setNumberOfThreads(numberOfThreads);
+                final long start = System.nanoTime();
+                final SplitSystem splits = neighborNet.apply(new ProgressPercentage(), taxa, distances);
+                nanos = Math.min(nanos, System.nanoTime() - start);
+                numberOfSplits = splits.size();
+            }
+            System.out.println(String.format("%d\t%.3f\t%d", ntax, nanos / 1e9, numberOfSplits));
+        }
+    }
+
+    /**
+     * creates Euclidean distances between random points, with added noise
+     *
+     * @param ntax
+     * @param dimensions
+     * @param noise
+     * @param random
+     * @return distances
+     */
+    private static Distances createRandomDistances(int ntax, int dimensions, double noise, Random random) {
+        final double[][] points = new double[ntax + 1][dimensions];
+        for (int t = 1; t <= ntax; t++) {
+            for (int k = 0; k < dimensions; k++)
+                points[t][k] = random.nextGaussian();
+        }
+        final Distances distances = new Distances(ntax);
+        for (int i = 1; i <= ntax; i++) {
+            for (int j = i + 1; j <= ntax; j++) {
+                double sum = 0;
+                for (int k = 0; k < dimensions; k++) {
+                    final double diff = points[i][k] - points[j][k];
+                    sum += diff * diff;
+                }
+                distances.set(i, j, Math.sqrt(sum) + noise * random.nextDouble());
+            }
+        }
+        return distances;
+    }
+}
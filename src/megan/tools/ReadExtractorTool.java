@@ -18,6 +18,7 @@
  */
 package megan.tools;
 
+import jloda.fx.util.ProgramExecutorService;
 import jloda.swing.util.ArgsOptions;
 import jloda.swing.util.ResourceManager;
 import jloda.util.*;
@@ -38,7 +39,7 @@ import java.util.*;
 
 /**
  * extracts reads from a DAA or RMA file, by taxa
- * Daniel Huson, 1.2019
+ * Daniel Huson, 1.2019, 10.2019
  */
 public class ReadExtractorTool {
     /**
@@ -87,15 +88,22 @@ public class ReadExtractorTool {
         final String classificationName = options.getOption("-c", "classification", "The classification to use", ClassificationManager.getAllSupportedClassifications(), "");
         final ArrayList<String> classNames = new ArrayList<>(Arrays.asList(options.getOption("-n", "classNames", "Names (or ids) of classes to extract reads from (default: extract all classes)", new String[0])));
         final boolean all = options.getOption("-a", "all", "Extract all reads (not by class)", false);
+        final boolean singlePass = options.getOption("-sp", "singlePass", "Extract reads of all classes in one pass over the file, recommended for many classes (DAA and RMA6 only, reads in file order)", false);
 
         options.comment(ArgsOptions.OTHER);
         final boolean ignoreExceptions = options.getOption("-IE", "ignoreExceptions", "Ignore exceptions and continue processing", false);
         final boolean gzOutputFiles = options.getOption("-gz", "gzipOutputFiles", "If output directory is given, gzip files written to directory", true);
+        final int maxOpenFiles = options.getOption("-mof", "maxOpenFiles", "Maximum number of output files open at the same time in single-pass mode", 256);
+        final int numberOfThreads = options.getOption("-t", "threads", "Number of threads used to write output files in single-pass mode", ProgramExecutorService.getNumberOfCoresToUse());
         options.done();
 
         if (classificationName.equals("") != all) {
             throw new UsageException("Must specific either option --classification or --all");
         }
+        if (singlePass && extractCorrectedReads)
+            throw new UsageException("Option --singlePass not supported with --frameShiftCorrect");
+        if (maxOpenFiles < 1)
+            throw new UsageException("--maxOpenFiles: must be at least 1");
 
 
         final boolean useStdout = (outputFiles.size() == 1 && outputFiles.get(0).equals("-"));
@@ -123,7 +131,7 @@ public class ReadExtractorTool {
                 if (inputFile.toLowerCase().endsWith("daa") && !DAAParser.isMeganizedDAAFile(inputFile, true)) {
                     throw new IOException("Warning: non-meganized DAA file: " + inputFile);
                 } else {
-                    totalReads += extract(extractCorrectedReads, classificationName, classNames, all, inputFile, outputFile);
+                    totalReads += extract(extractCorrectedReads, classificationName, classNames, all, singlePass, maxOpenFiles, numberOfThreads, inputFile, outputFile);
                 }
             } catch (Exception ex) {
                 if (ignoreExceptions)
@@ -141,12 +149,15 @@ public class ReadExtractorTool {
      * @param extractCorrectedReads
      * @param classificationName
      * @param classNames
+     * @param singlePass      extract all classes in one pass over the file
+     * @param maxOpenFiles
+     * @param numberOfThreads
      * @param inputFile
      * @param outputFile
      * @throws IOException
      * @throws CanceledException
      */
-    private int extract(boolean extractCorrectedReads, String classificationName, Collection<String> classNames, boolean all, String inputFile, String outputFile) throws IOException, CanceledException {
+    private int extract(boolean extractCorrectedReads, String classificationName, Collection<String> classNames, boolean all, boolean singlePass, int maxOpenFiles, int numberOfThreads, String inputFile, String outputFile) throws IOException, CanceledException {
         final Document doc = new Document();
         doc.getMeganFile().setFileFromExistingFile(inputFile, true);
         doc.loadMeganFile();
@@ -201,7 +212,9 @@ public class ReadExtractorTool {
             }
 
             try (ProgressPercentage progress = new ProgressPercentage("Processing file: " + inputFile)) {
-                if (!extractCorrectedReads) {
+                if (singlePass) {
+                    return ReadsExtractor.extractReadsInOnePass(classificationName, progress, classIds, "", outputFile, doc, maxOpenFiles, numberOfThreads);
+                } else if (!extractCorrectedReads) {
                     return ReadsExtractor.extractReadsByFViewer(classificationName, progress, classIds, "", outputFile, doc, false);
                 } else {
                     return FrameShiftCorrectedReadsExporter.export(classificationName, classIds, connector, outputFile, progress);
@@ -37,6 +37,7 @@ import megan.parsers.blast.BlastFileFormat;
 import megan.parsers.blast.BlastModeUtils;
 import megan.rma6.RMA6Connector;
 import megan.rma6.RMA6FromBlastCreator;
+import megan.util.BAMFileFilter;
 import megan.util.SAMFileFilter;
 
 import java.io.File;
@@ -91,7 +92,7 @@ public class SAM2RMA6 {
         options.setAuthors("Daniel H. Huson");
 
         options.comment("Input");
-        final String[] samFiles = options.getOptionMandatory("-i", "in", "Input SAM file[s] generated by DIAMOND or MALT (gzipped ok)", new String[0]);
+        final String[] samFiles = options.getOptionMandatory("-i", "in", "Input SAM or BAM file[s] generated by DIAMOND or MALT (gzipped ok)", new String[0]);
         String[] readsFiles = options.getOption("-r", "reads", "Reads file(s) (fasta or fastq, gzipped ok)", new String[0]);
         final String[] metaDataFiles = options.getOption("-mdf", "metaDataFile", "Files containing metadata to be included in RMA6 files", new String[0]);
 
@@ -163,8 +164,8 @@ public class SAM2RMA6 {
 
         for (String fileName : samFiles) {
             Basic.checkFileReadableNonEmpty(fileName);
-            if (!SAMFileFilter.getInstance().accept(fileName))
-                throw new IOException("File not in SAM format (or incorrect file suffix?): " + fileName);
+            if (!SAMFileFilter.getInstance().accept(fileName) && !BAMFileFilter.getInstance().accept(fileName))
+                throw new IOException("File not in SAM or BAM format (or incorrect file suffix?): " + fileName);
         }
 
         for (String fileName : metaDataFiles) {
@@ -273,7 +274,7 @@ public class SAM2RMA6 {
             doc.setMinSupport(minSupport);
             doc.setPairedReads(pairedReads);
             doc.setPairedReadSuffixLength(pairedReadsSuffixLength);
-            doc.setBlastMode(BlastModeUtils.determineBlastModeSAMFile(samFiles[i]));
+            doc.setBlastMode(BAMFileFilter.getInstance().accept(samFiles[i]) ? BlastMode.BlastN : BlastModeUtils.determineBlastModeSAMFile(samFiles[i]));
             doc.setLcaAlgorithm(lcaAlgorithm);
             doc.setLcaCoveragePercent(lcaCoveragePercent);
             doc.setMinPercentReadToCover(minPercentReadToCover);
@@ -313,7 +314,7 @@ public class SAM2RMA6 {
     }
 
     /**
-     * create an RMA6 file from a SAM file (generated by DIAMOND or MALT)
+     * create an RMA6 file from a SAM or BAM file (generated by DIAMOND or MALT)
      *
      * @param samFile
      * @param rma6FileName
@@ -323,7 +324,7 @@ public class SAM2RMA6 {
     private static void createRMA6FileFromSAM(String creator, String samFile, String queryFile, String rma6FileName, boolean useCompression, Document doc,
                                               int maxMatchesPerRead, ProgressListener progressListener) throws IOException, CanceledException, SQLException {
         final RMA6FromBlastCreator rma6Creator =
-                new RMA6FromBlastCreator(creator, BlastFileFormat.SAM, doc.getBlastMode(), new String[]{samFile}, new String[]{queryFile}, rma6FileName, useCompression, doc, maxMatchesPerRead);
+                new RMA6FromBlastCreator(creator, BAMFileFilter.getInstance().accept(samFile) ? BlastFileFormat.BAM : BlastFileFormat.SAM, doc.getBlastMode(), new String[]{samFile}, new String[]{queryFile}, rma6FileName, useCompression, doc, maxMatchesPerRead);
         rma6Creator.parseFiles(progressListener);
     }
 }
@@ -22,15 +22,10 @@ import jloda.swing.util.ArgsOptions;
 import jloda.swing.util.ResourceManager;
 import jloda.util.*;
 import megan.main.Megan6;
-
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import megan.parsers.maf.MAFSorter;
 
 /**
- * sort last MAF alignments
+ * sort last MAF alignments, using an external merge sort so that memory usage does not depend on the size of the input
  */
 public class SortLastMAFAlignmentsByQuery {
     /**
@@ -69,153 +64,19 @@ public class SortLastMAFAlignmentsByQuery {
         options.setAuthors("Daniel H. Huson");
 
         final String lastMAFFile = options.getOptionMandatory("-i", "input", "Input file in MAF format as produced by Last (.gz ok)", "");
-        String readsFile = options.getOption("-r", "readsFile", "File containing all reads, if given, determines output order (.gz ok)", "");
+        final String readsFile = options.getOption("-r", "readsFile", "File containing all reads, if given, determines output order (.gz ok)", "");
 
         final String outputFile = options.getOption("-o", "output", "Output file (.gz ok, use 'stdout' for standard out)", "stdout");
+        options.comment(ArgsOptions.OTHER);
+        final int runSizeMB = options.getOption("-rs", "runSize", "Size of sorted runs held in memory (in MB)", MAFSorter.DEFAULT_RUN_SIZE_MB);
         options.done();
 
-        final HashMap<String, ArrayList<byte[][]>> readName2Alignments = new HashMap<>(1000000);
-
-        final ArrayList<String> readNamesOrder = new ArrayList<>(1000000);
-        final boolean orderSetFromReadsFile;
-
-        if (readsFile.length() > 0) {
-            try (IFastAIterator iterator = FastAFileIterator.getFastAOrFastQAsFastAIterator(readsFile); ProgressPercentage progress = new ProgressPercentage("Processing file: " + readsFile)) {
-                progress.setMaximum(iterator.getMaximumProgress());
-                while (iterator.hasNext()) {
-                    readNamesOrder.add(Basic.getFirstWord(Basic.swallowLeadingGreaterSign(iterator.next().get1())));
-                    progress.setProgress(iterator.getProgress());
-                }
-            }
-            orderSetFromReadsFile = (readNamesOrder.size() > 0);
-        } else
-            orderSetFromReadsFile = false;
-
-        boolean inInitialComments = true;
-
-        long readsIn = 0;
-        long readsOut = 0;
-        long alignmentsIn = 0;
-        long alignmentsOut = 0;
-
-        try (FileLineIterator it = new FileLineIterator(lastMAFFile);
-             BufferedWriter w = new BufferedWriter(outputFile.equals("stdout") ? new OutputStreamWriter(System.out) : new OutputStreamWriter(Basic.getOutputStreamPossiblyZIPorGZIP(outputFile)))) {
-
-            try (ProgressPercentage progress = new ProgressPercentage("Processing file: " + lastMAFFile)) {
-                progress.setMaximum(it.getMaximumProgress());
-                while (it.hasNext()) {
-                    String line = it.next();
-                    if (line.startsWith("#")) {
-                        if (inInitialComments && !line.startsWith("# batch")) {
-                            w.write(line);
-                            w.write('\n');
-                        }
-                    } else {
-                        if (inInitialComments)
-                            inInitialComments = false;
-                        if (line.startsWith("a ")) {
-                            final byte[][] alignment = new byte[3][];
-                            alignment[0] = line.getBytes();
-                            if (it.hasNext()) {
-                                alignment[1] = it.next().getBytes();
-                                if (it.hasNext()) {
-                                    final String line2 = it.next();
-                                    alignment[2] = line2.getBytes();
-                                    alignmentsIn++;
-
-                                    String readName = getSecondWord(line2);
-                                    ArrayList<byte[][]> alignments = readName2Alignments.get(readName);
-                                    if (alignments == null) {
-                                        alignments = new ArrayList<>(100);
-                                        readName2Alignments.put(readName, alignments);
-                                        if (!orderSetFromReadsFile)
-                                            readNamesOrder.add(readName);
-                                        readsIn++;
-                                    }
-                                    alignments.add(alignment);
-                                }
-                            }
-                        }
-
-                    }
-                    progress.setProgress(it.getProgress());
-                }
-            }
-
-            try (ProgressPercentage progress = new ProgressPercentage("Writing file: " + outputFile)) {
-                progress.setMaximum(readName2Alignments.keySet().size());
-
-                Collection<String>[] order = new Collection[]{readNamesOrder, readName2Alignments.keySet()};
-
-                // first output in order, then output any others that were not mentioned...
-                for (int i = 0; i <= 1; i++) {
-                    if (i == 1 && order[i].size() > 0 && orderSetFromReadsFile) {
-                        System.err.println("Warning: alignments found for queries that are not mentioned in the provided reads file");
-                    }
-                    for (String readName : order[i]) {
-                        ArrayList<byte[][]> alignments = readName2Alignments.get(readName);
-                        if (alignments != null) {
-                            alignments.sort((a, b) -> {
-                                final int scoreA = parseScoreFromA(a[0]);
-                                final int scoreB = parseScoreFromA(b[0]);
-                                if (scoreA > scoreB)
-                                    return -1;
-                                else if (scoreA < scoreB)
-                                    return 1;
-                                else
-                                    return 0;
-                            });
-                            for (byte[][] alignment : alignments) {
-                                for (byte[] line : alignment) {
-                                    w.write(Basic.toString(line));
-                                    w.write('\n');
-                                }
-                                w.write('\n');
-                                alignmentsOut++;
-                            }
-                            readsOut++;
-                        }
-                        readName2Alignments.remove(readName);
-                        progress.incrementProgress();
-                    }
-                }
-            }
+        final Pair<Long, Long> alignmentsAndReads;
+        try (ProgressPercentage progress = new ProgressPercentage("Processing file: " + lastMAFFile)) {
+            alignmentsAndReads = MAFSorter.sort(readsFile, lastMAFFile, outputFile, runSizeMB * 1024L * 1024L, progress);
         }
 
-        if (alignmentsIn != alignmentsOut)
-            System.err.println("Alignments: in=" + alignmentsIn + ", out=" + alignmentsOut);
-        if (readsIn != readsOut)
-            System.err.println("Reads: in=" + alignmentsIn + ", out=" + alignmentsOut);
-
-        System.err.println(String.format("Alignments: %,10d", alignmentsIn));
-        System.err.println(String.format("Reads      :%,10d", readsIn));
-    }
-
-    private int parseScoreFromA(byte[] s) {
-        String string = Basic.toString(s);
-        int a = string.indexOf('=') + 1;
-        int b = a;
-        while (b < s.length && !Character.isWhitespace(string.charAt(b)))
-            b++;
-        return Basic.parseInt(string.substring(a, b));
-    }
-
-    private String getSecondWord(String string) {
-        int a = 0;
-        while (a < string.length() && Character.isWhitespace(string.charAt(a))) // skip leading white space
-            a++;
-        while (a < string.length() && !Character.isWhitespace(string.charAt(a))) // skip first word
-            a++;
-        while (a < string.length() && Character.isWhitespace(string.charAt(a))) // skip separating white space
-            a++;
-        int b = a;
-        while (b < string.length() && !Character.isWhitespace(string.charAt(b))) // find end of second word
-            b++;
-        if (b < string.length())
-            return string.substring(a, b);
-        else if (a < string.length())
-            return string.substring(a);
-        else
-            return "";
+        System.err.println(String.format("Alignments: %,10d", alignmentsAndReads.getFirst()));
+        System.err.println(String.format("Reads      :%,10d", alignmentsAndReads.getSecond()));
     }
 }